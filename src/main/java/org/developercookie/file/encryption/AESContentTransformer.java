@@ -2,8 +2,14 @@ package org.developercookie.file.encryption;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.GeneralSecurityException;
 import java.security.Key;
 import java.security.MessageDigest;
@@ -13,7 +19,12 @@ import java.util.Arrays;
 /**
  * Encrypts/Decrypts content with the AES algorithm. The key size is 128bit. Created by developerCookie on 08.04.14.
  */
-public class AESContentTransformer implements ContentTransformer {
+public class AESContentTransformer implements StreamingContentTransformer {
+    /**
+     * The block size of AES in bytes.
+     */
+    public static final int BLOCK_SIZE = 16;
+
     /**
      * Encrypts the given <code>content</code> with the given <code>key</code>
      */
@@ -39,11 +50,74 @@ public class AESContentTransformer implements ContentTransformer {
         }
     }
 
+    /**
+     * Returns a stream that encrypts with the given <code>key</code> into the <code>out</code> stream.
+     */
+    public OutputStream encryptingStream(OutputStream out, String key) throws IOException {
+        try {
+            return new CipherOutputStream(out, createCipher(key, true));
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Returns a stream that decrypts the <code>in</code> stream with the given <code>key</code>. A wrong key is
+     * reported as IOException caused by an IllegalKeyException when the end of the stream is read.
+     */
+    public InputStream decryptingStream(InputStream in, String key) throws IOException {
+        try {
+            return new KeyCheckingInputStream(new CipherInputStream(in, createCipher(key, false)));
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Returns the number of padding bytes of content that is encrypted with the <code>key</code>. The
+     * <code>lastBlocks</code> are the last two cipher blocks, or the only block of short content. Only the last block is
+     * decrypted, so the plain length of a large file is known without decrypting it. If the padding is not valid an
+     * IllegalKeyException will be thrown.
+     */
+    public int paddingLength(byte[] lastBlocks, String key) throws IllegalKeyException {
+        if (lastBlocks.length != BLOCK_SIZE && lastBlocks.length != 2 * BLOCK_SIZE) {
+            throw new IllegalArgumentException("One or two cipher blocks are needed");
+        }
+        byte[] hashedKey = hashKey(key);
+        byte[] previous = lastBlocks.length == BLOCK_SIZE ? getVVector(hashedKey) : Arrays.copyOf(lastBlocks, BLOCK_SIZE);
+        byte[] last;
+        try {
+            Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(getKey(hashedKey), "AES"));
+            last = cipher.doFinal(lastBlocks, lastBlocks.length - BLOCK_SIZE, BLOCK_SIZE);
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(ex);
+        }
+        int padding = (last[BLOCK_SIZE - 1] ^ previous[BLOCK_SIZE - 1]) & 0xff;
+        if (padding < 1 || padding > BLOCK_SIZE) {
+            throw new IllegalKeyException("Key was not correct");
+        }
+        for (int i = BLOCK_SIZE - padding; i < BLOCK_SIZE; i++) {
+            if (((last[i] ^ previous[i]) & 0xff) != padding) {
+                throw new IllegalKeyException("Key was not correct");
+            }
+        }
+        return padding;
+    }
 
     /**
      * General method for encryption/decryption that is specified by the boolean parameter <code>encrypt</code>
      */
     private byte[] transform(byte[] content, String key, boolean encrypt) throws GeneralSecurityException {
+        byte[] encryptedContent = createCipher(key, encrypt).doFinal(content);
+
+        return encryptedContent;
+    }
+
+    /**
+     * Creates a cipher for the <code>key</code> that encrypts or decrypts as specified by <code>encrypt</code>.
+     */
+    private Cipher createCipher(String key, boolean encrypt) throws GeneralSecurityException {
         byte[] hashedKey = hashKey(key);
         byte[] keyToUse = getKey(hashedKey);
         byte[] vParameter = getVVector(hashedKey);
@@ -55,15 +129,14 @@ public class AESContentTransformer implements ContentTransformer {
         } else {
             cipher.init(Cipher.DECRYPT_MODE, cipherKey, parameterSpec);
         }
-        byte[] encryptedContent = cipher.doFinal(content);
-
-        return encryptedContent;
+        return cipher;
     }
 
     /**
      * We need to hash the key to get a 128 bit key for the encryption/decryption and also getting a IV parameter.
      */
     private byte[] hashKey(String toHash) {
+        EncryptionEvents.KeyDerivationEvent event = EncryptionEvents.KeyDerivationEvent.begin("SHA-256");
         MessageDigest hasher = null;
         try {
             hasher = MessageDigest.getInstance("SHA-256");
@@ -72,6 +145,7 @@ public class AESContentTransformer implements ContentTransformer {
         }
         hasher.update(toHash.getBytes());
         byte[] hashedValue = hasher.digest();
+        event.finish();
 
         return hashedValue;
     }
@@ -90,4 +164,40 @@ public class AESContentTransformer implements ContentTransformer {
         byte[] lastBytes = Arrays.copyOfRange(hashedValue, 16, hashedValue.length);
         return lastBytes;
     }
+
+    /**
+     * Reports the padding error of a wrong key as IllegalKeyException.
+     */
+    private static class KeyCheckingInputStream extends FilterInputStream {
+        KeyCheckingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                return super.read();
+            } catch (IOException ex) {
+                throw translate(ex);
+            }
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            try {
+                return super.read(buffer, offset, length);
+            } catch (IOException ex) {
+                throw translate(ex);
+            }
+        }
+
+        private static IOException translate(IOException ex) {
+            if (ex.getCause() instanceof BadPaddingException) {
+                IOException translated = new IOException("Key was not correct");
+                translated.initCause(new IllegalKeyException("Key was not correct"));
+                return translated;
+            }
+            return ex;
+        }
+    }
 }
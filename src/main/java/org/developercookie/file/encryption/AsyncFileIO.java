@@ -0,0 +1,379 @@
+package org.developercookie.file.encryption;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Reads and writes whole files with an AsynchronousFileChannel. A file is split into chunks and up to
+ * <code>queueDepth</code> chunks are in flight at the same time, so storage that needs many outstanding requests (NVMe,
+ * network block devices) reaches its full throughput.<br/>
+ * A {@link BlockReader} reads a file block by block ahead of its consumer, so the FileEncryption encrypts one segment
+ * while the next segments are read. Created by developerCookie on 19.10.26.
+ */
+public class AsyncFileIO {
+    /**
+     * The default number of outstanding requests per file.
+     */
+    public static final int DEFAULT_QUEUE_DEPTH = 8;
+
+    /**
+     * The default size of one request. The queue depth multiplied with the chunk size is the read-ahead.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+    /**
+     * The number of requests that are in flight at the same time.
+     */
+    private final int queueDepth;
+
+    /**
+     * The size of a single request.
+     */
+    private final int chunkSize;
+
+    /**
+     * Uses the default queue depth and chunk size.
+     */
+    public AsyncFileIO() {
+        this(DEFAULT_QUEUE_DEPTH, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Up to <code>queueDepth</code> requests of <code>chunkSize</code> bytes are in flight for one file.
+     */
+    public AsyncFileIO(int queueDepth, int chunkSize) {
+        if (queueDepth < 1 || chunkSize < 1) {
+            throw new IllegalArgumentException("Queue depth and chunk size must be positive");
+        }
+        this.queueDepth = queueDepth;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Reads the whole file denoted by <code>filename</code>. The future is completed when all chunks are read.
+     */
+    public CompletableFuture<byte[]> read(String filename) {
+        CompletableFuture<byte[]> result = new CompletableFuture<byte[]>();
+        try {
+            AsynchronousFileChannel channel = AsynchronousFileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE - 8) {
+                IOUtils.closeQuietly(channel);
+                throw new IOException("File is too large to be read at once: " + filename);
+            }
+            byte[] content = new byte[(int) size];
+            new Transfer(channel, 0, ByteBuffer.wrap(content), false, content, result, true).start();
+        } catch (IOException ex) {
+            result.completeExceptionally(ex);
+        }
+        return result;
+    }
+
+    /**
+     * Writes the <code>content</code> to the file denoted by <code>filename</code>. An existing file is replaced. The
+     * future is completed when all chunks are written and forced to the disk.
+     */
+    public CompletableFuture<Void> write(String filename, byte[] content) {
+        CompletableFuture<byte[]> written = new CompletableFuture<byte[]>();
+        try {
+            AsynchronousFileChannel channel = AsynchronousFileChannel.open(Paths.get(filename), StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+            new Transfer(channel, 0, ByteBuffer.wrap(content), true, content, written, true).start();
+        } catch (IOException ex) {
+            written.completeExceptionally(ex);
+        }
+        return written.thenApply(new Function<byte[], Void>() {
+            @Override
+            public Void apply(byte[] content) {
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Reads the whole file and waits for the result.
+     */
+    public byte[] readFully(String filename) throws IOException {
+        return await(read(filename));
+    }
+
+    /**
+     * Writes the whole file and waits until it is written.
+     */
+    public void writeFully(String filename, byte[] content) throws IOException {
+        await(write(filename, content));
+    }
+
+    /**
+     * Opens the file denoted by <code>filename</code> to read it from the <code>position</code> on in blocks of
+     * <code>blockLength</code> bytes. The reads of the following blocks are started before a block is consumed.
+     */
+    public BlockReader readBlocks(String filename, long position, int blockLength) throws IOException {
+        if (blockLength < 1) {
+            throw new IllegalArgumentException("Block length must be positive");
+        }
+        return new BlockReader(AsynchronousFileChannel.open(Paths.get(filename), StandardOpenOption.READ), position, blockLength);
+    }
+
+    /**
+     * Returns the number of blocks of <code>blockLength</code> bytes a BlockReader keeps in flight: as many as fit into
+     * the read-ahead of queue depth times chunk size, at least one.
+     */
+    public int getBlocksAhead(int blockLength) {
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, (long) queueDepth * chunkSize / blockLength));
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Waits for the <code>future</code> and unwraps an IOException.
+     */
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Asynchronous I/O was interrupted");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    /**
+     * Reads a file block by block with the reads of the next blocks in flight. The last block may be shorter, after it
+     * empty blocks are returned. The blocks are taken from the size of the file when it was opened.
+     */
+    public class BlockReader implements Closeable {
+        private final AsynchronousFileChannel channel;
+        private final int blockLength;
+        private final long size;
+
+        /**
+         * The reads that are started and not consumed yet, in the order of the file.
+         */
+        private final Deque<CompletableFuture<byte[]>> ahead = new ArrayDeque<CompletableFuture<byte[]>>();
+
+        /**
+         * The position of the next block whose read is not started yet.
+         */
+        private long nextPosition;
+
+        private BlockReader(AsynchronousFileChannel channel, long position, int blockLength) throws IOException {
+            this.channel = channel;
+            this.blockLength = blockLength;
+            this.nextPosition = position;
+            try {
+                this.size = channel.size();
+            } catch (IOException ex) {
+                IOUtils.closeQuietly(channel);
+                throw ex;
+            }
+            for (int i = 0; i < getBlocksAhead(blockLength); i++) {
+                startNextBlock();
+            }
+        }
+
+        /**
+         * Returns the future of the next block and starts the read of one more block.
+         */
+        public CompletableFuture<byte[]> next() {
+            CompletableFuture<byte[]> block = ahead.pollFirst();
+            startNextBlock();
+            return block;
+        }
+
+        /**
+         * Waits for the next block and returns it.
+         */
+        public byte[] nextBlock() throws IOException {
+            return await(next());
+        }
+
+        private void startNextBlock() {
+            int length = (int) Math.max(0, Math.min(blockLength, size - nextPosition));
+            byte[] content = new byte[length];
+            CompletableFuture<byte[]> block = new CompletableFuture<byte[]>();
+            new Transfer(channel, nextPosition, ByteBuffer.wrap(content), false, content, block, false).start();
+            nextPosition += length;
+            ahead.addLast(block);
+        }
+
+        /**
+         * Closes the file. Reads that are still in flight fail.
+         */
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * One read or write of a whole buffer. Chunks are handed out in order and every completed chunk starts the next
+     * one, so the number of outstanding requests stays at the queue depth until the end of the buffer.
+     */
+    private class Transfer implements CompletionHandler<Integer, ByteBuffer> {
+        private final AsynchronousFileChannel channel;
+
+        /**
+         * The position in the file of the start of the <code>buffer</code>.
+         */
+        private final long base;
+
+        private final ByteBuffer buffer;
+        private final boolean write;
+        private final byte[] content;
+        private final CompletableFuture<byte[]> result;
+
+        /**
+         * True if the channel is closed when the transfer is finished.
+         */
+        private final boolean closeChannel;
+
+        /**
+         * The position of the next chunk that is not handed out yet.
+         */
+        private final AtomicLong nextPosition = new AtomicLong();
+
+        /**
+         * The number of bytes that are not transferred yet.
+         */
+        private final AtomicLong remaining;
+
+        /**
+         * The number of requests in flight.
+         */
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        Transfer(AsynchronousFileChannel channel, long base, ByteBuffer buffer, boolean write, byte[] content, CompletableFuture<byte[]> result, boolean closeChannel) {
+            this.channel = channel;
+            this.base = base;
+            this.buffer = buffer;
+            this.write = write;
+            this.content = content;
+            this.result = result;
+            this.closeChannel = closeChannel;
+            this.remaining = new AtomicLong(buffer.remaining());
+        }
+
+        /**
+         * Starts the first requests.
+         */
+        void start() {
+            if (remaining.get() == 0) {
+                finish(null);
+                return;
+            }
+            for (int i = 0; i < queueDepth && startNextChunk(); i++) {
+                // every call starts one request
+            }
+        }
+
+        /**
+         * Starts the request for the next chunk. Returns false if all chunks are handed out.
+         */
+        private boolean startNextChunk() {
+            long position = nextPosition.getAndAdd(chunkSize);
+            if (position >= buffer.limit()) {
+                return false;
+            }
+            ByteBuffer chunk = buffer.duplicate();
+            chunk.position((int) position);
+            chunk.limit((int) Math.min(buffer.limit(), position + chunkSize));
+            inFlight.incrementAndGet();
+            request(chunk);
+            return true;
+        }
+
+        /**
+         * Issues the read or write of the rest of the <code>chunk</code>.
+         */
+        private void request(ByteBuffer chunk) {
+            try {
+                if (write) {
+                    channel.write(chunk, base + chunk.position(), chunk, this);
+                } else {
+                    channel.read(chunk, base + chunk.position(), chunk, this);
+                }
+            } catch (RuntimeException ex) {
+                finish(ex);
+            }
+        }
+
+        @Override
+        public void completed(Integer transferred, ByteBuffer chunk) {
+            if (result.isDone()) {
+                return;
+            }
+            if (transferred < 0) {
+                finish(new IOException("File was truncated while it was read"));
+                return;
+            }
+            remaining.addAndGet(-transferred);
+            if (chunk.hasRemaining()) {
+                request(chunk);
+                return;
+            }
+            inFlight.decrementAndGet();
+            startNextChunk();
+            if (remaining.get() == 0 && inFlight.get() == 0) {
+                finish(null);
+            }
+        }
+
+        @Override
+        public void failed(Throwable ex, ByteBuffer chunk) {
+            finish(ex);
+        }
+
+        /**
+         * Closes the channel, unless it is shared by several transfers, and completes the result, with the
+         * <code>failure</code> if there is one. A written file is forced to the disk before its channel is closed.
+         */
+        private synchronized void finish(Throwable failure) {
+            if (result.isDone()) {
+                return;
+            }
+            if (closeChannel) {
+                try {
+                    if (write && failure == null) {
+                        channel.force(true);
+                    }
+                    channel.close();
+                } catch (IOException ex) {
+                    if (failure == null) {
+                        failure = ex;
+                    }
+                }
+            }
+            if (failure != null) {
+                result.completeExceptionally(failure);
+            } else {
+                result.complete(content);
+            }
+        }
+    }
+}
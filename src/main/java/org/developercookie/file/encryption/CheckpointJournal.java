@@ -0,0 +1,266 @@
+package org.developercookie.file.encryption;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An append-only journal in the output folder of a folder job. It records which files are completed and how far large
+ * files in the segmented format are written, so a job that died can be started again and continues where it stopped.
+ * The first line identifies the job; a journal of another job is discarded. Created by developerCookie on 19.10.26.
+ */
+public class CheckpointJournal implements Closeable {
+    /**
+     * The name of the journal file inside of the output folder.
+     */
+    public static final String JOURNAL_FILENAME = ".checkpoint-journal";
+
+    /**
+     * Every line of the journal starts with one of these words.
+     */
+    private static final String JOB = "JOB";
+    private static final String BEGIN = "BEGIN";
+    private static final String SEGMENT = "SEGMENT";
+    private static final String DONE = "DONE";
+
+    /**
+     * The journal file.
+     */
+    private final File journalFile;
+
+    /**
+     * The completed files by their name relative to the output folder.
+     */
+    private final Map<String, Completed> completed = new HashMap<String, Completed>();
+
+    /**
+     * The last segment checkpoint of files that are not completed.
+     */
+    private final Map<String, SegmentCheckpoint> checkpoints = new HashMap<String, SegmentCheckpoint>();
+
+    /**
+     * The stream new lines are appended to.
+     */
+    private FileOutputStream stream;
+
+    /**
+     * The writer on top of the <code>stream</code>.
+     */
+    private Writer writer;
+
+    /**
+     * Opens the journal of the <code>outputFolder</code> for the job with the given <code>jobId</code>. If there is a
+     * journal of the same job its entries are loaded, otherwise a new journal is started.
+     */
+    public static CheckpointJournal open(String outputFolder, String jobId) throws IOException {
+        CheckpointJournal journal = new CheckpointJournal(new File(outputFolder, JOURNAL_FILENAME));
+        boolean sameJob = journal.load(jobId);
+        journal.stream = new FileOutputStream(journal.journalFile, sameJob);
+        journal.writer = new BufferedWriter(new OutputStreamWriter(journal.stream, "UTF-8"));
+        if (!sameJob) {
+            journal.append(JOB + " " + jobId, true);
+        }
+        return journal;
+    }
+
+    /**
+     * Reads the journal of the <code>outputFolder</code> for the job with the given <code>jobId</code> without opening
+     * it for writing, so the journal is not changed. Without a journal of the same job no file is completed.
+     */
+    public static CheckpointJournal read(String outputFolder, String jobId) throws IOException {
+        CheckpointJournal journal = new CheckpointJournal(new File(outputFolder, JOURNAL_FILENAME));
+        journal.load(jobId);
+        return journal;
+    }
+
+    /**
+     * Builds an id for a job from its <code>parts</code>, for example the mode, the folders and the key. The key can
+     * not be recovered from the id.
+     */
+    public static String jobId(String... parts) {
+        MessageDigest digest = IntegrityManifest.newDigest();
+        digest.update("checkpoint-journal".getBytes());
+        for (String part : parts) {
+            digest.update((byte) 0);
+            digest.update(String.valueOf(part).getBytes());
+        }
+        return IntegrityManifest.toHex(digest.digest());
+    }
+
+    private CheckpointJournal(File journalFile) {
+        this.journalFile = journalFile;
+    }
+
+    /**
+     * Returns the completed entry of the file with the given <code>name</code> or null if it is not completed.
+     */
+    public synchronized Completed getCompleted(String name) {
+        return completed.get(name);
+    }
+
+    /**
+     * Returns the last segment checkpoint of the file with the given <code>name</code> or null if there is none.
+     */
+    public synchronized SegmentCheckpoint getSegmentCheckpoint(String name) {
+        return checkpoints.get(name);
+    }
+
+    /**
+     * Records that the work on the file with the given <code>name</code> starts.
+     */
+    public synchronized void begin(String name) throws IOException {
+        checkpoints.remove(name);
+        append(BEGIN + " " + name, false);
+    }
+
+    /**
+     * Records that the partial file of <code>name</code> contains all segments before <code>nextIndex</code> and is
+     * <code>partLength</code> bytes long. The partial file must be synced before. The journal is synced as well.
+     */
+    public synchronized void segment(String name, long nextIndex, long partLength) throws IOException {
+        checkpoints.put(name, new SegmentCheckpoint(nextIndex, partLength));
+        append(SEGMENT + " " + nextIndex + " " + partLength + " " + name, true);
+    }
+
+    /**
+     * Records that the file with the given <code>name</code> is completed. Its size and, if known, its
+     * <code>digest</code> are stored with it. The record is synced, so a file that is moved into place afterwards is
+     * never taken for an unfinished one.
+     */
+    public synchronized void done(String name, long size, byte[] digest) throws IOException {
+        checkpoints.remove(name);
+        String hexDigest = digest != null ? IntegrityManifest.toHex(digest) : "-";
+        completed.put(name, new Completed(size, hexDigest));
+        append(DONE + " " + hexDigest + " " + size + " " + name, true);
+    }
+
+    /**
+     * The job finished successfully, so the journal is not needed any more and will be removed.
+     */
+    public synchronized void complete() throws IOException {
+        close();
+        FileUtils.forceDelete(journalFile);
+    }
+
+    /**
+     * Closes the journal file.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    /**
+     * Appends a line to the journal. If <code>sync</code> is true the line is forced to the disk.
+     */
+    private void append(String line, boolean sync) throws IOException {
+        writer.write(line);
+        writer.write('\n');
+        writer.flush();
+        if (sync) {
+            stream.getFD().sync();
+        }
+    }
+
+    /**
+     * Loads the entries of an existing journal. Returns false if there is no journal or it belongs to another job.
+     * An incomplete last line left by a crash is ignored.
+     */
+    private boolean load(String jobId) throws IOException {
+        if (!journalFile.exists()) {
+            return false;
+        }
+        String content = FileUtils.readFileToString(journalFile, "UTF-8");
+        if (!content.startsWith(JOB + " " + jobId + "\n")) {
+            return false;
+        }
+        int end = content.lastIndexOf('\n');
+        for (String line : content.substring(0, end).split("\n")) {
+            String[] parts = line.split(" ", 4);
+            if (parts[0].equals(BEGIN)) {
+                String name = line.substring(BEGIN.length() + 1);
+                checkpoints.remove(name);
+                completed.remove(name);
+            } else if (parts[0].equals(SEGMENT) && parts.length == 4) {
+                checkpoints.put(parts[3], new SegmentCheckpoint(Long.parseLong(parts[1]), Long.parseLong(parts[2])));
+            } else if (parts[0].equals(DONE) && parts.length == 4) {
+                checkpoints.remove(parts[3]);
+                completed.put(parts[3], new Completed(Long.parseLong(parts[2]), parts[1]));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A completed file of the journal.
+     */
+    public static class Completed {
+        /**
+         * The size of the output file.
+         */
+        private final long size;
+
+        /**
+         * The hex encoded SHA-256 digest of the output file, or "-" if it is not known.
+         */
+        private final String hexDigest;
+
+        Completed(long size, String hexDigest) {
+            this.size = size;
+            this.hexDigest = hexDigest;
+        }
+
+        /**
+         * Returns true if the <code>outputFile</code> still exists and has the recorded size and, if a digest was
+         * recorded, the recorded digest.
+         */
+        public boolean isIntact(File outputFile) throws IOException {
+            if (!outputFile.isFile() || outputFile.length() != size) {
+                return false;
+            }
+            return hexDigest.equals("-") || hexDigest.equals(IntegrityManifest.toHex(IntegrityManifest.digestMapped(outputFile)));
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public String getHexDigest() {
+            return hexDigest;
+        }
+    }
+
+    /**
+     * A segment checkpoint of a file that is not completed.
+     */
+    public static class SegmentCheckpoint {
+        /**
+         * The index of the next segment to process.
+         */
+        private final long nextIndex;
+
+        /**
+         * The length of the partial file up to the segment <code>nextIndex</code>.
+         */
+        private final long partLength;
+
+        SegmentCheckpoint(long nextIndex, long partLength) {
+            this.nextIndex = nextIndex;
+            this.partLength = partLength;
+        }
+
+        public long getNextIndex() {
+            return nextIndex;
+        }
+
+        public long getPartLength() {
+            return partLength;
+        }
+    }
+}
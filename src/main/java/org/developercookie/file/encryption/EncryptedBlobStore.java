@@ -0,0 +1,807 @@
+package org.developercookie.file.encryption;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * An embedded key-value store for many small records that are encrypted at rest. Records are appended to log files
+ * and an index in memory points to the newest record of every key. Every record is encrypted on its own with a key
+ * derived from the store key and a random nonce of the record, so a <code>get</code> decrypts only that record.<br/>
+ * Writes of all threads are collected by one writer thread and committed together with a single write and sync (group
+ * commit). Log files that contain mostly overwritten or deleted records are compacted in the background. Every record
+ * carries a CRC32, so a record that was torn by a crash is found and the log is cut off in front of it. Created by
+ * developerCookie on 19.10.26.
+ */
+public class EncryptedBlobStore implements Closeable {
+    /**
+     * The default size at which a new log file is started.
+     */
+    public static final long DEFAULT_MAX_LOG_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * Log files are named with this prefix followed by their number.
+     */
+    private static final String LOG_PREFIX = "log-";
+
+    /**
+     * The extension of the log files.
+     */
+    private static final String LOG_EXTENSION = ".dat";
+
+    /**
+     * The file that holds a known text encrypted with the store key, so a wrong key is found when the store is opened.
+     */
+    private static final String KEY_CHECK_FILENAME = "store.key";
+
+    /**
+     * The text in the key check file.
+     */
+    private static final String KEY_CHECK_TEXT = "EncryptedBlobStore";
+
+    /**
+     * The record types.
+     */
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+
+    /**
+     * Type, sequence, nonce, length of the encrypted key, length of the encrypted value and the CRC32 of the record
+     * without the CRC itself.
+     */
+    private static final int RECORD_HEADER_LENGTH = 1 + 8 + 8 + 4 + 4 + 4;
+
+    /**
+     * Compaction starts if more than this part of the sealed log files is garbage.
+     */
+    private static final double COMPACTION_GARBAGE_RATIO = 0.5;
+
+    /**
+     * How often the garbage ratio is checked.
+     */
+    private static final long COMPACTION_CHECK_SECONDS = 30;
+
+    /**
+     * Ends the writer thread.
+     */
+    private static final WriteRequest STOP = new WriteRequest(DELETE, null, 0, null, null);
+
+    /**
+     * The folder that contains the log files.
+     */
+    private final File folder;
+
+    /**
+     * Encrypts and decrypts keys and values.
+     */
+    private final ContentTransformer contentTransformer;
+
+    /**
+     * The key of the store.
+     */
+    private final String key;
+
+    /**
+     * A new log file is started at this size.
+     */
+    private final long maxLogSize;
+
+    /**
+     * The location of the newest record of every key.
+     */
+    private final ConcurrentHashMap<String, Location> index = new ConcurrentHashMap<String, Location>();
+
+    /**
+     * The open log files by their number.
+     */
+    private final ConcurrentHashMap<Long, FileChannel> logFiles = new ConcurrentHashMap<Long, FileChannel>();
+
+    /**
+     * The bytes of all records and of the records the index points to.
+     */
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final AtomicLong liveBytes = new AtomicLong();
+
+    /**
+     * The number of the next log file.
+     */
+    private final AtomicLong nextLogNumber = new AtomicLong();
+
+    /**
+     * Writes that wait for the writer thread.
+     */
+    private final BlockingQueue<WriteRequest> writeQueue = new LinkedBlockingQueue<WriteRequest>();
+
+    /**
+     * Creates the nonces of the records.
+     */
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * Only one compaction runs at a time.
+     */
+    private final Object compactionLock = new Object();
+
+    /**
+     * The sequence of the last written record. Only changed by the writer thread.
+     */
+    private long sequence;
+
+    /**
+     * The number of the log file records are appended to. Only changed by the writer thread.
+     */
+    private volatile long activeLogNumber;
+
+    /**
+     * The size of the active log file. Only changed by the writer thread.
+     */
+    private long activeLogSize;
+
+    /**
+     * If true every commit is synced to the disk.
+     */
+    private volatile boolean syncOnCommit = true;
+
+    /**
+     * The thread that commits the writes.
+     */
+    private Thread writerThread;
+
+    /**
+     * Checks the garbage ratio from time to time.
+     */
+    private ScheduledExecutorService compactor;
+
+    /**
+     * False after the store was closed.
+     */
+    private volatile boolean open;
+
+    /**
+     * The unexpected error that stopped the writer thread from committing, null while the store can be written.
+     */
+    private volatile Throwable brokenBy;
+
+    private EncryptedBlobStore(File folder, ContentTransformer contentTransformer, String key, long maxLogSize) {
+        this.folder = folder;
+        this.contentTransformer = contentTransformer;
+        this.key = key;
+        this.maxLogSize = maxLogSize;
+    }
+
+    /**
+     * Opens the store in the <code>folder</code> with the default log size. See
+     * {@link #open(String, ContentTransformer, String, long)}.
+     */
+    public static EncryptedBlobStore open(String folder, ContentTransformer contentTransformer, String key) throws IOException, IllegalKeyException {
+        return open(folder, contentTransformer, key, DEFAULT_MAX_LOG_SIZE);
+    }
+
+    /**
+     * Opens the store in the <code>folder</code>, it is created if needed. The index is rebuilt from the existing log
+     * files; a record that was only partly written by a crash is cut off. If the <code>key</code> is not the key of the
+     * store an IllegalKeyException will be thrown.
+     */
+    public static EncryptedBlobStore open(String folder, ContentTransformer contentTransformer, String key, long maxLogSize) throws IOException, IllegalKeyException {
+        File storeFolder = new File(folder);
+        if (!storeFolder.isDirectory() && !storeFolder.mkdirs()) {
+            throw new IOException("Could not create the folder " + folder);
+        }
+        EncryptedBlobStore store = new EncryptedBlobStore(storeFolder, contentTransformer, key, maxLogSize);
+        store.checkKey();
+        store.recover();
+        store.startActiveLog();
+        store.open = true;
+        store.startThreads();
+        return store;
+    }
+
+    /**
+     * If <code>syncOnCommit</code> is false the commits are only written, not synced to the disk. This is faster but
+     * the last commits can be lost if the machine crashes.
+     */
+    public void setSyncOnCommit(boolean syncOnCommit) {
+        this.syncOnCommit = syncOnCommit;
+    }
+
+    /**
+     * Stores the <code>value</code> under the <code>recordKey</code>. The value is encrypted by the calling thread and
+     * the method returns when the record is committed.
+     */
+    public void put(String recordKey, byte[] value) throws IOException {
+        long nonce = random.nextLong();
+        byte[] encryptedKey = contentTransformer.encrypt(toBytes(recordKey), keyOfRecordKey(nonce));
+        byte[] encryptedValue = contentTransformer.encrypt(value, keyOfValue(nonce));
+        commit(new WriteRequest(PUT, recordKey, nonce, encryptedKey, encryptedValue));
+    }
+
+    /**
+     * Returns the value stored under the <code>recordKey</code> or null if there is none. Only this record is read
+     * and decrypted.
+     */
+    public byte[] get(String recordKey) throws IOException, IllegalKeyException {
+        checkOpen();
+        Location location = index.get(recordKey);
+        while (location != null) {
+            byte[] encryptedValue;
+            try {
+                encryptedValue = read(location);
+            } catch (ClosedByInterruptException ex) {
+                throw new InterruptedIOException("Reading the record was interrupted");
+            } catch (ClosedChannelException ex) {
+                checkOpen();
+                Location current = index.get(recordKey);
+                FileChannel channel = logFiles.get(location.logNumber);
+                if (current == location && (channel == null || channel.isOpen())) {
+                    throw ex;
+                }
+                // the record was moved by a compaction, or the log was closed by an interrupted reader and is reopened
+                location = current;
+                continue;
+            }
+            return contentTransformer.decrypt(encryptedValue, keyOfValue(location.nonce));
+        }
+        return null;
+    }
+
+    /**
+     * Deletes the value stored under the <code>recordKey</code>. Returns false if there was none.
+     */
+    public boolean delete(String recordKey) throws IOException {
+        if (!index.containsKey(recordKey)) {
+            return false;
+        }
+        long nonce = random.nextLong();
+        byte[] encryptedKey = contentTransformer.encrypt(toBytes(recordKey), keyOfRecordKey(nonce));
+        commit(new WriteRequest(DELETE, recordKey, nonce, encryptedKey, new byte[0]));
+        return true;
+    }
+
+    /**
+     * Returns the number of stored values.
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Returns the part of all stored bytes that belongs to overwritten or deleted records.
+     */
+    public double getGarbageRatio() {
+        long total = totalBytes.get();
+        return total == 0 ? 0 : 1.0 - (double) liveBytes.get() / total;
+    }
+
+    /**
+     * Copies the current records of all log files except the active one into a new log file and removes the old log
+     * files. It is started in the background when the garbage ratio gets high, but can also be called directly.
+     */
+    public void compact() throws IOException {
+        synchronized (compactionLock) {
+            checkOpen();
+            List<Long> sealed = new ArrayList<Long>();
+            for (Long logNumber : logFiles.keySet()) {
+                if (logNumber != activeLogNumber) {
+                    sealed.add(logNumber);
+                }
+            }
+            if (sealed.isEmpty()) {
+                return;
+            }
+            Collections.sort(sealed);
+            long targetNumber = nextLogNumber.getAndIncrement();
+            FileChannel target = openLog(targetNumber);
+            logFiles.put(targetNumber, target);
+            long targetSize = 0;
+            for (Map.Entry<String, Location> entry : index.entrySet()) {
+                Location location = entry.getValue();
+                if (!sealed.contains(location.logNumber)) {
+                    continue;
+                }
+                ByteBuffer record = ByteBuffer.allocate(location.recordLength);
+                readFully(logChannel(location.logNumber), record, location.recordOffset);
+                record.flip();
+                writeFully(target, record, targetSize);
+                // if the key was written in the meantime the copy is garbage, the live bytes stay the same anyway
+                index.replace(entry.getKey(), location, location.movedTo(targetNumber, targetSize));
+                totalBytes.addAndGet(location.recordLength);
+                targetSize += location.recordLength;
+            }
+            target.force(true);
+            for (Long logNumber : sealed) {
+                synchronized (logFiles) {
+                    FileChannel channel = logFiles.remove(logNumber);
+                    totalBytes.addAndGet(-logFile(logNumber).length());
+                    IOUtils.closeQuietly(channel);
+                    logFile(logNumber).delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Commits the pending writes, stops the background threads and closes all log files.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!open) {
+            return;
+        }
+        synchronized (compactionLock) {
+            open = false;
+        }
+        compactor.shutdownNow();
+        synchronized (writeQueue) {
+            writeQueue.add(STOP);
+        }
+        try {
+            writerThread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        for (FileChannel channel : logFiles.values()) {
+            IOUtils.closeQuietly(channel);
+        }
+        logFiles.clear();
+    }
+
+    /**
+     * Hands the <code>request</code> to the writer thread and waits until it is committed. The request is queued under
+     * the lock of the queue, so it is either queued before the stop of {@link #close()} or rejected.
+     */
+    private void commit(WriteRequest request) throws IOException {
+        synchronized (writeQueue) {
+            checkOpen();
+            if (brokenBy != null) {
+                throw new IOException("Store is broken", brokenBy);
+            }
+            writeQueue.add(request);
+        }
+        try {
+            request.committed.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Waiting for the commit was interrupted");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    /**
+     * Takes all waiting writes, appends them with one write to the active log file, syncs it once and then updates
+     * the index and wakes up the writing threads. An unexpected RuntimeException or Error fails the batch and marks the
+     * store as broken, so later writes fail at once instead of waiting for a writer that died.
+     */
+    private void writeLoop() {
+        List<WriteRequest> batch = new ArrayList<WriteRequest>();
+        boolean stop = false;
+        while (!stop) {
+            try {
+                batch.add(writeQueue.take());
+            } catch (InterruptedException ex) {
+                continue;
+            }
+            writeQueue.drainTo(batch);
+            stop = batch.remove(STOP);
+            if (batch.isEmpty()) {
+                continue;
+            }
+            try {
+                if (brokenBy != null) {
+                    throw new IOException("Store is broken", brokenBy);
+                }
+                commitBatch(batch);
+                for (WriteRequest request : batch) {
+                    request.committed.complete(null);
+                }
+            } catch (IOException ex) {
+                failAll(batch, ex);
+            } catch (RuntimeException ex) {
+                brokenBy = ex;
+                failAll(batch, new IOException("Store is broken", ex));
+            } catch (Error ex) {
+                brokenBy = ex;
+                failAll(batch, new IOException("Store is broken", ex));
+            }
+            batch.clear();
+        }
+        writeQueue.drainTo(batch);
+        failAll(batch, new IOException("Store is closed"));
+    }
+
+    private static void failAll(List<WriteRequest> batch, IOException failure) {
+        for (WriteRequest request : batch) {
+            request.committed.completeExceptionally(failure);
+        }
+    }
+
+    /**
+     * Writes the <code>batch</code> as one block and updates the index.
+     */
+    private void commitBatch(List<WriteRequest> batch) throws IOException {
+        if (activeLogSize >= maxLogSize) {
+            logChannel(activeLogNumber).force(true);
+            startActiveLog();
+        }
+        int length = 0;
+        for (WriteRequest request : batch) {
+            length += request.recordLength();
+        }
+        ByteBuffer block = ByteBuffer.allocate(length);
+        List<Location> locations = new ArrayList<Location>(batch.size());
+        for (WriteRequest request : batch) {
+            sequence++;
+            int recordOffset = block.position();
+            block.put(request.type).putLong(sequence).putLong(request.nonce);
+            block.putInt(request.encryptedKey.length).putInt(request.encryptedValue.length);
+            CRC32 checksum = new CRC32();
+            checksum.update(block.array(), recordOffset, RECORD_HEADER_LENGTH - 4);
+            checksum.update(request.encryptedKey);
+            checksum.update(request.encryptedValue);
+            block.putInt((int) checksum.getValue());
+            block.put(request.encryptedKey).put(request.encryptedValue);
+            locations.add(new Location(activeLogNumber, activeLogSize + recordOffset, request.recordLength(),
+                    request.encryptedKey.length, request.encryptedValue.length, sequence, request.nonce));
+        }
+        block.flip();
+        FileChannel active = logChannel(activeLogNumber);
+        writeFully(active, block, activeLogSize);
+        if (syncOnCommit) {
+            active.force(false);
+        }
+        activeLogSize += length;
+        totalBytes.addAndGet(length);
+
+        for (int i = 0; i < batch.size(); i++) {
+            WriteRequest request = batch.get(i);
+            Location location = locations.get(i);
+            Location old;
+            if (request.type == PUT) {
+                old = index.put(request.recordKey, location);
+                liveBytes.addAndGet(location.recordLength);
+            } else {
+                old = index.remove(request.recordKey);
+            }
+            if (old != null) {
+                liveBytes.addAndGet(-old.recordLength);
+            }
+        }
+    }
+
+    /**
+     * Compares the key with the key check file of the store. A new store gets the key check file. The decryption of a
+     * record with a wrong key does not always fail, so without this check a wrong key could go unnoticed.
+     */
+    private void checkKey() throws IOException, IllegalKeyException {
+        File keyCheckFile = new File(folder, KEY_CHECK_FILENAME);
+        if (!keyCheckFile.exists()) {
+            File tempFile = new File(folder, KEY_CHECK_FILENAME + ".tmp");
+            FileUtils.writeByteArrayToFile(tempFile, contentTransformer.encrypt(toBytes(KEY_CHECK_TEXT), keyOfKeyCheck()));
+            if (!tempFile.renameTo(keyCheckFile)) {
+                throw new IOException("Could not write the key check file " + keyCheckFile);
+            }
+            return;
+        }
+        byte[] keyCheck = contentTransformer.decrypt(FileUtils.readFileToByteArray(keyCheckFile), keyOfKeyCheck());
+        if (!Arrays.equals(keyCheck, toBytes(KEY_CHECK_TEXT))) {
+            throw new IllegalKeyException("Key is not the key of the store");
+        }
+    }
+
+    /**
+     * Reads all log files in the order of their numbers and rebuilds the index. The newest record of a key wins.
+     */
+    private void recover() throws IOException, IllegalKeyException {
+        SortedMap<Long, File> files = new TreeMap<Long, File>();
+        File[] found = folder.listFiles();
+        for (File oneFile : found != null ? found : new File[0]) {
+            String name = oneFile.getName();
+            if (name.startsWith(LOG_PREFIX) && name.endsWith(LOG_EXTENSION)) {
+                files.put(Long.parseLong(name.substring(LOG_PREFIX.length(), name.length() - LOG_EXTENSION.length())), oneFile);
+            }
+        }
+        Map<String, Location> tombstones = new HashMap<String, Location>();
+        for (Map.Entry<Long, File> entry : files.entrySet()) {
+            long logNumber = entry.getKey();
+            long validLength = recoverLog(logNumber, entry.getValue(), tombstones);
+            FileChannel channel = openLog(logNumber);
+            if (channel.size() > validLength) {
+                channel.truncate(validLength);
+            }
+            logFiles.put(logNumber, channel);
+            totalBytes.addAndGet(validLength);
+            nextLogNumber.set(logNumber + 1);
+        }
+        for (Location location : index.values()) {
+            liveBytes.addAndGet(location.recordLength);
+        }
+    }
+
+    /**
+     * Reads the records of one log file into the index. Returns the length up to the last complete record: the log
+     * ends at the first record that is cut off, has impossible lengths or does not match its CRC.
+     */
+    private long recoverLog(long logNumber, File file, Map<String, Location> tombstones) throws IOException, IllegalKeyException {
+        DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        long fileLength = file.length();
+        long offset = 0;
+        byte[] header = new byte[RECORD_HEADER_LENGTH];
+        byte[] buffer = new byte[8192];
+        try {
+            while (true) {
+                byte type;
+                long recordSequence;
+                long nonce;
+                byte[] encryptedKey;
+                int valueLength;
+                try {
+                    if (fileLength - offset < RECORD_HEADER_LENGTH) {
+                        return offset;
+                    }
+                    stream.readFully(header);
+                    ByteBuffer fields = ByteBuffer.wrap(header);
+                    type = fields.get();
+                    recordSequence = fields.getLong();
+                    nonce = fields.getLong();
+                    int keyLength = fields.getInt();
+                    valueLength = fields.getInt();
+                    int crc = fields.getInt();
+                    if ((type != PUT && type != DELETE) || keyLength < 0 || valueLength < 0
+                            || (long) keyLength + valueLength > fileLength - offset - RECORD_HEADER_LENGTH) {
+                        return offset;
+                    }
+                    CRC32 checksum = new CRC32();
+                    checksum.update(header, 0, RECORD_HEADER_LENGTH - 4);
+                    encryptedKey = new byte[keyLength];
+                    stream.readFully(encryptedKey);
+                    checksum.update(encryptedKey);
+                    for (int remaining = valueLength; remaining > 0; ) {
+                        int read = stream.read(buffer, 0, Math.min(buffer.length, remaining));
+                        if (read < 0) {
+                            return offset;
+                        }
+                        checksum.update(buffer, 0, read);
+                        remaining -= read;
+                    }
+                    if ((int) checksum.getValue() != crc) {
+                        return offset;
+                    }
+                } catch (EOFException ex) {
+                    return offset;
+                }
+                String recordKey = fromBytes(contentTransformer.decrypt(encryptedKey, keyOfRecordKey(nonce)));
+                int recordLength = RECORD_HEADER_LENGTH + encryptedKey.length + valueLength;
+                Location location = new Location(logNumber, offset, recordLength, encryptedKey.length, valueLength, recordSequence, nonce);
+                sequence = Math.max(sequence, recordSequence);
+                offset += recordLength;
+
+                Location current = index.get(recordKey);
+                Location tombstone = tombstones.get(recordKey);
+                long newest = Math.max(current != null ? current.sequence : -1, tombstone != null ? tombstone.sequence : -1);
+                if (recordSequence > newest) {
+                    if (type == PUT) {
+                        index.put(recordKey, location);
+                        tombstones.remove(recordKey);
+                    } else {
+                        index.remove(recordKey);
+                        tombstones.put(recordKey, location);
+                    }
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(stream);
+        }
+    }
+
+    /**
+     * Starts a new empty log file that records are appended to.
+     */
+    private void startActiveLog() throws IOException {
+        long logNumber = nextLogNumber.getAndIncrement();
+        logFiles.put(logNumber, openLog(logNumber));
+        activeLogNumber = logNumber;
+        activeLogSize = 0;
+    }
+
+    /**
+     * Starts the writer thread and the background compaction.
+     */
+    private void startThreads() {
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "blob-store-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+
+        compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "blob-store-compactor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        compactor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                if (getGarbageRatio() > COMPACTION_GARBAGE_RATIO) {
+                    try {
+                        compact();
+                    } catch (IOException ex) {
+                        // the next check tries again
+                    } catch (IllegalStateException ex) {
+                        // the store was closed
+                    }
+                }
+            }
+        }, COMPACTION_CHECK_SECONDS, COMPACTION_CHECK_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Reads the encrypted value of the record at the <code>location</code>.
+     */
+    private byte[] read(Location location) throws IOException {
+        FileChannel channel = logChannel(location.logNumber);
+        byte[] value = new byte[location.valueLength];
+        readFully(channel, ByteBuffer.wrap(value), location.recordOffset + RECORD_HEADER_LENGTH + location.keyLength);
+        return value;
+    }
+
+    /**
+     * Returns the open channel of the log file <code>logNumber</code>. A thread that is interrupted while it reads or
+     * writes a FileChannel closes it for all threads, so a closed channel of a log file that still exists is opened
+     * again. If the log file was removed by a compaction a ClosedChannelException is thrown.
+     */
+    private FileChannel logChannel(long logNumber) throws IOException {
+        FileChannel channel = logFiles.get(logNumber);
+        if (channel != null && !channel.isOpen()) {
+            synchronized (logFiles) {
+                channel = logFiles.get(logNumber);
+                if (channel != null && !channel.isOpen()) {
+                    FileChannel reopened = openLog(logNumber);
+                    logFiles.put(logNumber, reopened);
+                    channel = reopened;
+                }
+            }
+        }
+        if (channel == null) {
+            throw new ClosedChannelException();
+        }
+        return channel;
+    }
+
+    /**
+     * Reads from the <code>channel</code> at the <code>position</code> until the <code>buffer</code> is full.
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Record is truncated");
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Writes the whole <code>buffer</code> to the <code>channel</code> at the <code>position</code>.
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private FileChannel openLog(long logNumber) throws IOException {
+        return FileChannel.open(logFile(logNumber).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private File logFile(long logNumber) {
+        return new File(folder, LOG_PREFIX + logNumber + LOG_EXTENSION);
+    }
+
+    private String keyOfValue(long nonce) {
+        return key + "\u0000value\u0000" + nonce;
+    }
+
+    private String keyOfKeyCheck() {
+        return key + "\u0000check";
+    }
+
+    private String keyOfRecordKey(long nonce) {
+        return key + "\u0000key\u0000" + nonce;
+    }
+
+    private void checkOpen() {
+        if (!open) {
+            throw new IllegalStateException("Store is closed");
+        }
+    }
+
+    private static byte[] toBytes(String text) {
+        try {
+            return text.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String fromBytes(byte[] bytes) {
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Where a record is stored and what is needed to decrypt it.
+     */
+    private static class Location {
+        private final long logNumber;
+        private final long recordOffset;
+        private final int recordLength;
+        private final int keyLength;
+        private final int valueLength;
+        private final long sequence;
+        private final long nonce;
+
+        Location(long logNumber, long recordOffset, int recordLength, int keyLength, int valueLength, long sequence, long nonce) {
+            this.logNumber = logNumber;
+            this.recordOffset = recordOffset;
+            this.recordLength = recordLength;
+            this.keyLength = keyLength;
+            this.valueLength = valueLength;
+            this.sequence = sequence;
+            this.nonce = nonce;
+        }
+
+        /**
+         * Returns the location of the same record after it was copied to another log file.
+         */
+        Location movedTo(long newLogNumber, long newRecordOffset) {
+            return new Location(newLogNumber, newRecordOffset, recordLength, keyLength, valueLength, sequence, nonce);
+        }
+    }
+
+    /**
+     * A record that waits for the writer thread.
+     */
+    private static class WriteRequest {
+        private final byte type;
+        private final String recordKey;
+        private final long nonce;
+        private final byte[] encryptedKey;
+        private final byte[] encryptedValue;
+        private final CompletableFuture<Void> committed = new CompletableFuture<Void>();
+
+        WriteRequest(byte type, String recordKey, long nonce, byte[] encryptedKey, byte[] encryptedValue) {
+            this.type = type;
+            this.recordKey = recordKey;
+            this.nonce = nonce;
+            this.encryptedKey = encryptedKey;
+            this.encryptedValue = encryptedValue;
+        }
+
+        int recordLength() {
+            return RECORD_HEADER_LENGTH + encryptedKey.length + encryptedValue.length;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package org.developercookie.file.encryption;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The events that the encryption reports to the Java Flight Recorder: one per encrypted or decrypted file, one per
+ * read, cipher or write stage of a file or segment, one per key derivation and one per lookup in a SegmentCache. A
+ * recording of a slow job shows whether the time goes into the disk, the cipher or the key derivation. While no
+ * recording runs an event costs a check of a flag, so the events are always on. The stage and key derivation events
+ * are frequent; a recording that only needs the files can give them a threshold. Created by developerCookie on
+ * 19.10.26.
+ */
+public final class EncryptionEvents {
+    /**
+     * The category of all events in a recording.
+     */
+    public static final String CATEGORY = "File Encryption";
+
+    /**
+     * The stage that reads plain or encrypted content from the disk.
+     */
+    public static final String READ = "read";
+
+    /**
+     * The stage that encrypts or decrypts content.
+     */
+    public static final String CIPHER = "cipher";
+
+    /**
+     * The stage that writes plain or encrypted content to the disk.
+     */
+    public static final String WRITE = "write";
+
+    private EncryptionEvents() {
+    }
+
+    /**
+     * The encryption or decryption of a whole file.
+     */
+    @Name("org.developercookie.file.encryption.File")
+    @Label("File")
+    @Category(CATEGORY)
+    @Description("Encryption or decryption of a file")
+    public static final class FileEvent extends Event {
+        @Label("Operation")
+        String operation;
+
+        @Label("Path")
+        String path;
+
+        @Label("Size")
+        @Description("Size of the source file")
+        @DataAmount
+        long bytes;
+
+        @Label("Segmented")
+        boolean segmented;
+
+        /**
+         * Starts the event for the <code>operation</code>, "encrypt" or "decrypt", on the file <code>path</code>.
+         */
+        static FileEvent begin(String operation, String path) {
+            FileEvent event = new FileEvent();
+            if (event.isEnabled()) {
+                event.operation = operation;
+                event.path = path;
+                event.begin();
+            }
+            return event;
+        }
+
+        /**
+         * Ends the event of a file of <code>bytes</code> and commits it.
+         */
+        void finish(long bytes, boolean segmented) {
+            end();
+            if (shouldCommit()) {
+                this.bytes = bytes;
+                this.segmented = segmented;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * One stage of a file, or of a segment of a large file.
+     */
+    @Name("org.developercookie.file.encryption.Stage")
+    @Label("Stage")
+    @Category(CATEGORY)
+    @Description("Read, cipher or write stage of a file or segment")
+    public static final class StageEvent extends Event {
+        @Label("Stage")
+        String stage;
+
+        @Label("Path")
+        @Description("The file, null for a segment that is encrypted without its file")
+        String path;
+
+        @Label("Segment")
+        @Description("Index of the segment, -1 for a whole file")
+        long segment;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        /**
+         * Starts the <code>stage</code> of the <code>segment</code> of the file <code>path</code>.
+         */
+        static StageEvent begin(String stage, String path, long segment) {
+            StageEvent event = new StageEvent();
+            if (event.isEnabled()) {
+                event.stage = stage;
+                event.path = path;
+                event.segment = segment;
+                event.begin();
+            }
+            return event;
+        }
+
+        /**
+         * Ends the stage that processed <code>bytes</code> and commits it.
+         */
+        void finish(long bytes) {
+            end();
+            if (shouldCommit()) {
+                this.bytes = bytes;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * The derivation of a cipher key from a password or file key.
+     */
+    @Name("org.developercookie.file.encryption.KeyDerivation")
+    @Label("Key Derivation")
+    @Category(CATEGORY)
+    @Description("Derivation of a cipher key")
+    public static final class KeyDerivationEvent extends Event {
+        @Label("Algorithm")
+        String algorithm;
+
+        static KeyDerivationEvent begin(String algorithm) {
+            KeyDerivationEvent event = new KeyDerivationEvent();
+            if (event.isEnabled()) {
+                event.algorithm = algorithm;
+                event.begin();
+            }
+            return event;
+        }
+
+        void finish() {
+            end();
+            if (shouldCommit()) {
+                commit();
+            }
+        }
+    }
+
+    /**
+     * A lookup of a segment in a SegmentCache.
+     */
+    @Name("org.developercookie.file.encryption.CacheLookup")
+    @Label("Cache Lookup")
+    @Category(CATEGORY)
+    @Description("Lookup of a decrypted segment in the segment cache")
+    public static final class CacheLookupEvent extends Event {
+        @Label("Hit")
+        boolean hit;
+
+        @Label("Path")
+        String path;
+
+        @Label("Segment")
+        long segment;
+
+        /**
+         * Commits the lookup of the <code>segment</code> of the file <code>path</code>.
+         */
+        static void record(String path, long segment, boolean hit) {
+            CacheLookupEvent event = new CacheLookupEvent();
+            if (event.shouldCommit()) {
+                event.path = path;
+                event.segment = segment;
+                event.hit = hit;
+                event.commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,409 @@
+package org.developercookie.file.encryption;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The header of a file that is encrypted for several recipients. The content is encrypted once with a random data key
+ * and the data key is wrapped (encrypted) with the key of every recipient into a slot of the header. A recipient
+ * unwraps the data key with its own key, so recipients can be added or removed by rewriting the header only.<br/>
+ * The header starts with the magic bytes, its capacity and the number of slots. Every slot holds a random salt, the
+ * length of the wrapped data key and the wrapped data key. The header is padded to its capacity, so usually a changed
+ * header keeps the size of the old one; the encrypted content in the segmented format follows at the capacity. A
+ * changed header that fits into the capacity is overwritten in place after the old header was saved into a synced
+ * backup file, so a torn header is restored from the backup; only a header that grows is written into a copy of the
+ * file. Created by developerCookie on 19.10.26.
+ */
+public class Envelope {
+    /**
+     * The bytes every file with an envelope starts with.
+     */
+    static final byte[] MAGIC = {'F', 'E', 'N', 'C', 'E', 'N', 'V', '1'};
+
+    /**
+     * The default space that is reserved for the header.
+     */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * The largest space a header may reserve, a larger capacity is read as a damaged header.
+     */
+    static final int MAX_CAPACITY = 1024 * 1024;
+
+    /**
+     * The extension of the backup of a header while it is overwritten in place.
+     */
+    static final String HEADER_BACKUP_EXTENSION = ".header" + FileEncryption.PART_EXTENSION;
+
+    /**
+     * A wrapped data key starts with these bytes, so a slot that is unwrapped with a wrong key is recognized even if the
+     * ContentTransformer does not fail.
+     */
+    private static final byte[] DATA_KEY_PREFIX = {'D', 'A', 'T', 'A', 'K', 'E', 'Y', '1'};
+
+    /**
+     * The length of a random data key in bytes.
+     */
+    private static final int DATA_KEY_LENGTH = 32;
+
+    /**
+     * The length of the salt of a slot.
+     */
+    private static final int SALT_LENGTH = 16;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    /**
+     * The slots with the wrapped data keys.
+     */
+    private final List<Slot> slots = new ArrayList<Slot>();
+
+    /**
+     * The space that is reserved for the header in the file.
+     */
+    private int capacity;
+
+    private Envelope(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Creates a new envelope with a random data key that is wrapped for every key of the <code>recipientKeys</code>.
+     */
+    public static Envelope create(List<String> recipientKeys, ContentTransformer contentTransformer) {
+        if (recipientKeys.isEmpty()) {
+            throw new IllegalArgumentException("At least one recipient is needed");
+        }
+        Envelope envelope = new Envelope(DEFAULT_CAPACITY);
+        String dataKey = newDataKey();
+        for (String recipientKey : recipientKeys) {
+            envelope.slots.add(Slot.wrap(dataKey, recipientKey, contentTransformer));
+        }
+        envelope.growCapacity();
+        return envelope;
+    }
+
+    /**
+     * Returns true if the file with the given <code>filename</code> starts with an envelope.
+     */
+    public static boolean isEnvelope(String filename) throws IOException {
+        FileInputStream stream = new FileInputStream(filename);
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            return IOUtils.read(stream, magic) == MAGIC.length && Arrays.equals(MAGIC, magic);
+        } finally {
+            IOUtils.closeQuietly(stream);
+        }
+    }
+
+    /**
+     * Reads the envelope from the start of the file with the given <code>filename</code>. If a rewrite of the header
+     * died, the old header is restored from its backup first.
+     */
+    public static Envelope read(String filename) throws IOException {
+        File file = new File(filename);
+        restoreHeader(file);
+        InputStream stream = new BufferedInputStream(new FileInputStream(file));
+        try {
+            return read(stream, file.length());
+        } finally {
+            IOUtils.closeQuietly(stream);
+        }
+    }
+
+    /**
+     * Reads the envelope from the <code>in</code> stream including the padding, so the stream is positioned at the
+     * encrypted content afterwards. If the stream does not start with an envelope an IOException will be thrown.
+     */
+    public static Envelope read(InputStream in) throws IOException {
+        return read(in, MAX_CAPACITY);
+    }
+
+    /**
+     * Reads the envelope from the <code>in</code> stream of the given <code>streamLength</code>. A capacity or number
+     * of slots that can not fit into the stream is read as a damaged header before anything is allocated.
+     */
+    private static Envelope read(InputStream in, long streamLength) throws IOException {
+        DataInputStream dataStream = new DataInputStream(in);
+        byte[] magic = new byte[MAGIC.length];
+        dataStream.readFully(magic);
+        if (!Arrays.equals(MAGIC, magic)) {
+            throw new IOException("Content has no envelope");
+        }
+        int capacity = dataStream.readInt();
+        int slotCount = dataStream.readInt();
+        int read = MAGIC.length + 8;
+        if (capacity < read || capacity > Math.min(streamLength, MAX_CAPACITY)
+                || slotCount < 0 || slotCount > (capacity - read) / (SALT_LENGTH + 4)) {
+            throw new IOException("Envelope is damaged");
+        }
+        Envelope envelope = new Envelope(capacity);
+        for (int i = 0; i < slotCount; i++) {
+            byte[] salt = new byte[SALT_LENGTH];
+            dataStream.readFully(salt);
+            int length = dataStream.readInt();
+            if (length < 0 || read + SALT_LENGTH + 4 + length > envelope.capacity) {
+                throw new IOException("Envelope is damaged");
+            }
+            byte[] wrappedKey = new byte[length];
+            dataStream.readFully(wrappedKey);
+            envelope.slots.add(new Slot(salt, wrappedKey));
+            read += SALT_LENGTH + 4 + length;
+        }
+        IOUtils.skipFully(dataStream, envelope.capacity - read);
+        return envelope;
+    }
+
+    /**
+     * Writes the envelope padded to its capacity to the <code>out</code> stream.
+     */
+    public void write(OutputStream out) throws IOException {
+        out.write(toBytes());
+    }
+
+    /**
+     * Returns the data key that is unwrapped with the <code>recipientKey</code>. If the key is not the key of a
+     * recipient an IllegalKeyException will be thrown.
+     */
+    public String unwrap(String recipientKey, ContentTransformer contentTransformer) throws IllegalKeyException {
+        for (Slot slot : slots) {
+            String dataKey = slot.unwrap(recipientKey, contentTransformer);
+            if (dataKey != null) {
+                return dataKey;
+            }
+        }
+        throw new IllegalKeyException("Key is not the key of a recipient");
+    }
+
+    /**
+     * Adds the <code>newRecipientKey</code> as recipient. The data key is unwrapped with the <code>recipientKey</code>
+     * of an existing recipient.
+     */
+    public void addRecipient(String recipientKey, String newRecipientKey, ContentTransformer contentTransformer) throws IllegalKeyException {
+        String dataKey = unwrap(recipientKey, contentTransformer);
+        slots.add(Slot.wrap(dataKey, newRecipientKey, contentTransformer));
+        growCapacity();
+    }
+
+    /**
+     * Removes the recipient with the <code>recipientKey</code>. Returns false if it is not a recipient. The last
+     * recipient can not be removed. The data key stays the same, so a removed recipient that kept the data key or an
+     * old copy of the header can still decrypt the content; to lock it out the file has to be encrypted again for the
+     * remaining recipients.
+     */
+    public boolean removeRecipient(String recipientKey, ContentTransformer contentTransformer) {
+        Iterator<Slot> iterator = slots.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().unwrap(recipientKey, contentTransformer) != null) {
+                if (slots.size() == 1) {
+                    throw new IllegalStateException("The last recipient can not be removed");
+                }
+                iterator.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of recipients.
+     */
+    public int getRecipientCount() {
+        return slots.size();
+    }
+
+    /**
+     * Returns the space reserved for the header, the encrypted content starts there.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Replaces the envelope of the encrypted <code>file</code> by this envelope. If the envelope fits into the space of
+     * the old one, the old header is saved into a synced backup file and the new header is written over it and synced;
+     * the backup is removed afterwards. A crash in between leaves the backup, and the old header is restored from it
+     * before the file is read again, so a torn header never loses the wrapped data keys. An envelope that needs more
+     * space is written with the encrypted content behind it into a synced partial file that replaces the file
+     * atomically. The encrypted content is never encrypted again.
+     */
+    public void rewrite(File file) throws IOException {
+        Envelope old = read(file.getPath());
+        if (toBytes().length > old.capacity) {
+            rewriteGrown(file, old.capacity);
+            return;
+        }
+        capacity = old.capacity;
+        File backupFile = new File(file.getPath() + HEADER_BACKUP_EXTENSION);
+        RandomAccessFile target = new RandomAccessFile(file, "rw");
+        try {
+            byte[] oldHeader = new byte[old.capacity];
+            target.readFully(oldHeader);
+            writeBackup(backupFile, oldHeader);
+            target.seek(0);
+            target.write(toBytes());
+            target.getFD().sync();
+            target.close();
+        } finally {
+            IOUtils.closeQuietly(target);
+        }
+        Files.delete(backupFile.toPath());
+    }
+
+    /**
+     * Writes the envelope with the encrypted content of the <code>file</code> behind the <code>oldCapacity</code> into a
+     * synced partial file that replaces the file atomically.
+     */
+    private void rewriteGrown(File file, int oldCapacity) throws IOException {
+        File partFile = new File(file.getPath() + FileEncryption.PART_EXTENSION);
+        FileChannel source = new FileInputStream(file).getChannel();
+        FileOutputStream target = new FileOutputStream(partFile);
+        try {
+            FileChannel targetChannel = target.getChannel();
+            targetChannel.write(ByteBuffer.wrap(toBytes()));
+            long position = oldCapacity;
+            long size = source.size();
+            while (position < size) {
+                position += source.transferTo(position, size - position, targetChannel);
+            }
+            target.getFD().sync();
+        } finally {
+            IOUtils.closeQuietly(source);
+            IOUtils.closeQuietly(target);
+        }
+        Files.move(partFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes the <code>header</code> into the synced <code>backupFile</code>. The backup is written under another name
+     * first and moved atomically, so a backup that exists is always complete.
+     */
+    private static void writeBackup(File backupFile, byte[] header) throws IOException {
+        File partFile = new File(backupFile.getPath() + FileEncryption.PART_EXTENSION);
+        FileOutputStream target = new FileOutputStream(partFile);
+        try {
+            target.write(header);
+            target.getFD().sync();
+        } finally {
+            target.close();
+        }
+        Files.move(partFile.toPath(), backupFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes the header from the backup back into the <code>file</code> if a rewrite of the header died, and removes
+     * the backup.
+     */
+    private static void restoreHeader(File file) throws IOException {
+        File backupFile = new File(file.getPath() + HEADER_BACKUP_EXTENSION);
+        if (!backupFile.isFile()) {
+            return;
+        }
+        byte[] header = FileUtils.readFileToByteArray(backupFile);
+        RandomAccessFile target = new RandomAccessFile(file, "rw");
+        try {
+            target.write(header);
+            target.getFD().sync();
+            target.close();
+        } finally {
+            IOUtils.closeQuietly(target);
+        }
+        Files.delete(backupFile.toPath());
+    }
+
+    /**
+     * Returns the bytes of the header padded to its capacity.
+     */
+    private byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(Math.max(capacity, encodedLength()));
+        buffer.put(MAGIC).putInt(capacity).putInt(slots.size());
+        for (Slot slot : slots) {
+            buffer.put(slot.salt).putInt(slot.wrappedKey.length).put(slot.wrappedKey);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Returns the length of the header without padding.
+     */
+    private int encodedLength() {
+        int length = MAGIC.length + 8;
+        for (Slot slot : slots) {
+            length += SALT_LENGTH + 4 + slot.wrappedKey.length;
+        }
+        return length;
+    }
+
+    /**
+     * Doubles the capacity until all slots fit into it.
+     */
+    private void growCapacity() {
+        while (encodedLength() > capacity) {
+            capacity *= 2;
+        }
+    }
+
+    /**
+     * Returns a new random data key.
+     */
+    private static String newDataKey() {
+        byte[] dataKey = new byte[DATA_KEY_LENGTH];
+        random.nextBytes(dataKey);
+        return IntegrityManifest.toHex(dataKey);
+    }
+
+    /**
+     * The data key wrapped for one recipient. The key of the recipient is salted, so the slots of different files differ
+     * even for the same recipient.
+     */
+    private static class Slot {
+        private final byte[] salt;
+        private final byte[] wrappedKey;
+
+        Slot(byte[] salt, byte[] wrappedKey) {
+            this.salt = salt;
+            this.wrappedKey = wrappedKey;
+        }
+
+        static Slot wrap(String dataKey, String recipientKey, ContentTransformer contentTransformer) {
+            byte[] salt = new byte[SALT_LENGTH];
+            random.nextBytes(salt);
+            byte[] keyBytes = dataKey.getBytes();
+            byte[] plain = Arrays.copyOf(DATA_KEY_PREFIX, DATA_KEY_PREFIX.length + keyBytes.length);
+            System.arraycopy(keyBytes, 0, plain, DATA_KEY_PREFIX.length, keyBytes.length);
+            return new Slot(salt, contentTransformer.encrypt(plain, wrappingKey(recipientKey, salt)));
+        }
+
+        /**
+         * Returns the data key or null if the slot does not belong to the <code>recipientKey</code>.
+         */
+        String unwrap(String recipientKey, ContentTransformer contentTransformer) {
+            byte[] plain;
+            try {
+                plain = contentTransformer.decrypt(wrappedKey, wrappingKey(recipientKey, salt));
+            } catch (IllegalKeyException ex) {
+                return null;
+            }
+            if (plain.length <= DATA_KEY_PREFIX.length
+                    || !Arrays.equals(DATA_KEY_PREFIX, Arrays.copyOf(plain, DATA_KEY_PREFIX.length))) {
+                return null;
+            }
+            return new String(plain, DATA_KEY_PREFIX.length, plain.length - DATA_KEY_PREFIX.length);
+        }
+
+        private static String wrappingKey(String recipientKey, byte[] salt) {
+            return recipientKey + "\u0000envelope\u0000" + IntegrityManifest.toHex(salt);
+        }
+    }
+}
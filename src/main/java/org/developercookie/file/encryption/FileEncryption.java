@@ -1,13 +1,37 @@
 package org.developercookie.file.encryption;
 
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.filefilter.AbstractFileFilter;
+import org.apache.commons.io.filefilter.FileFilterUtils;
+import org.apache.commons.io.filefilter.IOFileFilter;
+import org.apache.commons.io.filefilter.NameFileFilter;
 import org.apache.commons.io.filefilter.SuffixFileFilter;
 import org.apache.commons.io.filefilter.TrueFileFilter;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Encrypts and decrypts files and places them into a directories. Created by developerCookie on 08.04.14.
@@ -18,11 +42,117 @@ public class FileEncryption {
      */
     public static final String ENCRYPTION_EXTENSION = ".enc";
 
+    /**
+     * The file extension of files that are not completely written yet.
+     */
+    public static final String PART_EXTENSION = ".part";
+
+    /**
+     * Files of at least this size are written in the segmented format by default.
+     */
+    public static final long DEFAULT_SEGMENT_THRESHOLD = 64L * 1024 * 1024;
+
+    /**
+     * By default a checkpoint of a large file is written to the journal after this amount of bytes.
+     */
+    public static final long DEFAULT_CHECKPOINT_INTERVAL = 32L * 1024 * 1024;
+
+    /**
+     * The number of segments a large file of a folder job is read ahead, so idle workers can steal them.
+     */
+    private static final int SEGMENTS_AHEAD = 8;
+
+    /**
+     * The most bytes a copy of a mirrored folder transfers at once, so the RateLimiter is asked in small steps.
+     */
+    private static final long COPY_CHUNK_SIZE = 8L * 1024 * 1024;
+
+    /**
+     * Files that are written by the FileEncryption itself into the output folder. They are never decrypted.
+     */
+    static final IOFileFilter NO_CONTROL_FILES = FileFilterUtils.and(
+            FileFilterUtils.notFileFilter(new NameFileFilter(new String[]{IntegrityManifest.MANIFEST_FILENAME,
+                    IntegrityManifest.MANIFEST_FILENAME + ".tmp", CheckpointJournal.JOURNAL_FILENAME,
+                    NameIndex.INDEX_FILENAME, NameIndex.INDEX_FILENAME + ".tmp", FolderKeyCheck.KEY_CHECK_FILENAME})),
+            FileFilterUtils.notFileFilter(new SuffixFileFilter(PART_EXTENSION)),
+            new AbstractFileFilter() {
+                @Override
+                public boolean accept(File file) {
+                    File folder = file.getParentFile();
+                    return folder == null || !folder.getName().equals(ShardCoordinator.COORDINATION_FOLDER);
+                }
+            });
+
+    /**
+     * The encrypted files of an output folder. Copies of a mirrored folder and the control files are left out.
+     */
+    static final IOFileFilter ENCRYPTED_FILES = FileFilterUtils.and(NO_CONTROL_FILES, new SuffixFileFilter(ENCRYPTION_EXTENSION));
+
     /**
      * The ContentTransformer to use for encryption/decryption of the file content.
      */
     private ContentTransformer contentTransformer;
 
+    /**
+     * Files of at least this size are encrypted in the segmented format.
+     */
+    private long segmentThreshold = DEFAULT_SEGMENT_THRESHOLD;
+
+    /**
+     * The segment size used for new files in the segmented format.
+     */
+    private int segmentSize = SegmentedFormat.DEFAULT_SEGMENT_SIZE;
+
+    /**
+     * A segment checkpoint is written to the journal after this amount of bytes.
+     */
+    private long checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+
+    /**
+     * If set, whole files are read and written asynchronously with many outstanding requests.
+     */
+    private AsyncFileIO asyncFileIO;
+
+    /**
+     * The buffer sizes and read-ahead of the file I/O.
+     */
+    private IoSettings ioSettings = IoSettings.DEFAULT;
+
+    /**
+     * If set, folder jobs keep to its limits.
+     */
+    private RateLimiter rateLimiter;
+
+    /**
+     * The number of files a folder job processes at the same time.
+     */
+    private int workerCount = 1;
+
+    /**
+     * The number of shard folder levels the files of a folder job are spread over.
+     */
+    private int shardDepth;
+
+    /**
+     * If true, folder jobs store the files under encrypted names and write a name index.
+     */
+    private boolean encryptNames;
+
+    /**
+     * If true, folder jobs copy the files that are not encrypted into the output folder.
+     */
+    private boolean mirror;
+
+    /**
+     * If set, files reserve the memory they need from it before they are read.
+     */
+    private MemoryBudget memoryBudget;
+
+    /**
+     * The makespan of the last folder job that ran on own workers.
+     */
+    private volatile MakespanReport lastMakespanReport;
+
     /**
      * Files are be encrypted and decrypted with the given <code>contentTransformer</code>.
      */
@@ -30,17 +160,372 @@ public class FileEncryption {
         this.contentTransformer = contentTransformer;
     }
 
+    /**
+     * Files of at least <code>segmentThreshold</code> bytes are encrypted segment by segment in the segmented format.
+     * They are never held in memory as a whole and an interrupted folder job continues them at the last checkpoint.
+     */
+    public void setSegmentThreshold(long segmentThreshold) {
+        this.segmentThreshold = segmentThreshold;
+    }
+
+    /**
+     * Sets the size of one segment of files that are written in the segmented format.
+     */
+    public void setSegmentSize(int segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Sets after how many bytes of a large file a checkpoint is written to the journal of a folder job.
+     */
+    public void setCheckpointInterval(long checkpointInterval) {
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    /**
+     * Files that are processed as a whole are read and written by the given <code>asyncFileIO</code> instead of
+     * blocking streams. Large files are read block by block ahead of their encryption, so the reads of the next
+     * segments overlap the cipher of the current one. With null the blocking streams are used again.
+     */
+    public void setAsyncFileIO(AsyncFileIO asyncFileIO) {
+        this.asyncFileIO = asyncFileIO;
+    }
+
+    /**
+     * Sets the buffer sizes and the read-ahead used to read and write files.
+     */
+    public void setIoSettings(IoSettings ioSettings) {
+        this.ioSettings = ioSettings;
+    }
+
+    /**
+     * Folder jobs keep to the limits of the given <code>rateLimiter</code>: the bytes read per second, the files started
+     * per second and the workers that run at the same time. The limits can be changed on the RateLimiter while a job
+     * runs. With null the jobs run unlimited again.
+     */
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Sets the number of files a folder job encrypts or decrypts at the same time, by default 1. Fewer workers leave more
+     * cores to other services; the number of running workers can also be lowered while a job runs by
+     * {@link RateLimiter#setMaxWorkers(int)}.
+     */
+    public void setWorkerCount(int workerCount) {
+        if (workerCount <= 0) {
+            throw new IllegalArgumentException("At least one worker is needed");
+        }
+        this.workerCount = workerCount;
+    }
+
+    /**
+     * Spreads the files of folder jobs over <code>shardDepth</code> levels of hashed shard folders, so no target folder
+     * gets millions of entries. Every level has 256 folders. A folder must be decrypted with the shard depth it was
+     * encrypted with, then the shard folders are removed again. By default there are no shard folders.
+     */
+    public void setShardDepth(int shardDepth) {
+        if (shardDepth < 0 || shardDepth > PathMapper.MAX_SHARD_DEPTH) {
+            throw new IllegalArgumentException("Shard depth must be between 0 and " + PathMapper.MAX_SHARD_DEPTH);
+        }
+        this.shardDepth = shardDepth;
+    }
+
+    /**
+     * If <code>encryptNames</code> is true, encrypting a folder stores every file under a token, the keyed hash of its
+     * relative path, in the shard folders of the output folder, so no file or folder name leaks. The paths are kept in
+     * an encrypted {@link NameIndex} in the output folder; decrypting the folder restores them. Single files are found
+     * by {@link #decryptNamed(String, String, String, String)} and folders are listed by
+     * {@link #listNamedFolder(String, String, String)} without decrypting all names.
+     */
+    public void setEncryptNames(boolean encryptNames) {
+        this.encryptNames = encryptNames;
+    }
+
+    /**
+     * If <code>mirror</code> is true, encrypting a folder copies every file that does not have the file extension
+     * unchanged into the same sub folder of the output folder, so the output is a complete copy of the folder in a single
+     * pass. The copies are transferred from file to file by the file system without passing the heap and keep the
+     * modification time of their source; a copy that has the size and modification time of its source is not copied
+     * again. Decrypting a mirrored folder copies every file without the extension {@value #ENCRYPTION_EXTENSION} back.
+     * Mirroring is not supported with encrypted names.
+     */
+    public void setMirror(boolean mirror) {
+        this.mirror = mirror;
+    }
+
+    /**
+     * Sets the <code>memoryBudget</code> that bounds the heap of the files that are encrypted or decrypted at the same
+     * time; null for no limit. Every file reserves its memory before it is read: twice its size if it is processed in
+     * memory as a whole, a few segments if it is streamed. A file below the segment threshold that would take too much
+     * of the budget is encrypted in the segmented format instead, so it is streamed too.
+     */
+    public void setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Returns how well the last folder job that ran on own workers used them, null if none ran yet. Folder jobs start
+     * with the largest files, and idle workers encrypt the segments of large files in the segmented format, so one
+     * large file does not keep the job running long after the other workers are done.
+     */
+    public MakespanReport getLastMakespanReport() {
+        return lastMakespanReport;
+    }
+
+    /**
+     * Probes the <code>sourceFolder</code> and the <code>targetFolder</code> briefly with the IoTuner, uses the
+     * settings with the best throughput from now on and returns them.
+     */
+    public IoSettings autoTuneIo(String sourceFolder, String targetFolder) throws IOException {
+        ioSettings = new IoTuner().tune(sourceFolder, targetFolder);
+        return ioSettings;
+    }
+
     /**
      * Encrypt the folder given by <code>folderToEncrypt</code>. Only files are encrypted that have the given
-     * <code>fileExtension</code>. The resulting files will be written to the <code>outputFolder</code>.
-     * <code>Key</code> is used for the encryption.
+     * <code>fileExtension</code>. The resulting files will be written to the <code>outputFolder</code>, files of sub
+     * folders into the same sub folders. <code>Key</code> is used for the encryption.<br/> The progress is recorded in
+     * a checkpoint journal in the output folder. If the job dies it can be started again with the same arguments and
+     * continues with the files that are not completed.
      */
     public void encryptFolder(String folderToEncrypt, String outputFolder, String fileExtension, String key) throws IOException {
-        Collection<File> foundFiles = FileUtils.listFiles(new File(folderToEncrypt), new SuffixFileFilter(fileExtension), null);
-        for (File oneFile : foundFiles) {
-            String fullFilename = oneFile.getAbsolutePath();
-            encrypt(fullFilename, outputFolder, key);
+        encryptFolder(folderToEncrypt, outputFolder, fileExtension, key, null);
+    }
+
+    /**
+     * Encrypts the folder like {@link #encryptFolder(String, String, String, String)} and additionally writes an
+     * integrity manifest into the <code>outputFolder</code> that is signed with the <code>manifestKey</code>. The
+     * digests are calculated while the encrypted files are written. Entries of an existing manifest that is signed with
+     * the same key are kept. If the <code>manifestKey</code> is null no manifest is written.
+     */
+    public void encryptFolder(String folderToEncrypt, String outputFolder, String fileExtension, String key, String manifestKey) throws IOException {
+        encryptFolder(folderToEncrypt, outputFolder, fileExtension, key, manifestKey, null);
+    }
+
+    /**
+     * Encrypts the folder like {@link #encryptFolder(String, String, String, String, String)} with the files running on
+     * the <code>scheduler</code> instead of own workers.
+     */
+    void encryptFolder(String folderToEncrypt, String outputFolder, String fileExtension, String key, String manifestKey, FileTaskScheduler scheduler) throws IOException {
+        String jobId = encryptJobId(folderToEncrypt, fileExtension, key);
+        encryptFolder(folderToEncrypt, outputFolder, fileExtension, key, null, manifestKey, jobId, scheduler);
+    }
+
+    /**
+     * Encrypts the folder like {@link #encryptFolder(String, String, String, String, String)}, but every file is
+     * encrypted only once for all <code>recipientKeys</code>: the content is encrypted with a random data key, and the
+     * data key is wrapped for every recipient in the envelope header of the file. Each recipient decrypts the files with
+     * its own key by {@link #decryptFolder(String, String, String)}. Recipients are added or removed later by
+     * {@link #addRecipientToFolder(String, String, String, String)} and
+     * {@link #removeRecipientFromFolder(String, String, String)} without encrypting the content again.
+     */
+    public void encryptFolderForRecipients(String folderToEncrypt, String outputFolder, String fileExtension, List<String> recipientKeys, String manifestKey) throws IOException {
+        List<String> jobArguments = new ArrayList<String>(Arrays.asList("encrypt-recipients", new File(folderToEncrypt).getAbsolutePath(), fileExtension));
+        jobArguments.addAll(recipientKeys);
+        String jobId = CheckpointJournal.jobId(jobArguments.toArray(new String[jobArguments.size()]));
+        encryptFolder(folderToEncrypt, outputFolder, fileExtension, null, recipientKeys, manifestKey, jobId, null);
+    }
+
+    /**
+     * Encrypts the folder with the <code>key</code> or, if it is null, for the <code>recipientKeys</code>. The files run
+     * on the <code>scheduler</code> or, if it is null, on own workers.
+     */
+    private void encryptFolder(String folderToEncrypt, String outputFolder, String fileExtension, final String key, final List<String> recipientKeys, String manifestKey, String jobId, FileTaskScheduler scheduler) throws IOException {
+        if (encryptNames && key == null) {
+            throw new IllegalStateException("Encrypted names are not supported for recipients");
+        }
+        if (encryptNames && mirror) {
+            throw new IllegalStateException("Encrypted names are not supported for mirrored folders");
         }
+        final IntegrityManifest manifest = manifestKey != null ? readManifestToExtend(outputFolder, manifestKey) : null;
+        NameIndex nameIndex = encryptNames ? readNameIndexToExtend(outputFolder, key) : null;
+        final CheckpointJournal journal = CheckpointJournal.open(outputFolder, jobId);
+        try {
+            final PathMapper pathMapper = new PathMapper(folderToEncrypt, outputFolder, shardDepth);
+            IOFileFilter fileFilter = new SuffixFileFilter(fileExtension);
+            Collection<File> foundFiles = pathMapper.listSourceFiles(mirror ? TrueFileFilter.INSTANCE : fileFilter);
+            FileTaskBatch batch = new FileTaskBatch(rateLimiter, true);
+            for (File oneFile : foundFiles) {
+                if (!fileFilter.accept(oneFile)) {
+                    if (oneFile.getName().endsWith(ENCRYPTION_EXTENSION)) {
+                        throw new IOException("File can not be mirrored, it looks like an encrypted file: " + oneFile);
+                    }
+                    addCopy(batch, pathMapper, oneFile, mirrorTarget(pathMapper, oneFile));
+                    continue;
+                }
+                final String fullFilename = oneFile.getAbsolutePath();
+                if (nameIndex != null) {
+                    nameIndex.add(pathMapper.relativePath(oneFile));
+                }
+                final String newFilename = encryptedFile(pathMapper, nameIndex, oneFile).getPath();
+                final String name = IntegrityManifest.relativeName(new File(outputFolder), new File(newFilename));
+                CheckpointJournal.Completed completed = journal.getCompleted(name);
+                if (completed != null && completed.isIntact(new File(newFilename))) {
+                    if (manifest != null) {
+                        manifest.addHexDigest(name, completed.getHexDigest());
+                    }
+                    continue;
+                }
+                final SegmentStealQueue stealQueue = batch.getStealQueue();
+                batch.add(oneFile.length(), new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        pathMapper.createParentFolder(new File(newFilename));
+                        byte[] digest = key != null
+                                ? encryptFile(fullFilename, newFilename, key, journal, name, stealQueue)
+                                : encryptForRecipientsFile(fullFilename, newFilename, recipientKeys, journal, name, stealQueue);
+                        if (manifest != null) {
+                            synchronized (manifest) {
+                                manifest.add(name, digest);
+                            }
+                        }
+                        return null;
+                    }
+                });
+            }
+            runFileTasks(batch, scheduler, workerCount);
+            try {
+                batch.throwFirstFailure();
+            } catch (IllegalKeyException ex) {
+                throw new IllegalStateException("Encryption does not check keys", ex);
+            }
+            if (nameIndex != null) {
+                nameIndex.write(outputFolder, key);
+            }
+            if (manifest != null) {
+                manifest.write(outputFolder, manifestKey);
+            }
+            journal.complete();
+        } finally {
+            journal.close();
+        }
+    }
+
+    /**
+     * Returns the id of the checkpoint journal of the encryption of the <code>folderToEncrypt</code>.
+     */
+    static String encryptJobId(String folderToEncrypt, String fileExtension, String key) {
+        return CheckpointJournal.jobId("encrypt", new File(folderToEncrypt).getAbsolutePath(), fileExtension, key);
+    }
+
+    /**
+     * Returns the encrypted file of the <code>source</code> file: under its encrypted name if a <code>nameIndex</code>
+     * is given, otherwise under its plain name.
+     */
+    static File encryptedFile(PathMapper pathMapper, NameIndex nameIndex, File source) {
+        if (nameIndex != null) {
+            return pathMapper.toStorage(nameIndex.storageName(pathMapper.relativePath(source)));
+        }
+        return pathMapper.toEncrypted(source);
+    }
+
+    /**
+     * Returns the place of the copy of the <code>source</code> file of a mirrored folder, the same sub folder without
+     * shard folders.
+     */
+    static File mirrorTarget(PathMapper pathMapper, File source) throws IOException {
+        return pathMapper.toPlain(pathMapper.relativePath(source));
+    }
+
+    /**
+     * Returns true if the <code>target</code> is a current copy of the <code>source</code>: it has the same size and
+     * modification time.
+     */
+    static boolean isCopyCurrent(File source, File target) {
+        return target.isFile() && target.length() == source.length() && target.lastModified() == source.lastModified();
+    }
+
+    ContentTransformer getContentTransformer() {
+        return contentTransformer;
+    }
+
+    long getSegmentThreshold() {
+        return segmentThreshold;
+    }
+
+    int getSegmentSize() {
+        return segmentSize;
+    }
+
+    IoSettings getIoSettings() {
+        return ioSettings;
+    }
+
+    RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    int getWorkerCount() {
+        return workerCount;
+    }
+
+    int getShardDepth() {
+        return shardDepth;
+    }
+
+    boolean isEncryptNames() {
+        return encryptNames;
+    }
+
+    boolean isMirror() {
+        return mirror;
+    }
+
+    /**
+     * Changes the key of all encrypted files in the <code>folder</code> from <code>oldKey</code> to
+     * <code>newKey</code>. See {@link #rotateKey(String, String, String, String)}.
+     */
+    public void rotateKey(String folder, String oldKey, String newKey) throws IOException, IllegalKeyException {
+        rotateKey(folder, oldKey, newKey, null);
+    }
+
+    /**
+     * Changes the key of all encrypted files in the <code>folder</code> from <code>oldKey</code> to
+     * <code>newKey</code> without writing plain content to the disk. Files encrypted for recipients only get their
+     * envelope header rewritten. Other files are decrypted and encrypted again in one streaming pass. The files
+     * are processed in parallel and the progress is recorded in a checkpoint journal, so an interrupted rotation
+     * continues if it is started again with the same arguments. If the folder has an integrity manifest and the
+     * <code>manifestKey</code> is not null the manifest is updated. The <code>oldKey</code> is checked before the
+     * first file is replaced, and a finished rotation writes a key check file for the <code>newKey</code>, so a wrong
+     * key or a rotation that is started again after it finished leaves the files as they are.
+     */
+    public void rotateKey(String folder, String oldKey, String newKey, String manifestKey) throws IOException, IllegalKeyException {
+        new KeyRotation(contentTransformer, Runtime.getRuntime().availableProcessors()).rotateFolder(folder, oldKey, newKey, manifestKey);
+    }
+
+    /**
+     * Migrates all files in the <code>folder</code> that are encrypted with the <code>key</code> as a single block into
+     * the segmented format. See {@link #migrateFolder(String, String, String)}.
+     */
+    public MigrationReport migrateFolder(String folder, String key) throws IOException, IllegalKeyException {
+        return migrateFolder(folder, key, null);
+    }
+
+    /**
+     * Migrates all files in the <code>folder</code> that are encrypted with the <code>key</code> as a single block into
+     * the segmented format with the configured segment size. The old content is decrypted as a stream straight into
+     * the encryption of the segments, no plain content is written to the disk. The files are migrated in parallel and
+     * each migrated file replaces the old one atomically. Files that are already segmented or encrypted for recipients
+     * are skipped, so an interrupted migration continues if it is started again. If the folder has an integrity manifest
+     * and the <code>manifestKey</code> is not null the manifest is updated. The returned report contains the number of
+     * files and bytes and the throughput.
+     */
+    public MigrationReport migrateFolder(String folder, String key, String manifestKey) throws IOException, IllegalKeyException {
+        return new FormatMigration(contentTransformer, segmentSize, Runtime.getRuntime().availableProcessors()).migrateFolder(folder, key, manifestKey);
+    }
+
+    /**
+     * Checks the encrypted files in the <code>folder</code> against the integrity manifest signed with the
+     * <code>manifestKey</code>. The encryption key is not needed. The result contains the names of all files that are
+     * missing, changed or not listed in the manifest. An IllegalKeyException is thrown if the manifest signature does
+     * not match.
+     */
+    public List<String> verifyFolder(String folder, String manifestKey) throws IOException, IllegalKeyException {
+        if (!new File(folder, IntegrityManifest.MANIFEST_FILENAME).exists()) {
+            throw new FileNotFoundException("No integrity manifest found in " + folder);
+        }
+        return IntegrityManifest.read(folder, manifestKey).verify(folder);
     }
 
     /**
@@ -48,21 +533,510 @@ public class FileEncryption {
      * will be stored into the <code>outputFolder</code>.
      */
     public void encrypt(String filename, String outputFolder, String key) throws IOException {
-        byte[] fileContent = readFileContent(filename);
-        byte[] encryptedContent = contentTransformer.encrypt(fileContent, key);
         String newFilename = buildNewFilenameEncrypt(filename, outputFolder);
-        writeFile(newFilename, encryptedContent);
+        encryptFile(filename, newFilename, key, null, null, null);
+    }
+
+    /**
+     * Encrypts the <code>source</code> file into the <code>target</code> file through a partial file of the
+     * <code>owner</code>, so several processes or workers can write the same target without mixing their content.
+     */
+    void encryptTo(File source, File target, String key, String owner) throws IOException {
+        File partFile = new File(target.getPath() + "." + owner + PART_EXTENSION);
+        encryptFile(source.getPath(), partFile.getPath(), key, null, null, null);
+        moveReplacing(partFile, target);
+    }
+
+    /**
+     * Decrypts the <code>source</code> file into the <code>target</code> file through a partial file of the
+     * <code>owner</code>, like {@link #encryptTo(File, File, String, String)}.
+     */
+    void decryptTo(File source, File target, String key, String owner) throws IOException, IllegalKeyException {
+        File partFile = new File(target.getPath() + "." + owner + PART_EXTENSION);
+        decryptFile(source.getPath(), partFile.getPath(), key, null, null, null);
+        moveReplacing(partFile, target);
+    }
+
+    /**
+     * Encrypts the file with the given <code>filename</code> in place: it is replaced by its encrypted file with the
+     * extension {@value #ENCRYPTION_EXTENSION} in the same folder, so no output folder with free space for a copy is
+     * needed. Files of at least the segment threshold are encrypted segment by segment and shrink while their encrypted
+     * file grows, so they need the free space of about one segment. If the encryption dies it is finished by calling
+     * this method again with the same key; the file is never lost. If it is called again with another key an
+     * IllegalKeyException is thrown before anything is written.
+     */
+    public void encryptInPlace(String filename, String key) throws IOException, IllegalKeyException {
+        new InPlaceEncryption(contentTransformer, segmentThreshold, segmentSize, 1).encryptFile(new File(filename), key);
+    }
+
+    /**
+     * Encrypts all files of the <code>folder</code> and its sub folders that have the <code>fileExtension</code> in
+     * place like {@link #encryptInPlace(String, String)}, on the configured number of workers. The free space needed
+     * grows with the number of workers, not with the size of the folder. A job that died is finished by starting it
+     * again with the same arguments.
+     */
+    public void encryptFolderInPlace(String folder, String fileExtension, String key) throws IOException, IllegalKeyException {
+        new InPlaceEncryption(contentTransformer, segmentThreshold, segmentSize, workerCount).encryptFolder(folder, fileExtension, key);
+    }
+
+    /**
+     * The file with the given <code>filename</code> will be encrypted once for all <code>recipientKeys</code> and the
+     * result will be stored into the <code>outputFolder</code>. See
+     * {@link #encryptFolderForRecipients(String, String, String, List, String)}.
+     */
+    public void encryptForRecipients(String filename, String outputFolder, List<String> recipientKeys) throws IOException {
+        String newFilename = buildNewFilenameEncrypt(filename, outputFolder);
+        encryptForRecipientsFile(filename, newFilename, recipientKeys, null, null, null);
+    }
+
+    /**
+     * Adds the <code>newKey</code> as recipient of the encrypted file <code>filename</code>. The <code>key</code> must
+     * be the key of an existing recipient. Only the envelope header of the file is rewritten.
+     */
+    public void addRecipient(String filename, String key, String newKey) throws IOException, IllegalKeyException {
+        Envelope envelope = readEnvelope(filename);
+        envelope.addRecipient(key, newKey, contentTransformer);
+        envelope.rewrite(new File(filename));
+    }
+
+    /**
+     * Removes the recipient with the <code>key</code> from the encrypted file <code>filename</code>. Only the envelope
+     * header of the file is rewritten. Returns false if the key is not the key of a recipient. The content keeps its
+     * data key, so a removed recipient that kept the data key or an old copy of the file can still decrypt it; to lock
+     * it out the file has to be decrypted and encrypted again for the remaining recipients.
+     */
+    public boolean removeRecipient(String filename, String key) throws IOException {
+        Envelope envelope = readEnvelope(filename);
+        if (!envelope.removeRecipient(key, contentTransformer)) {
+            return false;
+        }
+        envelope.rewrite(new File(filename));
+        return true;
+    }
+
+    /**
+     * Adds the <code>newKey</code> as recipient to all files in the <code>folder</code> that were encrypted for
+     * recipients; <code>key</code> must be the key of an existing recipient. If the folder has an integrity manifest and
+     * the <code>manifestKey</code> is not null, the manifest is updated for the changed files.
+     */
+    public void addRecipientToFolder(String folder, String key, String newKey, String manifestKey) throws IOException, IllegalKeyException {
+        IntegrityManifest manifest = readManifestToUpdate(folder, manifestKey);
+        for (File oneFile : FileUtils.listFiles(new File(folder), NO_CONTROL_FILES, TrueFileFilter.INSTANCE)) {
+            if (Envelope.isEnvelope(oneFile.getPath())) {
+                addRecipient(oneFile.getPath(), key, newKey);
+                updateManifest(manifest, folder, oneFile);
+            }
+        }
+        if (manifest != null) {
+            manifest.write(folder, manifestKey);
+        }
     }
 
     /**
-     * Decrypts all files that are located in the <code>folderToDecrypt</code>. The decrypted files will be stored intot
-     * the <code>outputFolder</code>. Decryption is made with the <code>key</code>.
+     * Removes the recipient with the <code>key</code> from all files in the <code>folder</code> that were encrypted for
+     * recipients. If the folder has an integrity manifest and the <code>manifestKey</code> is not null, the manifest is
+     * updated for the changed files. Returns the number of changed files. Like {@link #removeRecipient(String, String)}
+     * the files keep their data keys.
+     */
+    public int removeRecipientFromFolder(String folder, String key, String manifestKey) throws IOException, IllegalKeyException {
+        IntegrityManifest manifest = readManifestToUpdate(folder, manifestKey);
+        int changed = 0;
+        for (File oneFile : FileUtils.listFiles(new File(folder), NO_CONTROL_FILES, TrueFileFilter.INSTANCE)) {
+            if (Envelope.isEnvelope(oneFile.getPath()) && removeRecipient(oneFile.getPath(), key)) {
+                updateManifest(manifest, folder, oneFile);
+                changed++;
+            }
+        }
+        if (manifest != null) {
+            manifest.write(folder, manifestKey);
+        }
+        return changed;
+    }
+
+    /**
+     * Encrypts the file <code>filename</code> into the file <code>newFilename</code> and returns the digest of the
+     * written file. If a <code>journal</code> is given the file is first written as partial file and the progress is
+     * recorded under the <code>name</code>.
+     */
+    private byte[] encryptFile(String filename, String newFilename, String key, CheckpointJournal journal, String name, SegmentStealQueue stealQueue) throws IOException {
+        long length = new File(filename).length();
+        boolean segmented = length >= segmentThreshold || (memoryBudget != null && !memoryBudget.allowsInMemory(2 * length));
+        EncryptionEvents.FileEvent event = EncryptionEvents.FileEvent.begin("encrypt", filename);
+        try {
+            if (segmented) {
+                return encryptSegmented(filename, newFilename, key, null, journal, name, stealQueue);
+            }
+            long reserved = reserveMemory(2 * length);
+            try {
+                byte[] fileContent = readFileContent(filename);
+                EncryptionEvents.StageEvent stage = EncryptionEvents.StageEvent.begin(EncryptionEvents.CIPHER, filename, -1);
+                byte[] encryptedContent = contentTransformer.encrypt(fileContent, key);
+                stage.finish(fileContent.length);
+                if (journal == null) {
+                    return writeFile(newFilename, encryptedContent);
+                }
+                journal.begin(name);
+                File partFile = new File(newFilename + PART_EXTENSION);
+                byte[] digest = writeFile(partFile.getPath(), encryptedContent);
+                moveReplacing(partFile, new File(newFilename));
+                journal.done(name, encryptedContent.length, digest);
+                return digest;
+            } finally {
+                releaseMemory(reserved);
+            }
+        } finally {
+            event.finish(length, segmented);
+        }
+    }
+
+    /**
+     * Encrypts the file <code>filename</code> for the <code>recipientKeys</code> into the file
+     * <code>newFilename</code>. The file gets an envelope header and the content follows in the segmented format,
+     * encrypted with the data key of the envelope. A partial file of an interrupted job is continued with the data key of
+     * its envelope.
+     */
+    private byte[] encryptForRecipientsFile(String filename, String newFilename, List<String> recipientKeys, CheckpointJournal journal, String name, SegmentStealQueue stealQueue) throws IOException {
+        File partFile = new File(newFilename + PART_EXTENSION);
+        Envelope envelope = null;
+        if (journal != null && journal.getSegmentCheckpoint(name) != null && Envelope.isEnvelope(partFile.getPath())) {
+            envelope = Envelope.read(partFile.getPath());
+        }
+        if (envelope == null) {
+            envelope = Envelope.create(recipientKeys, contentTransformer);
+        }
+        EncryptionEvents.FileEvent event = EncryptionEvents.FileEvent.begin("encrypt", filename);
+        try {
+            String dataKey = envelope.unwrap(recipientKeys.get(0), contentTransformer);
+            return encryptSegmented(filename, newFilename, dataKey, envelope, journal, name, stealQueue);
+        } catch (IllegalKeyException ex) {
+            throw new IllegalStateException("The data key can not be unwrapped with a recipient key", ex);
+        } finally {
+            event.finish(new File(filename).length(), true);
+        }
+    }
+
+    /**
+     * Encrypts the file <code>filename</code> segment by segment into the segmented format. If the journal has a
+     * checkpoint for the file the partial file is continued from there. If an <code>envelope</code> is given it is written
+     * in front of the content.
+     */
+    private byte[] encryptSegmented(String filename, String newFilename, String key, Envelope envelope, CheckpointJournal journal, String name, SegmentStealQueue stealQueue) throws IOException {
+        long readAhead = asyncFileIO != null ? asyncFileIO.getBlocksAhead(segmentSize) : 0;
+        long reserved = reserveMemory((2L * ((stealQueue != null ? SEGMENTS_AHEAD : 0) + 1) + readAhead) * segmentSize);
+        try {
+            return writeSegmented(filename, newFilename, key, envelope, journal, name, stealQueue);
+        } finally {
+            releaseMemory(reserved);
+        }
+    }
+
+    /**
+     * Writes the segmented file for {@link #encryptSegmented(String, String, String, Envelope, CheckpointJournal,
+     * String, SegmentStealQueue)}.
+     */
+    private byte[] writeSegmented(String filename, String newFilename, String key, Envelope envelope, CheckpointJournal journal, String name, SegmentStealQueue stealQueue) throws IOException {
+        File partFile = new File(newFilename + PART_EXTENSION);
+        CheckpointJournal.SegmentCheckpoint checkpoint = journal != null ? journal.getSegmentCheckpoint(name) : null;
+        MessageDigest digest = IntegrityManifest.newDigest();
+        FileOutputStream fileStream;
+        int usedSegmentSize;
+        long firstIndex;
+        long partLength;
+        if (checkpoint != null && partFile.length() >= checkpoint.getPartLength()) {
+            usedSegmentSize = truncateAndDigest(partFile, checkpoint.getPartLength(), envelope != null, digest);
+            firstIndex = checkpoint.getNextIndex();
+            partLength = checkpoint.getPartLength();
+            fileStream = new FileOutputStream(partFile, true);
+        } else {
+            if (journal != null) {
+                journal.begin(name);
+            }
+            usedSegmentSize = segmentSize;
+            firstIndex = 0;
+            partLength = SegmentedFormat.HEADER_LENGTH + (envelope != null ? envelope.getCapacity() : 0);
+            fileStream = new FileOutputStream(partFile);
+        }
+
+        DigestOutputStream digestStream = new DigestOutputStream(ioSettings.buffer(fileStream), digest);
+        AsyncFileIO.BlockReader blockReader = null;
+        InputStream source = null;
+        try {
+            if (asyncFileIO != null) {
+                blockReader = asyncFileIO.readBlocks(filename, firstIndex * usedSegmentSize, usedSegmentSize);
+            } else {
+                source = ioSettings.openInput(new File(filename), firstIndex * usedSegmentSize, rateLimiter);
+            }
+            if (firstIndex == 0) {
+                if (envelope != null) {
+                    envelope.write(digestStream);
+                }
+                SegmentedFormat.writeHeader(digestStream, usedSegmentSize);
+            }
+            SegmentWriter writer = new SegmentWriter(digestStream, contentTransformer, key, firstIndex);
+            SegmentStealQueue queue = stealQueue != null ? stealQueue : new SegmentStealQueue();
+            int segmentsAhead = stealQueue != null ? SEGMENTS_AHEAD : 0;
+            Deque<SegmentStealQueue.Segment> pending = new ArrayDeque<SegmentStealQueue.Segment>();
+            long length = new File(filename).length();
+            long offset = firstIndex * usedSegmentSize;
+            long index = firstIndex;
+            long sinceCheckpoint = 0;
+            byte[] buffer = segmentsAhead == 0 && blockReader == null ? new byte[usedSegmentSize] : null;
+            boolean last;
+            do {
+                byte[] plain;
+                int read;
+                EncryptionEvents.StageEvent readStage = EncryptionEvents.StageEvent.begin(EncryptionEvents.READ, filename, index);
+                if (blockReader != null) {
+                    plain = blockReader.nextBlock();
+                    read = plain.length;
+                    if (rateLimiter != null) {
+                        rateLimiter.acquireBytes(read);
+                    }
+                } else {
+                    plain = buffer != null ? buffer : new byte[usedSegmentSize];
+                    read = IOUtils.read(source, plain);
+                }
+                readStage.finish(read);
+                offset += read;
+                last = offset >= length || read < usedSegmentSize;
+                pending.addLast(queue.submit(writer, index++, read == plain.length ? plain : Arrays.copyOf(plain, read), last));
+                while (pending.size() > segmentsAhead || (last && !pending.isEmpty())) {
+                    SegmentStealQueue.Segment segment = pending.pollFirst();
+                    byte[] encrypted = queue.await(segment);
+                    EncryptionEvents.StageEvent writeStage = EncryptionEvents.StageEvent.begin(EncryptionEvents.WRITE, newFilename, writer.getNextIndex());
+                    int written = writer.writeEncrypted(encrypted, segment.getPlainLength(), segment.isLast());
+                    writeStage.finish(written);
+                    partLength += written;
+                    sinceCheckpoint += written;
+                    if (!segment.isLast() && journal != null && sinceCheckpoint >= checkpointInterval) {
+                        digestStream.flush();
+                        fileStream.getFD().sync();
+                        journal.segment(name, writer.getNextIndex(), partLength);
+                        sinceCheckpoint = 0;
+                    }
+                }
+            } while (!last);
+            digestStream.flush();
+            fileStream.getFD().sync();
+            digestStream.close();
+        } finally {
+            IOUtils.closeQuietly(source);
+            IOUtils.closeQuietly(blockReader);
+            IOUtils.closeQuietly(digestStream);
+        }
+
+        moveReplacing(partFile, new File(newFilename));
+        byte[] fileDigest = digest.digest();
+        if (journal != null) {
+            journal.done(name, partLength, fileDigest);
+        }
+        return fileDigest;
+    }
+
+    /**
+     * Encrypts the <code>in</code> stream until its end into the <code>out</code> stream in the segmented format. Only
+     * one segment is held in memory, so the stream can have any length. Both streams are closed.
+     */
+    public void encryptStream(InputStream in, OutputStream out, String key) throws IOException {
+        SegmentOutputStream target = new SegmentOutputStream(out, contentTransformer, key, segmentSize);
+        try {
+            IOUtils.copyLarge(in, target);
+            target.close();
+        } finally {
+            IOUtils.closeQuietly(in);
+            IOUtils.closeQuietly(target);
+        }
+    }
+
+    /**
+     * Decrypts the <code>in</code> stream that was written by {@link #encryptStream(InputStream, OutputStream, String)}
+     * into the <code>out</code> stream. If the stream was cut off an EOFException is thrown. Both streams are closed.
+     */
+    public void decryptStream(InputStream in, OutputStream out, String key) throws IOException, IllegalKeyException {
+        try {
+            IOUtils.copyLarge(new SegmentInputStream(in, contentTransformer, key), out);
+            out.flush();
+        } catch (IOException ex) {
+            throw unwrapIllegalKey(ex);
+        } finally {
+            IOUtils.closeQuietly(in);
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    /**
+     * Writes the <code>folder</code> with all files and sub folders as one encrypted stream to <code>out</code>. No
+     * temporary files are written. The stream is closed.
+     */
+    public void encryptFolderToStream(String folder, OutputStream out, String key) throws IOException {
+        SegmentOutputStream target = new SegmentOutputStream(out, contentTransformer, key, segmentSize);
+        try {
+            FolderArchive.write(new File(folder), new BufferedOutputStream(target, segmentSize));
+            target.close();
+        } finally {
+            IOUtils.closeQuietly(target);
+        }
+    }
+
+    /**
+     * Reads a stream written by {@link #encryptFolderToStream(String, OutputStream, String)} and restores the files and
+     * sub folders into the <code>outputFolder</code>. The stream is closed.
+     */
+    public void decryptStreamToFolder(InputStream in, String outputFolder, String key) throws IOException, IllegalKeyException {
+        try {
+            FolderArchive.read(new BufferedInputStream(new SegmentInputStream(in, contentTransformer, key)), new File(outputFolder));
+        } catch (IOException ex) {
+            throw unwrapIllegalKey(ex);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Decrypts all files that are located in the <code>folderToDecrypt</code> and its sub folders. The decrypted files
+     * will be stored into the same sub folders of the <code>outputFolder</code>. Decryption is made with the
+     * <code>key</code>. Like the encryption of a folder the progress is recorded in a checkpoint journal, so a job that
+     * died continues where it stopped.
      */
     public void decryptFolder(String folderToDecrypt, String outputFolder, String key) throws IOException, IllegalKeyException {
-        Collection<File> foundFiles = FileUtils.listFiles(new File(folderToDecrypt), TrueFileFilter.INSTANCE, null);
-        for (File oneFile : foundFiles) {
-            String fullFilename = oneFile.getAbsolutePath();
-            decrypt(fullFilename, outputFolder, key);
+        decryptFolder(folderToDecrypt, outputFolder, key, null);
+    }
+
+    /**
+     * Decrypts the folder like {@link #decryptFolder(String, String, String)} with the files running on the
+     * <code>scheduler</code> or, if it is null, on own workers.
+     */
+    void decryptFolder(String folderToDecrypt, String outputFolder, final String key, FileTaskScheduler scheduler) throws IOException, IllegalKeyException {
+        String jobId = CheckpointJournal.jobId("decrypt", new File(folderToDecrypt).getAbsolutePath(), key);
+        final CheckpointJournal journal = CheckpointJournal.open(outputFolder, jobId);
+        try {
+            final PathMapper pathMapper = new PathMapper(folderToDecrypt, outputFolder, shardDepth);
+            FileTaskBatch batch = new FileTaskBatch(rateLimiter, true);
+            for (Map.Entry<File, File> oneFile : decryptTargets(pathMapper, folderToDecrypt, key).entrySet()) {
+                if (isMirrorCopy(oneFile.getKey())) {
+                    addCopy(batch, pathMapper, oneFile.getKey(), oneFile.getValue());
+                    continue;
+                }
+                final String fullFilename = oneFile.getKey().getAbsolutePath();
+                final String newFilename = oneFile.getValue().getPath();
+                final String name = IntegrityManifest.relativeName(new File(outputFolder), new File(newFilename));
+                CheckpointJournal.Completed completed = journal.getCompleted(name);
+                if (completed == null || !completed.isIntact(new File(newFilename))) {
+                    batch.add(oneFile.getKey().length(), new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException, IllegalKeyException {
+                            pathMapper.createParentFolder(new File(newFilename));
+                            decryptFile(fullFilename, newFilename, key, journal, name, null);
+                            return null;
+                        }
+                    });
+                }
+            }
+            runFileTasks(batch, scheduler, workerCount);
+            batch.throwFirstFailure();
+            journal.complete();
+        } finally {
+            journal.close();
+        }
+    }
+
+    /**
+     * Decrypts all files in the <code>folderToDecrypt</code> into the <code>outputFolder</code> like
+     * {@link #decryptFolder(String, String, String)}, but a file that can not be decrypted does not stop the restore.
+     * The files are decrypted in parallel; the partial output of a failed file is removed and the failure is collected
+     * in the returned report with the offset of the damaged segment. The journal is kept while files failed, so a later
+     * run only retries the failed files.
+     */
+    public RestoreReport restoreFolder(String folderToDecrypt, String outputFolder, String key) throws IOException {
+        return restore(folderToDecrypt, outputFolder, key, null);
+    }
+
+    /**
+     * Restores only the files of the <code>folderToDecrypt</code> whose plain relative path is selected by the
+     * <code>selector</code>, like {@link #restoreFolder(String, String, String)}. The matching files are found by their
+     * names or by the name index, no other file is opened. For a list of paths the encrypted files are looked up
+     * directly without listing the folder; paths that are not found are reported as failures.
+     */
+    public RestoreReport restoreSelected(String folderToDecrypt, String outputFolder, String key, PathSelector selector) throws IOException {
+        return restore(folderToDecrypt, outputFolder, key, selector);
+    }
+
+    /**
+     * Restores the files of the <code>folderToDecrypt</code> that are selected by the <code>selector</code> or, if it
+     * is null, all files.
+     */
+    private RestoreReport restore(String folderToDecrypt, String outputFolder, final String key, PathSelector selector) throws IOException {
+        long start = System.nanoTime();
+        String jobId = selector == null
+                ? CheckpointJournal.jobId("decrypt", new File(folderToDecrypt).getAbsolutePath(), key)
+                : CheckpointJournal.jobId("restore", new File(folderToDecrypt).getAbsolutePath(), key, selector.toString());
+        final CheckpointJournal journal = CheckpointJournal.open(outputFolder, jobId);
+        try {
+            FileTaskBatch batch = new FileTaskBatch(rateLimiter, false);
+            List<String> filenames = new ArrayList<String>();
+            List<SourcePosition> positions = new ArrayList<SourcePosition>();
+            int skippedFiles = 0;
+            final PathMapper pathMapper = new PathMapper(folderToDecrypt, outputFolder, shardDepth);
+            List<String> missingPaths = new ArrayList<String>();
+            Map<File, File> targets;
+            try {
+                targets = selector == null ? decryptTargets(pathMapper, folderToDecrypt, key)
+                        : selectTargets(pathMapper, folderToDecrypt, outputFolder, key, selector, missingPaths);
+            } catch (IllegalKeyException ex) {
+                throw new IOException("Name index can not be read with the key", ex);
+            }
+            for (Map.Entry<File, File> oneFile : targets.entrySet()) {
+                final String fullFilename = oneFile.getKey().getAbsolutePath();
+                final String newFilename = oneFile.getValue().getPath();
+                final String name = IntegrityManifest.relativeName(new File(outputFolder), new File(newFilename));
+                CheckpointJournal.Completed completed = journal.getCompleted(name);
+                if (completed != null && completed.isIntact(new File(newFilename))) {
+                    skippedFiles++;
+                    continue;
+                }
+                final SourcePosition position = new SourcePosition();
+                batch.add(oneFile.getKey().length(), new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        try {
+                            pathMapper.createParentFolder(new File(newFilename));
+                            if (isMirrorCopy(new File(fullFilename))) {
+                                copyIfChanged(new File(fullFilename), new File(newFilename));
+                            } else {
+                                decryptFile(fullFilename, newFilename, key, journal, name, position);
+                            }
+                        } catch (Exception ex) {
+                            FileUtils.deleteQuietly(new File(newFilename + PART_EXTENSION));
+                            throw ex;
+                        }
+                        return null;
+                    }
+                });
+                filenames.add(fullFilename);
+                positions.add(position);
+            }
+            runFileTasks(batch, null, workerCount);
+
+            List<RestoreReport.Failure> failures = new ArrayList<RestoreReport.Failure>();
+            for (String missingPath : missingPaths) {
+                failures.add(new RestoreReport.Failure(missingPath, new FileNotFoundException("No encrypted file for " + missingPath), 0));
+            }
+            long bytesRead = 0;
+            for (int i = 0; i < filenames.size(); i++) {
+                FileTaskBatch.Task task = batch.getTasks().get(i);
+                if (task.getFailure() != null) {
+                    failures.add(new RestoreReport.Failure(filenames.get(i), task.getFailure(), positions.get(i).offset));
+                } else {
+                    bytesRead += task.getSize();
+                }
+            }
+            if (failures.isEmpty()) {
+                journal.complete();
+            }
+            long elapsedMillis = (System.nanoTime() - start) / 1000000;
+            return new RestoreReport(filenames.size() + missingPaths.size() - failures.size(), skippedFiles, bytesRead, elapsedMillis, failures);
+        } finally {
+            journal.close();
         }
     }
 
@@ -71,18 +1045,370 @@ public class FileEncryption {
      * decrypt the file the <code>key</code> will be used.
      */
     public void decrypt(String filename, String outputFolder, String key) throws IOException, IllegalKeyException {
-        byte[] fileContent = readFileContent(filename);
-        byte[] decryptedContent = contentTransformer.decrypt(fileContent, key);
         String newFilename = buildNewFileNameDecrypt(filename, outputFolder);
-        writeFile(newFilename, decryptedContent);
+        decryptFile(filename, newFilename, key, null, null, null);
+    }
+
+    /**
+     * Decrypts the file with the plain <code>relativePath</code> from the <code>encryptedFolder</code> with encrypted
+     * names into the <code>outputFolder</code>. The file is found by a binary search in the name index, so no other name
+     * is decrypted. If the folder has no such file a FileNotFoundException will be thrown.
+     */
+    public void decryptNamed(String encryptedFolder, String relativePath, String outputFolder, String key) throws IOException, IllegalKeyException {
+        String storageName = NameIndex.open(encryptedFolder, key, contentTransformer).find(relativePath);
+        if (storageName == null) {
+            throw new FileNotFoundException("No encrypted file for " + relativePath);
+        }
+        File source = new PathMapper(encryptedFolder, outputFolder, shardDepth).fromStorage(storageName);
+        String name = new File(NameIndex.normalize(relativePath)).getName();
+        decryptFile(source.getPath(), new File(outputFolder, name).getPath(), key, null, null, null);
+    }
+
+    /**
+     * Returns the sorted plain names of the files and sub folders of the <code>relativeFolder</code> in the
+     * <code>encryptedFolder</code> with encrypted names; names of sub folders end with a slash. Only the names of the
+     * listed folder are decrypted.
+     */
+    public List<String> listNamedFolder(String encryptedFolder, String relativeFolder, String key) throws IOException, IllegalKeyException {
+        return NameIndex.open(encryptedFolder, key, contentTransformer).list(relativeFolder);
+    }
+
+    /**
+     * Decrypts the file <code>filename</code> into the file <code>newFilename</code>. Files in the segmented format
+     * are decrypted segment by segment. A single block file that is too large to be held in memory as a whole is
+     * decrypted as a stream by a StreamingContentTransformer. If a <code>journal</code> is given the file is first written as partial file
+     * and the progress is recorded under the <code>name</code>. If a <code>position</code> is given it holds the offset
+     * of the segment that is decrypted at the moment, so it points to the damaged segment after a failure.
+     */
+    private void decryptFile(String filename, String newFilename, String key, CheckpointJournal journal, String name, SourcePosition position) throws IOException, IllegalKeyException {
+        boolean withEnvelope = Envelope.isEnvelope(filename);
+        boolean segmented = withEnvelope || SegmentedFormat.isSegmented(filename);
+        long length = new File(filename).length();
+        boolean streamed = !segmented && contentTransformer instanceof StreamingContentTransformer
+                && (length >= segmentThreshold || (memoryBudget != null && !memoryBudget.allowsInMemory(2 * length)));
+        EncryptionEvents.FileEvent event = EncryptionEvents.FileEvent.begin("decrypt", filename);
+        long reserved = reserveMemory(segmented || streamed ? 2L * segmentSize : 2 * length);
+        try {
+            if (withEnvelope) {
+                Envelope envelope = Envelope.read(filename);
+                decryptSegmented(filename, newFilename, envelope.unwrap(key, contentTransformer), envelope.getCapacity(), journal, name, position);
+                return;
+            }
+            if (segmented) {
+                decryptSegmented(filename, newFilename, key, 0, journal, name, position);
+                return;
+            }
+            if (streamed) {
+                decryptStreamed(filename, newFilename, key, journal, name);
+                return;
+            }
+            byte[] fileContent = readFileContent(filename);
+            EncryptionEvents.StageEvent stage = EncryptionEvents.StageEvent.begin(EncryptionEvents.CIPHER, filename, -1);
+            byte[] decryptedContent = contentTransformer.decrypt(fileContent, key);
+            stage.finish(fileContent.length);
+            if (journal == null) {
+                writeFile(newFilename, decryptedContent);
+                return;
+            }
+            journal.begin(name);
+            File partFile = new File(newFilename + PART_EXTENSION);
+            writeFile(partFile.getPath(), decryptedContent);
+            moveReplacing(partFile, new File(newFilename));
+            journal.done(name, decryptedContent.length, null);
+        } finally {
+            releaseMemory(reserved);
+            event.finish(length, segmented);
+        }
+    }
+
+    /**
+     * Decrypts the single block file <code>filename</code> as a stream into a synced partial file that replaces the
+     * file <code>newFilename</code>, so only buffers are held in memory. A wrong key is usually found at the end of the
+     * file; the partial file is removed then.
+     */
+    private void decryptStreamed(String filename, String newFilename, String key, CheckpointJournal journal, String name) throws IOException, IllegalKeyException {
+        if (journal != null) {
+            journal.begin(name);
+        }
+        File partFile = new File(newFilename + PART_EXTENSION);
+        EncryptionEvents.StageEvent stage = EncryptionEvents.StageEvent.begin(EncryptionEvents.CIPHER, filename, -1);
+        InputStream source = ((StreamingContentTransformer) contentTransformer).decryptingStream(
+                ioSettings.openInput(new File(filename), 0, rateLimiter), key);
+        FileOutputStream fileStream = new FileOutputStream(partFile);
+        OutputStream target = ioSettings.buffer(fileStream);
+        long written;
+        boolean success = false;
+        try {
+            written = IOUtils.copyLarge(source, target);
+            target.flush();
+            fileStream.getFD().sync();
+            target.close();
+            success = true;
+        } catch (IOException ex) {
+            throw unwrapIllegalKey(ex);
+        } finally {
+            IOUtils.closeQuietly(source);
+            IOUtils.closeQuietly(target);
+            if (!success) {
+                FileUtils.deleteQuietly(partFile);
+            }
+        }
+        stage.finish(new File(filename).length());
+        moveReplacing(partFile, new File(newFilename));
+        if (journal != null) {
+            journal.done(name, written, null);
+        }
+    }
+
+    /**
+     * Decrypts the file <code>filename</code> that is in the segmented format segment by segment. If the journal has a
+     * checkpoint for the file the partial file is continued from there. The segmented content starts at the
+     * <code>contentOffset</code>. The offset of the segment that is read is kept in the <code>position</code>, if given.
+     */
+    private void decryptSegmented(String filename, String newFilename, String key, long contentOffset, CheckpointJournal journal, String name, SourcePosition position) throws IOException, IllegalKeyException {
+        File partFile = new File(newFilename + PART_EXTENSION);
+        CheckpointJournal.SegmentCheckpoint checkpoint = journal != null ? journal.getSegmentCheckpoint(name) : null;
+        InputStream source = ioSettings.openInput(new File(filename), contentOffset, rateLimiter);
+        FileOutputStream fileStream = null;
+        OutputStream target = null;
+        try {
+            SegmentReader reader = new SegmentReader(source, contentTransformer, key);
+            long partLength = 0;
+            if (checkpoint != null && partFile.length() >= checkpoint.getPartLength()) {
+                truncate(partFile, checkpoint.getPartLength());
+                for (long i = 0; i < checkpoint.getNextIndex(); i++) {
+                    reader.skipSegment();
+                }
+                partLength = checkpoint.getPartLength();
+                fileStream = new FileOutputStream(partFile, true);
+            } else {
+                if (journal != null) {
+                    journal.begin(name);
+                }
+                fileStream = new FileOutputStream(partFile);
+            }
+            target = ioSettings.buffer(fileStream);
+
+            long sinceCheckpoint = 0;
+            byte[] segment;
+            while (true) {
+                if (position != null) {
+                    position.offset = contentOffset + reader.getPosition();
+                }
+                if ((segment = reader.readSegment()) == null) {
+                    break;
+                }
+                EncryptionEvents.StageEvent writeStage = EncryptionEvents.StageEvent.begin(EncryptionEvents.WRITE, newFilename, reader.getNextIndex() - 1);
+                target.write(segment);
+                writeStage.finish(segment.length);
+                partLength += segment.length;
+                sinceCheckpoint += segment.length;
+                if (!reader.isFinished() && journal != null && sinceCheckpoint >= checkpointInterval) {
+                    target.flush();
+                    fileStream.getFD().sync();
+                    journal.segment(name, reader.getNextIndex(), partLength);
+                    sinceCheckpoint = 0;
+                }
+            }
+            target.flush();
+            fileStream.getFD().sync();
+            target.close();
+            moveReplacing(partFile, new File(newFilename));
+            if (journal != null) {
+                journal.done(name, partLength, null);
+            }
+        } finally {
+            IOUtils.closeQuietly(source);
+            IOUtils.closeQuietly(target != null ? target : fileStream);
+        }
+    }
+
+    /**
+     * Returns the encrypted files of the <code>folderToDecrypt</code> with their decrypted files. Files with encrypted
+     * names get their plain path from the name index, other files lose their extension.
+     */
+    Map<File, File> decryptTargets(PathMapper pathMapper, String folderToDecrypt, String key) throws IOException, IllegalKeyException {
+        Map<String, String> plainPaths = NameIndex.exists(folderToDecrypt)
+                ? NameIndex.open(folderToDecrypt, key, contentTransformer).files() : Collections.<String, String>emptyMap();
+        Map<File, File> targets = new LinkedHashMap<File, File>();
+        for (File oneFile : pathMapper.listSourceFiles(NO_CONTROL_FILES)) {
+            if (isMirrorCopy(oneFile)) {
+                targets.put(oneFile, mirrorTarget(pathMapper, oneFile));
+                continue;
+            }
+            String plainPath = plainPaths.get(oneFile.getName());
+            targets.put(oneFile, plainPath != null ? pathMapper.toPlain(plainPath) : pathMapper.toDecrypted(oneFile));
+        }
+        return targets;
+    }
+
+    /**
+     * Returns the encrypted files of the <code>folderToDecrypt</code> that are selected by the <code>selector</code>
+     * with their decrypted files in the <code>outputFolder</code>. The files of a path list are looked up in the name
+     * index or at the place they were encrypted to; the paths without a file are added to <code>missingPaths</code>.
+     */
+    private Map<File, File> selectTargets(PathMapper pathMapper, String folderToDecrypt, String outputFolder, String key, PathSelector selector, List<String> missingPaths) throws IOException, IllegalKeyException {
+        Map<File, File> targets = new LinkedHashMap<File, File>();
+        if (selector.getPaths() != null) {
+            NameIndex nameIndex = NameIndex.exists(folderToDecrypt) ? NameIndex.open(folderToDecrypt, key, contentTransformer) : null;
+            PathMapper encryptedMapper = new PathMapper(outputFolder, folderToDecrypt, shardDepth);
+            for (String path : selector.getPaths()) {
+                String storageName = nameIndex != null ? nameIndex.find(path) : null;
+                File source = storageName != null ? pathMapper.fromStorage(storageName) : encryptedMapper.toEncrypted(pathMapper.toPlain(path));
+                if (source.isFile()) {
+                    targets.put(source, pathMapper.toPlain(path));
+                } else {
+                    missingPaths.add(path);
+                }
+            }
+            return targets;
+        }
+        for (Map.Entry<File, File> target : decryptTargets(pathMapper, folderToDecrypt, key).entrySet()) {
+            if (selector.matches(IntegrityManifest.relativeName(new File(outputFolder), target.getValue()))) {
+                targets.put(target.getKey(), target.getValue());
+            }
+        }
+        return targets;
+    }
+
+    /**
+     * Runs the tasks of the <code>batch</code> on the <code>scheduler</code> or, if it is null, on <code>threads</code>
+     * own workers, and waits until they are finished. Own workers take the largest files first; a worker without a
+     * file left steals segments of the large files until the batch is finished.
+     */
+    private void runFileTasks(final FileTaskBatch batch, FileTaskScheduler scheduler, int threads) throws InterruptedIOException {
+        if (scheduler != null) {
+            scheduler.schedule(batch);
+            batch.awaitFinished();
+            return;
+        }
+        List<FileTaskBatch.Task> tasks = new ArrayList<FileTaskBatch.Task>(batch.getTasks());
+        Collections.sort(tasks, new Comparator<FileTaskBatch.Task>() {
+            @Override
+            public int compare(FileTaskBatch.Task first, FileTaskBatch.Task second) {
+                return Long.compare(second.getSize(), first.getSize());
+            }
+        });
+        final Queue<FileTaskBatch.Task> largestFirst = new ConcurrentLinkedQueue<FileTaskBatch.Task>(tasks);
+        boolean stealable = !tasks.isEmpty() && tasks.get(0).getSize() >= segmentThreshold;
+        int workers = Math.max(1, stealable ? threads : Math.min(threads, tasks.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        try {
+            for (int i = 0; i < workers; i++) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        FileTaskBatch.Task task;
+                        while ((task = largestFirst.poll()) != null) {
+                            task.run();
+                        }
+                        try {
+                            while (!batch.isFinished()) {
+                                batch.getStealQueue().help(10);
+                            }
+                        } catch (InterruptedIOException ex) {
+                            // the job is over
+                        }
+                    }
+                });
+            }
+            batch.awaitFinished();
+        } finally {
+            executor.shutdownNow();
+        }
+        lastMakespanReport = MakespanReport.of(batch, workers);
+    }
+
+    /**
+     * Returns true if the <code>file</code> of an encrypted folder is a copy of a mirrored folder.
+     */
+    private boolean isMirrorCopy(File file) {
+        return mirror && !file.getName().endsWith(ENCRYPTION_EXTENSION);
+    }
+
+    /**
+     * Adds the copy of the <code>source</code> file to the <code>target</code> file to the <code>batch</code>.
+     */
+    private void addCopy(FileTaskBatch batch, final PathMapper pathMapper, final File source, final File target) {
+        batch.add(source.length(), new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                pathMapper.createParentFolder(target);
+                copyIfChanged(source, target);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Copies the <code>source</code> file unchanged to the <code>target</code> file, unless the target is a current
+     * copy. The content is moved by FileChannel.transferTo, so the file system copies it without passing it through the
+     * heap. The copy is written as partial file and gets the modification time of the source.
+     */
+    private void copyIfChanged(File source, File target) throws IOException {
+        if (isCopyCurrent(source, target)) {
+            return;
+        }
+        EncryptionEvents.FileEvent event = EncryptionEvents.FileEvent.begin("copy", source.getPath());
+        File partFile = new File(target.getPath() + PART_EXTENSION);
+        FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+        FileChannel out = null;
+        long size = 0;
+        try {
+            out = FileChannel.open(partFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            size = in.size();
+            long position = 0;
+            while (position < size) {
+                long count = Math.min(COPY_CHUNK_SIZE, size - position);
+                if (rateLimiter != null) {
+                    rateLimiter.acquireBytes(count);
+                }
+                long transferred = in.transferTo(position, count, out);
+                if (transferred <= 0) {
+                    throw new EOFException("File was truncated while it was copied: " + source);
+                }
+                position += transferred;
+            }
+            out.close();
+        } finally {
+            IOUtils.closeQuietly(in);
+            IOUtils.closeQuietly(out);
+            event.finish(size, false);
+        }
+        moveReplacing(partFile, target);
+        if (!target.setLastModified(source.lastModified())) {
+            throw new IOException("Modification time of the copy can not be set: " + target);
+        }
+    }
+
+    /**
+     * Reserves <code>bytes</code> of the memory budget and returns the reserved bytes, 0 without a budget.
+     */
+    private long reserveMemory(long bytes) throws InterruptedIOException {
+        return memoryBudget != null ? memoryBudget.reserve(bytes) : 0;
+    }
+
+    private void releaseMemory(long reserved) {
+        if (memoryBudget != null) {
+            memoryBudget.release(reserved);
+        }
     }
 
     /**
      * Reads the content of the whole file. Note: if the file is huge it can cause an OutOfMemoryError!
      */
     private byte[] readFileContent(String filename) throws IOException {
-        FileInputStream fileInputStream = new FileInputStream(filename);
-        BufferedInputStream bufferedStream = new BufferedInputStream(fileInputStream);
+        EncryptionEvents.StageEvent stage = EncryptionEvents.StageEvent.begin(EncryptionEvents.READ, filename, -1);
+        if (asyncFileIO != null) {
+            byte[] content = asyncFileIO.readFully(filename);
+            if (rateLimiter != null) {
+                rateLimiter.acquireBytes(content.length);
+            }
+            stage.finish(content.length);
+            return content;
+        }
+        InputStream bufferedStream = ioSettings.openInput(new File(filename), 0, rateLimiter);
 
         byte[] content = null;
         try {
@@ -90,6 +1416,7 @@ public class FileEncryption {
         } finally {
             IOUtils.closeQuietly(bufferedStream);
         }
+        stage.finish(content.length);
         return content;
     }
 
@@ -98,41 +1425,181 @@ public class FileEncryption {
      * ".enc". The new filename will be placed in the <code>outputFolder</code>.
      */
     private String buildNewFilenameEncrypt(String oldFilename, String outputFolder) {
-        String pureFilename = FilenameUtils.getName(oldFilename);
-        StringBuilder buffer = new StringBuilder();
-        buffer.append(outputFolder);
-        buffer.append('/');
-        buffer.append(pureFilename);
-        buffer.append(ENCRYPTION_EXTENSION);
-        return buffer.toString();
+        File oldFile = new File(oldFilename).getAbsoluteFile();
+        return new PathMapper(oldFile.getParent(), outputFolder, 0).toEncrypted(oldFile).getPath();
     }
 
     /**
-     * Builds a new file name for the file that will be decrypted. The method assumed that the last file extension is
-     * the "enc". And it will be removed. The new file name will get the <code>outputFolder</code> as prefix.
+     * Builds a new file name for the file that will be decrypted. The last file extension, usually ".enc", is removed
+     * and the new file name will be placed in the <code>outputFolder</code>.
      */
     private String buildNewFileNameDecrypt(String oldFilename, String outputFolder) {
-        String pureFilename = FilenameUtils.getName(oldFilename);
-        String currentFileExtension = FilenameUtils.getExtension(pureFilename);
-        int indexOfFileExtension = pureFilename.indexOf(currentFileExtension) - 1;
-        if (indexOfFileExtension >= 0) {
-            String newFilename = pureFilename.substring(0, indexOfFileExtension);
-            return outputFolder + "/" + newFilename;
-        } else {
-            throw new IllegalStateException("Must not happen! Filename was: " + oldFilename);
+        File oldFile = new File(oldFilename).getAbsoluteFile();
+        return new PathMapper(oldFile.getParent(), outputFolder, 0).toDecrypted(oldFile).getPath();
+    }
+
+    /**
+     * Throws the IllegalKeyException that caused the IOException <code>ex</code> of a decrypting stream, otherwise
+     * returns <code>ex</code> to be thrown.
+     */
+    private IOException unwrapIllegalKey(IOException ex) throws IllegalKeyException {
+        if (ex.getCause() instanceof IllegalKeyException) {
+            throw (IllegalKeyException) ex.getCause();
         }
+        return ex;
     }
 
     /**
-     * Writes the given <code>content</code> to the file denoted by the <code>filename</code>.
+     * Reads the envelope of the encrypted file <code>filename</code>. An IOException is thrown if the file was not
+     * encrypted for recipients.
      */
-    private void writeFile(String filename, byte[] content) throws IOException {
+    private Envelope readEnvelope(String filename) throws IOException {
+        if (!Envelope.isEnvelope(filename)) {
+            throw new IOException("File was not encrypted for recipients: " + filename);
+        }
+        return Envelope.read(filename);
+    }
+
+    /**
+     * Reads the integrity manifest of the <code>folder</code> to update the digests of changed files. Returns null if
+     * there is no manifest or no <code>manifestKey</code>. A manifest that is signed with another key is not replaced,
+     * an IllegalKeyException is thrown instead.
+     */
+    private IntegrityManifest readManifestToUpdate(String folder, String manifestKey) throws IOException, IllegalKeyException {
+        if (manifestKey == null || !new File(folder, IntegrityManifest.MANIFEST_FILENAME).exists()) {
+            return null;
+        }
+        return IntegrityManifest.read(folder, manifestKey);
+    }
+
+    /**
+     * Replaces the digest of the changed <code>file</code> in the <code>manifest</code>, if there is one.
+     */
+    private void updateManifest(IntegrityManifest manifest, String folder, File file) throws IOException {
+        if (manifest != null) {
+            manifest.add(IntegrityManifest.relativeName(new File(folder), file), IntegrityManifest.digestMapped(file));
+        }
+    }
+
+    /**
+     * Reads the name index of the <code>outputFolder</code> to add the files of an encryption, or creates a new one if
+     * there is none. If the index belongs to another key an IOException will be thrown.
+     */
+    private NameIndex readNameIndexToExtend(String outputFolder, String key) throws IOException {
+        if (!NameIndex.exists(outputFolder)) {
+            return NameIndex.create(contentTransformer);
+        }
+        try {
+            return NameIndex.open(outputFolder, key, contentTransformer);
+        } catch (IllegalKeyException ex) {
+            throw new IOException("Name index of the output folder belongs to another key", ex);
+        }
+    }
+
+    /**
+     * Reads the manifest of the <code>outputFolder</code> to add new entries to it, or starts a new one if there is
+     * none. If the manifest is signed with another key an IOException will be thrown, so a wrong
+     * <code>manifestKey</code> does not discard the digests of the files encrypted before.
+     */
+    private IntegrityManifest readManifestToExtend(String outputFolder, String manifestKey) throws IOException {
+        try {
+            return IntegrityManifest.read(outputFolder, manifestKey);
+        } catch (IllegalKeyException ex) {
+            throw new IOException("Manifest of the output folder is signed with another key", ex);
+        }
+    }
+
+    /**
+     * Truncates the partial file <code>partFile</code> of the segmented format to the checkpointed <code>length</code>
+     * and feeds the remaining bytes into the <code>digest</code>. If <code>withEnvelope</code> is true the file starts
+     * with an envelope. Returns the segment size found in its header.
+     */
+    private int truncateAndDigest(File partFile, long length, boolean withEnvelope, MessageDigest digest) throws IOException {
+        truncate(partFile, length);
+        InputStream stream = new BufferedInputStream(new FileInputStream(partFile));
+        try {
+            DataInputStream headerStream = new DataInputStream(new DigestInputStream(stream, digest));
+            if (withEnvelope) {
+                Envelope.read(headerStream);
+            }
+            int usedSegmentSize = SegmentedFormat.readHeader(headerStream);
+            byte[] buffer = new byte[64 * 1024];
+            while (headerStream.read(buffer) >= 0) {
+                // only feeds the digest
+            }
+            return usedSegmentSize;
+        } finally {
+            IOUtils.closeQuietly(stream);
+        }
+    }
+
+    /**
+     * Cuts the given <code>file</code> to the given <code>length</code>.
+     */
+    private void truncate(File file, long length) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(length);
+        } finally {
+            IOUtils.closeQuietly(randomAccessFile);
+        }
+    }
+
+    /**
+     * Renames the completed partial file <code>from</code> to its final name <code>to</code>, replacing an older file.
+     */
+    private void moveReplacing(File from, File to) throws IOException {
+        Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Forces the creation of files in the folder of the <code>file</code> to the disk, where the platform supports it.
+     */
+    static void syncFolder(File file) {
+        try {
+            FileChannel folder = FileChannel.open(file.getAbsoluteFile().getParentFile().toPath(), StandardOpenOption.READ);
+            try {
+                folder.force(true);
+            } finally {
+                folder.close();
+            }
+        } catch (IOException ex) {
+            // folders can not be opened on every platform, the move is still atomic
+        }
+    }
+
+    /**
+     * Writes the given <code>content</code> to the file denoted by the <code>filename</code> and syncs it. The SHA-256
+     * digest of the written bytes is calculated on the way and returned. An error while the file is flushed or closed
+     * is thrown, so a torn file is never taken for a complete one.
+     */
+    private byte[] writeFile(String filename, byte[] content) throws IOException {
+        EncryptionEvents.StageEvent stage = EncryptionEvents.StageEvent.begin(EncryptionEvents.WRITE, filename, -1);
+        MessageDigest digest = IntegrityManifest.newDigest();
+        if (asyncFileIO != null) {
+            digest.update(content);
+            asyncFileIO.writeFully(filename, content);
+            stage.finish(content.length);
+            return digest.digest();
+        }
         FileOutputStream stream = new FileOutputStream(filename);
-        BufferedOutputStream bufferedStream = new BufferedOutputStream(stream);
+        OutputStream bufferedStream = ioSettings.buffer(new DigestOutputStream(stream, digest));
         try {
             bufferedStream.write(content);
+            bufferedStream.flush();
+            stream.getFD().sync();
+            bufferedStream.close();
         } finally {
             IOUtils.closeQuietly(bufferedStream);
         }
+        stage.finish(content.length);
+        return digest.digest();
+    }
+
+    /**
+     * The offset in an encrypted file up to which it was read successfully.
+     */
+    private static class SourcePosition {
+        private volatile long offset;
     }
 }
@@ -0,0 +1,192 @@
+package org.developercookie.file.encryption;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * The files of one folder job, each as a task that can run on any thread. Every task waits for the RateLimiter, if one
+ * is given. Usually the tasks that did not start yet are skipped after the first failure; a batch that carries on runs
+ * all tasks and keeps the failure of every task. The job waits with {@link #awaitFinished()} until all tasks are
+ * finished. The segments of large files can be stolen by idle workers from the queue of the batch. Created by
+ * developerCookie on 19.10.26.
+ */
+class FileTaskBatch {
+    /**
+     * The limits the tasks keep to, may be null.
+     */
+    private final RateLimiter rateLimiter;
+
+    /**
+     * If true no task is started after a task failed.
+     */
+    private final boolean stopOnFailure;
+
+    /**
+     * The tasks in the order they were added.
+     */
+    private final List<Task> tasks = new ArrayList<Task>();
+
+    /**
+     * The segments of the large files that idle workers can encrypt.
+     */
+    private final SegmentStealQueue stealQueue = new SegmentStealQueue();
+
+    /**
+     * The number of finished or skipped tasks.
+     */
+    private int finished;
+
+    /**
+     * True after a task failed.
+     */
+    private volatile boolean failed;
+
+    FileTaskBatch(RateLimiter rateLimiter, boolean stopOnFailure) {
+        this.rateLimiter = rateLimiter;
+        this.stopOnFailure = stopOnFailure;
+    }
+
+    /**
+     * Adds the <code>work</code> for a file of <code>size</code> bytes and returns its task.
+     */
+    Task add(long size, Callable<Void> work) {
+        Task task = new Task(size, work);
+        tasks.add(task);
+        return task;
+    }
+
+    List<Task> getTasks() {
+        return Collections.unmodifiableList(tasks);
+    }
+
+    SegmentStealQueue getStealQueue() {
+        return stealQueue;
+    }
+
+    /**
+     * Returns true if all tasks are finished or skipped.
+     */
+    synchronized boolean isFinished() {
+        return finished == tasks.size();
+    }
+
+    /**
+     * Waits until all tasks are finished or skipped.
+     */
+    synchronized void awaitFinished() throws InterruptedIOException {
+        try {
+            while (finished < tasks.size()) {
+                wait();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Folder job was interrupted");
+        }
+    }
+
+    /**
+     * Throws the failure of the first task that failed, if there is one.
+     */
+    void throwFirstFailure() throws IOException, IllegalKeyException {
+        for (Task task : tasks) {
+            Throwable failure = task.failure;
+            if (failure == null) {
+                continue;
+            }
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            }
+            if (failure instanceof IllegalKeyException) {
+                throw (IllegalKeyException) failure;
+            }
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            }
+            if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+            throw new IllegalStateException(failure);
+        }
+    }
+
+    private synchronized void taskFinished() {
+        finished++;
+        notifyAll();
+    }
+
+    /**
+     * The work for one file.
+     */
+    class Task implements Runnable {
+        /**
+         * The size of the file, the cost of the task for a scheduler.
+         */
+        private final long size;
+        private final Callable<Void> work;
+        private volatile Throwable failure;
+        private volatile long startNanos;
+        private volatile long finishNanos;
+
+        Task(long size, Callable<Void> work) {
+            this.size = size;
+            this.work = work;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        /**
+         * Returns what the task threw or null if it succeeded, was skipped or did not run yet.
+         */
+        Throwable getFailure() {
+            return failure;
+        }
+
+        /**
+         * Returns the System.nanoTime() when the task started, 0 if it did not run yet.
+         */
+        long getStartNanos() {
+            return startNanos;
+        }
+
+        /**
+         * Returns the System.nanoTime() when the task finished, 0 if it did not finish yet.
+         */
+        long getFinishNanos() {
+            return finishNanos;
+        }
+
+        @Override
+        public void run() {
+            startNanos = System.nanoTime();
+            try {
+                if (!(stopOnFailure && failed)) {
+                    if (rateLimiter == null) {
+                        work.call();
+                    } else {
+                        rateLimiter.acquireFile();
+                        rateLimiter.acquireWorker();
+                        try {
+                            if (!(stopOnFailure && failed)) {
+                                work.call();
+                            }
+                        } finally {
+                            rateLimiter.releaseWorker();
+                        }
+                    }
+                }
+            } catch (Throwable ex) {
+                failure = ex;
+                failed = true;
+            } finally {
+                finishNanos = System.nanoTime();
+                taskFinished();
+            }
+        }
+    }
+}
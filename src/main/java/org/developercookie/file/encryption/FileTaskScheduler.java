@@ -0,0 +1,13 @@
+package org.developercookie.file.encryption;
+
+/**
+ * Runs the file tasks of a folder job on threads that are not owned by the job, for example the shared workers of a
+ * JobManager. Created by developerCookie on 19.10.26.
+ */
+interface FileTaskScheduler {
+    /**
+     * Queues all tasks of the <code>batch</code>. The tasks may run in any order; the job waits for them with
+     * {@link FileTaskBatch#awaitFinished()}.
+     */
+    void schedule(FileTaskBatch batch);
+}
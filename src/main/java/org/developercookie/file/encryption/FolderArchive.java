@@ -0,0 +1,122 @@
+package org.developercookie.file.encryption;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Serialises a whole folder tree into one stream and back, like tar. Every entry starts with its type and its path
+ * relative to the folder with "/" as separator. Folders have no content; files have their modification time, their
+ * size and their content. The stream ends with an end entry, so a reader notices a stream that was cut off between two
+ * entries. Created by developerCookie on 19.10.26.
+ */
+final class FolderArchive {
+    private static final byte END = 0;
+    private static final byte FOLDER = 1;
+    private static final byte FILE = 2;
+
+    private FolderArchive() {
+    }
+
+    /**
+     * Writes the content of the <code>folder</code> with all sub folders to the <code>out</code> stream. Symbolic links
+     * are skipped, so a link to a parent folder can not make the stream endless. The stream is not closed.
+     */
+    static void write(File folder, OutputStream out) throws IOException {
+        if (!folder.isDirectory()) {
+            throw new FileNotFoundException("Folder not found: " + folder);
+        }
+        DataOutputStream dataStream = new DataOutputStream(out);
+        writeChildren(folder, "", dataStream);
+        dataStream.writeByte(END);
+        dataStream.flush();
+    }
+
+    /**
+     * Reads the entries of the <code>in</code> stream and creates them in the <code>folder</code>. Paths that would
+     * leave the folder are rejected. Every file is closed before the next entry is read, so a failed write of its last
+     * buffered bytes, for example on a full disk, is thrown instead of leaving a short file.
+     */
+    static void read(InputStream in, File folder) throws IOException {
+        DataInputStream dataStream = new DataInputStream(in);
+        String base = folder.getCanonicalPath() + File.separator;
+        while (true) {
+            byte type = dataStream.readByte();
+            if (type == END) {
+                return;
+            }
+            String name = dataStream.readUTF();
+            File target = new File(folder, name);
+            if (name.isEmpty() || name.startsWith("/") || !target.getCanonicalPath().startsWith(base)) {
+                throw new IOException("Illegal path in archive: " + name);
+            }
+            if (type == FOLDER) {
+                if (!target.isDirectory() && !target.mkdirs()) {
+                    throw new IOException("Could not create the folder " + target);
+                }
+            } else if (type == FILE) {
+                long lastModified = dataStream.readLong();
+                long size = dataStream.readLong();
+                target.getParentFile().mkdirs();
+                OutputStream fileStream = new BufferedOutputStream(new FileOutputStream(target));
+                try {
+                    if (IOUtils.copyLarge(dataStream, fileStream, 0, size) != size) {
+                        throw new EOFException("Archive is truncated in " + name);
+                    }
+                    fileStream.close();
+                } finally {
+                    IOUtils.closeQuietly(fileStream);
+                }
+                target.setLastModified(lastModified);
+            } else {
+                throw new IOException("Illegal entry type " + type);
+            }
+        }
+    }
+
+    /**
+     * Writes the children of the <code>folder</code> in the order of their names. Symbolic links are skipped.
+     */
+    private static void writeChildren(File folder, String prefix, DataOutputStream out) throws IOException {
+        File[] children = folder.listFiles();
+        if (children == null) {
+            throw new IOException("Could not list the folder " + folder);
+        }
+        Arrays.sort(children);
+        for (File child : children) {
+            String name = prefix + child.getName();
+            if (Files.isSymbolicLink(child.toPath())) {
+                continue;
+            }
+            if (child.isDirectory()) {
+                out.writeByte(FOLDER);
+                out.writeUTF(name);
+                writeChildren(child, name + "/", out);
+            } else if (child.isFile()) {
+                writeFile(child, name, out);
+            }
+        }
+    }
+
+    /**
+     * Writes one file. Exactly the size that is written into the entry is copied; if the file gets shorter while it is
+     * written an IOException is thrown.
+     */
+    private static void writeFile(File file, String name, DataOutputStream out) throws IOException {
+        long size = file.length();
+        out.writeByte(FILE);
+        out.writeUTF(name);
+        out.writeLong(file.lastModified());
+        out.writeLong(size);
+        InputStream fileStream = new BufferedInputStream(new FileInputStream(file));
+        try {
+            if (IOUtils.copyLarge(fileStream, out, 0, size) != size) {
+                throw new IOException("File got shorter while it was archived: " + file);
+            }
+        } finally {
+            IOUtils.closeQuietly(fileStream);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package org.developercookie.file.encryption;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Checks the key of an encrypted folder before its files are replaced. A folder whose key was rotated holds the file
+ * {@value #KEY_CHECK_FILENAME} with a known text encrypted with the key, otherwise the key is tried on the files
+ * themselves. Segmented and enveloped files find a wrong key reliably; a single block file accepts a wrong key about
+ * once in 256 tries, so several of them are tried. Created by developerCookie on 19.10.26.
+ */
+final class FolderKeyCheck {
+    /**
+     * The file that holds the known text encrypted with the key of the folder.
+     */
+    static final String KEY_CHECK_FILENAME = ".key-check";
+
+    /**
+     * The known text of the key check file.
+     */
+    private static final String KEY_CHECK_TEXT = "developerCookie folder key check";
+
+    /**
+     * The number of single block files that are tried if there is no better way to check the key.
+     */
+    private static final int SINGLE_BLOCK_TRIES = 8;
+
+    private FolderKeyCheck() {
+    }
+
+    /**
+     * Returns true if the <code>folder</code> has a key check file.
+     */
+    static boolean exists(String folder) {
+        return new File(folder, KEY_CHECK_FILENAME).isFile();
+    }
+
+    /**
+     * Returns true if the key check file of the <code>folder</code> was written with the <code>key</code>.
+     */
+    static boolean matches(String folder, String key, ContentTransformer contentTransformer) throws IOException {
+        byte[] encrypted = FileUtils.readFileToByteArray(new File(folder, KEY_CHECK_FILENAME));
+        try {
+            return Arrays.equals(contentTransformer.decrypt(encrypted, key), KEY_CHECK_TEXT.getBytes("UTF-8"));
+        } catch (IllegalKeyException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes the key check file of the <code>folder</code> for the <code>key</code>. The file is synced and replaces
+     * an old key check file atomically.
+     */
+    static void write(String folder, String key, ContentTransformer contentTransformer) throws IOException {
+        File keyCheckFile = new File(folder, KEY_CHECK_FILENAME);
+        File partFile = new File(keyCheckFile.getPath() + FileEncryption.PART_EXTENSION);
+        FileOutputStream target = new FileOutputStream(partFile);
+        try {
+            target.write(contentTransformer.encrypt(KEY_CHECK_TEXT.getBytes("UTF-8"), key));
+            target.getFD().sync();
+        } finally {
+            target.close();
+        }
+        Files.move(partFile.toPath(), keyCheckFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Checks that the encrypted <code>files</code> of the <code>folder</code> are encrypted with the <code>key</code>.
+     * The key check file is used if there is one. Otherwise the first segmented or enveloped file is decrypted, and only
+     * if there is none up to {@value #SINGLE_BLOCK_TRIES} single block files. Without any file there is nothing to
+     * check. An IllegalKeyException is thrown if the key is not correct.
+     */
+    static void verify(String folder, Collection<File> files, String key, ContentTransformer contentTransformer) throws IOException, IllegalKeyException {
+        if (exists(folder)) {
+            if (!matches(folder, key, contentTransformer)) {
+                throw new IllegalKeyException("Key is not the key of the folder " + folder);
+            }
+            return;
+        }
+        int singleBlockTries = 0;
+        for (File oneFile : files) {
+            if (Envelope.isEnvelope(oneFile.getPath())) {
+                Envelope.read(oneFile.getPath()).unwrap(key, contentTransformer);
+                return;
+            }
+            if (SegmentedFormat.isSegmented(oneFile.getPath())) {
+                readFirstSegment(oneFile, key, contentTransformer);
+                return;
+            }
+        }
+        for (File oneFile : files) {
+            if (singleBlockTries++ == SINGLE_BLOCK_TRIES) {
+                return;
+            }
+            decryptSingleBlock(oneFile, key, contentTransformer);
+        }
+    }
+
+    private static void readFirstSegment(File file, String key, ContentTransformer contentTransformer) throws IOException, IllegalKeyException {
+        InputStream source = new BufferedInputStream(new FileInputStream(file));
+        try {
+            new SegmentReader(source, contentTransformer, key).readSegment();
+        } finally {
+            IOUtils.closeQuietly(source);
+        }
+    }
+
+    private static void decryptSingleBlock(File file, String key, ContentTransformer contentTransformer) throws IOException, IllegalKeyException {
+        if (!(contentTransformer instanceof StreamingContentTransformer)) {
+            contentTransformer.decrypt(FileUtils.readFileToByteArray(file), key);
+            return;
+        }
+        InputStream source = ((StreamingContentTransformer) contentTransformer).decryptingStream(
+                new BufferedInputStream(new FileInputStream(file)), key);
+        try {
+            IOUtils.copy(source, NullOutputStream.NULL_OUTPUT_STREAM);
+        } catch (IOException ex) {
+            if (ex.getCause() instanceof IllegalKeyException) {
+                throw (IllegalKeyException) ex.getCause();
+            }
+            throw ex;
+        } finally {
+            IOUtils.closeQuietly(source);
+        }
+    }
+}
@@ -0,0 +1,451 @@
+package org.developercookie.file.encryption;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Watches a source folder and all of its sub folders and encrypts new or changed files with the given file extension
+ * into the output folder as soon as they are completely written. While nothing changes the watcher only waits on the
+ * WatchService. A file is encrypted when it did not change for the quiet period, so files that are still written are
+ * not encrypted half. Ready files are handed to the workers through a bounded queue. The files keep their sub folders
+ * and the shard folders of the FileEncryption in the output folder, like with
+ * {@link FileEncryption#encryptFolder(String, String, String, String)}, and replace their encrypted file atomically.
+ * Created by developerCookie on 19.10.26.
+ */
+public class FolderWatcher implements Closeable {
+    /**
+     * The default time a file must not change before it is encrypted.
+     */
+    public static final long DEFAULT_QUIET_PERIOD_MILLIS = 100;
+
+    /**
+     * The number of failures that are kept.
+     */
+    static final int KEPT_FAILURES = 100;
+
+    /**
+     * The default number of ready files that can wait for a worker.
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    /**
+     * Is put into the queue to stop a worker.
+     */
+    private static final Path STOP = Paths.get("");
+
+    /**
+     * Encrypts the files.
+     */
+    private final FileEncryption fileEncryption;
+
+    /**
+     * The folder that is watched.
+     */
+    private final Path sourceFolder;
+
+    /**
+     * The folder the encrypted files are written to.
+     */
+    private final String outputFolder;
+
+    /**
+     * Only files with this extension are encrypted.
+     */
+    private final String fileExtension;
+
+    /**
+     * The key used for the encryption.
+     */
+    private final String key;
+
+    /**
+     * The time a file must not change before it is encrypted.
+     */
+    private long quietPeriodMillis = DEFAULT_QUIET_PERIOD_MILLIS;
+
+    /**
+     * The number of ready files that can wait for a worker.
+     */
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+    /**
+     * Maps the files of the source folder to their encrypted files, created when the watcher starts.
+     */
+    private PathMapper pathMapper;
+
+    /**
+     * The number of worker threads.
+     */
+    private int workerCount = 1;
+
+    /**
+     * The files that changed and are not quiet yet, with the time and state of their last change.
+     */
+    private final Map<Path, Change> pending = new HashMap<Path, Change>();
+
+    /**
+     * The ready files that wait for a worker.
+     */
+    private BlockingQueue<Path> queue;
+
+    /**
+     * The WatchService all folders are registered to.
+     */
+    private WatchService watchService;
+
+    /**
+     * The watched folders by their watch key.
+     */
+    private final Map<WatchKey, Path> watchedFolders = new HashMap<WatchKey, Path>();
+
+    /**
+     * The thread that waits for events and the worker threads.
+     */
+    private final List<Thread> threads = new ArrayList<Thread>();
+
+    /**
+     * The number of files that were encrypted.
+     */
+    private final AtomicLong encryptedFiles = new AtomicLong();
+
+    /**
+     * The last failures of files that could not be encrypted, at most {@value #KEPT_FAILURES}, the oldest first.
+     */
+    private final Deque<Exception> failures = new ArrayDeque<Exception>();
+
+    /**
+     * The number of all failures since the watcher was started.
+     */
+    private final AtomicLong failureCount = new AtomicLong();
+
+    /**
+     * False after the watcher was closed.
+     */
+    private volatile boolean running;
+
+    /**
+     * Files with the <code>fileExtension</code> in the <code>sourceFolder</code> and its sub folders are encrypted with
+     * the <code>key</code> into the <code>outputFolder</code> by the <code>fileEncryption</code>.
+     */
+    public FolderWatcher(FileEncryption fileEncryption, String sourceFolder, String outputFolder, String fileExtension, String key) {
+        this.fileEncryption = fileEncryption;
+        this.sourceFolder = Paths.get(sourceFolder).toAbsolutePath();
+        this.outputFolder = outputFolder;
+        this.fileExtension = fileExtension;
+        this.key = key;
+    }
+
+    /**
+     * Sets the time a file must not change before it is encrypted. Must be called before {@link #start()}.
+     */
+    public void setQuietPeriodMillis(long quietPeriodMillis) {
+        this.quietPeriodMillis = quietPeriodMillis;
+    }
+
+    /**
+     * Sets the number of ready files that can wait for a worker. Must be called before {@link #start()}.
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Sets the number of worker threads. Must be called before {@link #start()}.
+     */
+    public void setWorkerCount(int workerCount) {
+        this.workerCount = workerCount;
+    }
+
+    /**
+     * Registers the source folder with all sub folders and starts the watcher and the workers. Files that exist
+     * already are not encrypted, use {@link FileEncryption#encryptFolder(String, String, String, String)} for them.
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            throw new IllegalStateException("Watcher is already started");
+        }
+        watchService = sourceFolder.getFileSystem().newWatchService();
+        queue = new ArrayBlockingQueue<Path>(queueCapacity);
+        pathMapper = new PathMapper(sourceFolder.toString(), outputFolder, fileEncryption.getShardDepth());
+        registerAll(sourceFolder, false);
+        running = true;
+
+        Thread watchThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watchLoop();
+            }
+        }, "folder-watcher");
+        threads.add(watchThread);
+        for (int i = 0; i < workerCount; i++) {
+            final String owner = "watcher-" + i;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    workLoop(owner);
+                }
+            }, "folder-watcher-worker-" + i));
+        }
+        for (Thread thread : threads) {
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops the watcher. Files that are already in the queue are encrypted before the workers stop.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        watchService.close();
+        try {
+            threads.get(0).join();
+            for (int i = 1; i < threads.size(); i++) {
+                queue.put(STOP);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        threads.clear();
+    }
+
+    /**
+     * Returns the number of files that were encrypted.
+     */
+    public long getEncryptedFiles() {
+        return encryptedFiles.get();
+    }
+
+    /**
+     * Returns the last failures of files that could not be encrypted, at most {@value #KEPT_FAILURES}, the oldest
+     * first. {@link #getFailureCount()} counts all of them.
+     */
+    public List<Exception> getFailures() {
+        synchronized (failures) {
+            return new ArrayList<Exception>(failures);
+        }
+    }
+
+    /**
+     * Returns the number of all failures since the watcher was started.
+     */
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    /**
+     * Records a failure. Only the last {@value #KEPT_FAILURES} failures are kept, so a watcher that runs for a long
+     * time does not grow.
+     */
+    private void addFailure(Exception failure) {
+        failureCount.incrementAndGet();
+        synchronized (failures) {
+            if (failures.size() == KEPT_FAILURES) {
+                failures.removeFirst();
+            }
+            failures.addLast(failure);
+        }
+    }
+
+    /**
+     * Waits for events. Without pending files it blocks until the next event, otherwise it wakes up when the next
+     * pending file becomes quiet.
+     */
+    private void watchLoop() {
+        try {
+            while (running) {
+                long wait = nextDeadline() - System.currentTimeMillis();
+                WatchKey watchKey = pending.isEmpty() ? watchService.take() : watchService.poll(Math.max(wait, 0), TimeUnit.MILLISECONDS);
+                if (watchKey != null) {
+                    handleEvents(watchKey);
+                }
+                enqueueQuietFiles();
+            }
+        } catch (ClosedWatchServiceException ex) {
+            // the watcher was closed
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Handles all events of the <code>watchKey</code>. New folders are registered, changed files become pending.
+     */
+    private void handleEvents(WatchKey watchKey) {
+        Path folder = watchedFolders.get(watchKey);
+        for (WatchEvent<?> event : watchKey.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                rescan();
+                continue;
+            }
+            if (folder == null) {
+                continue;
+            }
+            Path changed = folder.resolve((Path) event.context());
+            if (Files.isDirectory(changed, LinkOption.NOFOLLOW_LINKS)) {
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                    registerQuietly(changed, true);
+                }
+            } else if (matches(changed) && event.kind() != StandardWatchEventKinds.ENTRY_DELETE) {
+                markPending(changed);
+            }
+        }
+        if (!watchKey.reset()) {
+            watchedFolders.remove(watchKey);
+        }
+    }
+
+    /**
+     * Events were lost, so all matching files are checked again.
+     */
+    private void rescan() {
+        registerQuietly(sourceFolder, true);
+    }
+
+    /**
+     * Registers the <code>folder</code> and its sub folders. If <code>markFiles</code> is true the matching files in
+     * them become pending, because they may be created before the folder was registered.
+     */
+    private void registerAll(Path folder, final boolean markFiles) throws IOException {
+        Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                WatchKey watchKey = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                watchedFolders.put(watchKey, dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (markFiles && matches(file)) {
+                    markPending(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException ex) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Registers the <code>folder</code> like {@link #registerAll(Path, boolean)} and records a failure instead of
+     * throwing it.
+     */
+    private void registerQuietly(Path folder, boolean markFiles) {
+        try {
+            registerAll(folder, markFiles);
+        } catch (IOException ex) {
+            addFailure(ex);
+        }
+    }
+
+    /**
+     * Returns true if the <code>file</code> has the file extension to encrypt.
+     */
+    private boolean matches(Path file) {
+        return file.getFileName().toString().endsWith(fileExtension);
+    }
+
+    /**
+     * The <code>file</code> changed, so its quiet period starts again.
+     */
+    private void markPending(Path file) {
+        File plainFile = file.toFile();
+        pending.put(file, new Change(System.currentTimeMillis(), plainFile.length(), plainFile.lastModified()));
+    }
+
+    /**
+     * Returns the time at which the next pending file becomes quiet.
+     */
+    private long nextDeadline() {
+        long deadline = Long.MAX_VALUE;
+        for (Change change : pending.values()) {
+            deadline = Math.min(deadline, change.time + quietPeriodMillis);
+        }
+        return deadline;
+    }
+
+    /**
+     * Moves all quiet files into the queue. A file whose size or modification time changed without an event stays
+     * pending. If the queue is full the file stays pending and is offered again after the next quiet period.
+     */
+    private void enqueueQuietFiles() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Path, Change>> iterator = pending.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Path, Change> entry = iterator.next();
+            Change change = entry.getValue();
+            if (now - change.time < quietPeriodMillis) {
+                continue;
+            }
+            File file = entry.getKey().toFile();
+            if (!file.isFile()) {
+                iterator.remove();
+            } else if (file.length() != change.size || file.lastModified() != change.lastModified) {
+                entry.setValue(new Change(now, file.length(), file.lastModified()));
+            } else if (queue.offer(entry.getKey())) {
+                iterator.remove();
+            } else {
+                entry.setValue(new Change(now, change.size, change.lastModified));
+            }
+        }
+    }
+
+    /**
+     * Encrypts the files of the queue until the watcher is closed. The worker writes through partial files of the
+     * <code>owner</code>, so two workers never write the same partial file.
+     */
+    private void workLoop(String owner) {
+        try {
+            Path file;
+            while ((file = queue.take()) != STOP) {
+                try {
+                    File target = pathMapper.toEncrypted(file.toFile());
+                    pathMapper.createParentFolder(target);
+                    fileEncryption.encryptTo(file.toFile(), target, key, owner);
+                    encryptedFiles.incrementAndGet();
+                } catch (IOException ex) {
+                    addFailure(ex);
+                } catch (RuntimeException ex) {
+                    addFailure(ex);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The time of the last change of a file and the size and modification time it had then.
+     */
+    private static class Change {
+        private final long time;
+        private final long size;
+        private final long lastModified;
+
+        Change(long time, long size, long lastModified) {
+            this.time = time;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+}
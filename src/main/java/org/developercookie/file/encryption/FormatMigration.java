@@ -0,0 +1,233 @@
+package org.developercookie.file.encryption;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.filefilter.TrueFileFilter;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Migrates the single block files of a folder into the segmented format. The old content is decrypted as a stream and
+ * every segment is encrypted at once in memory, so no plain content is written to the disk and every byte is read and
+ * written only once. The files are migrated in parallel. A migrated file replaces the old file atomically, files that
+ * are already segmented or encrypted for recipients are skipped, so a migration that died continues where it stopped
+ * when it is started again. Only files with the encryption extension are migrated; the copies of a mirrored folder do
+ * not have it and stay as they are. The key is checked before the first file is replaced, so a wrong key does not
+ * destroy any file. Created by developerCookie on 19.10.26.
+ */
+class FormatMigration {
+    /**
+     * Encrypts and decrypts the content of the files.
+     */
+    private final ContentTransformer contentTransformer;
+
+    /**
+     * The segment size of the migrated files.
+     */
+    private final int segmentSize;
+
+    /**
+     * The number of files that are migrated at the same time.
+     */
+    private final int threads;
+
+    private final AtomicInteger migratedFiles = new AtomicInteger();
+    private final AtomicInteger skippedFiles = new AtomicInteger();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    FormatMigration(ContentTransformer contentTransformer, int segmentSize, int threads) {
+        this.contentTransformer = contentTransformer;
+        this.segmentSize = segmentSize;
+        this.threads = threads;
+    }
+
+    /**
+     * Migrates all encrypted files of the <code>folder</code> that are encrypted with the <code>key</code>. If the
+     * folder has an integrity manifest and a <code>manifestKey</code> is given, the manifest is updated. The migrated
+     * files are recorded with their digests in a checkpoint journal before they replace the old files, so a migration
+     * that is started again updates the manifest for the files the migration that died already replaced. If the
+     * <code>key</code> is not correct an IllegalKeyException is thrown before any file is changed; a folder without
+     * segmented files and key check file is only checked on a few single block files, each of which accepts a wrong
+     * key about once in 256 tries.
+     */
+    MigrationReport migrateFolder(final String folder, final String key, String manifestKey) throws IOException, IllegalKeyException {
+        long start = System.currentTimeMillis();
+        final IntegrityManifest manifest = manifestKey != null && new File(folder, IntegrityManifest.MANIFEST_FILENAME).exists()
+                ? IntegrityManifest.read(folder, manifestKey) : null;
+        Collection<File> files = FileUtils.listFiles(new File(folder), FileEncryption.ENCRYPTED_FILES, TrueFileFilter.INSTANCE);
+        FolderKeyCheck.verify(folder, filesOfKey(files), key, contentTransformer);
+        String jobId = CheckpointJournal.jobId("migrate", new File(folder).getAbsolutePath(), key, String.valueOf(segmentSize));
+        final CheckpointJournal journal = CheckpointJournal.open(folder, jobId);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (final File oneFile : files) {
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException, IllegalKeyException {
+                        String name = IntegrityManifest.relativeName(new File(folder), oneFile);
+                        CheckpointJournal.Completed completed = journal.getCompleted(name);
+                        byte[] digest;
+                        if (completed != null) {
+                            digest = finishCompleted(oneFile, completed);
+                            skippedFiles.incrementAndGet();
+                        } else if (SegmentedFormat.isSegmented(oneFile.getPath()) || Envelope.isEnvelope(oneFile.getPath())) {
+                            skippedFiles.incrementAndGet();
+                            return null;
+                        } else {
+                            digest = migrateFile(oneFile, key, journal, name);
+                        }
+                        if (manifest != null && digest != null) {
+                            synchronized (manifest) {
+                                manifest.add(name, digest);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                waitFor(result);
+            }
+            if (manifest != null) {
+                manifest.write(folder, manifestKey);
+            }
+            journal.complete();
+        } finally {
+            executor.shutdownNow();
+            journal.close();
+        }
+        return new MigrationReport(migratedFiles.get(), skippedFiles.get(), bytesRead.get(), bytesWritten.get(),
+                System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Returns the <code>files</code> that are encrypted with the key of the folder. Files encrypted for recipients are
+     * left out, their recipients can have other keys.
+     */
+    private static List<File> filesOfKey(Collection<File> files) throws IOException {
+        List<File> filesOfKey = new ArrayList<File>();
+        for (File oneFile : files) {
+            if (!Envelope.isEnvelope(oneFile.getPath())) {
+                filesOfKey.add(oneFile);
+            }
+        }
+        return filesOfKey;
+    }
+
+    /**
+     * Finishes a <code>file</code> that a migration that died completed: if its partial file was not moved into place
+     * yet the move is done now. Returns the digest of the file if it is the recorded one, otherwise null, so a file
+     * that was changed afterwards does not get a valid digest in the manifest.
+     */
+    private static byte[] finishCompleted(File file, CheckpointJournal.Completed completed) throws IOException {
+        File partFile = new File(file.getPath() + FileEncryption.PART_EXTENSION);
+        if (partFile.isFile() && partFile.length() == completed.getSize()) {
+            Files.move(partFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        byte[] digest = IntegrityManifest.digestMapped(file);
+        return IntegrityManifest.toHex(digest).equals(completed.getHexDigest()) ? digest : null;
+    }
+
+    /**
+     * Migrates one <code>file</code> through a synced partial file and returns the digest of the new file. The file is
+     * completed under the <code>name</code> in the <code>journal</code> before the partial file replaces it.
+     */
+    private byte[] migrateFile(File file, String key, CheckpointJournal journal, String name) throws IOException, IllegalKeyException {
+        File partFile = new File(file.getPath() + FileEncryption.PART_EXTENSION);
+        MessageDigest digest = IntegrityManifest.newDigest();
+        long oldLength = file.length();
+        FileOutputStream fileStream = new FileOutputStream(partFile);
+        OutputStream target = new DigestOutputStream(new BufferedOutputStream(fileStream), digest);
+        try {
+            SegmentedFormat.writeHeader(target, segmentSize);
+            SegmentWriter writer = new SegmentWriter(target, contentTransformer, key, 0);
+            if (contentTransformer instanceof StreamingContentTransformer) {
+                writeSegments(file, key, writer);
+            } else {
+                byte[] plain = contentTransformer.decrypt(FileUtils.readFileToByteArray(file), key);
+                int offset = 0;
+                do {
+                    int length = Math.min(segmentSize, plain.length - offset);
+                    byte[] segment = new byte[length];
+                    System.arraycopy(plain, offset, segment, 0, length);
+                    offset += length;
+                    writer.write(segment, length, offset >= plain.length);
+                } while (offset < plain.length);
+            }
+            target.flush();
+            fileStream.getFD().sync();
+            target.close();
+        } finally {
+            IOUtils.closeQuietly(target);
+        }
+        byte[] fileDigest = digest.digest();
+        bytesWritten.addAndGet(partFile.length());
+        journal.done(name, partFile.length(), fileDigest);
+        Files.move(partFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        bytesRead.addAndGet(oldLength);
+        migratedFiles.incrementAndGet();
+        return fileDigest;
+    }
+
+    /**
+     * Decrypts the <code>file</code> as a stream and hands it segment by segment to the <code>writer</code>. One
+     * segment is read ahead to know which segment is the last one.
+     */
+    private void writeSegments(File file, String key, SegmentWriter writer) throws IOException, IllegalKeyException {
+        InputStream source = ((StreamingContentTransformer) contentTransformer).decryptingStream(
+                new BufferedInputStream(new FileInputStream(file)), key);
+        try {
+            byte[] current = new byte[segmentSize];
+            byte[] next = new byte[segmentSize];
+            int currentLength = IOUtils.read(source, current);
+            while (true) {
+                int nextLength = currentLength < segmentSize ? 0 : IOUtils.read(source, next);
+                boolean last = nextLength == 0;
+                writer.write(current, currentLength, last);
+                if (last) {
+                    break;
+                }
+                byte[] swap = current;
+                current = next;
+                next = swap;
+                currentLength = nextLength;
+            }
+        } catch (IOException ex) {
+            if (ex.getCause() instanceof IllegalKeyException) {
+                throw (IllegalKeyException) ex.getCause();
+            }
+            throw ex;
+        } finally {
+            IOUtils.closeQuietly(source);
+        }
+    }
+
+    private static void waitFor(Future<Void> future) throws IOException, IllegalKeyException {
+        try {
+            future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Migration was interrupted");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            if (ex.getCause() instanceof IllegalKeyException) {
+                throw (IllegalKeyException) ex.getCause();
+            }
+            throw new IllegalStateException(ex.getCause());
+        }
+    }
+}
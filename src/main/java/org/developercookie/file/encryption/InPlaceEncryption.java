@@ -0,0 +1,277 @@
+package org.developercookie.file.encryption;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.filefilter.FileFilterUtils;
+import org.apache.commons.io.filefilter.IOFileFilter;
+import org.apache.commons.io.filefilter.SuffixFileFilter;
+import org.apache.commons.io.filefilter.TrueFileFilter;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * Encrypts files where they are, so a folder does not need the free space of a second copy. Every file is replaced by
+ * its encrypted file with the extension {@value FileEncryption#ENCRYPTION_EXTENSION} once the encrypted file is on the
+ * disk.<br/>
+ * A small file is encrypted into a partial file that is synced and moved to the encrypted file before the file is
+ * deleted. A large file is encrypted in the segmented format from its last segment to its first: every segment is
+ * written at its final place in a sparse in-place file, the in-place file is synced and then the file is truncated by
+ * the segment. When the file is empty it is deleted and the in-place file becomes the encrypted file. So a large file
+ * needs one segment of free space instead of its size, on file systems with sparse files.<br/>
+ * The state of a large file is kept by the in-place file and the length of the file, which are changed in this order,
+ * so no separate journal is needed and a job that died continues where it stopped when it is started again with the
+ * same key; the key is checked on the last written segment first. Segments must always encrypt to the same length.
+ * Created by developerCookie on 19.10.26.
+ */
+class InPlaceEncryption {
+    /**
+     * The extension of the file a large file is encrypted into, after the extension of the encrypted file.
+     */
+    static final String IN_PLACE_EXTENSION = FileEncryption.ENCRYPTION_EXTENSION + ".in-place" + FileEncryption.PART_EXTENSION;
+
+    /**
+     * Encrypts the content of the files.
+     */
+    private final ContentTransformer contentTransformer;
+
+    /**
+     * Files of at least this size are encrypted segment by segment.
+     */
+    private final long segmentThreshold;
+
+    /**
+     * The segment size of large files that are not started yet.
+     */
+    private final int segmentSize;
+
+    /**
+     * The number of files that are processed at the same time.
+     */
+    private final int threads;
+
+    InPlaceEncryption(ContentTransformer contentTransformer, long segmentThreshold, int segmentSize, int threads) {
+        this.contentTransformer = contentTransformer;
+        this.segmentThreshold = segmentThreshold;
+        this.segmentSize = segmentSize;
+        this.threads = threads;
+    }
+
+    /**
+     * Encrypts all files of the <code>folder</code> and its sub folders that have the <code>fileExtension</code> in
+     * place, and finishes the large files of a job that died.
+     */
+    void encryptFolder(String folder, String fileExtension, final String key) throws IOException, IllegalKeyException {
+        IOFileFilter fileFilter = FileFilterUtils.or(
+                FileFilterUtils.and(new SuffixFileFilter(fileExtension), FileEncryption.NO_CONTROL_FILES),
+                new SuffixFileFilter(IN_PLACE_EXTENSION));
+        Set<File> sources = new LinkedHashSet<File>();
+        for (File oneFile : FileUtils.listFiles(new File(folder), fileFilter, TrueFileFilter.INSTANCE)) {
+            String path = oneFile.getPath();
+            sources.add(path.endsWith(IN_PLACE_EXTENSION) ? new File(path.substring(0, path.length() - IN_PLACE_EXTENSION.length())) : oneFile);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (final File source : sources) {
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException, IllegalKeyException {
+                        encryptFile(source, key);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                waitFor(result);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Encrypts the <code>source</code> file in place or finishes it, if its encryption was started before.
+     */
+    void encryptFile(File source, String key) throws IOException, IllegalKeyException {
+        File inPlaceFile = new File(source.getPath() + IN_PLACE_EXTENSION);
+        File target = new File(source.getPath() + FileEncryption.ENCRYPTION_EXTENSION);
+        if (inPlaceFile.exists() || source.length() >= segmentThreshold) {
+            encryptLarge(source, inPlaceFile, target, key);
+        } else if (source.isFile()) {
+            encryptSmall(source, target, key);
+        } else {
+            throw new FileNotFoundException("File to encrypt not found: " + source);
+        }
+    }
+
+    /**
+     * Encrypts the small <code>source</code> file as a whole into the <code>target</code> file and deletes it. If the
+     * job dies after the move the file is just encrypted again.
+     */
+    private void encryptSmall(File source, File target, String key) throws IOException {
+        EncryptionEvents.FileEvent event = EncryptionEvents.FileEvent.begin("encrypt", source.getPath());
+        byte[] content = FileUtils.readFileToByteArray(source);
+        byte[] encrypted = contentTransformer.encrypt(content, key);
+        File partFile = new File(target.getPath() + FileEncryption.PART_EXTENSION);
+        FileOutputStream stream = new FileOutputStream(partFile);
+        try {
+            stream.write(encrypted);
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        Files.move(partFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        FileEncryption.syncFolder(target);
+        Files.delete(source.toPath());
+        event.finish(content.length, false);
+    }
+
+    /**
+     * Encrypts the large <code>source</code> file from its last segment to its first into the
+     * <code>inPlaceFile</code>, truncating the source behind every synced segment. An in-place file without its source
+     * is complete, because the source is only deleted when all segments are written.
+     */
+    private void encryptLarge(File source, File inPlaceFile, File target, String key) throws IOException, IllegalKeyException {
+        EncryptionEvents.FileEvent event = EncryptionEvents.FileEvent.begin("encrypt", source.getPath());
+        FileChannel part = FileChannel.open(inPlaceFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        FileChannel plain = source.exists() ? FileChannel.open(source.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE) : null;
+        long encryptedBytes = 0;
+        try {
+            if (plain != null) {
+                int usedSegmentSize;
+                if (part.size() < SegmentedFormat.HEADER_LENGTH) {
+                    usedSegmentSize = segmentSize;
+                    ByteArrayOutputStream header = new ByteArrayOutputStream();
+                    SegmentedFormat.writeHeader(header, usedSegmentSize);
+                    part.truncate(0);
+                    writeFully(part, header.toByteArray(), 0);
+                    part.force(true);
+                } else {
+                    usedSegmentSize = SegmentedFormat.readHeader(new ByteArrayInputStream(readFully(part, 0, SegmentedFormat.HEADER_LENGTH)));
+                }
+                encryptedBytes = encryptSegments(source, plain, part, usedSegmentSize, key);
+                plain.close();
+                Files.delete(source.toPath());
+            }
+            part.close();
+        } finally {
+            IOUtils.closeQuietly(plain);
+            IOUtils.closeQuietly(part);
+            event.finish(encryptedBytes, true);
+        }
+        Files.move(inPlaceFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        FileEncryption.syncFolder(target);
+    }
+
+    /**
+     * Encrypts the segments of the <code>plain</code> file that are left, the last first, and returns the number of
+     * plain bytes that were encrypted. A segment is only cut from the plain file after its record is synced in the
+     * <code>part</code> file. Every full segment has a record of the same length, so the records are written at their
+     * final offset and the records of later segments fix the index of the last segment. If a job that died wrote
+     * records already, the lowest of them must decrypt with the <code>key</code>, otherwise an IllegalKeyException is
+     * thrown.
+     */
+    private long encryptSegments(File source, FileChannel plain, FileChannel part, int usedSegmentSize, String key) throws IOException, IllegalKeyException {
+        long recordLength = SegmentedFormat.RECORD_HEADER_LENGTH
+                + contentTransformer.encrypt(new byte[usedSegmentSize], SegmentedFormat.segmentKey(key, 0, false)).length;
+        long plainLength = plain.size();
+        long index = (plainLength - 1) / usedSegmentSize;
+        long lastIndex = Math.max(index, (part.size() - SegmentedFormat.HEADER_LENGTH - 1) / recordLength);
+        if (plainLength > 0 && index < lastIndex && plainLength != (index + 1) * usedSegmentSize) {
+            throw new IOException("File was changed while it was encrypted in place: " + source);
+        }
+        if (index < lastIndex) {
+            checkKey(part, index + 1, recordLength, key);
+        }
+        long encryptedBytes = plainLength;
+        while (plainLength > 0) {
+            long offset = index * usedSegmentSize;
+            byte[] segment = readFully(plain, offset, (int) (plainLength - offset));
+            boolean last = index == lastIndex;
+            ByteArrayOutputStream record = new ByteArrayOutputStream((int) recordLength);
+            SegmentWriter writer = new SegmentWriter(record, contentTransformer, key, index);
+            writer.write(segment, segment.length, last);
+            writer.flush();
+            if (last ? record.size() > recordLength : record.size() != recordLength) {
+                throw new IllegalStateException("Segments are not encrypted to the same length, in place encryption is not possible");
+            }
+            writeFully(part, record.toByteArray(), SegmentedFormat.HEADER_LENGTH + index * recordLength);
+            part.force(true);
+            plain.truncate(offset);
+            plain.force(true);
+            plainLength = offset;
+            index--;
+        }
+        return encryptedBytes;
+    }
+
+    /**
+     * Decrypts the record of the segment with the <code>index</code> in the <code>part</code> file. An
+     * IllegalKeyException is thrown if it was not encrypted with the <code>key</code>. The plain length of the record is
+     * compared too, so a wrong key that passes the padding check of a block cipher is found as well.
+     */
+    private void checkKey(FileChannel part, long index, long recordLength, String key) throws IOException, IllegalKeyException {
+        long offset = SegmentedFormat.HEADER_LENGTH + index * recordLength;
+        byte[] content = readFully(part, offset, (int) Math.min(recordLength, part.size() - offset));
+        DataInputStream record = new DataInputStream(new ByteArrayInputStream(content));
+        boolean last = (record.readByte() & SegmentedFormat.LAST_SEGMENT) != 0;
+        long foundIndex = record.readLong();
+        int plainLength = record.readInt();
+        int encryptedLength = record.readInt();
+        if (foundIndex != index || encryptedLength < 0 || encryptedLength > content.length - SegmentedFormat.RECORD_HEADER_LENGTH) {
+            throw new IOException("In place file is damaged at segment " + index);
+        }
+        byte[] encrypted = new byte[encryptedLength];
+        record.readFully(encrypted);
+        if (contentTransformer.decrypt(encrypted, SegmentedFormat.segmentKey(key, index, last)).length != plainLength) {
+            throw new IllegalKeyException("Key is not the key the in place encryption was started with");
+        }
+    }
+
+    private static byte[] readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("File ended before " + (position + length));
+            }
+        }
+        return buffer.array();
+    }
+
+    private static void writeFully(FileChannel channel, byte[] content, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private static void waitFor(Future<Void> future) throws IOException, IllegalKeyException {
+        try {
+            future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("In place encryption was interrupted");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            if (ex.getCause() instanceof IllegalKeyException) {
+                throw (IllegalKeyException) ex.getCause();
+            }
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new IllegalStateException(ex.getCause());
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package org.developercookie.file.encryption;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.filefilter.SuffixFileFilter;
+import org.apache.commons.io.filefilter.TrueFileFilter;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A list of SHA-256 digests of the encrypted files in an output folder, signed with a HMAC. The manifest can be checked
+ * without the encryption key, so the output folder can be audited without decrypting it. Created by developerCookie on
+ * 19.10.26.
+ */
+public class IntegrityManifest {
+    /**
+     * The name of the manifest file inside of the output folder.
+     */
+    public static final String MANIFEST_FILENAME = ".integrity-manifest";
+
+    /**
+     * The digest algorithm used for the files.
+     */
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    /**
+     * The algorithm used for signing the manifest.
+     */
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    /**
+     * The line of the manifest that carries the signature starts with this prefix.
+     */
+    private static final String SIGNATURE_PREFIX = "# signature ";
+
+    /**
+     * Files are mapped in windows of this size, because a single mapping can not exceed 2GB.
+     */
+    private static final long MAPPING_WINDOW = 64L * 1024 * 1024;
+
+    /**
+     * The hex encoded digests by the filename relative to the output folder. Sorted, so the manifest is stable.
+     */
+    private final SortedMap<String, String> digests = Collections.synchronizedSortedMap(new TreeMap<String, String>());
+
+    /**
+     * Creates a new digest that is used while an encrypted file is written.
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("This must not be happend");
+        }
+    }
+
+    /**
+     * Adds the <code>digest</code> of the file with the given <code>filename</code>. The filename is relative to the
+     * output folder.
+     */
+    public void add(String filename, byte[] digest) {
+        digests.put(filename, toHex(digest));
+    }
+
+    /**
+     * Adds the hex encoded digest of the file with the given <code>filename</code>, for example a digest that was
+     * recorded in a checkpoint journal.
+     */
+    void addHexDigest(String filename, String hexDigest) {
+        digests.put(filename, hexDigest);
+    }
+
+    /**
+     * Returns true if the manifest contains no file.
+     */
+    public boolean isEmpty() {
+        return digests.isEmpty();
+    }
+
+    /**
+     * Writes the manifest into the <code>folder</code> and signs it with the <code>manifestKey</code>. The file is
+     * first written to a temporary file and then renamed, so an existing manifest is never half written.
+     */
+    public void write(String folder, String manifestKey) throws IOException {
+        StringBuilder buffer = new StringBuilder();
+        synchronized (digests) {
+            for (Map.Entry<String, String> entry : digests.entrySet()) {
+                buffer.append(entry.getValue()).append("  ").append(entry.getKey()).append('\n');
+            }
+        }
+        String content = buffer.toString();
+        String signature = toHex(sign(content, manifestKey));
+
+        File manifestFile = new File(folder, MANIFEST_FILENAME);
+        File tempFile = new File(folder, MANIFEST_FILENAME + ".tmp");
+        FileUtils.writeStringToFile(tempFile, content + SIGNATURE_PREFIX + signature + '\n', "UTF-8");
+        if (!tempFile.renameTo(manifestFile)) {
+            FileUtils.deleteQuietly(manifestFile);
+            FileUtils.moveFile(tempFile, manifestFile);
+        }
+    }
+
+    /**
+     * Reads the manifest from the given <code>folder</code>. If the signature does not match to the
+     * <code>manifestKey</code> an IllegalKeyException will be thrown, either the key is wrong or the manifest was
+     * changed. If there is no manifest at all an empty one will be returned.
+     */
+    public static IntegrityManifest read(String folder, String manifestKey) throws IOException, IllegalKeyException {
+        IntegrityManifest manifest = new IntegrityManifest();
+        File manifestFile = new File(folder, MANIFEST_FILENAME);
+        if (!manifestFile.exists()) {
+            return manifest;
+        }
+
+        String content = FileUtils.readFileToString(manifestFile, "UTF-8");
+        int signatureStart = content.lastIndexOf(SIGNATURE_PREFIX);
+        if (signatureStart < 0) {
+            throw new IllegalKeyException("Manifest is not signed");
+        }
+        String signedContent = content.substring(0, signatureStart);
+        String signature = content.substring(signatureStart + SIGNATURE_PREFIX.length()).trim();
+        if (!MessageDigest.isEqual(toHex(sign(signedContent, manifestKey)).getBytes("UTF-8"), signature.getBytes("UTF-8"))) {
+            throw new IllegalKeyException("Signature of the manifest does not match");
+        }
+
+        for (String line : signedContent.split("\n")) {
+            if (line.length() > 0) {
+                int separator = line.indexOf("  ");
+                manifest.digests.put(line.substring(separator + 2), line.substring(0, separator));
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Checks all files of the manifest against the files in the <code>folder</code>. The files are hashed in parallel
+     * on all cores and read memory mapped. The result contains the names of all files that are missing, have a
+     * different digest or are encrypted files not listed in the manifest. If the folder is intact the list is empty.
+     */
+    public List<String> verify(final String folder) throws IOException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Map<String, Future<String>> pending = new TreeMap<String, Future<String>>();
+        Map<String, String> expected;
+        synchronized (digests) {
+            expected = new TreeMap<String, String>(digests);
+        }
+        try {
+            for (final String filename : expected.keySet()) {
+                pending.put(filename, executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws IOException {
+                        File file = new File(folder, filename);
+                        return file.isFile() ? toHex(digestMapped(file)) : null;
+                    }
+                }));
+            }
+
+            List<String> failures = new ArrayList<String>();
+            for (Map.Entry<String, Future<String>> entry : pending.entrySet()) {
+                String actual = waitFor(entry.getValue());
+                if (!expected.get(entry.getKey()).equals(actual)) {
+                    failures.add(entry.getKey());
+                }
+            }
+            for (String filename : listEncryptedFiles(folder)) {
+                if (!expected.containsKey(filename)) {
+                    failures.add(filename);
+                }
+            }
+            return failures;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns the relative names of all encrypted files in the <code>folder</code>.
+     */
+    private static List<String> listEncryptedFiles(String folder) {
+        File base = new File(folder);
+        Collection<File> foundFiles = FileUtils.listFiles(base, new SuffixFileFilter(FileEncryption.ENCRYPTION_EXTENSION), TrueFileFilter.INSTANCE);
+        List<String> result = new ArrayList<String>();
+        for (File oneFile : foundFiles) {
+            result.add(relativeName(base, oneFile));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the path of <code>file</code> relative to the folder <code>base</code>, separated by '/'.
+     */
+    static String relativeName(File base, File file) {
+        return base.getAbsoluteFile().toURI().relativize(file.getAbsoluteFile().toURI()).getPath();
+    }
+
+    /**
+     * Calculates the digest of the <code>file</code> by mapping it window by window into the memory.
+     */
+    static byte[] digestMapped(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            long size = channel.size();
+            for (long position = 0; position < size; position += MAPPING_WINDOW) {
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAPPING_WINDOW, size - position));
+                digest.update(window);
+            }
+        } finally {
+            IOUtils.closeQuietly(randomAccessFile);
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Waits for the result of the <code>future</code> and unwraps an IOException of the task.
+     */
+    private static String waitFor(Future<String> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Verification was interrupted");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IllegalStateException(ex.getCause());
+        }
+    }
+
+    /**
+     * Calculates the HMAC of the <code>content</code> with the given <code>manifestKey</code>.
+     */
+    private static byte[] sign(String content, String manifestKey) throws UnsupportedEncodingException {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(manifestKey.getBytes("UTF-8"), MAC_ALGORITHM));
+            return mac.doFinal(content.getBytes("UTF-8"));
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Converts the <code>bytes</code> into a lower case hex string.
+     */
+    static String toHex(byte[] bytes) {
+        StringBuilder buffer = new StringBuilder(bytes.length * 2);
+        for (byte oneByte : bytes) {
+            buffer.append(Character.forDigit((oneByte >> 4) & 0xF, 16));
+            buffer.append(Character.forDigit(oneByte & 0xF, 16));
+        }
+        return buffer.toString();
+    }
+}
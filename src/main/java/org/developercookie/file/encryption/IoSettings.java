@@ -0,0 +1,106 @@
+package org.developercookie.file.encryption;
+
+import java.io.*;
+
+/**
+ * The buffer sizes and the read-ahead used for the file I/O of a run. Small buffers are fine for a local SSD or tmpfs,
+ * network mounts and disks need larger ones to get their throughput. The read buffer is the size of every read from a
+ * source file, the write buffer collects small writes into large ones. With a read-ahead, a background thread reads the
+ * next chunks of a source file while the current chunk is encrypted. Use {@link IoTuner} to find good settings for a
+ * source and a target folder. Created by developerCookie on 19.10.26.
+ */
+public class IoSettings {
+    /**
+     * The default buffer size, the one of the JDK streams.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    /**
+     * The settings that behave like the plain JDK streams: default buffers and no read-ahead.
+     */
+    public static final IoSettings DEFAULT = new IoSettings(DEFAULT_BUFFER_SIZE, DEFAULT_BUFFER_SIZE, 0);
+
+    /**
+     * The size of every read from a source file.
+     */
+    private final int readBufferSize;
+
+    /**
+     * The size to which writes to a target file are collected.
+     */
+    private final int writeBufferSize;
+
+    /**
+     * The number of chunks of the read buffer size that are read ahead, 0 for no read-ahead.
+     */
+    private final int readAhead;
+
+    /**
+     * Source files are read in chunks of <code>readBufferSize</code> bytes, of which <code>readAhead</code> chunks are
+     * read ahead in the background. Writes are collected to <code>writeBufferSize</code> bytes.
+     */
+    public IoSettings(int readBufferSize, int writeBufferSize, int readAhead) {
+        if (readBufferSize <= 0 || writeBufferSize <= 0 || readAhead < 0) {
+            throw new IllegalArgumentException("Buffer sizes must be positive and the read-ahead must not be negative");
+        }
+        this.readBufferSize = readBufferSize;
+        this.writeBufferSize = writeBufferSize;
+        this.readAhead = readAhead;
+    }
+
+    public int getReadBufferSize() {
+        return readBufferSize;
+    }
+
+    public int getWriteBufferSize() {
+        return writeBufferSize;
+    }
+
+    public int getReadAhead() {
+        return readAhead;
+    }
+
+    /**
+     * Opens the <code>file</code> for reading with the read buffer and the read-ahead of these settings.
+     */
+    public InputStream openInput(File file) throws IOException {
+        return openInput(file, 0);
+    }
+
+    /**
+     * Opens the <code>file</code> for reading from the <code>offset</code> on with the read buffer and the read-ahead
+     * of these settings.
+     */
+    public InputStream openInput(File file, long offset) throws IOException {
+        return openInput(file, offset, null);
+    }
+
+    /**
+     * Opens the <code>file</code> for reading from the <code>offset</code> on like {@link #openInput(File, long)}. If a
+     * <code>rateLimiter</code> is given every read from the disk is throttled by it.
+     */
+    public InputStream openInput(File file, long offset, RateLimiter rateLimiter) throws IOException {
+        FileInputStream fileStream = new FileInputStream(file);
+        if (offset > 0) {
+            fileStream.getChannel().position(offset);
+        }
+        InputStream stream = rateLimiter != null ? new ThrottledInputStream(fileStream, rateLimiter) : fileStream;
+        if (readAhead > 0) {
+            return new ReadAheadInputStream(stream, readBufferSize, readAhead);
+        }
+        return new BufferedInputStream(stream, readBufferSize);
+    }
+
+    /**
+     * Wraps the <code>out</code> stream, so that writes are collected to the write buffer size.
+     */
+    public OutputStream buffer(OutputStream out) {
+        return new BufferedOutputStream(out, writeBufferSize);
+    }
+
+    @Override
+    public String toString() {
+        return "read buffer " + readBufferSize + " bytes, write buffer " + writeBufferSize + " bytes, read-ahead "
+                + readAhead + " chunks";
+    }
+}
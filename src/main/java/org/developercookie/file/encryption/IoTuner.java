@@ -0,0 +1,203 @@
+package org.developercookie.file.encryption;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.filefilter.FileFilterUtils;
+import org.apache.commons.io.filefilter.SuffixFileFilter;
+import org.apache.commons.io.filefilter.TrueFileFilter;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * Finds IoSettings for a source and a target folder by a short probe. Every candidate buffer size writes a probe file
+ * into the target folder, synced to the device, and reads a region of the largest files of the source folder and its
+ * sub folders that no other probe reads, so the reads do not come from the page cache of an earlier probe. The
+ * read-ahead is probed with a digest as stand-in for the encryption, because it only helps if the consumer is busy.
+ * If the source files are too small for a region per probe, the read settings are not tuned. The smallest buffer size
+ * that reaches nearly the best throughput is chosen. Created by developerCookie on 19.10.26.
+ */
+public class IoTuner {
+    /**
+     * The default number of bytes every candidate reads and writes.
+     */
+    public static final int DEFAULT_PROBE_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * The buffer sizes that are probed.
+     */
+    private static final int[] CANDIDATES = {8 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024, 4 * 1024 * 1024};
+
+    /**
+     * The read-ahead that is probed against no read-ahead.
+     */
+    private static final int PROBED_READ_AHEAD = 4;
+
+    /**
+     * A smaller buffer is preferred if it reaches this share of the best throughput.
+     */
+    private static final double GOOD_ENOUGH = 0.95;
+
+    /**
+     * The name of the probe file in the target folder. It ends with the partial extension, so it is never taken for an
+     * encrypted file.
+     */
+    private static final String PROBE_FILENAME = ".io-probe" + FileEncryption.PART_EXTENSION;
+
+    /**
+     * The number of bytes every candidate reads and writes.
+     */
+    private final int probeSize;
+
+    public IoTuner() {
+        this(DEFAULT_PROBE_SIZE);
+    }
+
+    public IoTuner(int probeSize) {
+        this.probeSize = probeSize;
+    }
+
+    /**
+     * Probes the <code>sourceFolder</code> and the <code>targetFolder</code> and returns the settings with the best
+     * throughput. The probe takes a few reads and writes of the probe size per candidate. Without enough source content
+     * the read buffer size stays at the default and no read-ahead is used.
+     */
+    public IoSettings tune(String sourceFolder, String targetFolder) throws IOException {
+        File probeFile = new File(targetFolder, PROBE_FILENAME);
+        try {
+            byte[] content = new byte[probeSize];
+            new Random(42).nextBytes(content);
+            double[] writeRates = new double[CANDIDATES.length];
+            for (int i = 0; i < CANDIDATES.length; i++) {
+                writeRates[i] = probeWrite(probeFile, content, CANDIDATES[i]);
+            }
+
+            int writeBufferSize = CANDIDATES[choose(writeRates)];
+
+            List<Region> regions = unreadRegions(new File(sourceFolder), probeSize, CANDIDATES.length + 2);
+            if (regions.size() < CANDIDATES.length + 2) {
+                return new IoSettings(IoSettings.DEFAULT_BUFFER_SIZE, writeBufferSize, 0);
+            }
+            double[] readRates = new double[CANDIDATES.length];
+            for (int i = 0; i < CANDIDATES.length; i++) {
+                Region region = regions.get(i);
+                readRates[i] = probeRead(region.file, region.offset, new IoSettings(CANDIDATES[i], IoSettings.DEFAULT_BUFFER_SIZE, 0));
+            }
+            int readBufferSize = CANDIDATES[choose(readRates)];
+
+            Region region = regions.get(CANDIDATES.length);
+            double withoutReadAhead = probeRead(region.file, region.offset, new IoSettings(readBufferSize, writeBufferSize, 0));
+            region = regions.get(CANDIDATES.length + 1);
+            double withReadAhead = probeRead(region.file, region.offset, new IoSettings(readBufferSize, writeBufferSize, PROBED_READ_AHEAD));
+            return new IoSettings(readBufferSize, writeBufferSize, withReadAhead > withoutReadAhead ? PROBED_READ_AHEAD : 0);
+        } finally {
+            probeFile.delete();
+        }
+    }
+
+    /**
+     * Returns the index of the smallest candidate that reaches nearly the best rate.
+     */
+    private static int choose(double[] rates) {
+        double best = 0;
+        for (double rate : rates) {
+            best = Math.max(best, rate);
+        }
+        for (int i = 0; i < rates.length; i++) {
+            if (rates[i] >= best * GOOD_ENOUGH) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Writes the <code>content</code> in pieces of 4 KB through a buffer of <code>bufferSize</code> and syncs it.
+     * Returns the rate in bytes per nanosecond.
+     */
+    static double probeWrite(File file, byte[] content, int bufferSize) throws IOException {
+        long start = System.nanoTime();
+        FileOutputStream fileStream = new FileOutputStream(file);
+        OutputStream stream = new BufferedOutputStream(fileStream, bufferSize);
+        try {
+            for (int offset = 0; offset < content.length; offset += 4096) {
+                stream.write(content, offset, Math.min(4096, content.length - offset));
+            }
+            stream.flush();
+            fileStream.getFD().sync();
+        } finally {
+            IOUtils.closeQuietly(stream);
+        }
+        return (double) content.length / (System.nanoTime() - start);
+    }
+
+    /**
+     * Reads up to the probe size of the <code>file</code> from the <code>offset</code> on with the
+     * <code>settings</code> and digests it. Returns the rate in bytes per nanosecond.
+     */
+    private double probeRead(File file, long offset, IoSettings settings) throws IOException {
+        return probeRead(file, offset, settings, probeSize);
+    }
+
+    /**
+     * Reads up to <code>probeSize</code> bytes of the <code>file</code> like
+     * {@link #probeRead(File, long, IoSettings)}.
+     */
+    static double probeRead(File file, long offset, IoSettings settings, int probeSize) throws IOException {
+        MessageDigest digest = IntegrityManifest.newDigest();
+        byte[] buffer = new byte[64 * 1024];
+        long start = System.nanoTime();
+        InputStream stream = settings.openInput(file, Math.min(offset, file.length()));
+        long total = 0;
+        try {
+            int read;
+            while (total < probeSize && (read = stream.read(buffer, 0, (int) Math.min(buffer.length, probeSize - total))) > 0) {
+                digest.update(buffer, 0, read);
+                total += read;
+            }
+        } finally {
+            IOUtils.closeQuietly(stream);
+        }
+        return (double) Math.max(total, 1) / (System.nanoTime() - start);
+    }
+
+    /**
+     * Returns up to <code>count</code> different regions of <code>probeSize</code> bytes in the files of the
+     * <code>folder</code> and its sub folders, the largest files first. Partial files are left out.
+     */
+    static List<Region> unreadRegions(File folder, int probeSize, int count) {
+        List<Region> regions = new ArrayList<Region>();
+        if (!folder.isDirectory()) {
+            return regions;
+        }
+        List<File> files = new ArrayList<File>(FileUtils.listFiles(folder,
+                FileFilterUtils.notFileFilter(new SuffixFileFilter(FileEncryption.PART_EXTENSION)), TrueFileFilter.INSTANCE));
+        Collections.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File file1, File file2) {
+                return Long.compare(file2.length(), file1.length());
+            }
+        });
+        for (File file : files) {
+            long length = file.length();
+            for (long offset = 0; offset + probeSize <= length && regions.size() < count; offset += probeSize) {
+                regions.add(new Region(file, offset));
+            }
+        }
+        return regions;
+    }
+
+    /**
+     * A region of a file that a probe reads.
+     */
+    static class Region {
+        final File file;
+        final long offset;
+
+        Region(File file, long offset) {
+            this.file = file;
+            this.offset = offset;
+        }
+    }
+}
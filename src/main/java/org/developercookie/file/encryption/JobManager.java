@@ -0,0 +1,412 @@
+package org.developercookie.file.encryption;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs several encrypt and decrypt folder jobs at the same time on one shared pool of workers. The workers take the
+ * files of all jobs from one scheduler: jobs of a higher priority always go first, so a small interactive restore
+ * overtakes the bulk work that is queued already. Jobs of the same priority share the workers by their weight; a job
+ * with twice the weight gets twice the bytes. A job that gets files late does not get the share it missed, so it can
+ * not starve the other jobs afterwards.<br/>
+ * Every job reports how long it waited in the queue and its throughput. The checkpoint journal and the rate limiter of
+ * the FileEncryption work as for a single job. Created by developerCookie on 19.10.26.
+ */
+public class JobManager {
+    /**
+     * The priority for bulk work like nightly backups.
+     */
+    public static final int PRIORITY_BULK = 0;
+
+    /**
+     * The priority for interactive work somebody waits for.
+     */
+    public static final int PRIORITY_INTERACTIVE = 10;
+
+    /**
+     * The cost of a file in bytes that is added to its size, so many small files are not for free.
+     */
+    private static final long FILE_COST = 64 * 1024;
+
+    /**
+     * Runs the folder jobs.
+     */
+    private final FileEncryption fileEncryption;
+
+    /**
+     * The shared workers that process the files.
+     */
+    private final List<Thread> workers = new ArrayList<Thread>();
+
+    /**
+     * Lists the files of the jobs and waits for them.
+     */
+    private final ExecutorService coordinators;
+
+    /**
+     * The jobs that have queued files.
+     */
+    private final List<Job> activeJobs = new ArrayList<Job>();
+
+    /**
+     * The virtual time of the scheduler: the weighted cost of the last dispatched file. A job that becomes active
+     * starts from here.
+     */
+    private double virtualTime;
+
+    /**
+     * False after the manager was shut down.
+     */
+    private boolean running = true;
+
+    /**
+     * The jobs are run by the <code>fileEncryption</code> with <code>workerCount</code> shared workers.
+     */
+    public JobManager(FileEncryption fileEncryption, int workerCount) {
+        if (workerCount <= 0) {
+            throw new IllegalArgumentException("At least one worker is needed");
+        }
+        this.fileEncryption = fileEncryption;
+        this.coordinators = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "job-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        for (int i = 0; i < workerCount; i++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, "job-worker-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+    }
+
+    /**
+     * Queues a job that encrypts the <code>folderToEncrypt</code> like
+     * {@link FileEncryption#encryptFolder(String, String, String, String, String)}. Files of jobs with a higher
+     * <code>priority</code> go first, jobs of the same priority share the workers by their <code>weight</code>.
+     */
+    public Job submitEncrypt(final String folderToEncrypt, final String outputFolder, final String fileExtension, final String key, final String manifestKey, int priority, int weight) {
+        final Job job = new Job("encrypt " + folderToEncrypt, priority, weight);
+        submit(job, new JobBody() {
+            @Override
+            public void run() throws IOException {
+                fileEncryption.encryptFolder(folderToEncrypt, outputFolder, fileExtension, key, manifestKey, job);
+            }
+        });
+        return job;
+    }
+
+    /**
+     * Queues a job that decrypts the <code>folderToDecrypt</code> like
+     * {@link FileEncryption#decryptFolder(String, String, String)}. Files of jobs with a higher <code>priority</code>
+     * go first, jobs of the same priority share the workers by their <code>weight</code>.
+     */
+    public Job submitDecrypt(final String folderToDecrypt, final String outputFolder, final String key, int priority, int weight) {
+        final Job job = new Job("decrypt " + folderToDecrypt, priority, weight);
+        submit(job, new JobBody() {
+            @Override
+            public void run() throws IOException, IllegalKeyException {
+                fileEncryption.decryptFolder(folderToDecrypt, outputFolder, key, job);
+            }
+        });
+        return job;
+    }
+
+    /**
+     * Stops the workers. Files that are processed finish, queued files are not started any more and their jobs wait
+     * until they are interrupted.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        coordinators.shutdownNow();
+    }
+
+    private void submit(final Job job, final JobBody body) {
+        synchronized (this) {
+            if (!running) {
+                throw new IllegalStateException("The job manager was shut down");
+            }
+        }
+        coordinators.execute(new Runnable() {
+            @Override
+            public void run() {
+                Throwable failure = null;
+                try {
+                    body.run();
+                } catch (Throwable ex) {
+                    failure = ex;
+                }
+                job.finish(failure);
+            }
+        });
+    }
+
+    /**
+     * The loop of a worker: takes the next file and processes it.
+     */
+    private void work() {
+        while (true) {
+            Job job;
+            FileTaskBatch.Task task;
+            synchronized (this) {
+                while (running && activeJobs.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+                if (!running) {
+                    return;
+                }
+                job = nextJob();
+                task = job.tasks.poll();
+                virtualTime = job.virtualTime;
+                job.virtualTime += (double) (task.getSize() + FILE_COST) / job.weight;
+                if (job.tasks.isEmpty()) {
+                    activeJobs.remove(job);
+                }
+            }
+            job.fileStarted();
+            task.run();
+            job.fileFinished(task.getSize());
+        }
+    }
+
+    /**
+     * Returns the active job with the highest priority and, among them, the lowest virtual time.
+     */
+    private Job nextJob() {
+        Job next = null;
+        for (Job job : activeJobs) {
+            if (next == null || job.priority > next.priority
+                    || (job.priority == next.priority && job.virtualTime < next.virtualTime)) {
+                next = job;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Queues the tasks of the <code>batch</code> of the <code>job</code>, the largest files first.
+     */
+    private synchronized void queue(Job job, FileTaskBatch batch) {
+        if (batch.getTasks().isEmpty()) {
+            return;
+        }
+        List<FileTaskBatch.Task> largestFirst = new ArrayList<FileTaskBatch.Task>(batch.getTasks());
+        Collections.sort(largestFirst, new Comparator<FileTaskBatch.Task>() {
+            @Override
+            public int compare(FileTaskBatch.Task first, FileTaskBatch.Task second) {
+                return Long.compare(second.getSize(), first.getSize());
+            }
+        });
+        for (FileTaskBatch.Task task : largestFirst) {
+            job.tasks.add(task);
+        }
+        if (!activeJobs.contains(job)) {
+            job.virtualTime = Math.max(job.virtualTime, virtualTime);
+            activeJobs.add(job);
+        }
+        notifyAll();
+    }
+
+    /**
+     * The work of a job, run by a coordinator thread.
+     */
+    private interface JobBody {
+        void run() throws IOException, IllegalKeyException;
+    }
+
+    /**
+     * A queued or running folder job with its statistics.
+     */
+    public class Job implements FileTaskScheduler {
+        private final String description;
+        private final int priority;
+        private final int weight;
+
+        /**
+         * The files of the job that were not started yet.
+         */
+        private final Deque<FileTaskBatch.Task> tasks = new ArrayDeque<FileTaskBatch.Task>();
+
+        /**
+         * The weighted cost of the files that were dispatched, guarded by the JobManager.
+         */
+        private double virtualTime;
+
+        private final long submitted = System.nanoTime();
+        private long firstStarted;
+        private long finishedAt;
+        private int files;
+        private long bytes;
+
+        /**
+         * The number of files that are processed at the moment.
+         */
+        private int running;
+        private boolean done;
+        private Throwable failure;
+
+        Job(String description, int priority, int weight) {
+            if (weight <= 0) {
+                throw new IllegalArgumentException("The weight must be positive");
+            }
+            this.description = description;
+            this.priority = priority;
+            this.weight = weight;
+        }
+
+        @Override
+        public void schedule(FileTaskBatch batch) {
+            queue(this, batch);
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        /**
+         * Waits until the job is finished and throws its failure, if it failed.
+         */
+        public void await() throws IOException, IllegalKeyException {
+            Throwable jobFailure;
+            synchronized (this) {
+                try {
+                    while (!done) {
+                        wait();
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Waiting for the job was interrupted");
+                }
+                jobFailure = failure;
+            }
+            if (jobFailure instanceof IOException) {
+                throw (IOException) jobFailure;
+            }
+            if (jobFailure instanceof IllegalKeyException) {
+                throw (IllegalKeyException) jobFailure;
+            }
+            if (jobFailure instanceof RuntimeException) {
+                throw (RuntimeException) jobFailure;
+            }
+            if (jobFailure instanceof Error) {
+                throw (Error) jobFailure;
+            }
+        }
+
+        public synchronized boolean isDone() {
+            return done;
+        }
+
+        /**
+         * Returns the time from the submit until the first file started, or until now if no file started yet. A job
+         * without files to process waits until it finished.
+         */
+        public synchronized long getQueueWaitMillis() {
+            long end = firstStarted != 0 ? firstStarted : done ? finishedAt : System.nanoTime();
+            return (end - submitted) / 1000000;
+        }
+
+        /**
+         * Returns the number of processed files.
+         */
+        public synchronized int getFiles() {
+            return files;
+        }
+
+        /**
+         * Returns the size of the processed source files.
+         */
+        public synchronized long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Returns the time from the submit until the job finished, or until now if it still runs.
+         */
+        public synchronized long getElapsedMillis() {
+            return ((done ? finishedAt : System.nanoTime()) - submitted) / 1000000;
+        }
+
+        /**
+         * Returns the throughput in megabytes of the source files per second since the first file started.
+         */
+        public synchronized double getThroughputMegabytesPerSecond() {
+            if (firstStarted == 0) {
+                return 0;
+            }
+            long nanos = (done ? finishedAt : System.nanoTime()) - firstStarted;
+            return nanos == 0 ? 0 : bytes / (1024.0 * 1024.0) / (nanos / 1e9);
+        }
+
+        private synchronized void fileStarted() {
+            if (firstStarted == 0) {
+                firstStarted = System.nanoTime();
+            }
+            running++;
+        }
+
+        private synchronized void fileFinished(long size) {
+            files++;
+            bytes += size;
+            running--;
+            notifyAll();
+        }
+
+        /**
+         * Marks the job as done. The folder job returns as soon as its last file is processed, so this waits until the
+         * workers counted the last files.
+         */
+        private synchronized void finish(Throwable jobFailure) {
+            while (running > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            failure = jobFailure;
+            finishedAt = System.nanoTime();
+            done = true;
+            notifyAll();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s (priority %d, weight %d): %d files, %d bytes, waited %d ms, %.1f MB/s",
+                    description, priority, weight, getFiles(), getBytes(), getQueueWaitMillis(),
+                    getThroughputMegabytesPerSecond());
+        }
+    }
+}
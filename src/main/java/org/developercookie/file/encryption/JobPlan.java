@@ -0,0 +1,116 @@
+package org.developercookie.file.encryption;
+
+/**
+ * The result of a dry run of a folder job by the {@link JobPlanner}: what the job would process, how much it would
+ * write and how long it would probably take. Nothing of it is exact; the sizes follow the format and the measured
+ * expansion of the ContentTransformer, the duration follows the calibration. Created by developerCookie on 19.10.26.
+ */
+public class JobPlan {
+    private final int files;
+    private final long bytes;
+    private final int skippedFiles;
+    private final long skippedBytes;
+    private final int overwrittenFiles;
+    private final long expectedOutputBytes;
+    private final long availableBytes;
+    private final int sampledFiles;
+    private final double expansionRatio;
+    private final long estimatedMillis;
+
+    JobPlan(int files, long bytes, int skippedFiles, long skippedBytes, int overwrittenFiles, long expectedOutputBytes,
+            long availableBytes, int sampledFiles, double expansionRatio, long estimatedMillis) {
+        this.files = files;
+        this.bytes = bytes;
+        this.skippedFiles = skippedFiles;
+        this.skippedBytes = skippedBytes;
+        this.overwrittenFiles = overwrittenFiles;
+        this.expectedOutputBytes = expectedOutputBytes;
+        this.availableBytes = availableBytes;
+        this.sampledFiles = sampledFiles;
+        this.expansionRatio = expansionRatio;
+        this.estimatedMillis = estimatedMillis;
+    }
+
+    /**
+     * Returns the number of files the job selects, including the skipped files.
+     */
+    public int getFiles() {
+        return files;
+    }
+
+    /**
+     * Returns the size of the files the job selects, including the skipped files.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the number of files that are completed by an earlier run of the same job and would be skipped.
+     */
+    public int getSkippedFiles() {
+        return skippedFiles;
+    }
+
+    public long getSkippedBytes() {
+        return skippedBytes;
+    }
+
+    /**
+     * Returns the number of files to process whose output file exists already and would be overwritten.
+     */
+    public int getOverwrittenFiles() {
+        return overwrittenFiles;
+    }
+
+    /**
+     * Returns the expected size of the output files that would be written, with padding and format headers.
+     */
+    public long getExpectedOutputBytes() {
+        return expectedOutputBytes;
+    }
+
+    /**
+     * Returns the usable space of the output folder.
+     */
+    public long getAvailableBytes() {
+        return availableBytes;
+    }
+
+    /**
+     * Returns true if the expected output fits into the usable space of the output folder. The files that would be
+     * overwritten are not taken into account.
+     */
+    public boolean fitsOnDisk() {
+        return expectedOutputBytes <= availableBytes;
+    }
+
+    /**
+     * Returns the number of files whose content was sampled for the expansion ratio.
+     */
+    public int getSampledFiles() {
+        return sampledFiles;
+    }
+
+    /**
+     * Returns the size of the encrypted content per byte of plain content, without the constant overhead.
+     */
+    public double getExpansionRatio() {
+        return expansionRatio;
+    }
+
+    /**
+     * Returns the estimated duration of the job or -1 if the planner was not calibrated.
+     */
+    public long getEstimatedMillis() {
+        return estimatedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d files, %d bytes, %d skipped (%d bytes), %d overwritten, %d bytes to write (%d available), "
+                        + "expansion %.3f from %d samples, estimated %s",
+                files, bytes, skippedFiles, skippedBytes, overwrittenFiles, expectedOutputBytes, availableBytes,
+                expansionRatio, sampledFiles, estimatedMillis < 0 ? "unknown" : estimatedMillis + " ms");
+    }
+}
@@ -0,0 +1,337 @@
+package org.developercookie.file.encryption;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.filefilter.IOFileFilter;
+import org.apache.commons.io.filefilter.SuffixFileFilter;
+import org.apache.commons.io.filefilter.TrueFileFilter;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Plans a folder job without running it. The tree is walked with the metadata of the files only: the planner reports
+ * how many files and bytes the job would process, which files an earlier run completed already and which output files
+ * would be overwritten. The output size follows the format the FileEncryption would choose for every file and the
+ * expansion of the ContentTransformer, which is measured on zeros or, if asked for, on samples of the first bytes of a
+ * few files.<br/>
+ * The duration is estimated from a calibration: a short benchmark on this host that reads from the source folder,
+ * encrypts and writes to the output folder like the IoTuner probes, and measures the cost of creating a file. The
+ * estimate takes the workers and the limits of the rate limiter of the FileEncryption into account. Created by
+ * developerCookie on 19.10.26.
+ */
+public class JobPlanner {
+    /**
+     * The default number of bytes the calibration reads, encrypts and writes.
+     */
+    public static final int DEFAULT_CALIBRATION_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * The number of bytes that are sampled from the start of a file.
+     */
+    private static final int SAMPLE_SIZE = 256 * 1024;
+
+    /**
+     * The length of the zeros the expansion is measured on without samples.
+     */
+    private static final int PROBE_LENGTH = 64 * 1024;
+
+    /**
+     * The number of small files the calibration creates to measure the cost of a file.
+     */
+    private static final int FILE_PROBES = 8;
+
+    /**
+     * The name of the probe files in the target folder. It ends with the partial extension, so it is never taken for an
+     * encrypted file.
+     */
+    private static final String PROBE_FILENAME = ".plan-probe" + FileEncryption.PART_EXTENSION;
+
+    /**
+     * The FileEncryption whose jobs are planned.
+     */
+    private final FileEncryption fileEncryption;
+
+    /**
+     * The number of bytes the calibration reads, encrypts and writes.
+     */
+    private final int calibrationSize;
+
+    /**
+     * The rates the duration is estimated from, null before the calibration.
+     */
+    private Calibration calibration;
+
+    public JobPlanner(FileEncryption fileEncryption) {
+        this(fileEncryption, DEFAULT_CALIBRATION_SIZE);
+    }
+
+    public JobPlanner(FileEncryption fileEncryption, int calibrationSize) {
+        this.fileEncryption = fileEncryption;
+        this.calibrationSize = calibrationSize;
+    }
+
+    /**
+     * Measures the rates of this host: reading from the largest file of the <code>sourceFolder</code> and its sub
+     * folders, encrypting in segments and writing synced to the <code>targetFolder</code>. If no source file has the
+     * calibration size, the read rate is taken to be the write rate; reading the probe file instead would measure the
+     * page cache. The calibration is used for the next plans and returned, so it can be reused by
+     * {@link #setCalibration(Calibration)}.
+     */
+    public Calibration calibrate(String sourceFolder, String targetFolder) throws IOException {
+        File probeFile = new File(targetFolder, PROBE_FILENAME);
+        try {
+            byte[] content = new byte[calibrationSize];
+            new Random(42).nextBytes(content);
+            double writeRate = IoTuner.probeWrite(probeFile, content, fileEncryption.getIoSettings().getWriteBufferSize());
+
+            List<IoTuner.Region> regions = IoTuner.unreadRegions(new File(sourceFolder), calibrationSize, 1);
+            double readRate = regions.isEmpty() ? writeRate
+                    : IoTuner.probeRead(regions.get(0).file, regions.get(0).offset, fileEncryption.getIoSettings(), calibrationSize);
+
+            ContentTransformer contentTransformer = fileEncryption.getContentTransformer();
+            int chunkSize = Math.min(fileEncryption.getSegmentSize(), calibrationSize);
+            long start = System.nanoTime();
+            for (int offset = 0; offset < content.length; offset += chunkSize) {
+                byte[] chunk = new byte[Math.min(chunkSize, content.length - offset)];
+                System.arraycopy(content, offset, chunk, 0, chunk.length);
+                contentTransformer.encrypt(chunk, "calibration");
+            }
+            double encryptRate = (double) content.length / (System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < FILE_PROBES; i++) {
+                probeFile(new File(targetFolder, PROBE_FILENAME + i));
+            }
+            double fileMillis = (System.nanoTime() - start) / 1e6 / FILE_PROBES;
+
+            calibration = new Calibration(readRate * 1e9, encryptRate * 1e9, writeRate * 1e9, fileMillis);
+            return calibration;
+        } finally {
+            probeFile.delete();
+        }
+    }
+
+    public Calibration getCalibration() {
+        return calibration;
+    }
+
+    public void setCalibration(Calibration calibration) {
+        this.calibration = calibration;
+    }
+
+    /**
+     * Plans the encryption of the <code>folderToEncrypt</code> into the <code>outputFolder</code> like
+     * {@link FileEncryption#encryptFolder(String, String, String, String)} with the same settings. The content of up to
+     * <code>sampleFiles</code> files, spread over the files to process, is sampled for the expansion; with 0 only the
+     * metadata is read. Nothing is written. Files a mirrored folder copies only count to the expected output.
+     */
+    public JobPlan planEncryptFolder(String folderToEncrypt, String outputFolder, String fileExtension, String key, int sampleFiles) throws IOException {
+        PathMapper pathMapper = new PathMapper(folderToEncrypt, outputFolder, fileEncryption.getShardDepth());
+        NameIndex nameIndex = null;
+        if (fileEncryption.isEncryptNames()) {
+            try {
+                nameIndex = NameIndex.exists(outputFolder)
+                        ? NameIndex.open(outputFolder, key, fileEncryption.getContentTransformer())
+                        : NameIndex.create(fileEncryption.getContentTransformer());
+            } catch (IllegalKeyException ex) {
+                throw new IOException("Name index of the output folder belongs to another key", ex);
+            }
+        }
+        CheckpointJournal journal = CheckpointJournal.read(outputFolder, FileEncryption.encryptJobId(folderToEncrypt, fileExtension, key));
+
+        int files = 0;
+        long bytes = 0;
+        int skippedFiles = 0;
+        long skippedBytes = 0;
+        int overwrittenFiles = 0;
+        long copiedBytes = 0;
+        List<File> toProcess = new ArrayList<File>();
+        IOFileFilter fileFilter = new SuffixFileFilter(fileExtension);
+        for (File oneFile : pathMapper.listSourceFiles(fileEncryption.isMirror() ? TrueFileFilter.INSTANCE : fileFilter)) {
+            if (!fileFilter.accept(oneFile)) {
+                if (!FileEncryption.isCopyCurrent(oneFile, FileEncryption.mirrorTarget(pathMapper, oneFile))) {
+                    copiedBytes += oneFile.length();
+                }
+                continue;
+            }
+            long length = oneFile.length();
+            files++;
+            bytes += length;
+            File target = FileEncryption.encryptedFile(pathMapper, nameIndex, oneFile);
+            CheckpointJournal.Completed completed = journal.getCompleted(IntegrityManifest.relativeName(new File(outputFolder), target));
+            if (completed != null && completed.isIntact(target)) {
+                skippedFiles++;
+                skippedBytes += length;
+                continue;
+            }
+            if (target.exists()) {
+                overwrittenFiles++;
+            }
+            toProcess.add(oneFile);
+        }
+
+        ContentTransformer contentTransformer = fileEncryption.getContentTransformer();
+        long overhead = contentTransformer.encrypt(new byte[0], key).length;
+        long sampledPlain = 0;
+        long sampledEncrypted = 0;
+        int sampledFiles = 0;
+        int step = Math.max(1, (toProcess.size() + sampleFiles - 1) / Math.max(1, sampleFiles));
+        for (int i = 0; sampleFiles > 0 && i < toProcess.size() && sampledFiles < sampleFiles; i += step) {
+            byte[] sample = readSample(toProcess.get(i));
+            if (sample.length > 0) {
+                sampledPlain += sample.length;
+                sampledEncrypted += contentTransformer.encrypt(sample, key).length - overhead;
+                sampledFiles++;
+            }
+        }
+        if (sampledPlain == 0) {
+            sampledPlain = PROBE_LENGTH;
+            sampledEncrypted = contentTransformer.encrypt(new byte[PROBE_LENGTH], key).length - overhead;
+        }
+        double expansionRatio = (double) sampledEncrypted / sampledPlain;
+
+        long expectedOutputBytes = copiedBytes;
+        for (File oneFile : toProcess) {
+            expectedOutputBytes += encryptedLength(oneFile.length(), expansionRatio, overhead);
+        }
+        long processBytes = bytes - skippedBytes;
+        return new JobPlan(files, bytes, skippedFiles, skippedBytes, overwrittenFiles, expectedOutputBytes,
+                new File(outputFolder).getUsableSpace(), sampledFiles, expansionRatio,
+                estimateMillis(processBytes, toProcess.size()));
+    }
+
+    /**
+     * Returns the expected length of the encrypted file of <code>length</code> plain bytes in the format the
+     * FileEncryption chooses for it.
+     */
+    private long encryptedLength(long length, double expansionRatio, long overhead) {
+        if (length < fileEncryption.getSegmentThreshold()) {
+            return encryptedContentLength(length, expansionRatio, overhead);
+        }
+        int segmentSize = fileEncryption.getSegmentSize();
+        long fullSegments = length / segmentSize;
+        long rest = length % segmentSize;
+        long encryptedLength = SegmentedFormat.HEADER_LENGTH
+                + fullSegments * (SegmentedFormat.RECORD_HEADER_LENGTH + encryptedContentLength(segmentSize, expansionRatio, overhead));
+        if (rest > 0) {
+            encryptedLength += SegmentedFormat.RECORD_HEADER_LENGTH + encryptedContentLength(rest, expansionRatio, overhead);
+        }
+        return encryptedLength;
+    }
+
+    private static long encryptedContentLength(long length, double expansionRatio, long overhead) {
+        return (long) Math.ceil(length * expansionRatio) + overhead;
+    }
+
+    /**
+     * Returns the estimated duration for <code>bytes</code> in <code>files</code> or -1 without calibration.
+     */
+    private long estimateMillis(long bytes, int files) {
+        if (calibration == null) {
+            return -1;
+        }
+        int workers = fileEncryption.getWorkerCount();
+        RateLimiter rateLimiter = fileEncryption.getRateLimiter();
+        if (rateLimiter != null && rateLimiter.getMaxWorkers() > 0) {
+            workers = Math.min(workers, rateLimiter.getMaxWorkers());
+        }
+        double bytesPerSecond = calibration.getBytesPerSecond(workers);
+        if (rateLimiter != null && rateLimiter.getBytesPerSecond() > 0) {
+            bytesPerSecond = Math.min(bytesPerSecond, rateLimiter.getBytesPerSecond());
+        }
+        double millis = bytes / bytesPerSecond * 1000 + files * calibration.getFileMillis() / workers;
+        if (rateLimiter != null && rateLimiter.getFilesPerSecond() > 0) {
+            millis = Math.max(millis, files / rateLimiter.getFilesPerSecond() * 1000);
+        }
+        return Math.round(millis);
+    }
+
+    /**
+     * Reads up to the sample size from the start of the <code>file</code>.
+     */
+    private static byte[] readSample(File file) throws IOException {
+        InputStream stream = new FileInputStream(file);
+        try {
+            byte[] sample = new byte[(int) Math.min(SAMPLE_SIZE, file.length())];
+            int read = IOUtils.read(stream, sample);
+            return read == sample.length ? sample : Arrays.copyOf(sample, read);
+        } finally {
+            IOUtils.closeQuietly(stream);
+        }
+    }
+
+    /**
+     * Creates, syncs, renames and deletes a small file like a folder job does for every file.
+     */
+    private static void probeFile(File file) throws IOException {
+        File partFile = new File(file.getPath() + FileEncryption.PART_EXTENSION);
+        FileOutputStream stream = new FileOutputStream(partFile);
+        try {
+            stream.write(0);
+            stream.getFD().sync();
+        } finally {
+            IOUtils.closeQuietly(stream);
+        }
+        if (!partFile.renameTo(file)) {
+            partFile.delete();
+        }
+        file.delete();
+    }
+
+    /**
+     * The rates of a host that the duration of a job is estimated from.
+     */
+    public static class Calibration {
+        private final double readBytesPerSecond;
+        private final double encryptBytesPerSecond;
+        private final double writeBytesPerSecond;
+        private final double fileMillis;
+
+        public Calibration(double readBytesPerSecond, double encryptBytesPerSecond, double writeBytesPerSecond, double fileMillis) {
+            this.readBytesPerSecond = readBytesPerSecond;
+            this.encryptBytesPerSecond = encryptBytesPerSecond;
+            this.writeBytesPerSecond = writeBytesPerSecond;
+            this.fileMillis = fileMillis;
+        }
+
+        public double getReadBytesPerSecond() {
+            return readBytesPerSecond;
+        }
+
+        public double getEncryptBytesPerSecond() {
+            return encryptBytesPerSecond;
+        }
+
+        public double getWriteBytesPerSecond() {
+            return writeBytesPerSecond;
+        }
+
+        /**
+         * Returns the time to create, sync and rename one file.
+         */
+        public double getFileMillis() {
+            return fileMillis;
+        }
+
+        /**
+         * Returns the expected rate of <code>workers</code> workers. One worker reads, encrypts and writes one after the
+         * other; more workers overlap, until the disks or the cores of the host are busy.
+         */
+        public double getBytesPerSecond(int workers) {
+            double oneWorker = 1 / (1 / readBytesPerSecond + 1 / encryptBytesPerSecond + 1 / writeBytesPerSecond);
+            int cores = Math.min(workers, Runtime.getRuntime().availableProcessors());
+            return Math.min(Math.min(oneWorker * workers, encryptBytesPerSecond * cores),
+                    Math.min(readBytesPerSecond, writeBytesPerSecond));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("read %.1f MB/s, encrypt %.1f MB/s, write %.1f MB/s, %.2f ms per file",
+                    readBytesPerSecond / (1024 * 1024), encryptBytesPerSecond / (1024 * 1024),
+                    writeBytesPerSecond / (1024 * 1024), fileMillis);
+        }
+    }
+}
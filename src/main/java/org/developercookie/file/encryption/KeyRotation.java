@@ -0,0 +1,255 @@
+package org.developercookie.file.encryption;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.filefilter.TrueFileFilter;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Changes the key of all encrypted files of a folder without writing plain content to the disk. Files encrypted for
+ * recipients only get their envelope header overwritten in place; the encrypted content is not touched. Other files are
+ * decrypted and encrypted again in one pass into a partial file that replaces the old file. The files are processed in parallel and
+ * the progress is recorded in a checkpoint journal, so a rotation that died can be started again with the same
+ * arguments. A name index only gets its name key wrapped with the new key. Copies of a mirrored folder are not
+ * encrypted and stay as they are. The old key is checked before the first
+ * file is replaced and a finished rotation leaves a key check file for the new key, so a wrong old key or a rotation
+ * that is started again after it finished does not destroy any file. Created by developerCookie on 19.10.26.
+ */
+class KeyRotation {
+    /**
+     * Encrypts and decrypts the content of the files.
+     */
+    private final ContentTransformer contentTransformer;
+
+    /**
+     * The number of files that are processed at the same time.
+     */
+    private final int threads;
+
+    KeyRotation(ContentTransformer contentTransformer, int threads) {
+        this.contentTransformer = contentTransformer;
+        this.threads = threads;
+    }
+
+    /**
+     * Rotates all encrypted files of the <code>folder</code> from the <code>oldKey</code> to the <code>newKey</code>.
+     * If the folder has an integrity manifest and a <code>manifestKey</code> is given, the manifest is updated. If the
+     * key check file shows that the folder is already encrypted with the <code>newKey</code> nothing is done. If the
+     * <code>oldKey</code> is not correct an IllegalKeyException is thrown before any file is changed.
+     */
+    void rotateFolder(final String folder, final String oldKey, final String newKey, String manifestKey) throws IOException, IllegalKeyException {
+        if (FolderKeyCheck.exists(folder) && !FolderKeyCheck.matches(folder, oldKey, contentTransformer)
+                && FolderKeyCheck.matches(folder, newKey, contentTransformer)) {
+            return;
+        }
+        final IntegrityManifest manifest = manifestKey != null && new File(folder, IntegrityManifest.MANIFEST_FILENAME).exists()
+                ? IntegrityManifest.read(folder, manifestKey) : null;
+        Collection<File> files = FileUtils.listFiles(new File(folder), FileEncryption.ENCRYPTED_FILES, TrueFileFilter.INSTANCE);
+        String jobId = CheckpointJournal.jobId("rotate", new File(folder).getAbsolutePath(), oldKey, newKey);
+        final CheckpointJournal journal = CheckpointJournal.open(folder, jobId);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            FolderKeyCheck.verify(folder, pendingFiles(folder, files, newKey, journal), oldKey, contentTransformer);
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (final File oneFile : files) {
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException, IllegalKeyException {
+                        String name = IntegrityManifest.relativeName(new File(folder), oneFile);
+                        byte[] digest = rotateFile(oneFile, oldKey, newKey, journal, name);
+                        if (manifest != null) {
+                            synchronized (manifest) {
+                                manifest.add(name, digest);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                waitFor(result);
+            }
+            if (NameIndex.exists(folder)) {
+                NameIndex.rewrap(folder, oldKey, newKey, contentTransformer);
+            }
+            if (manifest != null) {
+                manifest.write(folder, manifestKey);
+            }
+            FolderKeyCheck.write(folder, newKey, contentTransformer);
+            journal.complete();
+        } finally {
+            executor.shutdownNow();
+            journal.close();
+        }
+    }
+
+    /**
+     * Returns the <code>files</code> that still have to be rotated: files completed in the journal and envelopes that
+     * already have the <code>newKey</code> are left out, so a rotation that died can be started again.
+     */
+    private List<File> pendingFiles(String folder, Collection<File> files, String newKey, CheckpointJournal journal) throws IOException {
+        List<File> pending = new ArrayList<File>();
+        for (File oneFile : files) {
+            if (journal.getCompleted(IntegrityManifest.relativeName(new File(folder), oneFile)) != null) {
+                continue;
+            }
+            if (Envelope.isEnvelope(oneFile.getPath())) {
+                try {
+                    Envelope.read(oneFile.getPath()).unwrap(newKey, contentTransformer);
+                    continue;
+                } catch (IllegalKeyException ex) {
+                    // still encrypted for the old key
+                }
+            }
+            pending.add(oneFile);
+        }
+        return pending;
+    }
+
+    /**
+     * Rotates the key of one <code>file</code> and returns its new digest. A file that is completed in the journal is
+     * skipped; if it was completed but not moved into place yet the move is done now. The completion is synced into the
+     * journal before the partial file replaces the file, so a file that already has the new key is never decrypted
+     * with the old key again; a single block file could not tell that reliably.
+     */
+    private byte[] rotateFile(File file, String oldKey, String newKey, CheckpointJournal journal, String name) throws IOException, IllegalKeyException {
+        File partFile = new File(file.getPath() + FileEncryption.PART_EXTENSION);
+        CheckpointJournal.Completed completed = journal.getCompleted(name);
+        if (completed != null) {
+            if (partFile.isFile() && partFile.length() == completed.getSize()) {
+                moveReplacing(partFile, file);
+            }
+            return IntegrityManifest.digestMapped(file);
+        }
+        if (Envelope.isEnvelope(file.getPath())) {
+            rewrapEnvelope(file, oldKey, newKey);
+            byte[] digest = IntegrityManifest.digestMapped(file);
+            journal.done(name, file.length(), digest);
+            return digest;
+        }
+        journal.begin(name);
+        MessageDigest digest = IntegrityManifest.newDigest();
+        if (SegmentedFormat.isSegmented(file.getPath())) {
+            reencryptSegmented(file, partFile, oldKey, newKey, digest);
+        } else {
+            reencrypt(file, partFile, oldKey, newKey, digest);
+        }
+        byte[] fileDigest = digest.digest();
+        journal.done(name, partFile.length(), fileDigest);
+        moveReplacing(partFile, file);
+        return fileDigest;
+    }
+
+    /**
+     * Replaces the recipient with the <code>oldKey</code> by the <code>newKey</code> in the envelope of the
+     * <code>file</code>; only the header is written. If the envelope already has the new key instead of the old one
+     * nothing is done.
+     */
+    private void rewrapEnvelope(File file, String oldKey, String newKey) throws IOException, IllegalKeyException {
+        Envelope envelope = Envelope.read(file.getPath());
+        try {
+            envelope.unwrap(oldKey, contentTransformer);
+        } catch (IllegalKeyException ex) {
+            envelope.unwrap(newKey, contentTransformer);
+            return;
+        }
+        envelope.addRecipient(oldKey, newKey, contentTransformer);
+        envelope.removeRecipient(oldKey, contentTransformer);
+        envelope.rewrite(file);
+    }
+
+    /**
+     * Decrypts the segments of the <code>file</code> with the <code>oldKey</code> and writes them encrypted with the
+     * <code>newKey</code> into the <code>partFile</code>. The partial file is synced.
+     */
+    private void reencryptSegmented(File file, File partFile, String oldKey, String newKey, MessageDigest digest) throws IOException, IllegalKeyException {
+        InputStream source = new BufferedInputStream(new FileInputStream(file));
+        FileOutputStream fileStream = new FileOutputStream(partFile);
+        OutputStream target = new DigestOutputStream(new BufferedOutputStream(fileStream), digest);
+        try {
+            SegmentReader reader = new SegmentReader(source, contentTransformer, oldKey);
+            SegmentedFormat.writeHeader(target, reader.getSegmentSize());
+            SegmentWriter writer = new SegmentWriter(target, contentTransformer, newKey, 0);
+            byte[] segment;
+            while ((segment = reader.readSegment()) != null) {
+                writer.write(segment, segment.length, reader.isFinished());
+            }
+            target.flush();
+            fileStream.getFD().sync();
+            target.close();
+        } finally {
+            IOUtils.closeQuietly(source);
+            IOUtils.closeQuietly(target);
+        }
+    }
+
+    /**
+     * Decrypts the <code>file</code> with the <code>oldKey</code> and writes it encrypted with the <code>newKey</code>
+     * into the <code>partFile</code>. A StreamingContentTransformer does this in one pass with little memory, other
+     * transformers hold the content in memory. The partial file is synced.
+     */
+    private void reencrypt(File file, File partFile, String oldKey, String newKey, MessageDigest digest) throws IOException, IllegalKeyException {
+        FileOutputStream fileStream = new FileOutputStream(partFile);
+        OutputStream target = new DigestOutputStream(new BufferedOutputStream(fileStream), digest);
+        try {
+            if (!(contentTransformer instanceof StreamingContentTransformer)) {
+                byte[] plain = contentTransformer.decrypt(FileUtils.readFileToByteArray(file), oldKey);
+                target.write(contentTransformer.encrypt(plain, newKey));
+                target.flush();
+                fileStream.getFD().sync();
+                target.close();
+                return;
+            }
+            StreamingContentTransformer streamingTransformer = (StreamingContentTransformer) contentTransformer;
+            InputStream source = streamingTransformer.decryptingStream(new BufferedInputStream(new FileInputStream(file)), oldKey);
+            try {
+                OutputStream encryptingStream = streamingTransformer.encryptingStream(new CloseShieldOutputStream(target), newKey);
+                IOUtils.copy(source, encryptingStream);
+                encryptingStream.close();
+                target.flush();
+                fileStream.getFD().sync();
+                target.close();
+            } catch (IOException ex) {
+                if (ex.getCause() instanceof IllegalKeyException) {
+                    throw (IllegalKeyException) ex.getCause();
+                }
+                throw ex;
+            } finally {
+                IOUtils.closeQuietly(source);
+            }
+        } finally {
+            IOUtils.closeQuietly(target);
+        }
+    }
+
+    private static void moveReplacing(File from, File to) throws IOException {
+        Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void waitFor(Future<Void> future) throws IOException, IllegalKeyException {
+        try {
+            future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Key rotation was interrupted");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            if (ex.getCause() instanceof IllegalKeyException) {
+                throw (IllegalKeyException) ex.getCause();
+            }
+            throw new IllegalStateException(ex.getCause());
+        }
+    }
+}
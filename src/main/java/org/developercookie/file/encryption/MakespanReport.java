@@ -0,0 +1,114 @@
+package org.developercookie.file.encryption;
+
+/**
+ * How well a folder job used its workers: the makespan, the time from the start of the first file to the end of the
+ * last file, compared with the ideal of the total work spread evenly over all workers. The ideal is the time the
+ * workers were busy divided by the number of workers, which is the total bytes divided by the throughput of all
+ * workers. A job whose largest file started last has a makespan far above the ideal. Created by developerCookie on
+ * 19.10.26.
+ */
+public class MakespanReport {
+    private final int files;
+    private final long bytes;
+    private final int workers;
+    private final long makespanNanos;
+    private final long busyNanos;
+    private final long longestFileNanos;
+    private final int stolenSegments;
+
+    MakespanReport(int files, long bytes, int workers, long makespanNanos, long busyNanos, long longestFileNanos, int stolenSegments) {
+        this.files = files;
+        this.bytes = bytes;
+        this.workers = workers;
+        this.makespanNanos = makespanNanos;
+        this.busyNanos = busyNanos;
+        this.longestFileNanos = longestFileNanos;
+        this.stolenSegments = stolenSegments;
+    }
+
+    /**
+     * Returns the report of the finished <code>batch</code> that ran on <code>workers</code> workers.
+     */
+    static MakespanReport of(FileTaskBatch batch, int workers) {
+        long firstStart = Long.MAX_VALUE;
+        long lastFinish = Long.MIN_VALUE;
+        long busyNanos = 0;
+        long longestFileNanos = 0;
+        long bytes = 0;
+        for (FileTaskBatch.Task task : batch.getTasks()) {
+            long duration = task.getFinishNanos() - task.getStartNanos();
+            firstStart = Math.min(firstStart, task.getStartNanos());
+            lastFinish = Math.max(lastFinish, task.getFinishNanos());
+            busyNanos += duration;
+            longestFileNanos = Math.max(longestFileNanos, duration);
+            bytes += task.getSize();
+        }
+        SegmentStealQueue stealQueue = batch.getStealQueue();
+        busyNanos += stealQueue.getHelpNanos() - stealQueue.getWaitNanos();
+        long makespanNanos = batch.getTasks().isEmpty() ? 0 : lastFinish - firstStart;
+        return new MakespanReport(batch.getTasks().size(), bytes, workers, makespanNanos, Math.max(0, busyNanos),
+                longestFileNanos, stealQueue.getStolenSegments());
+    }
+
+    public int getFiles() {
+        return files;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Returns the time from the start of the first file to the end of the last file.
+     */
+    public long getMakespanMillis() {
+        return makespanNanos / 1000000;
+    }
+
+    /**
+     * Returns the makespan if the work had been spread evenly over all workers.
+     */
+    public long getIdealMillis() {
+        return busyNanos / workers / 1000000;
+    }
+
+    /**
+     * Returns the ideal divided by the makespan, 1 for a perfectly balanced job.
+     */
+    public double getEfficiency() {
+        return makespanNanos == 0 ? 1 : Math.min(1, (double) busyNanos / workers / makespanNanos);
+    }
+
+    /**
+     * Returns the time of the file that took longest, including the help of other workers.
+     */
+    public long getLongestFileMillis() {
+        return longestFileNanos / 1000000;
+    }
+
+    /**
+     * Returns the number of segments of large files that were encrypted by other workers.
+     */
+    public int getStolenSegments() {
+        return stolenSegments;
+    }
+
+    /**
+     * Returns the throughput of all workers in megabytes per second, the rate the ideal is based on.
+     */
+    public double getThroughputMegabytesPerSecond() {
+        return busyNanos == 0 ? 0 : bytes / (1024.0 * 1024.0) / (busyNanos / 1e9 / workers);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d files, %d bytes on %d workers: makespan %d ms, ideal %d ms (%.0f%%), longest file %d ms, "
+                        + "%d segments stolen, %.1f MB/s",
+                files, bytes, workers, getMakespanMillis(), getIdealMillis(), getEfficiency() * 100,
+                getLongestFileMillis(), stolenSegments, getThroughputMegabytesPerSecond());
+    }
+}
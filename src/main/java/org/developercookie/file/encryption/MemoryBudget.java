@@ -0,0 +1,128 @@
+package org.developercookie.file.encryption;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Bounds the heap that the files of folder jobs use at the same time. Before a worker reads a file it reserves the
+ * memory the file needs and waits while the budget is used up; the reservation is released when the file is done. A
+ * file is only processed in memory as a whole if that takes at most a quarter of the budget, larger files are
+ * streamed segment by segment with a small reservation. So the peak heap follows the budget and not the sizes of the
+ * files that happen to run together. A reservation larger than the whole budget waits until the budget is free and
+ * then takes all of it.<br/>
+ * The budget can be shared by several FileEncryptions and reports its usage and the time spent waiting for it. Created
+ * by developerCookie on 19.10.26.
+ */
+public class MemoryBudget {
+    /**
+     * A file is processed in memory if its reservation is at most this part of the budget.
+     */
+    private static final int IN_MEMORY_SHARE = 4;
+
+    /**
+     * The number of bytes that may be reserved at the same time.
+     */
+    private final long capacity;
+
+    private long reserved;
+    private long peakReserved;
+    private long reservations;
+    private long waits;
+    private long waitNanos;
+
+    public MemoryBudget(long capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("The memory budget must be positive");
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns the budget for the heap of the Java VM: <code>share</code> of the maximum heap.
+     */
+    public static MemoryBudget ofMaxHeap(double share) {
+        return new MemoryBudget((long) (Runtime.getRuntime().maxMemory() * share));
+    }
+
+    /**
+     * Returns true if a file that needs <code>bytes</code> may be processed in memory as a whole.
+     */
+    public boolean allowsInMemory(long bytes) {
+        return bytes <= capacity / IN_MEMORY_SHARE;
+    }
+
+    /**
+     * Reserves <code>bytes</code>, at most the capacity, and waits until they are free. Returns the reserved bytes
+     * that must be given back by {@link #release(long)}.
+     */
+    public synchronized long reserve(long bytes) throws InterruptedIOException {
+        long amount = Math.max(0, Math.min(bytes, capacity));
+        if (reserved + amount > capacity) {
+            long start = System.nanoTime();
+            waits++;
+            try {
+                while (reserved + amount > capacity) {
+                    wait();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Waiting for memory was interrupted");
+            } finally {
+                waitNanos += System.nanoTime() - start;
+            }
+        }
+        reserved += amount;
+        reservations++;
+        peakReserved = Math.max(peakReserved, reserved);
+        return amount;
+    }
+
+    /**
+     * Gives back <code>bytes</code> that were returned by {@link #reserve(long)}.
+     */
+    public synchronized void release(long bytes) {
+        reserved -= bytes;
+        notifyAll();
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the bytes that are reserved at the moment.
+     */
+    public synchronized long getReserved() {
+        return reserved;
+    }
+
+    /**
+     * Returns the most bytes that were reserved at the same time.
+     */
+    public synchronized long getPeakReserved() {
+        return peakReserved;
+    }
+
+    public synchronized long getReservations() {
+        return reservations;
+    }
+
+    /**
+     * Returns the number of reservations that had to wait for memory.
+     */
+    public synchronized long getWaits() {
+        return waits;
+    }
+
+    /**
+     * Returns the time all reservations together waited for memory.
+     */
+    public synchronized long getWaitMillis() {
+        return waitNanos / 1000000;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d of %d bytes reserved, peak %d, %d reservations, %d waited %d ms",
+                reserved, capacity, peakReserved, reservations, waits, waitNanos / 1000000);
+    }
+}
@@ -0,0 +1,65 @@
+package org.developercookie.file.encryption;
+
+/**
+ * The result of the migration of a folder into the segmented format. Created by developerCookie on 19.10.26.
+ */
+public class MigrationReport {
+    private final int migratedFiles;
+    private final int skippedFiles;
+    private final long bytesRead;
+    private final long bytesWritten;
+    private final long elapsedMillis;
+
+    MigrationReport(int migratedFiles, int skippedFiles, long bytesRead, long bytesWritten, long elapsedMillis) {
+        this.migratedFiles = migratedFiles;
+        this.skippedFiles = skippedFiles;
+        this.bytesRead = bytesRead;
+        this.bytesWritten = bytesWritten;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    /**
+     * Returns the number of files that were migrated.
+     */
+    public int getMigratedFiles() {
+        return migratedFiles;
+    }
+
+    /**
+     * Returns the number of files that were in the new format already.
+     */
+    public int getSkippedFiles() {
+        return skippedFiles;
+    }
+
+    /**
+     * Returns the number of encrypted bytes read from the migrated files.
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Returns the number of encrypted bytes written in the new format.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    /**
+     * Returns the throughput in megabytes of the old files per second.
+     */
+    public double getThroughputMegabytesPerSecond() {
+        return elapsedMillis == 0 ? 0 : bytesRead / (1024.0 * 1024.0) / (elapsedMillis / 1000.0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d files migrated, %d skipped, %d bytes read, %d bytes written in %d ms (%.1f MB/s)",
+                migratedFiles, skippedFiles, bytesRead, bytesWritten, elapsedMillis, getThroughputMegabytesPerSecond());
+    }
+}
@@ -0,0 +1,438 @@
+package org.developercookie.file.encryption;
+
+import org.apache.commons.io.IOUtils;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.*;
+
+/**
+ * The index of the encrypted file names of an output folder. With encrypted names a file is stored under a token, the
+ * keyed hash of its plain relative path, so the names of the folder do not leak. The index maps the tokens back to the
+ * paths without decrypting every name.<br/>
+ * The index is a sorted table of fixed size records that is memory mapped. Every record holds the keyed hash of the
+ * folder of an entry, the keyed hash of its path, its type and the position of its encrypted path in the name area
+ * behind the table. The records are sorted by folder and path hash, so a path is found by a binary search and the
+ * entries of a folder are next to each other. Only the names of a listed folder are decrypted.<br/>
+ * The hashes and names use a random name key that is wrapped with the key of the folder in the header of the index,
+ * so a new key only rewrites the header. Created by developerCookie on 19.10.26.
+ */
+public class NameIndex {
+    /**
+     * The name of the index file in the output folder.
+     */
+    public static final String INDEX_FILENAME = ".name-index";
+
+    /**
+     * The bytes every index starts with.
+     */
+    static final byte[] MAGIC = {'F', 'E', 'N', 'C', 'I', 'D', 'X', '1'};
+
+    /**
+     * A wrapped name key starts with these bytes, so a wrong key is recognized even if the ContentTransformer does not
+     * fail.
+     */
+    private static final byte[] NAME_KEY_PREFIX = {'N', 'A', 'M', 'E', 'K', 'E', 'Y', '1'};
+
+    /**
+     * The number of bytes of a keyed hash that are kept.
+     */
+    private static final int HASH_LENGTH = 16;
+
+    /**
+     * A record: folder hash, path hash, offset and length of the encrypted path and the type.
+     */
+    private static final int RECORD_LENGTH = 2 * HASH_LENGTH + 8 + 4 + 4;
+
+    private static final int TYPE_FILE = 0;
+    private static final int TYPE_FOLDER = 1;
+    private static final int SALT_LENGTH = 16;
+    private static final int NAME_KEY_LENGTH = 32;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final SecureRandom random = new SecureRandom();
+
+    private final ContentTransformer contentTransformer;
+
+    /**
+     * The random key of the hashes and names.
+     */
+    private final String nameKey;
+
+    /**
+     * The mapped table and name area of the index file, null for a new index.
+     */
+    private final ByteBuffer table;
+
+    /**
+     * The number of records in the table.
+     */
+    private final int count;
+
+    /**
+     * The position of the name area in the table.
+     */
+    private final int namesStart;
+
+    /**
+     * The entries that were added and are not written yet, by their sort key.
+     */
+    private final SortedMap<String, Entry> added = new TreeMap<String, Entry>();
+
+    private NameIndex(ContentTransformer contentTransformer, String nameKey, ByteBuffer table, int count) {
+        this.contentTransformer = contentTransformer;
+        this.nameKey = nameKey;
+        this.table = table;
+        this.count = count;
+        this.namesStart = table != null ? table.position() + count * RECORD_LENGTH : 0;
+    }
+
+    /**
+     * Creates a new empty index with a random name key.
+     */
+    public static NameIndex create(ContentTransformer contentTransformer) {
+        byte[] nameKey = new byte[NAME_KEY_LENGTH];
+        random.nextBytes(nameKey);
+        return new NameIndex(contentTransformer, IntegrityManifest.toHex(nameKey), null, 0);
+    }
+
+    /**
+     * Returns true if the <code>folder</code> has a name index.
+     */
+    public static boolean exists(String folder) {
+        return new File(folder, INDEX_FILENAME).isFile();
+    }
+
+    /**
+     * Maps the index of the <code>folder</code> and unwraps its name key with the <code>key</code>. If the index belongs
+     * to another key an IllegalKeyException will be thrown.
+     */
+    public static NameIndex open(String folder, String key, ContentTransformer contentTransformer) throws IOException, IllegalKeyException {
+        File file = new File(folder, INDEX_FILENAME);
+        FileChannel channel = new FileInputStream(file).getChannel();
+        ByteBuffer table;
+        try {
+            table = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            IOUtils.closeQuietly(channel);
+        }
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            table.get(magic);
+            if (!Arrays.equals(MAGIC, magic)) {
+                throw new IOException("File is no name index: " + file);
+            }
+            byte[] salt = new byte[SALT_LENGTH];
+            table.get(salt);
+            byte[] wrappedKey = new byte[table.getInt()];
+            table.get(wrappedKey);
+            String nameKey = unwrap(wrappedKey, key, salt, contentTransformer);
+            int count = table.getInt();
+            if (count < 0 || (long) table.position() + (long) count * RECORD_LENGTH > table.limit()) {
+                throw new IOException("Name index is damaged: " + file);
+            }
+            return new NameIndex(contentTransformer, nameKey, table, count);
+        } catch (BufferUnderflowException ex) {
+            throw new IOException("Name index is damaged: " + file, ex);
+        } catch (NegativeArraySizeException ex) {
+            throw new IOException("Name index is damaged: " + file, ex);
+        }
+    }
+
+    /**
+     * Wraps the name key of the index in the <code>folder</code> with the <code>newKey</code> instead of the
+     * <code>oldKey</code>. The records are copied as they are. An index that is wrapped with the <code>newKey</code>
+     * already is left alone, so an interrupted rotation can be repeated.
+     */
+    public static void rewrap(String folder, String oldKey, String newKey, ContentTransformer contentTransformer) throws IOException, IllegalKeyException {
+        NameIndex index;
+        try {
+            index = open(folder, oldKey, contentTransformer);
+        } catch (IllegalKeyException ex) {
+            open(folder, newKey, contentTransformer);
+            return;
+        }
+        index.write(folder, newKey);
+    }
+
+    /**
+     * Returns the number of files and folders in the index, without the added entries.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Returns the name under which the file with the plain <code>relativePath</code> is stored: the hex token of its
+     * keyed hash with the encryption file extension.
+     */
+    public String storageName(String relativePath) {
+        return IntegrityManifest.toHex(hash(normalize(relativePath))) + FileEncryption.ENCRYPTION_EXTENSION;
+    }
+
+    /**
+     * Returns the storage name of the file with the plain <code>relativePath</code> or null if it is not in the index.
+     * Only the table is searched, no name is decrypted.
+     */
+    public String find(String relativePath) {
+        String path = normalize(relativePath);
+        byte[] pathHash = hash(path);
+        byte[] sortKey = sortKey(hash(parent(path)), pathHash);
+        int record = lowerBound(sortKey);
+        if (record < count && compare(record, sortKey) == 0
+                && table.getInt(recordStart(record) + RECORD_LENGTH - 4) == TYPE_FILE) {
+            return IntegrityManifest.toHex(pathHash) + FileEncryption.ENCRYPTION_EXTENSION;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the sorted names of the files and sub folders of the plain <code>relativeFolder</code>, "" for the top
+     * folder. Names of sub folders end with a slash. Only the names of the folder are decrypted.
+     */
+    public List<String> list(String relativeFolder) throws IllegalKeyException {
+        byte[] folderHash = hash(normalize(relativeFolder));
+        List<String> names = new ArrayList<String>();
+        for (int record = lowerBound(sortKey(folderHash, new byte[HASH_LENGTH])); record < count && hasFolder(record, folderHash); record++) {
+            String path = decryptPath(record);
+            String name = path.substring(path.lastIndexOf('/') + 1);
+            names.add(table.getInt(recordStart(record) + RECORD_LENGTH - 4) == TYPE_FOLDER ? name + "/" : name);
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * Returns the plain relative paths of all files in the index by their storage names.
+     */
+    public Map<String, String> files() throws IllegalKeyException {
+        Map<String, String> files = new HashMap<String, String>();
+        for (int record = 0; record < count; record++) {
+            int start = recordStart(record);
+            if (table.getInt(start + RECORD_LENGTH - 4) == TYPE_FILE) {
+                byte[] pathHash = new byte[HASH_LENGTH];
+                for (int i = 0; i < HASH_LENGTH; i++) {
+                    pathHash[i] = table.get(start + HASH_LENGTH + i);
+                }
+                files.put(IntegrityManifest.toHex(pathHash) + FileEncryption.ENCRYPTION_EXTENSION, decryptPath(record));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Adds the file with the plain <code>relativePath</code> and its folders to the index. The entries are stored by
+     * the next {@link #write(String, String)}.
+     */
+    public synchronized void add(String relativePath) {
+        String path = normalize(relativePath);
+        int type = TYPE_FILE;
+        while (!path.isEmpty()) {
+            String sortKey = IntegrityManifest.toHex(sortKey(hash(parent(path)), hash(path)));
+            if (added.containsKey(sortKey)) {
+                break;
+            }
+            added.put(sortKey, new Entry(type, contentTransformer.encrypt(path.getBytes(UTF_8), nameKey)));
+            path = parent(path);
+            type = TYPE_FOLDER;
+        }
+    }
+
+    /**
+     * Writes the records of the index together with the added entries into the <code>folder</code>. The name key is
+     * wrapped with the <code>key</code>. The index is written to a temporary file first that is synced and replaces the
+     * old index at once; an error while the file is written or closed keeps the old index.
+     */
+    public synchronized void write(String folder, String key) throws IOException {
+        SortedMap<String, Entry> entries = new TreeMap<String, Entry>();
+        for (int record = 0; record < count; record++) {
+            int start = recordStart(record);
+            byte[] sortKey = new byte[2 * HASH_LENGTH];
+            for (int i = 0; i < sortKey.length; i++) {
+                sortKey[i] = table.get(start + i);
+            }
+            entries.put(IntegrityManifest.toHex(sortKey), new Entry(table.getInt(start + RECORD_LENGTH - 4), encryptedPath(record)));
+        }
+        entries.putAll(added);
+
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        byte[] wrappedKey = wrap(key, salt);
+        File tempFile = new File(folder, INDEX_FILENAME + ".tmp");
+        FileOutputStream fileStream = new FileOutputStream(tempFile);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileStream));
+        try {
+            out.write(MAGIC);
+            out.write(salt);
+            out.writeInt(wrappedKey.length);
+            out.write(wrappedKey);
+            out.writeInt(entries.size());
+            long nameOffset = 0;
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                out.write(fromHex(entry.getKey()));
+                out.writeLong(nameOffset);
+                out.writeInt(entry.getValue().encryptedPath.length);
+                out.writeInt(entry.getValue().type);
+                nameOffset += entry.getValue().encryptedPath.length;
+            }
+            for (Entry entry : entries.values()) {
+                out.write(entry.encryptedPath);
+            }
+            out.flush();
+            fileStream.getFD().sync();
+            out.close();
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+        Files.move(tempFile.toPath(), new File(folder, INDEX_FILENAME).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Returns the index of the first record whose sort key is not less than the <code>sortKey</code>.
+     */
+    private int lowerBound(byte[] sortKey) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compare(middle, sortKey) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Compares the folder and path hash of the <code>record</code> unsigned with the <code>sortKey</code>.
+     */
+    private int compare(int record, byte[] sortKey) {
+        int start = recordStart(record);
+        for (int i = 0; i < sortKey.length; i++) {
+            int difference = (table.get(start + i) & 0xff) - (sortKey[i] & 0xff);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return 0;
+    }
+
+    private boolean hasFolder(int record, byte[] folderHash) {
+        int start = recordStart(record);
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            if (table.get(start + i) != folderHash[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int recordStart(int record) {
+        return namesStart - (count - record) * RECORD_LENGTH;
+    }
+
+    private byte[] encryptedPath(int record) {
+        int start = recordStart(record);
+        long offset = table.getLong(start + 2 * HASH_LENGTH);
+        byte[] encryptedPath = new byte[table.getInt(start + 2 * HASH_LENGTH + 8)];
+        for (int i = 0; i < encryptedPath.length; i++) {
+            encryptedPath[i] = table.get((int) (namesStart + offset) + i);
+        }
+        return encryptedPath;
+    }
+
+    private String decryptPath(int record) throws IllegalKeyException {
+        return new String(contentTransformer.decrypt(encryptedPath(record), nameKey), UTF_8);
+    }
+
+    /**
+     * Returns the keyed hash of the normalized <code>path</code>.
+     */
+    private byte[] hash(String path) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(nameKey.getBytes(UTF_8), "HmacSHA256"));
+            return Arrays.copyOf(mac.doFinal(path.getBytes(UTF_8)), HASH_LENGTH);
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private byte[] wrap(String key, byte[] salt) {
+        byte[] keyBytes = nameKey.getBytes(UTF_8);
+        byte[] plain = Arrays.copyOf(NAME_KEY_PREFIX, NAME_KEY_PREFIX.length + keyBytes.length);
+        System.arraycopy(keyBytes, 0, plain, NAME_KEY_PREFIX.length, keyBytes.length);
+        return contentTransformer.encrypt(plain, wrappingKey(key, salt));
+    }
+
+    private static String unwrap(byte[] wrappedKey, String key, byte[] salt, ContentTransformer contentTransformer) throws IllegalKeyException {
+        byte[] plain = contentTransformer.decrypt(wrappedKey, wrappingKey(key, salt));
+        if (plain.length <= NAME_KEY_PREFIX.length
+                || !Arrays.equals(NAME_KEY_PREFIX, Arrays.copyOf(plain, NAME_KEY_PREFIX.length))) {
+            throw new IllegalKeyException("Name index belongs to another key");
+        }
+        return new String(plain, NAME_KEY_PREFIX.length, plain.length - NAME_KEY_PREFIX.length, UTF_8);
+    }
+
+    private static String wrappingKey(String key, byte[] salt) {
+        return key + "\u0000names\u0000" + IntegrityManifest.toHex(salt);
+    }
+
+    private static byte[] sortKey(byte[] folderHash, byte[] pathHash) {
+        byte[] sortKey = Arrays.copyOf(folderHash, 2 * HASH_LENGTH);
+        System.arraycopy(pathHash, 0, sortKey, HASH_LENGTH, HASH_LENGTH);
+        return sortKey;
+    }
+
+    /**
+     * Returns the <code>path</code> with slashes as separator and without leading or trailing slashes.
+     */
+    static String normalize(String path) {
+        String normalized = path.replace('\\', '/');
+        while (normalized.startsWith("/")) {
+            normalized = normalized.substring(1);
+        }
+        while (normalized.endsWith("/")) {
+            normalized = normalized.substring(0, normalized.length() - 1);
+        }
+        return normalized;
+    }
+
+    /**
+     * Returns the folder of the normalized <code>path</code>, "" for the top folder.
+     */
+    private static String parent(String path) {
+        int separator = path.lastIndexOf('/');
+        return separator < 0 ? "" : path.substring(0, separator);
+    }
+
+    private static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    /**
+     * An entry that is written with the next index.
+     */
+    private static class Entry {
+        private final int type;
+        private final byte[] encryptedPath;
+
+        Entry(int type, byte[] encryptedPath) {
+            this.type = type;
+            this.encryptedPath = encryptedPath;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package org.developercookie.file.encryption;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.filefilter.IOFileFilter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps the files of a source folder to their files in a target folder. The relative structure of the source folder is
+ * kept: a file in a sub folder of the source gets the same sub folder in the target. Encrypted files get the
+ * encryption file extension, decrypted files lose their last extension.<br/>
+ * A folder with millions of files is slow on most file systems, so the files can be spread over shard folders: with a
+ * shard depth of 2, <code>photos/img.jpg</code> becomes <code>photos/3f/a2/img.jpg.enc</code>. The shard folders are
+ * derived from the SHA-256 of the plain file name and are removed again when the file is decrypted with the same shard
+ * depth. Folders of the target are created once and remembered. Created by developerCookie on 19.10.26.
+ */
+public class PathMapper {
+    /**
+     * The maximum number of shard levels; every level has 256 folders.
+     */
+    public static final int MAX_SHARD_DEPTH = 4;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * The folder whose files are mapped.
+     */
+    private final Path sourceRoot;
+
+    /**
+     * The folder the files are mapped into.
+     */
+    private final Path targetRoot;
+
+    /**
+     * The number of shard folder levels, 0 for none.
+     */
+    private final int shardDepth;
+
+    /**
+     * The folders that exist in the target already.
+     */
+    private final Set<String> createdFolders = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Maps the files of the <code>sourceRoot</code> into the <code>targetRoot</code> with <code>shardDepth</code>
+     * levels of shard folders.
+     */
+    public PathMapper(String sourceRoot, String targetRoot, int shardDepth) {
+        if (shardDepth < 0 || shardDepth > MAX_SHARD_DEPTH) {
+            throw new IllegalArgumentException("Shard depth must be between 0 and " + MAX_SHARD_DEPTH);
+        }
+        this.sourceRoot = new File(sourceRoot).toPath().toAbsolutePath().normalize();
+        this.targetRoot = new File(targetRoot).toPath().toAbsolutePath().normalize();
+        this.shardDepth = shardDepth;
+        createdFolders.add(this.targetRoot.toString());
+    }
+
+    /**
+     * Returns the files of the source folder and its sub folders that are accepted by the <code>fileFilter</code>. If
+     * the target folder is inside the source folder it is left out.
+     */
+    public Collection<File> listSourceFiles(IOFileFilter fileFilter) {
+        final Path target = targetRoot;
+        IOFileFilter notTarget = new IOFileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return !file.toPath().toAbsolutePath().normalize().equals(target);
+            }
+
+            @Override
+            public boolean accept(File folder, String name) {
+                return accept(new File(folder, name));
+            }
+        };
+        return FileUtils.listFiles(sourceRoot.toFile(), fileFilter, notTarget);
+    }
+
+    /**
+     * Returns the encrypted file in the target folder for the <code>source</code> file.
+     */
+    public File toEncrypted(File source) {
+        String name = source.getName();
+        return targetFolder(source).resolve(shardPath(name)).resolve(name + FileEncryption.ENCRYPTION_EXTENSION).toFile();
+    }
+
+    /**
+     * Returns the decrypted file in the target folder for the encrypted <code>source</code> file. Only the last
+     * extension is removed, so <code>a.enc.txt.enc</code> becomes <code>a.enc.txt</code>. If the file is in its shard
+     * folders they are removed; files that are not in their shard folders keep their folders.
+     */
+    public File toDecrypted(File source) {
+        String encryptedName = source.getName();
+        String name = FilenameUtils.removeExtension(encryptedName);
+        if (name.isEmpty() || name.equals(encryptedName)) {
+            throw new IllegalStateException("Encrypted file has no extension: " + source);
+        }
+        Path folder = targetFolder(source);
+        Path shards = shardPath(name);
+        if (shardDepth > 0 && folder.endsWith(shards) && folder.getNameCount() - shardDepth >= targetRoot.getNameCount()) {
+            for (int i = 0; i < shardDepth; i++) {
+                folder = folder.getParent();
+            }
+        }
+        return folder.resolve(name).toFile();
+    }
+
+    /**
+     * Returns the path of the <code>source</code> file relative to the source folder, with slashes as separator.
+     */
+    public String relativePath(File source) {
+        Path relative = sourceRoot.relativize(source.toPath().toAbsolutePath().normalize());
+        StringBuilder path = new StringBuilder();
+        for (Path part : relative) {
+            if (path.length() > 0) {
+                path.append('/');
+            }
+            path.append(part.toString());
+        }
+        return path.toString();
+    }
+
+    /**
+     * Returns the file with the encrypted name <code>storageName</code> in the target folder. Files with encrypted
+     * names are all stored in the top folder, spread over its shard folders.
+     */
+    public File toStorage(String storageName) {
+        return targetRoot.resolve(shardPath(storageName)).resolve(storageName).toFile();
+    }
+
+    /**
+     * Returns the file with the encrypted name <code>storageName</code> in the source folder.
+     */
+    public File fromStorage(String storageName) {
+        return sourceRoot.resolve(shardPath(storageName)).resolve(storageName).toFile();
+    }
+
+    /**
+     * Returns the file in the target folder for the plain <code>relativePath</code> of a file with an encrypted name.
+     * A path that would leave the target folder, for example by "..", is rejected with an IOException.
+     */
+    public File toPlain(String relativePath) throws IOException {
+        Path target = targetRoot.resolve(NameIndex.normalize(relativePath)).normalize();
+        if (!target.startsWith(targetRoot) || target.equals(targetRoot)) {
+            throw new IOException("Path leaves the folder: " + relativePath);
+        }
+        return target.toFile();
+    }
+
+    /**
+     * Creates the folder of the <code>target</code> file with all missing parents, unless it was created before.
+     */
+    public void createParentFolder(File target) throws IOException {
+        File folder = target.getAbsoluteFile().getParentFile();
+        if (createdFolders.contains(folder.getPath())) {
+            return;
+        }
+        if (!folder.mkdirs() && !folder.isDirectory()) {
+            throw new IOException("Folder could not be created: " + folder);
+        }
+        createdFolders.add(folder.getPath());
+    }
+
+    /**
+     * Returns the folder in the target that corresponds to the folder of the <code>source</code> file.
+     */
+    private Path targetFolder(File source) {
+        Path relative = sourceRoot.relativize(source.toPath().toAbsolutePath().normalize()).getParent();
+        return relative != null ? targetRoot.resolve(relative) : targetRoot;
+    }
+
+    /**
+     * Returns the relative path of the shard folders for the plain file <code>name</code>, empty without sharding.
+     */
+    private Path shardPath(String name) {
+        Path shards = targetRoot.getFileSystem().getPath("");
+        if (shardDepth == 0) {
+            return shards;
+        }
+        MessageDigest digest = IntegrityManifest.newDigest();
+        byte[] hash = digest.digest(name.getBytes(UTF_8));
+        for (int i = 0; i < shardDepth; i++) {
+            shards = shards.resolve(IntegrityManifest.toHex(new byte[]{hash[i]}));
+        }
+        return shards;
+    }
+}
@@ -0,0 +1,100 @@
+package org.developercookie.file.encryption;
+
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Selects the files of a selective restore by their plain path relative to the folder, with slashes as separator. A
+ * selector holds glob patterns, regular expressions or a list of paths; a path is selected if one of them matches.
+ * Globs follow {@link java.nio.file.FileSystem#getPathMatcher(String)}, so <code>*.txt</code> only matches in the top
+ * folder and <code>**&#47;*.txt</code> only in sub folders. Created by developerCookie on 19.10.26.
+ */
+public class PathSelector {
+    private final String description;
+    private final List<PathMatcher> globs = new ArrayList<PathMatcher>();
+    private final List<Pattern> patterns = new ArrayList<Pattern>();
+
+    /**
+     * The selected paths of a path list, null for patterns.
+     */
+    private final Set<String> paths;
+
+    private PathSelector(String description, Set<String> paths) {
+        this.description = description;
+        this.paths = paths;
+    }
+
+    /**
+     * Selects the paths that match one of the glob <code>patterns</code>.
+     */
+    public static PathSelector glob(String... patterns) {
+        PathSelector selector = new PathSelector("glob " + Arrays.toString(patterns), null);
+        for (String pattern : patterns) {
+            selector.globs.add(FileSystems.getDefault().getPathMatcher("glob:" + pattern));
+        }
+        return selector;
+    }
+
+    /**
+     * Selects the paths that match one of the regular expressions <code>patterns</code> completely.
+     */
+    public static PathSelector regex(String... patterns) {
+        PathSelector selector = new PathSelector("regex " + Arrays.toString(patterns), null);
+        for (String pattern : patterns) {
+            selector.patterns.add(Pattern.compile(pattern));
+        }
+        return selector;
+    }
+
+    /**
+     * Selects exactly the given <code>paths</code>. Paths that are not found are reported as failures of the restore.
+     * A path with a ".." segment could leave the folder and is rejected with an IllegalArgumentException.
+     */
+    public static PathSelector paths(Collection<String> paths) {
+        Set<String> normalized = new TreeSet<String>();
+        for (String path : paths) {
+            String normalizedPath = NameIndex.normalize(path);
+            if (Arrays.asList(normalizedPath.split("/")).contains("..")) {
+                throw new IllegalArgumentException("Path leaves the folder: " + path);
+            }
+            normalized.add(normalizedPath);
+        }
+        return new PathSelector("paths " + normalized, Collections.unmodifiableSet(normalized));
+    }
+
+    /**
+     * Returns true if the plain <code>relativePath</code> is selected.
+     */
+    public boolean matches(String relativePath) {
+        String path = NameIndex.normalize(relativePath);
+        if (paths != null) {
+            return paths.contains(path);
+        }
+        for (PathMatcher glob : globs) {
+            if (glob.matches(Paths.get(path))) {
+                return true;
+            }
+        }
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(path).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the selected paths of a path list or null if the selector has patterns.
+     */
+    Set<String> getPaths() {
+        return paths;
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+}
@@ -0,0 +1,231 @@
+package org.developercookie.file.encryption;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Limits the resources a FileEncryption job takes from a shared host: the bytes per second read from the disk, the
+ * files per second and the number of workers that run at the same time, which limits the share of the CPU. All limits
+ * can be changed while a job runs and take effect at the next read, file or worker. A limit of 0 means unlimited.<br/>
+ * In the adaptive mode the limiter measures the latency of the reads. If the average latency rises above the target
+ * latency, the disk is busy and the byte rate is halved; while the latency is below the target the rate grows again by
+ * a tenth up to the configured limit (additive increase, multiplicative decrease). Created by developerCookie on
+ * 19.10.26.
+ */
+public class RateLimiter {
+    /**
+     * The time between two changes of the rate in the adaptive mode.
+     */
+    private static final long ADJUST_INTERVAL_NANOS = 100L * 1000 * 1000;
+
+    /**
+     * The adaptive mode never goes below this rate.
+     */
+    private static final long MIN_ADAPTIVE_RATE = 1024 * 1024;
+
+    /**
+     * The weight of a new latency in the moving average.
+     */
+    private static final double LATENCY_WEIGHT = 0.2;
+
+    private volatile long bytesPerSecond;
+    private volatile double filesPerSecond;
+    private volatile int maxWorkers;
+    private volatile long targetLatencyNanos;
+
+    private final TokenBucket byteBucket = new TokenBucket();
+    private final TokenBucket fileBucket = new TokenBucket();
+
+    /**
+     * The number of workers that run at the moment.
+     */
+    private int activeWorkers;
+
+    /**
+     * The byte rate of the adaptive mode, Long.MAX_VALUE while it is not limited.
+     */
+    private long adaptiveRate = Long.MAX_VALUE;
+
+    /**
+     * The moving average of the read latency.
+     */
+    private double averageLatencyNanos;
+
+    /**
+     * The time of the last change of the adaptive rate.
+     */
+    private long lastAdjustment = System.nanoTime();
+
+    /**
+     * The number of bytes read since the last change of the adaptive rate.
+     */
+    private long bytesSinceAdjustment;
+
+    /**
+     * Sets the bytes per second that may be read, 0 for no limit. In the adaptive mode a lower limit also lowers the
+     * adaptive rate, a higher one lets it grow up to the new limit.
+     */
+    public void setBytesPerSecond(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        synchronized (this) {
+            adaptiveRate = targetLatencyNanos > 0 ? Math.min(adaptiveRate, limitOrMax(bytesPerSecond)) : Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Sets the files per second that may be started, 0 for no limit.
+     */
+    public void setFilesPerSecond(double filesPerSecond) {
+        this.filesPerSecond = filesPerSecond;
+    }
+
+    /**
+     * Sets the number of workers that may run at the same time, 0 for no limit. Workers that run already finish their
+     * file; new files wait until fewer workers run.
+     */
+    public synchronized void setMaxWorkers(int maxWorkers) {
+        this.maxWorkers = maxWorkers;
+        notifyAll();
+    }
+
+    /**
+     * Turns the adaptive mode on with the given target latency of a read, or off with 0.
+     */
+    public synchronized void setTargetLatencyMillis(long targetLatencyMillis) {
+        this.targetLatencyNanos = targetLatencyMillis * 1000 * 1000;
+        adaptiveRate = targetLatencyMillis > 0 ? Math.min(adaptiveRate, limitOrMax(bytesPerSecond)) : Long.MAX_VALUE;
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public double getFilesPerSecond() {
+        return filesPerSecond;
+    }
+
+    public int getMaxWorkers() {
+        return maxWorkers;
+    }
+
+    /**
+     * Returns the byte rate that is used at the moment, 0 if it is not limited. In the adaptive mode it can be lower
+     * than the configured limit.
+     */
+    public synchronized long getEffectiveBytesPerSecond() {
+        long rate = Math.min(limitOrMax(bytesPerSecond), adaptiveRate);
+        return rate == Long.MAX_VALUE ? 0 : rate;
+    }
+
+    /**
+     * Returns the moving average of the read latency in milliseconds.
+     */
+    public synchronized double getAverageLatencyMillis() {
+        return averageLatencyNanos / 1000000.0;
+    }
+
+    /**
+     * Waits until <code>bytes</code> may be read.
+     */
+    public void acquireBytes(long bytes) throws InterruptedIOException {
+        long rate = getEffectiveBytesPerSecond();
+        sleep(byteBucket.reserve(bytes, rate));
+    }
+
+    /**
+     * Waits until the next file may be started.
+     */
+    public void acquireFile() throws InterruptedIOException {
+        sleep(fileBucket.reserve(1, filesPerSecond));
+    }
+
+    /**
+     * Waits until another worker may run. Every call must be followed by {@link #releaseWorker()}.
+     */
+    public synchronized void acquireWorker() throws InterruptedIOException {
+        try {
+            while (maxWorkers > 0 && activeWorkers >= maxWorkers) {
+                wait();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Waiting for a worker was interrupted");
+        }
+        activeWorkers++;
+    }
+
+    /**
+     * A worker finished.
+     */
+    public synchronized void releaseWorker() {
+        activeWorkers--;
+        notifyAll();
+    }
+
+    /**
+     * Records that a read of <code>bytes</code> took <code>latencyNanos</code>. In the adaptive mode the byte rate is
+     * adjusted to the latency.
+     */
+    public synchronized void recordRead(long bytes, long latencyNanos) {
+        averageLatencyNanos = averageLatencyNanos == 0 ? latencyNanos
+                : averageLatencyNanos + LATENCY_WEIGHT * (latencyNanos - averageLatencyNanos);
+        bytesSinceAdjustment += bytes;
+        long now = System.nanoTime();
+        long elapsed = now - lastAdjustment;
+        if (targetLatencyNanos <= 0 || elapsed < ADJUST_INTERVAL_NANOS) {
+            return;
+        }
+        long limit = limitOrMax(bytesPerSecond);
+        if (averageLatencyNanos > targetLatencyNanos) {
+            long observedRate = (long) (bytesSinceAdjustment * 1e9 / elapsed);
+            long current = adaptiveRate == Long.MAX_VALUE ? observedRate : adaptiveRate;
+            adaptiveRate = Math.max(MIN_ADAPTIVE_RATE, Math.min(limit, current / 2));
+        } else if (adaptiveRate < limit) {
+            long increased = adaptiveRate + adaptiveRate / 10 + MIN_ADAPTIVE_RATE;
+            adaptiveRate = increased >= limit || increased < 0 ? limit : increased;
+        }
+        lastAdjustment = now;
+        bytesSinceAdjustment = 0;
+    }
+
+    private static long limitOrMax(long limit) {
+        return limit > 0 ? limit : Long.MAX_VALUE;
+    }
+
+    private static void sleep(long nanos) throws InterruptedIOException {
+        if (nanos <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Rate limit wait was interrupted");
+        }
+    }
+
+    /**
+     * A token bucket that holds at most the tokens of one second. Callers reserve their tokens, if there are not enough
+     * they get the time they have to wait; all callers together get the rate.
+     */
+    private static class TokenBucket {
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+
+        /**
+         * Takes <code>amount</code> tokens at the given <code>rate</code> per second and returns the nanoseconds to wait
+         * until they are available. A rate of 0 or less is not limited.
+         */
+        synchronized long reserve(double amount, double rate) {
+            long now = System.nanoTime();
+            if (rate <= 0 || rate == Long.MAX_VALUE) {
+                tokens = 0;
+                lastRefill = now;
+                return 0;
+            }
+            tokens = Math.min(rate, tokens + (now - lastRefill) * rate / 1e9);
+            lastRefill = now;
+            tokens -= amount;
+            return tokens >= 0 ? 0 : (long) (-tokens * 1e9 / rate);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package org.developercookie.file.encryption;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * An InputStream that reads the underlying stream in a background thread. Up to the given number of chunks are read
+ * ahead, so reading from the disk overlaps with the work of the consumer. Created by developerCookie on 19.10.26.
+ */
+class ReadAheadInputStream extends InputStream {
+    /**
+     * Marks the end of the underlying stream in the queue.
+     */
+    private static final Chunk END = new Chunk(new byte[0], 0, null);
+
+    /**
+     * The underlying stream.
+     */
+    private final InputStream in;
+
+    /**
+     * The chunks that were read ahead.
+     */
+    private final BlockingQueue<Chunk> chunks;
+
+    /**
+     * The thread that reads ahead.
+     */
+    private final Thread reader;
+
+    /**
+     * The chunk that is consumed at the moment.
+     */
+    private Chunk current;
+
+    /**
+     * The position in the current chunk.
+     */
+    private int position;
+
+    /**
+     * True after the stream was closed.
+     */
+    private volatile boolean closed;
+
+    ReadAheadInputStream(InputStream in, final int chunkSize, int readAhead) {
+        this.in = in;
+        this.chunks = new ArrayBlockingQueue<Chunk>(readAhead);
+        this.reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readLoop(chunkSize);
+            }
+        }, "read-ahead");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException("Stream is closed");
+        }
+        if (length == 0) {
+            return 0;
+        }
+        while (current == null || position == current.length) {
+            if (current == END) {
+                return -1;
+            }
+            if (current != null && current.failure != null) {
+                throw current.failure;
+            }
+            try {
+                current = chunks.take();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Read was interrupted");
+            }
+            position = 0;
+        }
+        int copied = Math.min(length, current.length - position);
+        System.arraycopy(current.content, position, buffer, offset, copied);
+        position += copied;
+        return copied;
+    }
+
+    @Override
+    public int available() {
+        return current != null ? current.length - position : 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        reader.interrupt();
+        try {
+            reader.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        in.close();
+    }
+
+    /**
+     * Reads the underlying stream chunk by chunk into the queue until its end, a failure or the close of this stream.
+     */
+    private void readLoop(int chunkSize) {
+        try {
+            while (!closed) {
+                byte[] content = new byte[chunkSize];
+                int length;
+                try {
+                    length = in.read(content);
+                } catch (IOException ex) {
+                    chunks.put(new Chunk(content, 0, ex));
+                    return;
+                }
+                if (length < 0) {
+                    chunks.put(END);
+                    return;
+                }
+                chunks.put(new Chunk(content, length, null));
+            }
+        } catch (InterruptedException ex) {
+            // the stream was closed
+        }
+    }
+
+    /**
+     * A chunk that was read or the failure of the read.
+     */
+    private static class Chunk {
+        private final byte[] content;
+        private final int length;
+        private final IOException failure;
+
+        Chunk(byte[] content, int length, IOException failure) {
+            this.content = content;
+            this.length = length;
+            this.failure = failure;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package org.developercookie.file.encryption;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of the restore of a folder: the number of restored files and the files that could not be decrypted.
+ * Created by developerCookie on 19.10.26.
+ */
+public class RestoreReport {
+    private final int restoredFiles;
+    private final int skippedFiles;
+    private final long bytesRead;
+    private final long elapsedMillis;
+    private final List<Failure> failures;
+
+    RestoreReport(int restoredFiles, int skippedFiles, long bytesRead, long elapsedMillis, List<Failure> failures) {
+        this.restoredFiles = restoredFiles;
+        this.skippedFiles = skippedFiles;
+        this.bytesRead = bytesRead;
+        this.elapsedMillis = elapsedMillis;
+        this.failures = Collections.unmodifiableList(failures);
+    }
+
+    /**
+     * Returns the number of files that were decrypted.
+     */
+    public int getRestoredFiles() {
+        return restoredFiles;
+    }
+
+    /**
+     * Returns the number of files that were restored by an earlier run already.
+     */
+    public int getSkippedFiles() {
+        return skippedFiles;
+    }
+
+    /**
+     * Returns the number of encrypted bytes of the decrypted files.
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    /**
+     * Returns the files that could not be decrypted, in the order they were listed.
+     */
+    public List<Failure> getFailures() {
+        return failures;
+    }
+
+    /**
+     * Returns true if all files were restored.
+     */
+    public boolean isComplete() {
+        return failures.isEmpty();
+    }
+
+    /**
+     * Returns the throughput in megabytes of encrypted files per second.
+     */
+    public double getThroughputMegabytesPerSecond() {
+        return elapsedMillis == 0 ? 0 : bytesRead / (1024.0 * 1024.0) / (elapsedMillis / 1000.0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d files restored, %d skipped, %d failed, %d bytes read in %d ms (%.1f MB/s)",
+                restoredFiles, skippedFiles, failures.size(), bytesRead, elapsedMillis, getThroughputMegabytesPerSecond());
+    }
+
+    /**
+     * A file that could not be decrypted.
+     */
+    public static class Failure {
+        private final String file;
+        private final Throwable error;
+        private final long offset;
+
+        Failure(String file, Throwable error, long offset) {
+            this.file = file;
+            this.error = error;
+            this.offset = offset;
+        }
+
+        /**
+         * Returns the encrypted file.
+         */
+        public String getFile() {
+            return file;
+        }
+
+        /**
+         * Returns the error that stopped the decryption of the file.
+         */
+        public Throwable getError() {
+            return error;
+        }
+
+        /**
+         * Returns the name of the class of the error, for example IllegalKeyException for a wrong key.
+         */
+        public String getErrorClass() {
+            return error.getClass().getSimpleName();
+        }
+
+        /**
+         * Returns the offset in the encrypted file of the segment that could not be read, 0 for files that are decrypted
+         * as a whole.
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        @Override
+        public String toString() {
+            return file + " at offset " + offset + ": " + error;
+        }
+    }
+}
@@ -0,0 +1,410 @@
+package org.developercookie.file.encryption;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * A bounded cache of decrypted segments, so hot regions of encrypted files are not read and decrypted again on every
+ * access. The segments are stored off the heap in pages of direct memory, which is allocated once and reused, so even
+ * a large cache does not load the garbage collector. The least recently used segments are removed when there are not
+ * enough free pages for a new segment.<br/>
+ * Segments are identified by the path, the modification time and the size of the encrypted file and the segment
+ * index. When a segment of a changed file is cached, the segments of the old state of the file are removed; they can
+ * also be removed explicitly with {@link #invalidate(String)}. Created by developerCookie on 19.10.26.
+ */
+public class SegmentCache {
+    /**
+     * The default maximum size of all cached segments.
+     */
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * The default size of a page.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 64 * 1024;
+
+    /**
+     * The maximum size of one block of direct memory. Blocks are allocated when the cache grows.
+     */
+    private static final int MAX_SLAB_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * The size of a page.
+     */
+    private final int pageSize;
+
+    /**
+     * The number of pages in one block of direct memory.
+     */
+    private final int pagesPerSlab;
+
+    /**
+     * The maximum number of pages.
+     */
+    private final int maxPages;
+
+    /**
+     * The blocks of direct memory that were allocated so far.
+     */
+    private final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+
+    /**
+     * The numbers of the allocated pages that are not used.
+     */
+    private final Deque<Integer> freePages = new ArrayDeque<Integer>();
+
+    /**
+     * The number of pages that were allocated so far.
+     */
+    private int allocatedPages;
+
+    /**
+     * The cached segments in the order of their last use.
+     */
+    private final LinkedHashMap<Key, Entry> segments = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+
+    /**
+     * The keys of the cached segments by the path of their file.
+     */
+    private final Map<String, Set<Key>> keysByPath = new HashMap<String, Set<Key>>();
+
+    /**
+     * The size of the content of all cached segments.
+     */
+    private long currentBytes;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    /**
+     * The cache holds at most <code>maxBytes</code> of decrypted content in pages of the default size.
+     */
+    public SegmentCache(long maxBytes) {
+        this(maxBytes, DEFAULT_PAGE_SIZE);
+    }
+
+    /**
+     * The cache holds at most <code>maxBytes</code> of decrypted content in pages of <code>pageSize</code> bytes. A
+     * segment uses whole pages, so the page size should be a fraction of the segment size.
+     */
+    public SegmentCache(long maxBytes, int pageSize) {
+        if (pageSize <= 0 || maxBytes < 0) {
+            throw new IllegalArgumentException("Page size must be positive and the maximum size must not be negative");
+        }
+        this.pageSize = pageSize;
+        this.pagesPerSlab = Math.max(1, MAX_SLAB_SIZE / pageSize);
+        this.maxPages = (int) Math.min(Integer.MAX_VALUE, maxBytes / pageSize);
+    }
+
+    /**
+     * Returns a copy of the decrypted segment for the <code>key</code> or null if it is not cached.
+     */
+    public synchronized byte[] get(Key key) {
+        Entry entry = lookup(key);
+        if (entry == null) {
+            return null;
+        }
+        byte[] segment = new byte[entry.length];
+        copyOut(entry, 0, ByteBuffer.wrap(segment));
+        return segment;
+    }
+
+    /**
+     * Copies the decrypted segment for the <code>key</code> from the <code>offset</code> on into the
+     * <code>destination</code>, as much as fits. Returns the number of copied bytes or -1 if the segment is not cached.
+     * No copy of the segment is made on the heap.
+     */
+    public synchronized int read(Key key, int offset, ByteBuffer destination) {
+        Entry entry = lookup(key);
+        if (entry == null) {
+            return -1;
+        }
+        if (offset >= entry.length) {
+            return 0;
+        }
+        return copyOut(entry, offset, destination);
+    }
+
+    /**
+     * Caches the decrypted <code>segment</code> under the <code>key</code>. Segments of the same path with another
+     * modification time or size are removed. If the segment is larger than the whole cache it is not cached.
+     */
+    public synchronized void put(Key key, byte[] segment) {
+        int neededPages = (segment.length + pageSize - 1) / pageSize;
+        if (neededPages > maxPages) {
+            return;
+        }
+        removeOutdated(key);
+        remove(key);
+        while (availablePages() < neededPages) {
+            Iterator<Key> eldest = segments.keySet().iterator();
+            remove(eldest.next());
+            evictions++;
+        }
+        int[] pages = new int[neededPages];
+        for (int i = 0; i < neededPages; i++) {
+            pages[i] = takePage();
+            ByteBuffer page = page(pages[i]);
+            int offset = i * pageSize;
+            page.put(segment, offset, Math.min(pageSize, segment.length - offset));
+        }
+        segments.put(key, new Entry(segment.length, pages));
+        Set<Key> keys = keysByPath.get(key.getPath());
+        if (keys == null) {
+            keys = new HashSet<Key>();
+            keysByPath.put(key.getPath(), keys);
+        }
+        keys.add(key);
+        currentBytes += segment.length;
+    }
+
+    /**
+     * Removes all segments of the file with the <code>path</code>. Must be called when a file is changed without a
+     * new modification time or size, for example if it was replaced within the same millisecond.
+     */
+    public synchronized void invalidate(String path) {
+        Set<Key> keys = keysByPath.get(path);
+        if (keys == null) {
+            return;
+        }
+        for (Key key : new ArrayList<Key>(keys)) {
+            remove(key);
+            invalidations++;
+        }
+    }
+
+    /**
+     * Removes all segments. The direct memory is kept for later segments.
+     */
+    public synchronized void invalidateAll() {
+        invalidations += segments.size();
+        for (Key key : new ArrayList<Key>(segments.keySet())) {
+            remove(key);
+        }
+    }
+
+    /**
+     * Returns the number of lookups that found the segment.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of lookups that did not find the segment.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the share of lookups that found the segment, 0 if there was no lookup yet.
+     */
+    public synchronized double getHitRatio() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /**
+     * Returns the number of segments that were removed to make room for other segments.
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Returns the number of segments that were removed because their file changed.
+     */
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    /**
+     * Returns the number of cached segments.
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Returns the size of the content of all cached segments.
+     */
+    public synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    /**
+     * Returns the size of the direct memory that was allocated so far.
+     */
+    public synchronized long getAllocatedBytes() {
+        return (long) allocatedPages * pageSize;
+    }
+
+    /**
+     * Returns the entry for the <code>key</code> and counts the lookup.
+     */
+    private Entry lookup(Key key) {
+        Entry entry = segments.get(key);
+        if (entry == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        EncryptionEvents.CacheLookupEvent.record(key.getPath(), key.getSegment(), entry != null);
+        return entry;
+    }
+
+    /**
+     * Copies the content of the <code>entry</code> from the <code>offset</code> on into the <code>destination</code>.
+     */
+    private int copyOut(Entry entry, int offset, ByteBuffer destination) {
+        int copied = 0;
+        while (destination.hasRemaining() && offset < entry.length) {
+            ByteBuffer page = page(entry.pages[offset / pageSize]);
+            int pageOffset = offset % pageSize;
+            int length = Math.min(destination.remaining(), Math.min(pageSize - pageOffset, entry.length - offset));
+            page.position(pageOffset);
+            page.limit(pageOffset + length);
+            destination.put(page);
+            offset += length;
+            copied += length;
+        }
+        return copied;
+    }
+
+    /**
+     * Removes the segments of the same path that belong to another state of the file.
+     */
+    private void removeOutdated(Key key) {
+        Set<Key> keys = keysByPath.get(key.getPath());
+        if (keys == null) {
+            return;
+        }
+        for (Key cached : new ArrayList<Key>(keys)) {
+            if (cached.getLastModified() != key.getLastModified() || cached.getSize() != key.getSize()) {
+                remove(cached);
+                invalidations++;
+            }
+        }
+    }
+
+    /**
+     * Removes the segment of the <code>key</code> and frees its pages.
+     */
+    private void remove(Key key) {
+        Entry entry = segments.remove(key);
+        if (entry == null) {
+            return;
+        }
+        for (int page : entry.pages) {
+            freePages.push(page);
+        }
+        currentBytes -= entry.length;
+        Set<Key> keys = keysByPath.get(key.getPath());
+        keys.remove(key);
+        if (keys.isEmpty()) {
+            keysByPath.remove(key.getPath());
+        }
+    }
+
+    /**
+     * Returns the number of pages that are free or can still be allocated.
+     */
+    private int availablePages() {
+        return freePages.size() + maxPages - allocatedPages;
+    }
+
+    /**
+     * Returns the number of a free page. A new block of direct memory is allocated if no allocated page is free.
+     */
+    private int takePage() {
+        if (freePages.isEmpty()) {
+            int pages = Math.min(pagesPerSlab, maxPages - allocatedPages);
+            slabs.add(ByteBuffer.allocateDirect(pages * pageSize));
+            int first = (slabs.size() - 1) * pagesPerSlab;
+            for (int i = pages - 1; i >= 0; i--) {
+                freePages.push(first + i);
+            }
+            allocatedPages += pages;
+        }
+        return freePages.pop();
+    }
+
+    /**
+     * Returns a buffer over the page with the <code>number</code>, positioned at its start.
+     */
+    private ByteBuffer page(int number) {
+        ByteBuffer slab = slabs.get(number / pagesPerSlab).duplicate();
+        int start = (number % pagesPerSlab) * pageSize;
+        slab.position(start);
+        slab.limit(start + pageSize);
+        return slab.slice();
+    }
+
+    /**
+     * The size of a cached segment and the pages that hold it.
+     */
+    private static class Entry {
+        private final int length;
+        private final int[] pages;
+
+        Entry(int length, int[] pages) {
+            this.length = length;
+            this.pages = pages;
+        }
+    }
+
+    /**
+     * Identifies a segment by the file, the state of the file and the segment index. A changed file gets other keys,
+     * so old segments are never returned for it.
+     */
+    public static class Key {
+        private final String path;
+        private final long lastModified;
+        private final long size;
+        private final long segment;
+
+        public Key(String path, long lastModified, long size, long segment) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.size = size;
+            this.segment = segment;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getSegment() {
+            return segment;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return path.equals(key.path) && lastModified == key.lastModified && size == key.size && segment == key.segment;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = path.hashCode();
+            result = 31 * result + (int) (lastModified ^ (lastModified >>> 32));
+            result = 31 * result + (int) (size ^ (size >>> 32));
+            result = 31 * result + (int) (segment ^ (segment >>> 32));
+            return result;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package org.developercookie.file.encryption;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * The positions of all segments of a file in the segmented format. It is built by reading only the record headers, so
+ * any segment can be read and decrypted afterwards without touching the others. Created by developerCookie on 19.10.26.
+ */
+public class SegmentIndex {
+    /**
+     * The segment size found in the header of the file.
+     */
+    private final int segmentSize;
+
+    /**
+     * The position of the encrypted bytes of every segment, by segment index.
+     */
+    private final long[] encryptedOffsets;
+
+    /**
+     * The length of the encrypted bytes of every segment.
+     */
+    private final int[] encryptedLengths;
+
+    /**
+     * The length of the plain content of every segment.
+     */
+    private final int[] plainLengths;
+
+    /**
+     * The length of the whole plain content.
+     */
+    private final long plainSize;
+
+    private SegmentIndex(int segmentSize, long[] encryptedOffsets, int[] encryptedLengths, int[] plainLengths) {
+        this.segmentSize = segmentSize;
+        this.encryptedOffsets = encryptedOffsets;
+        this.encryptedLengths = encryptedLengths;
+        this.plainLengths = plainLengths;
+        long size = 0;
+        for (int plainLength : plainLengths) {
+            size += plainLength;
+        }
+        this.plainSize = size;
+    }
+
+    /**
+     * Reads the header and all record headers of the segmented file behind the <code>channel</code>. The records may
+     * be stored in any order, but every segment up to the last one must be there exactly once.
+     */
+    public static SegmentIndex read(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(SegmentedFormat.HEADER_LENGTH);
+        readFully(channel, header, 0);
+        int segmentSize = SegmentedFormat.readHeader(new ByteArrayInputStream(header.array()));
+
+        long size = channel.size();
+        int count = 0;
+        long[] offsets = new long[16];
+        int[] encryptedLengths = new int[16];
+        int[] plainLengths = new int[16];
+        boolean[] present = new boolean[16];
+        long lastIndex = -1;
+        ByteBuffer recordHeader = ByteBuffer.allocate(SegmentedFormat.RECORD_HEADER_LENGTH);
+        long position = SegmentedFormat.HEADER_LENGTH;
+        while (position < size) {
+            recordHeader.clear();
+            readFully(channel, recordHeader, position);
+            recordHeader.flip();
+            byte flags = recordHeader.get();
+            long index = recordHeader.getLong();
+            int plainLength = recordHeader.getInt();
+            int encryptedLength = recordHeader.getInt();
+            if (index < 0 || index > (size - SegmentedFormat.HEADER_LENGTH) / SegmentedFormat.RECORD_HEADER_LENGTH
+                    || encryptedLength < 0 || encryptedLength > (long) segmentSize + SegmentedFormat.MAX_CIPHER_OVERHEAD
+                    || plainLength < 0 || plainLength > segmentSize) {
+                throw new IOException("Illegal record header at position " + position);
+            }
+            if (index >= offsets.length) {
+                int newLength = (int) Math.max(index + 1, offsets.length * 2L);
+                offsets = Arrays.copyOf(offsets, newLength);
+                encryptedLengths = Arrays.copyOf(encryptedLengths, newLength);
+                plainLengths = Arrays.copyOf(plainLengths, newLength);
+                present = Arrays.copyOf(present, newLength);
+            }
+            int i = (int) index;
+            if (present[i]) {
+                throw new IOException("Segment " + index + " is stored twice");
+            }
+            present[i] = true;
+            offsets[i] = position + SegmentedFormat.RECORD_HEADER_LENGTH;
+            encryptedLengths[i] = encryptedLength;
+            plainLengths[i] = plainLength;
+            if ((flags & SegmentedFormat.LAST_SEGMENT) != 0) {
+                lastIndex = index;
+            }
+            count++;
+            position += SegmentedFormat.RECORD_HEADER_LENGTH + encryptedLength;
+        }
+        if (position > size) {
+            throw new EOFException("Last record is truncated");
+        }
+        if (lastIndex < 0 || lastIndex + 1 != count) {
+            throw new EOFException("Content is truncated, not all segments are stored");
+        }
+        for (int i = 0; i < lastIndex; i++) {
+            if (!present[i] || plainLengths[i] != segmentSize) {
+                throw new IOException("Segment " + i + " is missing or not complete");
+            }
+        }
+        return new SegmentIndex(segmentSize, Arrays.copyOf(offsets, count),
+                Arrays.copyOf(encryptedLengths, count), Arrays.copyOf(plainLengths, count));
+    }
+
+    /**
+     * Reads and decrypts the segment with the given <code>index</code>.
+     */
+    public byte[] readSegment(FileChannel channel, int index, ContentTransformer contentTransformer, String key) throws IOException, IllegalKeyException {
+        ByteBuffer encrypted = ByteBuffer.allocate(encryptedLengths[index]);
+        readFully(channel, encrypted, encryptedOffsets[index]);
+        boolean last = index == encryptedOffsets.length - 1;
+        byte[] plain = contentTransformer.decrypt(encrypted.array(), SegmentedFormat.segmentKey(key, index, last));
+        if (plain.length != plainLengths[index]) {
+            throw new IOException("Segment " + index + " has " + plain.length + " bytes instead of " + plainLengths[index]);
+        }
+        return plain;
+    }
+
+    /**
+     * Returns the index of the segment that contains the plain byte at the <code>position</code>.
+     */
+    public int segmentAt(long position) {
+        return (int) (position / segmentSize);
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    public int getSegmentCount() {
+        return encryptedOffsets.length;
+    }
+
+    /**
+     * Returns the length of the plain content of the segment with the given <code>index</code>.
+     */
+    public int getPlainLength(int index) {
+        return plainLengths[index];
+    }
+
+    /**
+     * Returns the length of the whole plain content.
+     */
+    public long getPlainSize() {
+        return plainSize;
+    }
+
+    /**
+     * Reads from the <code>channel</code> at the <code>position</code> until the <code>buffer</code> is full.
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Content is truncated");
+            }
+            position += read;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package org.developercookie.file.encryption;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An InputStream that returns the decrypted content of a stream in the segmented format, one segment at a time. If the
+ * stream ends before the last segment an EOFException is thrown. A wrong key is reported as IOException whose cause is
+ * an IllegalKeyException. Created by developerCookie on 19.10.26.
+ */
+public class SegmentInputStream extends InputStream {
+    /**
+     * Reads and decrypts the segments.
+     */
+    private final SegmentReader reader;
+
+    /**
+     * The stream the records are read from.
+     */
+    private final InputStream in;
+
+    /**
+     * The current decrypted segment.
+     */
+    private byte[] segment = new byte[0];
+
+    /**
+     * The position in the current segment.
+     */
+    private int position;
+
+    /**
+     * The header is read from <code>in</code> immediately. If it is not a segmented stream an IOException will be
+     * thrown.
+     */
+    public SegmentInputStream(InputStream in, ContentTransformer contentTransformer, String key) throws IOException {
+        this.in = in;
+        this.reader = new SegmentReader(in, contentTransformer, key);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        while (position == segment.length) {
+            if (!nextSegment()) {
+                return -1;
+            }
+        }
+        int copied = Math.min(length, segment.length - position);
+        System.arraycopy(segment, position, buffer, offset, copied);
+        position += copied;
+        return copied;
+    }
+
+    @Override
+    public int available() {
+        return segment.length - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Decrypts the next segment. Returns false after the last segment.
+     */
+    private boolean nextSegment() throws IOException {
+        try {
+            byte[] next = reader.readSegment();
+            if (next == null) {
+                return false;
+            }
+            segment = next;
+            position = 0;
+            return true;
+        } catch (IllegalKeyException ex) {
+            IOException wrapped = new IOException("Key was not correct");
+            wrapped.initCause(ex);
+            throw wrapped;
+        }
+    }
+}
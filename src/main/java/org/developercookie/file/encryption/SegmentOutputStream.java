@@ -0,0 +1,96 @@
+package org.developercookie.file.encryption;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An OutputStream that encrypts everything written to it into the segmented format. Only one segment is held in
+ * memory, so a stream of any length is encrypted in constant memory. A full segment is written when the next byte
+ * arrives, so the segment that is open when the stream is closed is marked as the last one and a reader can detect a
+ * truncated stream. Created by developerCookie on 19.10.26.
+ */
+public class SegmentOutputStream extends OutputStream {
+    /**
+     * The stream the encrypted records are written to.
+     */
+    private final OutputStream out;
+
+    /**
+     * Encrypts and writes the segments.
+     */
+    private final SegmentWriter writer;
+
+    /**
+     * The plain content of the open segment.
+     */
+    private final byte[] segment;
+
+    /**
+     * The number of bytes in the open segment.
+     */
+    private int count;
+
+    /**
+     * True after the stream was closed.
+     */
+    private boolean closed;
+
+    /**
+     * The header with the <code>segmentSize</code> is written to <code>out</code> immediately, the content is encrypted
+     * with the <code>key</code> by the <code>contentTransformer</code>.
+     */
+    public SegmentOutputStream(OutputStream out, ContentTransformer contentTransformer, String key, int segmentSize) throws IOException {
+        this.out = out;
+        this.segment = new byte[segmentSize];
+        SegmentedFormat.writeHeader(out, segmentSize);
+        this.writer = new SegmentWriter(out, contentTransformer, key, 0);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException("Stream is closed");
+        }
+        while (length > 0) {
+            if (count == segment.length) {
+                writer.write(segment, count, false);
+                count = 0;
+            }
+            int copied = Math.min(length, segment.length - count);
+            System.arraycopy(buffer, offset, segment, count, copied);
+            count += copied;
+            offset += copied;
+            length -= copied;
+        }
+    }
+
+    /**
+     * Flushes the underlying stream. The open segment is not written before the stream is closed.
+     */
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Writes the open segment as last segment and closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            writer.write(segment, count, true);
+            out.flush();
+        } finally {
+            out.close();
+        }
+    }
+}
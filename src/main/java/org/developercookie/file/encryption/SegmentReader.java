@@ -0,0 +1,172 @@
+package org.developercookie.file.encryption;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a file in the segmented format segment by segment. Created by developerCookie on 19.10.26.
+ */
+public class SegmentReader {
+    /**
+     * The stream the records are read from.
+     */
+    private final DataInputStream in;
+
+    /**
+     * Decrypts every single segment.
+     */
+    private final ContentTransformer contentTransformer;
+
+    /**
+     * The key of the whole file, the segment keys are derived from it.
+     */
+    private final String key;
+
+    /**
+     * The segment size found in the header.
+     */
+    private final int segmentSize;
+
+    /**
+     * The index of the next segment that is expected.
+     */
+    private long nextIndex;
+
+    /**
+     * True if the last segment was read.
+     */
+    private boolean finished;
+
+    /**
+     * The plain length of the record whose header was read last.
+     */
+    private int lastPlainLength;
+
+    /**
+     * The offset of the next record from the start of the stream.
+     */
+    private long position;
+
+    /**
+     * The header is read from <code>in</code> immediately. If it is not a segmented stream an IOException will be
+     * thrown.
+     */
+    public SegmentReader(InputStream in, ContentTransformer contentTransformer, String key) throws IOException {
+        this.in = new DataInputStream(in);
+        this.contentTransformer = contentTransformer;
+        this.key = key;
+        this.segmentSize = SegmentedFormat.readHeader(this.in);
+        this.position = SegmentedFormat.HEADER_LENGTH;
+    }
+
+    /**
+     * Reads and decrypts the next segment. After the last segment null is returned. If the stream ends before the
+     * last segment an EOFException is thrown. If the key is not correct an IllegalKeyException will be thrown.
+     */
+    public byte[] readSegment() throws IOException, IllegalKeyException {
+        if (finished) {
+            return null;
+        }
+        boolean last = readRecordHeader();
+        int plainLength = lastPlainLength;
+        int encryptedLength = readEncryptedLength();
+        byte[] encrypted = new byte[encryptedLength];
+        EncryptionEvents.StageEvent stage = EncryptionEvents.StageEvent.begin(EncryptionEvents.READ, null, nextIndex);
+        in.readFully(encrypted);
+        stage.finish(encryptedLength);
+        stage = EncryptionEvents.StageEvent.begin(EncryptionEvents.CIPHER, null, nextIndex);
+        byte[] plain = contentTransformer.decrypt(encrypted, SegmentedFormat.segmentKey(key, nextIndex, last));
+        stage.finish(encryptedLength);
+        if (plain.length != plainLength) {
+            throw new IOException("Segment " + nextIndex + " has " + plain.length + " bytes instead of " + plainLength);
+        }
+        position += SegmentedFormat.RECORD_HEADER_LENGTH + encryptedLength;
+        nextIndex++;
+        finished = last;
+        return plain;
+    }
+
+    /**
+     * Skips the next segment without decrypting it and returns the length of its plain content.
+     */
+    public int skipSegment() throws IOException {
+        if (finished) {
+            throw new EOFException("No more segments");
+        }
+        boolean last = readRecordHeader();
+        int plainLength = lastPlainLength;
+        int encryptedLength = readEncryptedLength();
+        IOUtils.skipFully(in, encryptedLength);
+        position += SegmentedFormat.RECORD_HEADER_LENGTH + encryptedLength;
+        nextIndex++;
+        finished = last;
+        return plainLength;
+    }
+
+    /**
+     * Reads flags, index and plain length of the next record and checks that the index is the expected one. Returns
+     * true if it is the last segment.
+     */
+    private boolean readRecordHeader() throws IOException {
+        int flags;
+        try {
+            flags = in.readByte();
+        } catch (EOFException ex) {
+            throw new EOFException("Content is truncated after segment " + (nextIndex - 1));
+        }
+        long index = in.readLong();
+        if (index != nextIndex) {
+            throw new IOException("Expected segment " + nextIndex + " but found " + index);
+        }
+        lastPlainLength = in.readInt();
+        if (lastPlainLength < 0 || lastPlainLength > segmentSize) {
+            throw new IOException("Illegal plain length " + lastPlainLength + " of segment " + nextIndex);
+        }
+        return (flags & SegmentedFormat.LAST_SEGMENT) != 0;
+    }
+
+    /**
+     * Reads the length of the encrypted segment of the record and checks that it fits the segment size, so a damaged
+     * record can not make the reader allocate more than a segment.
+     */
+    private int readEncryptedLength() throws IOException {
+        int encryptedLength = in.readInt();
+        if (encryptedLength < 0 || encryptedLength > (long) segmentSize + SegmentedFormat.MAX_CIPHER_OVERHEAD) {
+            throw new IOException("Illegal encrypted length " + encryptedLength + " of segment " + nextIndex);
+        }
+        return encryptedLength;
+    }
+
+    /**
+     * Returns the segment size of the file.
+     */
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Returns the index of the next segment that will be read.
+     */
+    public long getNextIndex() {
+        return nextIndex;
+    }
+
+    /**
+     * Returns the offset of the next record from the start of the stream. If a segment can not be read, it is the
+     * offset of the damaged record.
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Returns true if the last segment was read.
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+}
@@ -0,0 +1,175 @@
+package org.developercookie.file.encryption;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * The segments of large files of a folder job that wait for their encryption. The worker that encrypts a large file
+ * reads a few segments ahead and queues them here; workers that have no file left steal the segments and encrypt them,
+ * while the owner writes the encrypted segments in order. A segment that nobody stole is encrypted by its owner, so
+ * the queue never slows down a job without idle workers. Created by developerCookie on 19.10.26.
+ */
+class SegmentStealQueue {
+    /**
+     * The segments that are not taken yet, oldest first.
+     */
+    private final Deque<Segment> queue = new ArrayDeque<Segment>();
+
+    /**
+     * The number of segments that were encrypted by another worker than their owner.
+     */
+    private int stolenSegments;
+
+    /**
+     * The time the idle workers spent encrypting stolen segments.
+     */
+    private long helpNanos;
+
+    /**
+     * The time the owners waited for segments that were encrypted by others.
+     */
+    private long waitNanos;
+
+    /**
+     * Queues the segment with the <code>index</code> of the <code>writer</code> for its encryption.
+     */
+    synchronized Segment submit(SegmentWriter writer, long index, byte[] plain, boolean last) {
+        Segment segment = new Segment(writer, index, plain, last);
+        queue.addLast(segment);
+        notifyAll();
+        return segment;
+    }
+
+    /**
+     * Returns the encrypted <code>segment</code>. If nobody took it yet the owner encrypts it itself; while another
+     * worker encrypts it the owner helps with other segments.
+     */
+    byte[] await(Segment segment) throws InterruptedIOException {
+        while (true) {
+            Segment next;
+            long start = System.nanoTime();
+            synchronized (this) {
+                if (segment.done) {
+                    return segment.result();
+                }
+                if (!segment.taken) {
+                    queue.remove(segment);
+                    segment.taken = true;
+                    next = segment;
+                } else {
+                    next = queue.pollFirst();
+                    if (next == null) {
+                        try {
+                            wait();
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("Waiting for a segment was interrupted");
+                        }
+                        waitNanos += System.nanoTime() - start;
+                        continue;
+                    }
+                    next.taken = true;
+                }
+            }
+            run(next, next != segment);
+        }
+    }
+
+    /**
+     * Encrypts one queued segment for another worker, waiting up to <code>timeoutMillis</code> for one. Returns false if
+     * there was none.
+     */
+    boolean help(long timeoutMillis) throws InterruptedIOException {
+        Segment segment;
+        synchronized (this) {
+            if (queue.isEmpty()) {
+                try {
+                    wait(timeoutMillis);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Waiting for a segment was interrupted");
+                }
+            }
+            segment = queue.pollFirst();
+            if (segment == null) {
+                return false;
+            }
+            segment.taken = true;
+            stolenSegments++;
+        }
+        long start = System.nanoTime();
+        run(segment, false);
+        synchronized (this) {
+            helpNanos += System.nanoTime() - start;
+        }
+        return true;
+    }
+
+    synchronized int getStolenSegments() {
+        return stolenSegments;
+    }
+
+    synchronized long getHelpNanos() {
+        return helpNanos;
+    }
+
+    synchronized long getWaitNanos() {
+        return waitNanos;
+    }
+
+    private void run(Segment segment, boolean stolen) {
+        byte[] encrypted = null;
+        RuntimeException failure = null;
+        try {
+            encrypted = segment.writer.encrypt(segment.index, segment.plain, segment.last);
+        } catch (RuntimeException ex) {
+            failure = ex;
+        }
+        synchronized (this) {
+            if (stolen) {
+                stolenSegments++;
+            }
+            segment.encrypted = encrypted;
+            segment.failure = failure;
+            segment.done = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * A plain segment of a file and, after its encryption, the encrypted segment.
+     */
+    static class Segment {
+        private final SegmentWriter writer;
+        private final long index;
+        private final byte[] plain;
+        private final boolean last;
+        private boolean taken;
+        private boolean done;
+        private byte[] encrypted;
+        private RuntimeException failure;
+
+        Segment(SegmentWriter writer, long index, byte[] plain, boolean last) {
+            this.writer = writer;
+            this.index = index;
+            this.plain = plain;
+            this.last = last;
+        }
+
+        int getPlainLength() {
+            return plain.length;
+        }
+
+        boolean isLast() {
+            return last;
+        }
+
+        private byte[] result() {
+            if (failure != null) {
+                throw failure;
+            }
+            return encrypted;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package org.developercookie.file.encryption;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Writes the segment records of the segmented format to a stream. The header must already be written. Created by
+ * developerCookie on 19.10.26.
+ */
+public class SegmentWriter {
+    /**
+     * The stream the records are written to.
+     */
+    private final DataOutputStream out;
+
+    /**
+     * Encrypts every single segment.
+     */
+    private final ContentTransformer contentTransformer;
+
+    /**
+     * The key of the whole file, the segment keys are derived from it.
+     */
+    private final String key;
+
+    /**
+     * The index of the next segment to write.
+     */
+    private long nextIndex;
+
+    /**
+     * Records are written to <code>out</code> starting with the segment <code>firstIndex</code>. The first index is
+     * not 0 when an interrupted file is continued.
+     */
+    public SegmentWriter(OutputStream out, ContentTransformer contentTransformer, String key, long firstIndex) {
+        this.out = new DataOutputStream(out);
+        this.contentTransformer = contentTransformer;
+        this.key = key;
+        this.nextIndex = firstIndex;
+    }
+
+    /**
+     * Encrypts the first <code>length</code> bytes of <code>plainSegment</code> and writes them as the next record.
+     * <code>last</code> marks the end of the file. Returns the number of bytes written.
+     */
+    public int write(byte[] plainSegment, int length, boolean last) throws IOException {
+        byte[] plain = length == plainSegment.length ? plainSegment : Arrays.copyOf(plainSegment, length);
+        return writeEncrypted(encrypt(nextIndex, plain, last), length, last);
+    }
+
+    /**
+     * Encrypts the segment with the given <code>index</code> without writing it. Segments can be encrypted in parallel
+     * by this method and written in order by {@link #writeEncrypted(byte[], int, boolean)}.
+     */
+    public byte[] encrypt(long index, byte[] plainSegment, boolean last) {
+        EncryptionEvents.StageEvent stage = EncryptionEvents.StageEvent.begin(EncryptionEvents.CIPHER, null, index);
+        byte[] encrypted = contentTransformer.encrypt(plainSegment, SegmentedFormat.segmentKey(key, index, last));
+        stage.finish(plainSegment.length);
+        return encrypted;
+    }
+
+    /**
+     * Writes a segment that was already encrypted for the next index. Returns the number of bytes written.
+     */
+    public int writeEncrypted(byte[] encryptedSegment, int plainLength, boolean last) throws IOException {
+        out.writeByte(last ? SegmentedFormat.LAST_SEGMENT : 0);
+        out.writeLong(nextIndex);
+        out.writeInt(plainLength);
+        out.writeInt(encryptedSegment.length);
+        out.write(encryptedSegment);
+        nextIndex++;
+        return SegmentedFormat.RECORD_HEADER_LENGTH + encryptedSegment.length;
+    }
+
+    /**
+     * Returns the index of the next segment that will be written.
+     */
+    public long getNextIndex() {
+        return nextIndex;
+    }
+
+    /**
+     * Flushes the underlying stream.
+     */
+    public void flush() throws IOException {
+        out.flush();
+    }
+}
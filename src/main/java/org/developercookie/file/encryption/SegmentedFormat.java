@@ -0,0 +1,105 @@
+package org.developercookie.file.encryption;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Describes the segmented file format that is used for large files. The content is cut into segments of a fixed size
+ * and every segment is encrypted on its own by a ContentTransformer, so a file never needs to be held in memory as a
+ * whole and work can be continued at a segment boundary.<br/> The file starts with the magic bytes and the segment
+ * size. Every segment is stored as a record: a flag byte (marks the last segment), the segment index, the length of the
+ * plain segment, the length of the encrypted segment and the encrypted bytes. The index and the last flag are part of
+ * the key of the segment, so a reordered or truncated file can not be decrypted. Created by developerCookie on
+ * 19.10.26.
+ */
+public final class SegmentedFormat {
+    /**
+     * The bytes every segmented file starts with.
+     */
+    static final byte[] MAGIC = {'F', 'E', 'N', 'C', 'S', 'E', 'G', '1'};
+
+    /**
+     * The length of the header: magic bytes and segment size.
+     */
+    public static final int HEADER_LENGTH = MAGIC.length + 4;
+
+    /**
+     * The length of the header of each record: flags, index, plain length and encrypted length.
+     */
+    public static final int RECORD_HEADER_LENGTH = 1 + 8 + 4 + 4;
+
+    /**
+     * The most bytes a ContentTransformer may add to a segment when it encrypts it. Records with a longer encrypted
+     * segment are rejected before their content is read.
+     */
+    public static final int MAX_CIPHER_OVERHEAD = 1024;
+
+    /**
+     * The flag that marks the last segment of a file.
+     */
+    static final byte LAST_SEGMENT = 1;
+
+    /**
+     * The default size of one segment.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+    private SegmentedFormat() {
+    }
+
+    /**
+     * Writes the header of a segmented file with the given <code>segmentSize</code> to the <code>out</code> stream.
+     */
+    public static void writeHeader(OutputStream out, int segmentSize) throws IOException {
+        DataOutputStream dataStream = new DataOutputStream(out);
+        dataStream.write(MAGIC);
+        dataStream.writeInt(segmentSize);
+        dataStream.flush();
+    }
+
+    /**
+     * Reads the header from the <code>in</code> stream and returns the segment size. If the stream is not in the
+     * segmented format an IOException will be thrown.
+     */
+    public static int readHeader(InputStream in) throws IOException {
+        DataInputStream dataStream = new DataInputStream(in);
+        byte[] magic = new byte[MAGIC.length];
+        dataStream.readFully(magic);
+        if (!Arrays.equals(MAGIC, magic)) {
+            throw new IOException("Content is not in the segmented format");
+        }
+        int segmentSize = dataStream.readInt();
+        if (segmentSize <= 0) {
+            throw new IOException("Illegal segment size " + segmentSize);
+        }
+        return segmentSize;
+    }
+
+    /**
+     * Returns true if the file with the given <code>filename</code> starts with the magic bytes of the segmented
+     * format.
+     */
+    public static boolean isSegmented(String filename) throws IOException {
+        FileInputStream stream = new FileInputStream(filename);
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            return IOUtils.read(stream, magic) == MAGIC.length && Arrays.equals(MAGIC, magic);
+        } finally {
+            IOUtils.closeQuietly(stream);
+        }
+    }
+
+    /**
+     * Derives the key of the segment with the given <code>index</code> from the <code>key</code> of the file.
+     */
+    static String segmentKey(String key, long index, boolean last) {
+        StringBuilder buffer = new StringBuilder(key.length() + 24);
+        buffer.append(key).append('\u0000').append(index);
+        if (last) {
+            buffer.append("\u0000last");
+        }
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,613 @@
+package org.developercookie.file.encryption;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.SuffixFileFilter;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lets several processes, on one host or on several hosts with a shared mount, encrypt or decrypt one folder tree
+ * together. The first worker lists the tree once and writes a plan into the coordination folder of the output folder:
+ * the files split into shards of a few files each, the largest files first. Every worker claims a shard by creating its
+ * lease file, renews the lease while it works on the shard and marks the shard done when all files are written. A
+ * lease that was not renewed for the lease time belongs to a worker that died; it is taken over by another worker.<br/>
+ * Every worker writes its files through partial files of its own that replace the target atomically, so a shard
+ * that is taken over from a worker that was only slow is never written twice into the same file. Each process runs the
+ * worker count of its FileEncryption of threads. The hosts need synchronized clocks, far below the lease time.<br/>
+ * The coordination folder is kept after the job, so workers that start late find the job done; it must be removed to
+ * run the same job again. Encrypted names, manifests and mirroring are not supported. Created by developerCookie on
+ * 19.10.26.
+ */
+public class ShardCoordinator {
+    /**
+     * The folder inside of the output folder that holds the plan, the leases and the done markers.
+     */
+    public static final String COORDINATION_FOLDER = ".shard-coordination";
+
+    /**
+     * The lease time if none is set.
+     */
+    public static final long DEFAULT_LEASE_MILLIS = 60000;
+
+    /**
+     * The most files of a shard if none is set.
+     */
+    public static final int DEFAULT_SHARD_FILES = 64;
+
+    /**
+     * The most bytes of a shard if none is set. A larger file is a shard of its own.
+     */
+    public static final long DEFAULT_SHARD_BYTES = 256L * 1024 * 1024;
+
+    private static final String PLAN_FILENAME = "plan";
+    private static final String JOB = "JOB";
+
+    /**
+     * Encrypts and decrypts the files.
+     */
+    private final FileEncryption fileEncryption;
+
+    /**
+     * Identifies this process in the lease files and partial files.
+     */
+    private final String workerId;
+
+    private long leaseMillis = DEFAULT_LEASE_MILLIS;
+    private int shardFiles = DEFAULT_SHARD_FILES;
+    private long shardBytes = DEFAULT_SHARD_BYTES;
+
+    /**
+     * The worker id is built from the process id and the host name.
+     */
+    public ShardCoordinator(FileEncryption fileEncryption) {
+        this(fileEncryption, ManagementFactory.getRuntimeMXBean().getName().replaceAll("[^A-Za-z0-9._-]", "_"));
+    }
+
+    /**
+     * The <code>workerId</code> must be unique among the workers of a job and may only contain letters, digits, '.',
+     * '_' and '-'.
+     */
+    public ShardCoordinator(FileEncryption fileEncryption, String workerId) {
+        if (!workerId.matches("[A-Za-z0-9._-]+")) {
+            throw new IllegalArgumentException("Illegal worker id: " + workerId);
+        }
+        this.fileEncryption = fileEncryption;
+        this.workerId = workerId;
+    }
+
+    /**
+     * Sets after how many milliseconds without renewal a lease is taken over. Leases are renewed three times within
+     * this time, so it must be at least 3 milliseconds.
+     */
+    public void setLeaseMillis(long leaseMillis) {
+        if (leaseMillis < 3) {
+            throw new IllegalArgumentException("Lease time must be at least 3 milliseconds");
+        }
+        this.leaseMillis = leaseMillis;
+    }
+
+    /**
+     * Sets the most files and bytes of a shard of a new plan.
+     */
+    public void setShardSize(int shardFiles, long shardBytes) {
+        if (shardFiles <= 0 || shardBytes <= 0) {
+            throw new IllegalArgumentException("Shard size must be positive");
+        }
+        this.shardFiles = shardFiles;
+        this.shardBytes = shardBytes;
+    }
+
+    /**
+     * Works on the encryption of the <code>folderToEncrypt</code> into the <code>outputFolder</code> like
+     * {@link FileEncryption#encryptFolder(String, String, String, String)} until all shards of the job are done, and
+     * returns the number of shards this process completed.
+     */
+    public int encryptFolder(String folderToEncrypt, String outputFolder, String fileExtension, final String key) throws IOException {
+        if (fileEncryption.isEncryptNames() || fileEncryption.isMirror()) {
+            throw new IllegalStateException("Encrypted names and mirroring are not supported for sharded jobs");
+        }
+        String jobId = CheckpointJournal.jobId("shard-encrypt", new File(folderToEncrypt).getAbsolutePath(), fileExtension, key);
+        final PathMapper pathMapper = new PathMapper(folderToEncrypt, outputFolder, fileEncryption.getShardDepth());
+        final String extension = fileExtension;
+        try {
+            Plan plan = loadPlan(folderToEncrypt, outputFolder, jobId, new Callable<Plan>() {
+                @Override
+                public Plan call() {
+                    Plan plan = new Plan();
+                    for (File oneFile : pathMapper.listSourceFiles(new SuffixFileFilter(extension))) {
+                        plan.add(oneFile, FileEncryption.encryptedFile(pathMapper, null, oneFile));
+                    }
+                    return plan;
+                }
+            });
+            return run(plan, folderToEncrypt, outputFolder, new FileWork() {
+                @Override
+                public void process(File source, File target, String owner) throws IOException {
+                    fileEncryption.encryptTo(source, target, key, owner);
+                }
+            });
+        } catch (IllegalKeyException ex) {
+            throw new IllegalStateException("Encryption does not check keys", ex);
+        }
+    }
+
+    /**
+     * Works on the decryption of the <code>folderToDecrypt</code> into the <code>outputFolder</code> like
+     * {@link FileEncryption#decryptFolder(String, String, String)} until all shards of the job are done, and returns
+     * the number of shards this process completed.
+     */
+    public int decryptFolder(final String folderToDecrypt, String outputFolder, final String key) throws IOException, IllegalKeyException {
+        if (fileEncryption.isMirror()) {
+            throw new IllegalStateException("Mirroring is not supported for sharded jobs");
+        }
+        String jobId = CheckpointJournal.jobId("shard-decrypt", new File(folderToDecrypt).getAbsolutePath(), key);
+        final PathMapper pathMapper = new PathMapper(folderToDecrypt, outputFolder, fileEncryption.getShardDepth());
+        Plan plan = loadPlan(folderToDecrypt, outputFolder, jobId, new Callable<Plan>() {
+            @Override
+            public Plan call() throws IOException, IllegalKeyException {
+                Plan plan = new Plan();
+                for (Map.Entry<File, File> oneFile : fileEncryption.decryptTargets(pathMapper, folderToDecrypt, key).entrySet()) {
+                    plan.add(oneFile.getKey(), oneFile.getValue());
+                }
+                return plan;
+            }
+        });
+        return run(plan, folderToDecrypt, outputFolder, new FileWork() {
+            @Override
+            public void process(File source, File target, String owner) throws IOException, IllegalKeyException {
+                fileEncryption.decryptTo(source, target, key, owner);
+            }
+        });
+    }
+
+    /**
+     * Returns the plan of the job <code>jobId</code> on the <code>sourceFolder</code> from the coordination folder of
+     * the <code>outputFolder</code>.
+     * If there is none, the plan of the <code>planner</code> is written, unless another worker wrote its plan first.
+     */
+    private Plan loadPlan(String sourceFolder, String outputFolder, String jobId, Callable<Plan> planner) throws IOException, IllegalKeyException {
+        File folder = new File(outputFolder, COORDINATION_FOLDER);
+        File planFile = new File(folder, PLAN_FILENAME);
+        if (!planFile.exists()) {
+            Plan plan;
+            try {
+                plan = planner.call();
+            } catch (IOException ex) {
+                throw ex;
+            } catch (IllegalKeyException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                throw new IllegalStateException(ex);
+            }
+            FileUtils.forceMkdir(folder);
+            File tempFile = new File(folder, PLAN_FILENAME + "." + workerId + FileEncryption.PART_EXTENSION);
+            plan.write(tempFile, jobId, new File(sourceFolder), new File(outputFolder), shardFiles, shardBytes);
+            try {
+                Files.createLink(planFile.toPath(), tempFile.toPath());
+            } catch (FileAlreadyExistsException ex) {
+                // another worker was faster, its plan is used
+            } finally {
+                Files.deleteIfExists(tempFile.toPath());
+            }
+        }
+        return Plan.read(planFile, jobId);
+    }
+
+    /**
+     * Runs the workers of this process on the shards of the <code>plan</code> until all are done.
+     */
+    private int run(final Plan plan, final String sourceFolder, final String outputFolder, final FileWork work) throws IOException, IllegalKeyException {
+        final File folder = new File(outputFolder, COORDINATION_FOLDER);
+        final Set<Lease> leases = Collections.newSetFromMap(new ConcurrentHashMap<Lease, Boolean>());
+        final AtomicInteger completed = new AtomicInteger();
+        int threads = Math.max(1, fileEncryption.getWorkerCount());
+        ScheduledExecutorService renewer = Executors.newSingleThreadScheduledExecutor();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            renewer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    for (Lease lease : leases) {
+                        lease.renew();
+                    }
+                }
+            }, leaseMillis / 3, leaseMillis / 3, TimeUnit.MILLISECONDS);
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int i = 0; i < threads; i++) {
+                final String owner = workerId + "-" + i;
+                final int firstShard = plan.getShardCount() * i / threads;
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        work(plan, folder, sourceFolder, outputFolder, owner, firstShard, leases, completed, work);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                waitFor(result);
+            }
+            return completed.get();
+        } finally {
+            executor.shutdownNow();
+            renewer.shutdownNow();
+        }
+    }
+
+    /**
+     * Claims shards, starting the search at <code>firstShard</code>, and processes them until all shards are done.
+     * While only shards of other workers are left it waits for them to be done or to expire.
+     */
+    private void work(Plan plan, File folder, String sourceFolder, String outputFolder, String owner, int firstShard, Set<Lease> leases, AtomicInteger completed, FileWork work) throws IOException, IllegalKeyException {
+        int shardCount = plan.getShardCount();
+        int next = firstShard;
+        while (true) {
+            Lease lease = null;
+            boolean pending = false;
+            for (int i = 0; i < shardCount && lease == null; i++) {
+                int shard = (next + i) % shardCount;
+                if (plan.isDone(shard) || doneFile(folder, shard).exists()) {
+                    plan.setDone(shard);
+                    continue;
+                }
+                pending = true;
+                lease = Lease.claim(leaseFile(folder, shard), owner, leaseMillis);
+                if (lease != null) {
+                    next = shard + 1;
+                }
+            }
+            if (!pending) {
+                return;
+            }
+            if (lease == null) {
+                sleep(Math.max(1, leaseMillis / 4));
+                continue;
+            }
+            leases.add(lease);
+            try {
+                if (processShard(plan, lease, sourceFolder, outputFolder, owner, work)) {
+                    File doneFile = doneFile(folder, lease.getShard());
+                    try {
+                        Files.createFile(doneFile.toPath());
+                    } catch (FileAlreadyExistsException ex) {
+                        // the shard was taken over and finished by another worker as well
+                    }
+                    FileEncryption.syncFolder(doneFile);
+                    plan.setDone(lease.getShard());
+                    completed.incrementAndGet();
+                }
+            } finally {
+                leases.remove(lease);
+                lease.release();
+            }
+        }
+    }
+
+    /**
+     * Processes the files of the shard of the <code>lease</code>. Returns false if the lease was lost to another
+     * worker before all files were written. The files are synced by the FileEncryption; the folders they were moved
+     * into are synced here, so the done marker of the shard is never on the disk before its files.
+     */
+    private boolean processShard(Plan plan, Lease lease, String sourceFolder, String outputFolder, String owner, FileWork work) throws IOException, IllegalKeyException {
+        Map<File, File> targetFolders = new LinkedHashMap<File, File>();
+        for (String[] item : plan.getItems(lease.getShard())) {
+            if (lease.isLost()) {
+                return false;
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Sharded job was interrupted");
+            }
+            File target = new File(outputFolder, item[1]);
+            FileUtils.forceMkdir(target.getAbsoluteFile().getParentFile());
+            work.process(new File(sourceFolder, item[0]), target, owner);
+            targetFolders.put(target.getAbsoluteFile().getParentFile(), target);
+        }
+        for (File target : targetFolders.values()) {
+            FileEncryption.syncFolder(target);
+        }
+        return !lease.isLost();
+    }
+
+    private static File leaseFile(File folder, int shard) {
+        return new File(folder, String.format("shard-%06d.lease", shard));
+    }
+
+    private static File doneFile(File folder, int shard) {
+        return new File(folder, String.format("shard-%06d.done", shard));
+    }
+
+    private static void sleep(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Sharded job was interrupted");
+        }
+    }
+
+    private static void waitFor(Future<Void> future) throws IOException, IllegalKeyException {
+        try {
+            future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Sharded job was interrupted");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            if (ex.getCause() instanceof IllegalKeyException) {
+                throw (IllegalKeyException) ex.getCause();
+            }
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new IllegalStateException(ex.getCause());
+        }
+    }
+
+    /**
+     * The work on one file of a shard.
+     */
+    private interface FileWork {
+        void process(File source, File target, String owner) throws IOException, IllegalKeyException;
+    }
+
+    /**
+     * The files of a job with their targets, split into shards.
+     */
+    static class Plan {
+        /**
+         * The relative paths of the source and the target of every file, in the order of the shards.
+         */
+        private final List<String[]> items = new ArrayList<String[]>();
+
+        /**
+         * The sizes of the files while the plan is built.
+         */
+        private final List<Long> sizes = new ArrayList<Long>();
+
+        /**
+         * The source files while the plan is built.
+         */
+        private final List<File> sources = new ArrayList<File>();
+
+        /**
+         * The targets while the plan is built.
+         */
+        private final List<File> targets = new ArrayList<File>();
+
+        /**
+         * The index of the first item of every shard and, at the end, the number of items.
+         */
+        private final List<Integer> shardStarts = new ArrayList<Integer>();
+
+        /**
+         * The shards that are known to be done.
+         */
+        private boolean[] done;
+
+        void add(File source, File target) {
+            sources.add(source);
+            targets.add(target);
+            sizes.add(source.length());
+        }
+
+        /**
+         * Writes the plan, the largest files first, into the <code>file</code>. The paths are written relative to the
+         * <code>sourceFolder</code> and the <code>outputFolder</code> and escaped, because a file name can contain the
+         * tabs and line breaks that separate the entries.
+         */
+        void write(File file, String jobId, File sourceFolder, File outputFolder, int shardFiles, long shardBytes) throws IOException {
+            Integer[] order = new Integer[sources.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer first, Integer second) {
+                    return sizes.get(second).compareTo(sizes.get(first));
+                }
+            });
+            Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+            try {
+                writer.write(JOB + " " + jobId + "\n");
+                int shard = 0;
+                int files = 0;
+                long bytes = 0;
+                for (Integer i : order) {
+                    if (files > 0 && (files >= shardFiles || bytes + sizes.get(i) > shardBytes)) {
+                        shard++;
+                        files = 0;
+                        bytes = 0;
+                    }
+                    files++;
+                    bytes += sizes.get(i);
+                    writer.write(shard + "\t" + escape(IntegrityManifest.relativeName(sourceFolder, sources.get(i))) + "\t"
+                            + escape(IntegrityManifest.relativeName(outputFolder, targets.get(i))) + "\n");
+                }
+            } finally {
+                writer.close();
+            }
+        }
+
+        /**
+         * Reads the plan of the job <code>jobId</code> from the <code>file</code>.
+         */
+        static Plan read(File file, String jobId) throws IOException {
+            List<String> lines = FileUtils.readLines(file, "UTF-8");
+            if (lines.isEmpty() || !lines.get(0).equals(JOB + " " + jobId)) {
+                throw new IOException("Output folder has the shard plan of another job, remove " + file.getParent() + " to start a new one");
+            }
+            Plan plan = new Plan();
+            int shard = -1;
+            for (String line : lines.subList(1, lines.size())) {
+                String[] parts = line.split("\t", 3);
+                int lineShard = Integer.parseInt(parts[0]);
+                if (lineShard != shard) {
+                    plan.shardStarts.add(plan.items.size());
+                    shard = lineShard;
+                }
+                plan.items.add(new String[]{unescape(parts[1]), unescape(parts[2])});
+            }
+            plan.shardStarts.add(plan.items.size());
+            plan.done = new boolean[plan.getShardCount()];
+            return plan;
+        }
+
+        int getShardCount() {
+            return shardStarts.size() - 1;
+        }
+
+        /**
+         * Escapes backslashes, tabs and line breaks of a <code>path</code>.
+         */
+        static String escape(String path) {
+            return path.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+        }
+
+        /**
+         * Reverses {@link #escape(String)}.
+         */
+        static String unescape(String path) {
+            StringBuilder unescaped = new StringBuilder(path.length());
+            for (int i = 0; i < path.length(); i++) {
+                char c = path.charAt(i);
+                if (c == '\\' && i + 1 < path.length()) {
+                    char next = path.charAt(++i);
+                    c = next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next;
+                }
+                unescaped.append(c);
+            }
+            return unescaped.toString();
+        }
+
+        /**
+         * Returns the relative source path and the relative target path of every file of the <code>shard</code>.
+         */
+        List<String[]> getItems(int shard) {
+            return items.subList(shardStarts.get(shard), shardStarts.get(shard + 1));
+        }
+
+        synchronized boolean isDone(int shard) {
+            return done[shard];
+        }
+
+        synchronized void setDone(int shard) {
+            done[shard] = true;
+        }
+    }
+
+    /**
+     * The lease of a worker on a shard. The lease file contains the owner; the owner renews the lease by touching the
+     * file.
+     */
+    static class Lease {
+        private final File file;
+        private final int shard;
+        private final String owner;
+        private volatile boolean lost;
+
+        private Lease(File file, int shard, String owner) {
+            this.file = file;
+            this.shard = shard;
+            this.owner = owner;
+        }
+
+        /**
+         * Claims the lease <code>file</code> for the <code>owner</code> if it is free or expired for
+         * <code>leaseMillis</code>. Returns null if another worker holds it.
+         */
+        static Lease claim(File file, String owner, long leaseMillis) throws IOException {
+            long lastModified = file.lastModified();
+            if (lastModified != 0) {
+                if (System.currentTimeMillis() - lastModified <= leaseMillis) {
+                    return null;
+                }
+                File expired = new File(file.getPath() + "." + owner + ".expired");
+                try {
+                    Files.move(file.toPath(), expired.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } catch (NoSuchFileException ex) {
+                    return null;
+                }
+                if (System.currentTimeMillis() - expired.lastModified() <= leaseMillis) {
+                    // the lease was renewed or claimed again meanwhile, so it is given back
+                    try {
+                        Files.createLink(file.toPath(), expired.toPath());
+                    } catch (FileAlreadyExistsException ex) {
+                        // the owner will find out that it lost the lease
+                    }
+                    Files.deleteIfExists(expired.toPath());
+                    return null;
+                }
+                Files.deleteIfExists(expired.toPath());
+            }
+            try {
+                Files.createFile(file.toPath());
+            } catch (FileAlreadyExistsException ex) {
+                return null;
+            }
+            Files.write(file.toPath(), owner.getBytes("UTF-8"));
+            String name = file.getName();
+            return new Lease(file, Integer.parseInt(name.substring(name.indexOf('-') + 1, name.indexOf('.'))), owner);
+        }
+
+        int getShard() {
+            return shard;
+        }
+
+        /**
+         * Returns true if another worker took the lease over.
+         */
+        boolean isLost() {
+            return lost;
+        }
+
+        /**
+         * Touches the lease file, if it still belongs to the owner.
+         */
+        void renew() {
+            if (lost) {
+                return;
+            }
+            try {
+                if (!owns() || !file.setLastModified(System.currentTimeMillis())) {
+                    lost = true;
+                }
+            } catch (IOException ex) {
+                lost = true;
+            }
+        }
+
+        /**
+         * Removes the lease file, if it still belongs to the owner.
+         */
+        void release() throws IOException {
+            if (owns()) {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+
+        private boolean owns() throws IOException {
+            try {
+                return new String(Files.readAllBytes(file.toPath()), "UTF-8").equals(owner);
+            } catch (NoSuchFileException ex) {
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package org.developercookie.file.encryption;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A ContentTransformer that can also encrypt and decrypt streams, so content of any size can be transformed without
+ * holding it in memory. The streams produce the same bytes as {@link #encrypt(byte[], String)} and
+ * {@link #decrypt(byte[], String)}. Created by developerCookie on 19.10.26.
+ */
+public interface StreamingContentTransformer extends ContentTransformer {
+    /**
+     * Returns a stream that encrypts everything written to it with the given <code>key</code> into the
+     * <code>out</code> stream. The encryption is only complete when the returned stream is closed.
+     */
+    OutputStream encryptingStream(OutputStream out, String key) throws IOException;
+
+    /**
+     * Returns a stream that decrypts the content of the <code>in</code> stream with the given <code>key</code>. If this
+     * is the incorrect key, reading the stream throws an IOException whose cause is an IllegalKeyException.
+     */
+    InputStream decryptingStream(InputStream in, String key) throws IOException;
+}
@@ -0,0 +1,41 @@
+package org.developercookie.file.encryption;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An InputStream that reports the latency of every read to the RateLimiter and then waits until the read bytes are
+ * allowed by it. It must wrap the file stream below any buffer, so every read it sees is a read from the disk. Created
+ * by developerCookie on 19.10.26.
+ */
+class ThrottledInputStream extends FilterInputStream {
+    private final RateLimiter rateLimiter;
+
+    ThrottledInputStream(InputStream in, RateLimiter rateLimiter) {
+        super(in);
+        this.rateLimiter = rateLimiter;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        long start = System.nanoTime();
+        int read = in.read(buffer, offset, length);
+        if (read > 0) {
+            rateLimiter.recordRead(read, System.nanoTime() - start);
+            rateLimiter.acquireBytes(read);
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        return in.skip(n);
+    }
+}
@@ -0,0 +1,106 @@
+package org.developercookie.file.encryption.cli;
+
+import org.apache.commons.io.FileUtils;
+import org.developercookie.file.encryption.AESContentTransformer;
+import org.developercookie.file.encryption.FileEncryption;
+import org.developercookie.file.encryption.IllegalKeyException;
+import org.developercookie.file.encryption.PathSelector;
+import org.developercookie.file.encryption.RestoreReport;
+import org.developercookie.file.encryption.ShardCoordinator;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Encrypts and decrypts streams from the command line, so the encryption can be used in pipes like
+ * <code>tar c dir | java -jar fileEncrypter.jar encrypt | ssh host 'cat > dir.tar.enc'</code>. The key is taken from
+ * the environment variable {@value #KEY_VARIABLE} or from the file given by <code>--key-file</code>, never from the
+ * arguments, because these are visible to all users of the machine. Created by developerCookie on 19.10.26.
+ */
+public class CommandLineTool {
+    /**
+     * The environment variable that holds the key.
+     */
+    public static final String KEY_VARIABLE = "FILE_ENCRYPTION_KEY";
+
+    private static final String USAGE = "Usage: [--key-file <file>] <command>\n"
+            + "  encrypt          encrypts stdin to stdout\n"
+            + "  decrypt          decrypts stdin to stdout\n"
+            + "  pack <folder>    encrypts the folder with all sub folders to stdout\n"
+            + "  unpack <folder>  decrypts stdin into the folder\n"
+            + "  restore <encrypted folder> <folder> <glob>...\n"
+            + "                   decrypts the files whose relative path matches a glob into the folder\n"
+            + "  shard-encrypt <folder> <encrypted folder> <extension>\n"
+            + "                   encrypts the files together with the other processes that run the same command\n"
+            + "  shard-decrypt <encrypted folder> <folder>\n"
+            + "                   decrypts the files together with the other processes that run the same command\n"
+            + "The key is read from the key file or the environment variable " + KEY_VARIABLE + ".";
+
+    private CommandLineTool() {
+    }
+
+    /**
+     * Writes to the file descriptor of stdout instead of <code>System.out</code>, because a PrintStream swallows write
+     * errors like a closed pipe and the tool would report success.
+     */
+    public static void main(String[] args) {
+        System.exit(run(args, System.getenv(), System.in, new FileOutputStream(FileDescriptor.out), System.err));
+    }
+
+    /**
+     * Runs the command given by <code>args</code> and returns the exit code: 0 on success, 1 for a failure and 2 for
+     * wrong arguments. The <code>out</code> stream is flushed, so a failing write to it is a failure as well.
+     */
+    public static int run(String[] args, Map<String, String> environment, InputStream in, OutputStream out, PrintStream err) {
+        int next = 0;
+        String key = environment.get(KEY_VARIABLE);
+        try {
+            if (args.length >= 2 && args[0].equals("--key-file")) {
+                key = FileUtils.readFileToString(new File(args[1]), "UTF-8").trim();
+                next = 2;
+            }
+            if (key == null || key.isEmpty() || args.length <= next) {
+                err.println(USAGE);
+                return 2;
+            }
+            FileEncryption fileEncryption = new FileEncryption(new AESContentTransformer());
+            String command = args[next];
+            String folder = args.length > next + 1 ? args[next + 1] : null;
+            if (command.equals("encrypt")) {
+                fileEncryption.encryptStream(in, out, key);
+            } else if (command.equals("decrypt")) {
+                fileEncryption.decryptStream(in, out, key);
+            } else if (command.equals("pack") && folder != null) {
+                fileEncryption.encryptFolderToStream(folder, out, key);
+            } else if (command.equals("unpack") && folder != null) {
+                fileEncryption.decryptStreamToFolder(in, folder, key);
+            } else if (command.equals("restore") && args.length > next + 3) {
+                PathSelector selector = PathSelector.glob(Arrays.copyOfRange(args, next + 3, args.length));
+                RestoreReport report = fileEncryption.restoreSelected(folder, args[next + 2], key, selector);
+                for (RestoreReport.Failure failure : report.getFailures()) {
+                    err.println("Failed: " + failure);
+                }
+                err.println(report);
+                return report.isComplete() ? 0 : 1;
+            } else if (command.equals("shard-encrypt") && args.length == next + 4) {
+                int shards = new ShardCoordinator(fileEncryption).encryptFolder(folder, args[next + 2], args[next + 3], key);
+                err.println("Completed " + shards + " shards");
+            } else if (command.equals("shard-decrypt") && args.length == next + 3) {
+                int shards = new ShardCoordinator(fileEncryption).decryptFolder(folder, args[next + 2], key);
+                err.println("Completed " + shards + " shards");
+            } else {
+                err.println(USAGE);
+                return 2;
+            }
+            out.flush();
+            return 0;
+        } catch (IllegalKeyException ex) {
+            err.println("Key was not correct");
+            return 1;
+        } catch (IOException ex) {
+            err.println("Failed: " + ex.getMessage());
+            return 1;
+        }
+    }
+}
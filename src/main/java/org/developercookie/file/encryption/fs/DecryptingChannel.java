@@ -0,0 +1,137 @@
+package org.developercookie.file.encryption.fs;
+
+import org.developercookie.file.encryption.SegmentCache;
+import org.developercookie.file.encryption.SegmentIndex;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * A read-only channel that returns the decrypted content of an encrypted file. For files in the segmented format only
+ * the segment at the current position is decrypted; other files are decrypted as a whole when the channel is opened and
+ * the channel keeps their content, so reading such a file in small pieces does not decrypt it again when it does not
+ * fit into the cache. Created by developerCookie on 19.10.26.
+ */
+class DecryptingChannel implements SeekableByteChannel {
+    /**
+     * The file system that decrypts and caches the segments.
+     */
+    private final EncryptedFileSystem fileSystem;
+
+    /**
+     * The channel of the encrypted file.
+     */
+    private final FileChannel channel;
+
+    /**
+     * The identity of the encrypted file for the cache.
+     */
+    private final SegmentCache.Key identity;
+
+    /**
+     * The segment index, null if the file is not in the segmented format.
+     */
+    private final SegmentIndex segmentIndex;
+
+    /**
+     * The decrypted content of a file that is not in the segmented format, null for a segmented file.
+     */
+    private final byte[] content;
+
+    /**
+     * The size of the decrypted content.
+     */
+    private final long size;
+
+    /**
+     * The position in the decrypted content.
+     */
+    private long position;
+
+    DecryptingChannel(EncryptedFileSystem fileSystem, FileChannel channel, SegmentCache.Key identity) throws IOException {
+        this.fileSystem = fileSystem;
+        this.channel = channel;
+        this.identity = identity;
+        this.segmentIndex = fileSystem.segmentIndex(channel, identity);
+        this.content = segmentIndex == null ? fileSystem.segment(channel, identity, null, -1) : null;
+        this.size = segmentIndex != null ? segmentIndex.getPlainSize() : content.length;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer destination) throws IOException {
+        checkOpen();
+        if (position >= size) {
+            return -1;
+        }
+        int read = 0;
+        while (destination.hasRemaining() && position < size) {
+            int length;
+            if (segmentIndex != null) {
+                int segment = segmentIndex.segmentAt(position);
+                int offset = (int) (position - (long) segment * segmentIndex.getSegmentSize());
+                length = fileSystem.read(channel, identity, segmentIndex, segment, offset, destination);
+            } else {
+                length = Math.min(destination.remaining(), (int) (size - position));
+                destination.put(content, (int) position, length);
+            }
+            if (length == 0) {
+                break;
+            }
+            position += length;
+            read += length;
+        }
+        return read;
+    }
+
+    @Override
+    public int write(ByteBuffer source) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        checkOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+        checkOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Position must not be negative");
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        checkOpen();
+        return size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void checkOpen() throws ClosedChannelException {
+        if (!channel.isOpen()) {
+            throw new ClosedChannelException();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package org.developercookie.file.encryption.fs;
+
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * The attributes of an encrypted file as seen through the EncryptedFileSystem. All attributes are the ones of the
+ * encrypted file except the size, which is the size of the decrypted content. Created by developerCookie on 19.10.26.
+ */
+class EncryptedFileAttributes implements BasicFileAttributes {
+    /**
+     * The attributes of the encrypted file.
+     */
+    private final BasicFileAttributes storageAttributes;
+
+    /**
+     * The size of the decrypted content.
+     */
+    private final long size;
+
+    EncryptedFileAttributes(BasicFileAttributes storageAttributes, long size) {
+        this.storageAttributes = storageAttributes;
+        this.size = size;
+    }
+
+    @Override
+    public FileTime lastModifiedTime() {
+        return storageAttributes.lastModifiedTime();
+    }
+
+    @Override
+    public FileTime lastAccessTime() {
+        return storageAttributes.lastAccessTime();
+    }
+
+    @Override
+    public FileTime creationTime() {
+        return storageAttributes.creationTime();
+    }
+
+    @Override
+    public boolean isRegularFile() {
+        return storageAttributes.isRegularFile();
+    }
+
+    @Override
+    public boolean isDirectory() {
+        return storageAttributes.isDirectory();
+    }
+
+    @Override
+    public boolean isSymbolicLink() {
+        return storageAttributes.isSymbolicLink();
+    }
+
+    @Override
+    public boolean isOther() {
+        return storageAttributes.isOther();
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public Object fileKey() {
+        return storageAttributes.fileKey();
+    }
+}
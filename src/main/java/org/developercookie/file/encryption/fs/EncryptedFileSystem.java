@@ -0,0 +1,394 @@
+package org.developercookie.file.encryption.fs;
+
+import org.developercookie.file.encryption.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A read-only file system on top of a folder with encrypted files. Reading a path returns the decrypted content on the
+ * fly, nothing is written to the disk. Files in the segmented format can be read at any position and only the needed
+ * segments are decrypted; decrypted segments are kept in a SegmentCache. Created by developerCookie on 19.10.26.
+ */
+public class EncryptedFileSystem extends FileSystem {
+    /**
+     * The number of segment indexes that are kept.
+     */
+    private static final int INDEX_CACHE_SIZE = 1024;
+
+    /**
+     * The provider that created this file system.
+     */
+    private final EncryptedFileSystemProvider provider;
+
+    /**
+     * The folder with the encrypted files.
+     */
+    private final Path storageRoot;
+
+    /**
+     * Decrypts the files.
+     */
+    private final ContentTransformer contentTransformer;
+
+    /**
+     * The key of the files.
+     */
+    private final String key;
+
+    /**
+     * The decrypted segments.
+     */
+    private final SegmentCache segmentCache;
+
+    /**
+     * The segment indexes of the segmented files that were read last.
+     */
+    private final Map<SegmentCache.Key, SegmentIndex> segmentIndexes = new LinkedHashMap<SegmentCache.Key, SegmentIndex>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<SegmentCache.Key, SegmentIndex> eldest) {
+            return size() > INDEX_CACHE_SIZE;
+        }
+    };
+
+    /**
+     * The plain sizes of the single block files that were asked for last.
+     */
+    private final Map<SegmentCache.Key, Long> plainSizes = new LinkedHashMap<SegmentCache.Key, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<SegmentCache.Key, Long> eldest) {
+            return size() > INDEX_CACHE_SIZE;
+        }
+    };
+
+    /**
+     * False after the file system was closed.
+     */
+    private volatile boolean open = true;
+
+    EncryptedFileSystem(EncryptedFileSystemProvider provider, Path storageRoot, ContentTransformer contentTransformer, String key, SegmentCache segmentCache) {
+        this.provider = provider;
+        this.storageRoot = storageRoot;
+        this.contentTransformer = contentTransformer;
+        this.key = key;
+        this.segmentCache = segmentCache;
+    }
+
+    @Override
+    public FileSystemProvider provider() {
+        return provider;
+    }
+
+    @Override
+    public void close() {
+        if (open) {
+            open = false;
+            provider.removeFileSystem(storageRoot);
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return true;
+    }
+
+    @Override
+    public String getSeparator() {
+        return "/";
+    }
+
+    @Override
+    public Iterable<Path> getRootDirectories() {
+        return Collections.<Path>singleton(getPath("/"));
+    }
+
+    @Override
+    public Iterable<FileStore> getFileStores() {
+        try {
+            return Collections.singleton(Files.getFileStore(storageRoot));
+        } catch (IOException ex) {
+            return Collections.emptySet();
+        }
+    }
+
+    @Override
+    public Set<String> supportedFileAttributeViews() {
+        return Collections.singleton("basic");
+    }
+
+    @Override
+    public Path getPath(String first, String... more) {
+        return new EncryptedPath(this, storageRoot.getFileSystem().getPath(first, more));
+    }
+
+    @Override
+    public PathMatcher getPathMatcher(String syntaxAndPattern) {
+        final PathMatcher matcher = storageRoot.getFileSystem().getPathMatcher(syntaxAndPattern);
+        return new PathMatcher() {
+            @Override
+            public boolean matches(Path path) {
+                return path instanceof EncryptedPath && matcher.matches(((EncryptedPath) path).getPlainPath());
+            }
+        };
+    }
+
+    @Override
+    public UserPrincipalLookupService getUserPrincipalLookupService() {
+        throw new UnsupportedOperationException("The encrypted file system has no user principals");
+    }
+
+    @Override
+    public WatchService newWatchService() {
+        throw new UnsupportedOperationException("The encrypted file system can not be watched");
+    }
+
+    /**
+     * Returns the folder with the encrypted files.
+     */
+    public Path getStorageRoot() {
+        return storageRoot;
+    }
+
+    /**
+     * Returns the cache of the decrypted segments.
+     */
+    public SegmentCache getSegmentCache() {
+        return segmentCache;
+    }
+
+    /**
+     * Removes the decrypted segments and the segment index of the file with the plain <code>path</code> from the
+     * caches. Changed files are detected by their modification time and size, this is only needed if a file is
+     * replaced without changing them.
+     */
+    public void invalidate(Path path) {
+        if (!(path instanceof EncryptedPath)) {
+            throw new ProviderMismatchException();
+        }
+        String storagePath = toStoragePath((EncryptedPath) path).toString();
+        segmentCache.invalidate(storagePath);
+        synchronized (segmentIndexes) {
+            Iterator<SegmentCache.Key> iterator = segmentIndexes.keySet().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().getPath().equals(storagePath)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the path of the encrypted file or folder that stores the given plain <code>path</code>. Folders keep
+     * their name, files get the encryption file extension.
+     */
+    Path toStoragePath(EncryptedPath path) {
+        checkOpen();
+        String relative = path.toAbsolutePath().normalize().toString().substring(1);
+        Path folder = storageRoot.resolve(relative);
+        if (relative.isEmpty() || Files.isDirectory(folder)) {
+            return folder;
+        }
+        return folder.resolveSibling(folder.getFileName() + FileEncryption.ENCRYPTION_EXTENSION);
+    }
+
+    /**
+     * Opens a channel that returns the decrypted content of the encrypted file <code>storagePath</code>.
+     */
+    DecryptingChannel newChannel(Path storagePath) throws IOException {
+        checkOpen();
+        FileChannel channel = FileChannel.open(storagePath, StandardOpenOption.READ);
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(storagePath, BasicFileAttributes.class);
+            return new DecryptingChannel(this, channel, identity(storagePath, attributes));
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        } catch (RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Returns the size of the decrypted content of the encrypted file <code>storagePath</code>. The size of a single
+     * block file is taken from its padding if it is encrypted with AES, otherwise the file is decrypted once; the size
+     * is kept for the path and its modification time.
+     */
+    long plainSize(Path storagePath, BasicFileAttributes attributes) throws IOException {
+        SegmentCache.Key identity = identity(storagePath, attributes);
+        synchronized (plainSizes) {
+            Long plainSize = plainSizes.get(identity);
+            if (plainSize != null) {
+                return plainSize;
+            }
+        }
+        FileChannel channel = FileChannel.open(storagePath, StandardOpenOption.READ);
+        try {
+            SegmentIndex segmentIndex = segmentIndex(channel, identity);
+            if (segmentIndex != null) {
+                return segmentIndex.getPlainSize();
+            }
+            long plainSize = contentTransformer instanceof AESContentTransformer
+                    ? paddedPlainSize(channel, identity) : segment(channel, identity, null, -1).length;
+            synchronized (plainSizes) {
+                plainSizes.put(identity, plainSize);
+            }
+            return plainSize;
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Returns the plain size of the AES encrypted single block file behind the <code>channel</code>. Only its last
+     * cipher block is decrypted.
+     */
+    private long paddedPlainSize(FileChannel channel, SegmentCache.Key identity) throws IOException {
+        long size = channel.size();
+        int blockSize = AESContentTransformer.BLOCK_SIZE;
+        if (size == 0 || size % blockSize != 0) {
+            throw new IOException("Not an encrypted file: " + identity.getPath());
+        }
+        ByteBuffer lastBlocks = ByteBuffer.allocate((int) Math.min(size, 2 * blockSize));
+        long position = size - lastBlocks.capacity();
+        while (lastBlocks.hasRemaining()) {
+            if (channel.read(lastBlocks, position + lastBlocks.position()) < 0) {
+                throw new EOFException("File was truncated: " + identity.getPath());
+            }
+        }
+        try {
+            return size - ((AESContentTransformer) contentTransformer).paddingLength(lastBlocks.array(), key);
+        } catch (IllegalKeyException ex) {
+            throw new IOException("Key was not correct for " + identity.getPath(), ex);
+        }
+    }
+
+    /**
+     * Returns the segment index of the file behind the <code>channel</code> or null if the file is not in the
+     * segmented format.
+     */
+    SegmentIndex segmentIndex(FileChannel channel, SegmentCache.Key identity) throws IOException {
+        synchronized (segmentIndexes) {
+            SegmentIndex segmentIndex = segmentIndexes.get(identity);
+            if (segmentIndex != null) {
+                return segmentIndex;
+            }
+        }
+        if (!isSegmented(channel)) {
+            return null;
+        }
+        SegmentIndex segmentIndex = SegmentIndex.read(channel);
+        synchronized (segmentIndexes) {
+            segmentIndexes.put(identity, segmentIndex);
+        }
+        return segmentIndex;
+    }
+
+    /**
+     * Copies the decrypted segment <code>segment</code> of the file from the <code>offset</code> on into the
+     * <code>destination</code>. A cached segment is copied directly from the cache. Returns the number of copied bytes.
+     */
+    int read(FileChannel channel, SegmentCache.Key identity, SegmentIndex segmentIndex, int segment, int offset, ByteBuffer destination) throws IOException {
+        int read = segmentCache.read(cacheKey(identity, segment), offset, destination);
+        if (read >= 0) {
+            return read;
+        }
+        // the miss is counted already, so the segment is decrypted without a second lookup
+        byte[] content = decryptSegment(channel, identity, segmentIndex, segment);
+        int length = Math.max(0, Math.min(destination.remaining(), content.length - offset));
+        destination.put(content, offset, length);
+        return length;
+    }
+
+    /**
+     * Returns the decrypted segment <code>segment</code> of the file. The segment -1 denotes the whole content of a file
+     * that is not in the segmented format.
+     */
+    byte[] segment(FileChannel channel, SegmentCache.Key identity, SegmentIndex segmentIndex, int segment) throws IOException {
+        byte[] content = segmentCache.get(cacheKey(identity, segment));
+        return content != null ? content : decryptSegment(channel, identity, segmentIndex, segment);
+    }
+
+    /**
+     * Decrypts the segment <code>segment</code> of the file and puts it into the cache.
+     */
+    private byte[] decryptSegment(FileChannel channel, SegmentCache.Key identity, SegmentIndex segmentIndex, int segment) throws IOException {
+        byte[] content;
+        try {
+            if (segmentIndex != null) {
+                content = segmentIndex.readSegment(channel, segment, contentTransformer, key);
+            } else {
+                content = contentTransformer.decrypt(readAll(channel), key);
+            }
+        } catch (IllegalKeyException ex) {
+            throw new IOException("Key was not correct for " + identity.getPath(), ex);
+        }
+        segmentCache.put(cacheKey(identity, segment), content);
+        return content;
+    }
+
+    private static SegmentCache.Key cacheKey(SegmentCache.Key identity, int segment) {
+        return new SegmentCache.Key(identity.getPath(), identity.getLastModified(), identity.getSize(), segment);
+    }
+
+    /**
+     * Builds the identity of an encrypted file. Its segment is not used.
+     */
+    private SegmentCache.Key identity(Path storagePath, BasicFileAttributes attributes) {
+        return new SegmentCache.Key(storagePath.toString(), attributes.lastModifiedTime().toMillis(), attributes.size(), -1);
+    }
+
+    /**
+     * Returns true if the file behind the <code>channel</code> is in the segmented format.
+     */
+    private boolean isSegmented(FileChannel channel) throws IOException {
+        ByteBuffer magic = ByteBuffer.allocate(SegmentedFormat.HEADER_LENGTH);
+        while (magic.hasRemaining() && channel.read(magic, magic.position()) >= 0) {
+            // reads the header
+        }
+        try {
+            SegmentedFormat.readHeader(new ByteArrayInputStream(magic.array(), 0, magic.position()));
+            return true;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads the whole file behind the <code>channel</code>.
+     */
+    private byte[] readAll(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IOException("File is too large to be decrypted at once");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) >= 0) {
+            // reads until the buffer is full
+        }
+        return buffer.array();
+    }
+
+    private void checkOpen() {
+        if (!open) {
+            throw new ClosedFileSystemException();
+        }
+    }
+}
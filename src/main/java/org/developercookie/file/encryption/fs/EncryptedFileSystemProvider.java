@@ -0,0 +1,316 @@
+package org.developercookie.file.encryption.fs;
+
+import org.developercookie.file.encryption.AESContentTransformer;
+import org.developercookie.file.encryption.ContentTransformer;
+import org.developercookie.file.encryption.FileEncryption;
+import org.developercookie.file.encryption.SegmentCache;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.*;
+
+/**
+ * A FileSystemProvider for folders with encrypted files, so applications can read them through
+ * <code>java.nio.file</code> without decrypting them to the disk first. A file system is created with
+ * <code>FileSystems.newFileSystem(URI.create("encfs:/path/to/encrypted/folder"), env)</code>. The map
+ * <code>env</code> must contain the key under {@link #KEY}; optional are a ContentTransformer under
+ * {@link #TRANSFORMER} (AES by default) and a SegmentCache under {@link #SEGMENT_CACHE}. The file system is read-only.
+ * Created by developerCookie on 19.10.26.
+ */
+public class EncryptedFileSystemProvider extends FileSystemProvider {
+    /**
+     * The URI scheme of the provider.
+     */
+    public static final String SCHEME = "encfs";
+
+    /**
+     * The name of the key in the environment map.
+     */
+    public static final String KEY = "key";
+
+    /**
+     * The name of the ContentTransformer in the environment map.
+     */
+    public static final String TRANSFORMER = "transformer";
+
+    /**
+     * The name of the SegmentCache in the environment map.
+     */
+    public static final String SEGMENT_CACHE = "segmentCache";
+
+    /**
+     * The open file systems by their storage root.
+     */
+    private final Map<Path, EncryptedFileSystem> fileSystems = new HashMap<Path, EncryptedFileSystem>();
+
+    @Override
+    public String getScheme() {
+        return SCHEME;
+    }
+
+    @Override
+    public FileSystem newFileSystem(URI uri, Map<String, ?> env) throws IOException {
+        Path storageRoot = storageRoot(uri);
+        if (!Files.isDirectory(storageRoot)) {
+            throw new NotDirectoryException(storageRoot.toString());
+        }
+        Object key = env.get(KEY);
+        if (!(key instanceof String)) {
+            throw new IllegalArgumentException("The environment must contain the key as String under \"" + KEY + "\"");
+        }
+        ContentTransformer contentTransformer = env.get(TRANSFORMER) instanceof ContentTransformer
+                ? (ContentTransformer) env.get(TRANSFORMER) : new AESContentTransformer();
+        SegmentCache segmentCache = env.get(SEGMENT_CACHE) instanceof SegmentCache
+                ? (SegmentCache) env.get(SEGMENT_CACHE) : new SegmentCache(SegmentCache.DEFAULT_MAX_BYTES);
+        synchronized (fileSystems) {
+            if (fileSystems.containsKey(storageRoot)) {
+                throw new FileSystemAlreadyExistsException(storageRoot.toString());
+            }
+            EncryptedFileSystem fileSystem = new EncryptedFileSystem(this, storageRoot, contentTransformer, (String) key, segmentCache);
+            fileSystems.put(storageRoot, fileSystem);
+            return fileSystem;
+        }
+    }
+
+    @Override
+    public FileSystem getFileSystem(URI uri) {
+        synchronized (fileSystems) {
+            EncryptedFileSystem fileSystem = fileSystems.get(storageRoot(uri));
+            if (fileSystem == null) {
+                throw new FileSystemNotFoundException(uri.toString());
+            }
+            return fileSystem;
+        }
+    }
+
+    /**
+     * The fragment of the URI is the plain path inside of the file system.
+     */
+    @Override
+    public Path getPath(URI uri) {
+        String fragment = uri.getFragment();
+        return getFileSystem(uri).getPath(fragment != null ? fragment : "/");
+    }
+
+    @Override
+    public SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attributes) throws IOException {
+        for (OpenOption option : options) {
+            if (option != StandardOpenOption.READ && option != LinkOption.NOFOLLOW_LINKS) {
+                throw new ReadOnlyFileSystemException();
+            }
+        }
+        EncryptedPath encryptedPath = toEncryptedPath(path);
+        Path storagePath = encryptedPath.getFileSystem().toStoragePath(encryptedPath);
+        if (Files.isDirectory(storagePath)) {
+            throw new FileSystemException(path.toString(), null, "Is a directory");
+        }
+        if (!Files.exists(storagePath)) {
+            throw new NoSuchFileException(path.toString());
+        }
+        return encryptedPath.getFileSystem().newChannel(storagePath);
+    }
+
+    /**
+     * Lists the encrypted files without their encryption extension and the sub folders. Files written by the
+     * FileEncryption itself are left out.
+     */
+    @Override
+    public DirectoryStream<Path> newDirectoryStream(Path dir, final DirectoryStream.Filter<? super Path> filter) throws IOException {
+        final EncryptedPath encryptedDir = toEncryptedPath(dir);
+        Path storageDir = encryptedDir.getFileSystem().toStoragePath(encryptedDir);
+        if (!Files.isDirectory(storageDir)) {
+            throw new NotDirectoryException(dir.toString());
+        }
+        final List<Path> entries = new ArrayList<Path>();
+        DirectoryStream<Path> storageStream = Files.newDirectoryStream(storageDir);
+        try {
+            for (Path storageEntry : storageStream) {
+                String name = storageEntry.getFileName().toString();
+                Path entry;
+                if (Files.isDirectory(storageEntry)) {
+                    entry = encryptedDir.resolve(name);
+                } else if (name.endsWith(FileEncryption.ENCRYPTION_EXTENSION)) {
+                    entry = encryptedDir.resolve(name.substring(0, name.length() - FileEncryption.ENCRYPTION_EXTENSION.length()));
+                } else {
+                    continue;
+                }
+                if (filter == null || filter.accept(entry)) {
+                    entries.add(entry);
+                }
+            }
+        } finally {
+            storageStream.close();
+        }
+        return new DirectoryStream<Path>() {
+            @Override
+            public Iterator<Path> iterator() {
+                return entries.iterator();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    @Override
+    public void createDirectory(Path dir, FileAttribute<?>... attributes) {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void delete(Path path) {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void copy(Path source, Path target, CopyOption... options) {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void move(Path source, Path target, CopyOption... options) {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public boolean isSameFile(Path path, Path other) {
+        return path.toAbsolutePath().normalize().equals(other.toAbsolutePath().normalize());
+    }
+
+    @Override
+    public boolean isHidden(Path path) {
+        Path name = path.getFileName();
+        return name != null && name.toString().startsWith(".");
+    }
+
+    @Override
+    public FileStore getFileStore(Path path) throws IOException {
+        EncryptedPath encryptedPath = toEncryptedPath(path);
+        return Files.getFileStore(encryptedPath.getFileSystem().toStoragePath(encryptedPath));
+    }
+
+    @Override
+    public void checkAccess(Path path, AccessMode... modes) throws IOException {
+        EncryptedPath encryptedPath = toEncryptedPath(path);
+        Path storagePath = encryptedPath.getFileSystem().toStoragePath(encryptedPath);
+        if (!Files.exists(storagePath)) {
+            throw new NoSuchFileException(path.toString());
+        }
+        for (AccessMode mode : modes) {
+            if (mode == AccessMode.WRITE) {
+                throw new AccessDeniedException(path.toString(), null, "File system is read-only");
+            }
+        }
+        storagePath.getFileSystem().provider().checkAccess(storagePath, modes);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <V extends FileAttributeView> V getFileAttributeView(final Path path, Class<V> type, LinkOption... options) {
+        if (type != BasicFileAttributeView.class) {
+            return null;
+        }
+        return (V) new BasicFileAttributeView() {
+            @Override
+            public String name() {
+                return "basic";
+            }
+
+            @Override
+            public BasicFileAttributes readAttributes() throws IOException {
+                return EncryptedFileSystemProvider.this.readAttributes(path, BasicFileAttributes.class);
+            }
+
+            @Override
+            public void setTimes(FileTime lastModifiedTime, FileTime lastAccessTime, FileTime createTime) {
+                throw new ReadOnlyFileSystemException();
+            }
+        };
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <A extends BasicFileAttributes> A readAttributes(Path path, Class<A> type, LinkOption... options) throws IOException {
+        if (type != BasicFileAttributes.class) {
+            throw new UnsupportedOperationException("Only basic attributes are supported");
+        }
+        EncryptedPath encryptedPath = toEncryptedPath(path);
+        Path storagePath = encryptedPath.getFileSystem().toStoragePath(encryptedPath);
+        if (!Files.exists(storagePath)) {
+            throw new NoSuchFileException(path.toString());
+        }
+        BasicFileAttributes attributes = Files.readAttributes(storagePath, BasicFileAttributes.class);
+        long size = attributes.isRegularFile() ? encryptedPath.getFileSystem().plainSize(storagePath, attributes) : attributes.size();
+        return (A) new EncryptedFileAttributes(attributes, size);
+    }
+
+    @Override
+    public Map<String, Object> readAttributes(Path path, String attributes, LinkOption... options) throws IOException {
+        String names = attributes.startsWith("basic:") ? attributes.substring("basic:".length()) : attributes;
+        if (attributes.contains(":") && !attributes.startsWith("basic:")) {
+            throw new UnsupportedOperationException("Only basic attributes are supported");
+        }
+        BasicFileAttributes basic = readAttributes(path, BasicFileAttributes.class);
+        Map<String, Object> all = new LinkedHashMap<String, Object>();
+        all.put("lastModifiedTime", basic.lastModifiedTime());
+        all.put("lastAccessTime", basic.lastAccessTime());
+        all.put("creationTime", basic.creationTime());
+        all.put("size", basic.size());
+        all.put("isRegularFile", basic.isRegularFile());
+        all.put("isDirectory", basic.isDirectory());
+        all.put("isSymbolicLink", basic.isSymbolicLink());
+        all.put("isOther", basic.isOther());
+        all.put("fileKey", basic.fileKey());
+        if (names.equals("*")) {
+            return all;
+        }
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        for (String name : names.split(",")) {
+            if (!all.containsKey(name)) {
+                throw new IllegalArgumentException("Unknown attribute " + name);
+            }
+            result.put(name, all.get(name));
+        }
+        return result;
+    }
+
+    @Override
+    public void setAttribute(Path path, String attribute, Object value, LinkOption... options) {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    /**
+     * Removes a closed file system.
+     */
+    void removeFileSystem(Path storageRoot) {
+        synchronized (fileSystems) {
+            fileSystems.remove(storageRoot);
+        }
+    }
+
+    /**
+     * Returns the folder with the encrypted files that is denoted by the path of the <code>uri</code>.
+     */
+    private Path storageRoot(URI uri) {
+        if (!SCHEME.equalsIgnoreCase(uri.getScheme())) {
+            throw new IllegalArgumentException("URI scheme must be " + SCHEME);
+        }
+        return Paths.get(uri.getPath()).toAbsolutePath().normalize();
+    }
+
+    private static EncryptedPath toEncryptedPath(Path path) {
+        if (!(path instanceof EncryptedPath)) {
+            throw new ProviderMismatchException();
+        }
+        return (EncryptedPath) path;
+    }
+}
@@ -0,0 +1,207 @@
+package org.developercookie.file.encryption.fs;
+
+import java.io.File;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A path of the EncryptedFileSystem. It denotes the plain name of a file, for example <code>/docs/a.txt</code>, that is
+ * stored encrypted as <code>docs/a.txt.enc</code> below the root of the file system. The path operations are delegated
+ * to a path of the default file system. Created by developerCookie on 19.10.26.
+ */
+class EncryptedPath implements Path {
+    /**
+     * The file system this path belongs to.
+     */
+    private final EncryptedFileSystem fileSystem;
+
+    /**
+     * The plain path.
+     */
+    private final Path path;
+
+    EncryptedPath(EncryptedFileSystem fileSystem, Path path) {
+        this.fileSystem = fileSystem;
+        this.path = path;
+    }
+
+    /**
+     * Returns the plain path in the default file system.
+     */
+    Path getPlainPath() {
+        return path;
+    }
+
+    @Override
+    public EncryptedFileSystem getFileSystem() {
+        return fileSystem;
+    }
+
+    @Override
+    public boolean isAbsolute() {
+        return path.isAbsolute();
+    }
+
+    @Override
+    public Path getRoot() {
+        return wrap(path.getRoot());
+    }
+
+    @Override
+    public Path getFileName() {
+        return wrap(path.getFileName());
+    }
+
+    @Override
+    public Path getParent() {
+        return wrap(path.getParent());
+    }
+
+    @Override
+    public int getNameCount() {
+        return path.getNameCount();
+    }
+
+    @Override
+    public Path getName(int index) {
+        return wrap(path.getName(index));
+    }
+
+    @Override
+    public Path subpath(int beginIndex, int endIndex) {
+        return wrap(path.subpath(beginIndex, endIndex));
+    }
+
+    @Override
+    public boolean startsWith(Path other) {
+        return other instanceof EncryptedPath && path.startsWith(((EncryptedPath) other).path);
+    }
+
+    @Override
+    public boolean startsWith(String other) {
+        return path.startsWith(other);
+    }
+
+    @Override
+    public boolean endsWith(Path other) {
+        return other instanceof EncryptedPath && path.endsWith(((EncryptedPath) other).path);
+    }
+
+    @Override
+    public boolean endsWith(String other) {
+        return path.endsWith(other);
+    }
+
+    @Override
+    public Path normalize() {
+        return wrap(path.normalize());
+    }
+
+    @Override
+    public Path resolve(Path other) {
+        return wrap(path.resolve(unwrap(other)));
+    }
+
+    @Override
+    public Path resolve(String other) {
+        return wrap(path.resolve(other));
+    }
+
+    @Override
+    public Path resolveSibling(Path other) {
+        return wrap(path.resolveSibling(unwrap(other)));
+    }
+
+    @Override
+    public Path resolveSibling(String other) {
+        return wrap(path.resolveSibling(other));
+    }
+
+    @Override
+    public Path relativize(Path other) {
+        return wrap(path.relativize(unwrap(other)));
+    }
+
+    /**
+     * The URI contains the root of the file system and the plain path as fragment.
+     */
+    @Override
+    public URI toUri() {
+        try {
+            return new URI(EncryptedFileSystemProvider.SCHEME, null, fileSystem.getStorageRoot().toUri().getPath(),
+                    toAbsolutePath().toString());
+        } catch (URISyntaxException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    @Override
+    public Path toAbsolutePath() {
+        return path.isAbsolute() ? this : wrap(path.getFileSystem().getPath("/").resolve(path));
+    }
+
+    @Override
+    public Path toRealPath(LinkOption... options) {
+        return toAbsolutePath().normalize();
+    }
+
+    @Override
+    public File toFile() {
+        throw new UnsupportedOperationException("Encrypted paths have no java.io.File");
+    }
+
+    @Override
+    public WatchKey register(WatchService watcher, WatchEvent.Kind<?>[] events, WatchEvent.Modifier... modifiers) {
+        throw new UnsupportedOperationException("The encrypted file system can not be watched");
+    }
+
+    @Override
+    public WatchKey register(WatchService watcher, WatchEvent.Kind<?>... events) {
+        throw new UnsupportedOperationException("The encrypted file system can not be watched");
+    }
+
+    @Override
+    public Iterator<Path> iterator() {
+        List<Path> names = new ArrayList<Path>();
+        for (Path name : path) {
+            names.add(wrap(name));
+        }
+        return names.iterator();
+    }
+
+    @Override
+    public int compareTo(Path other) {
+        return path.compareTo(unwrap(other));
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof EncryptedPath && ((EncryptedPath) other).fileSystem == fileSystem
+                && ((EncryptedPath) other).path.equals(path);
+    }
+
+    @Override
+    public int hashCode() {
+        return path.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return path.toString();
+    }
+
+    private EncryptedPath wrap(Path plainPath) {
+        return plainPath != null ? new EncryptedPath(fileSystem, plainPath) : null;
+    }
+
+    private static Path unwrap(Path other) {
+        if (!(other instanceof EncryptedPath)) {
+            throw new ProviderMismatchException();
+        }
+        return ((EncryptedPath) other).path;
+    }
+}
@@ -3,12 +3,15 @@ package org.developercookie.file.encryption.ui;
 import org.developercookie.file.encryption.AESContentTransformer;
 import org.developercookie.file.encryption.FileEncryption;
 import org.developercookie.file.encryption.IllegalKeyException;
+import org.developercookie.file.encryption.RestoreReport;
+import org.developercookie.file.encryption.cli.CommandLineTool;
 
 import javax.swing.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.File;
 import java.io.IOException;
 
 /**
@@ -126,7 +129,7 @@ public class Controller {
                         fileEncryption.encryptFolder(sourceFolder, targetFolder, fileExtension, key);
                         JOptionPane.showMessageDialog(null, "Verschlüsslung abgeschlossen!", "Erfolg", JOptionPane.INFORMATION_MESSAGE);
                     } catch (IOException ex) {
-                        JOptionPane.showMessageDialog(null, "Ein Fehler ist aufgetreten!. Fehlerbeschreibung:\n" + ex.getCause().toString(), "Fehler", JOptionPane.ERROR_MESSAGE);
+                        showError(ex);
                     }
                 }
             }
@@ -156,12 +159,14 @@ public class Controller {
                     String key = decryptionDialog.getKey();
 
                     try {
-                        fileEncryption.decryptFolder(sourceFolder, targetFolder, key);
-                        JOptionPane.showMessageDialog(null, "Entschlüsslung abgeschlossen!", "Erfolg", JOptionPane.INFORMATION_MESSAGE);
+                        RestoreReport report = fileEncryption.restoreFolder(sourceFolder, targetFolder, key);
+                        if (report.isComplete()) {
+                            JOptionPane.showMessageDialog(null, "Entschlüsslung abgeschlossen!", "Erfolg", JOptionPane.INFORMATION_MESSAGE);
+                        } else {
+                            JOptionPane.showMessageDialog(null, describeFailures(report), "Fehler", JOptionPane.WARNING_MESSAGE);
+                        }
                     } catch (IOException ex) {
-                        JOptionPane.showMessageDialog(null, "Ein Fehler ist aufgetreten!. Fehlerbeschreibung:\n" + ex.getCause().toString(), "Fehler", JOptionPane.ERROR_MESSAGE);
-                    } catch (IllegalKeyException ex) {
-                        JOptionPane.showMessageDialog(null, "Schlüssel ist inkorrekt! Bitte versuchen Sie es erneut", "Fehler", JOptionPane.ERROR_MESSAGE);
+                        showError(ex);
                     }
                 }
             }
@@ -170,6 +175,33 @@ public class Controller {
         decryptionDialog.addWindowListener(new CloseAppListener());
     }
 
+    /**
+     * Shows the error <code>ex</code> with its cause, if it has one.
+     */
+    private void showError(Exception ex) {
+        Throwable error = ex.getCause() != null ? ex.getCause() : ex;
+        JOptionPane.showMessageDialog(null, "Ein Fehler ist aufgetreten!. Fehlerbeschreibung:\n" + error.toString(), "Fehler", JOptionPane.ERROR_MESSAGE);
+    }
+
+    /**
+     * Builds the message for a restore in which files could not be decrypted. At most 10 files are listed.
+     */
+    private String describeFailures(RestoreReport report) {
+        StringBuilder message = new StringBuilder();
+        message.append(report.getRestoredFiles()).append(" Dateien entschlüsselt, ");
+        message.append(report.getFailures().size()).append(" Dateien fehlerhaft:\n");
+        int listed = 0;
+        for (RestoreReport.Failure failure : report.getFailures()) {
+            if (listed++ == 10) {
+                message.append("...\n");
+                break;
+            }
+            String reason = failure.getError() instanceof IllegalKeyException ? "Schlüssel ist inkorrekt" : failure.getErrorClass();
+            message.append(new File(failure.getFile()).getName()).append(": ").append(reason).append('\n');
+        }
+        return message.toString();
+    }
+
     /**
      * Sets the location of all dialog to the middle of the screen.
      */
@@ -191,9 +223,14 @@ public class Controller {
     }
 
     /**
-     * Main method for starting the entire application.
+     * Main method for starting the entire application. With arguments the CommandLineTool is run instead of the
+     * dialogs.
      */
     public static void main(String[] args) {
+        if (args.length > 0) {
+            CommandLineTool.main(args);
+            return;
+        }
         JFrame frame = new JFrame("Verschlüssluns-Applikation");
         frame.setUndecorated(true);
         frame.setVisible(true);
@@ -4,6 +4,8 @@ import org.apache.commons.lang.RandomStringUtils;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.Arrays;
+
 /**
  * We want to test the AESContentTransformer.
  * Created by developerCookie on 08.04.14.
@@ -46,6 +48,19 @@ public class AESContentTransformerTest {
     }
 
     /** We take a wrong key.*/
+    /**
+     * The padding length found in the last cipher blocks gives the plain length, for one block and for more blocks.
+     */
+    @Test
+    public void paddingLength() throws Exception {
+        AESContentTransformer transformer = new AESContentTransformer();
+        for (int length = 0; length <= 40; length++) {
+            byte[] encrypted = transformer.encrypt(new byte[length], "12");
+            byte[] lastBlocks = Arrays.copyOfRange(encrypted, Math.max(0, encrypted.length - 32), encrypted.length);
+            Assert.assertEquals(length, encrypted.length - transformer.paddingLength(lastBlocks, "12"));
+        }
+    }
+
     @Test(expected = IllegalKeyException.class)
     public void wrongDecryptionKey() throws Exception {
         AESContentTransformer transformer = new AESContentTransformer();
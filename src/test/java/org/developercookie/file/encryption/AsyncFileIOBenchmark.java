@@ -0,0 +1,143 @@
+package org.developercookie.file.encryption;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.util.Random;
+
+/**
+ * Compares the blocking streams with the asynchronous I/O at several queue depths, for the raw I/O and for the AES
+ * encryption of the file in segments, where the reads ahead overlap the cipher. It is not run as a test, start it
+ * with <code>java ... AsyncFileIOBenchmark [folder] [size in MB]</code>. Use a folder on the storage you want to
+ * measure; the numbers of a file that is in the page cache only show the overhead of the two paths. Created by
+ * developerCookie on 19.10.26.
+ */
+public class AsyncFileIOBenchmark {
+    /**
+     * The queue depths that are measured.
+     */
+    private static final int[] QUEUE_DEPTHS = {1, 2, 4, 8, 16, 32};
+
+    /**
+     * How often every variant is repeated. The best run is reported.
+     */
+    private static final int REPETITIONS = 5;
+
+    public static void main(String[] args) throws IOException {
+        String folder = args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir");
+        int sizeInMB = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        File testFile = new File(folder, "async-benchmark.bin");
+        File outputFile = new File(folder, "async-benchmark.out");
+        byte[] content = new byte[sizeInMB * 1024 * 1024];
+        new Random(42).nextBytes(content);
+        FileUtils.writeByteArrayToFile(testFile, content);
+
+        File encryptionFolder = new File(folder, "async-benchmark.enc");
+        try {
+            report("blocking", blockingRead(testFile), blockingWrite(outputFile, content),
+                    encrypt(null, testFile, encryptionFolder), content.length);
+            for (int queueDepth : QUEUE_DEPTHS) {
+                AsyncFileIO asyncFileIO = new AsyncFileIO(queueDepth, AsyncFileIO.DEFAULT_CHUNK_SIZE);
+                report("async qd=" + queueDepth, asyncRead(asyncFileIO, testFile), asyncWrite(asyncFileIO, outputFile, content),
+                        encrypt(asyncFileIO, testFile, encryptionFolder), content.length);
+            }
+        } finally {
+            FileUtils.deleteQuietly(testFile);
+            FileUtils.deleteQuietly(outputFile);
+            FileUtils.deleteQuietly(encryptionFolder);
+        }
+    }
+
+    /**
+     * Returns the best time in nanoseconds to read the file with a BufferedInputStream like FileEncryption does.
+     */
+    private static long blockingRead(File file) throws IOException {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < REPETITIONS; i++) {
+            long start = System.nanoTime();
+            InputStream stream = new BufferedInputStream(new FileInputStream(file));
+            try {
+                IOUtils.toByteArray(stream);
+            } finally {
+                IOUtils.closeQuietly(stream);
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    /**
+     * Returns the best time in nanoseconds to write the content with a BufferedOutputStream like FileEncryption does.
+     */
+    private static long blockingWrite(File file, byte[] content) throws IOException {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < REPETITIONS; i++) {
+            long start = System.nanoTime();
+            OutputStream stream = new BufferedOutputStream(new FileOutputStream(file));
+            try {
+                stream.write(content);
+            } finally {
+                IOUtils.closeQuietly(stream);
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    /**
+     * Returns the best time in nanoseconds to read the file asynchronously.
+     */
+    private static long asyncRead(AsyncFileIO asyncFileIO, File file) throws IOException {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < REPETITIONS; i++) {
+            long start = System.nanoTime();
+            asyncFileIO.readFully(file.getPath());
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    /**
+     * Returns the best time in nanoseconds to write the content asynchronously.
+     */
+    private static long asyncWrite(AsyncFileIO asyncFileIO, File file, byte[] content) throws IOException {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < REPETITIONS; i++) {
+            long start = System.nanoTime();
+            asyncFileIO.writeFully(file.getPath(), content);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    /**
+     * Returns the best time in nanoseconds to encrypt the file in the segmented format, with the blocking streams if
+     * <code>asyncFileIO</code> is null.
+     */
+    private static long encrypt(AsyncFileIO asyncFileIO, File file, File encryptionFolder) throws IOException {
+        FileEncryption fileEncryption = new FileEncryption(new AESContentTransformer());
+        fileEncryption.setAsyncFileIO(asyncFileIO);
+        fileEncryption.setSegmentThreshold(0);
+        encryptionFolder.mkdirs();
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < REPETITIONS; i++) {
+            long start = System.nanoTime();
+            fileEncryption.encrypt(file.getPath(), encryptionFolder.getPath(), "benchmark");
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    /**
+     * Prints the throughput of one variant.
+     */
+    private static void report(String variant, long readNanos, long writeNanos, long encryptNanos, long bytes) {
+        System.out.println(String.format("%-14s read %8.1f MB/s   write %8.1f MB/s   encrypt %8.1f MB/s", variant,
+                megabytesPerSecond(bytes, readNanos), megabytesPerSecond(bytes, writeNanos), megabytesPerSecond(bytes, encryptNanos)));
+    }
+
+    private static double megabytesPerSecond(long bytes, long nanos) {
+        return bytes / (1024.0 * 1024.0) / (nanos / 1e9);
+    }
+}
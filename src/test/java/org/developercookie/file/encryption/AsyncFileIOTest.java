@@ -0,0 +1,123 @@
+package org.developercookie.file.encryption;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.RandomStringUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Tests the asynchronous reading and writing of files. Created by developerCookie on 19.10.26.
+ */
+public class AsyncFileIOTest {
+    /**
+     * The file that is written and read.
+     */
+    private static final String testFilename = "/tmp/async.bin";
+
+    /**
+     * The file will be removed.
+     */
+    @After
+    public void cleanup() {
+        FileUtils.deleteQuietly(new File(testFilename));
+    }
+
+    /**
+     * Content that is not a multiple of the chunk size is written and read with several queue depths.
+     */
+    @Test
+    public void writeAndRead() throws Exception {
+        byte[] content = RandomStringUtils.random(100000, true, true).getBytes();
+        for (int queueDepth : new int[]{1, 3, 16}) {
+            AsyncFileIO asyncFileIO = new AsyncFileIO(queueDepth, 4096);
+            asyncFileIO.writeFully(testFilename, content);
+            Assert.assertEquals(content.length, new File(testFilename).length());
+            Assert.assertArrayEquals(content, asyncFileIO.readFully(testFilename));
+        }
+    }
+
+    /**
+     * An empty file is written and read.
+     */
+    @Test
+    public void emptyFile() throws Exception {
+        AsyncFileIO asyncFileIO = new AsyncFileIO();
+        asyncFileIO.writeFully(testFilename, new byte[0]);
+        Assert.assertArrayEquals(new byte[0], asyncFileIO.readFully(testFilename));
+    }
+
+    /**
+     * The FileEncryption uses the asynchronous I/O to encrypt and decrypt a file.
+     */
+    @Test
+    public void fileEncryption() throws Exception {
+        String text = RandomStringUtils.random(50000, true, true);
+        FileUtils.writeStringToFile(new File(testFilename), text);
+        new File("/tmp/enc").mkdirs();
+        new File("/tmp/dec").mkdirs();
+        try {
+            FileEncryption fileEncryption = new FileEncryption(new AESContentTransformer());
+            fileEncryption.setAsyncFileIO(new AsyncFileIO(4, 1024));
+            fileEncryption.encrypt(testFilename, "/tmp/enc", "12");
+            fileEncryption.decrypt("/tmp/enc/async.bin.enc", "/tmp/dec", "12");
+            Assert.assertEquals(text, FileUtils.readFileToString(new File("/tmp/dec/async.bin")));
+        } finally {
+            FileUtils.deleteQuietly(new File("/tmp/enc"));
+            FileUtils.deleteQuietly(new File("/tmp/dec"));
+        }
+    }
+
+    /**
+     * A file is read in blocks from a position, the last block is shorter and the blocks after it are empty.
+     */
+    @Test
+    public void blocks() throws Exception {
+        byte[] content = RandomStringUtils.random(10000, true, true).getBytes();
+        FileUtils.writeByteArrayToFile(new File(testFilename), content);
+        AsyncFileIO asyncFileIO = new AsyncFileIO(2, 1000);
+        Assert.assertEquals(2, asyncFileIO.getBlocksAhead(768));
+        AsyncFileIO.BlockReader reader = asyncFileIO.readBlocks(testFilename, 1000, 768);
+        try {
+            ByteArrayOutputStream read = new ByteArrayOutputStream();
+            for (int i = 0; i < 11; i++) {
+                byte[] block = reader.nextBlock();
+                Assert.assertEquals(768, block.length);
+                read.write(block);
+            }
+            Assert.assertArrayEquals(Arrays.copyOfRange(content, 1000, 1000 + 11 * 768), read.toByteArray());
+            Assert.assertEquals(9000 - 11 * 768, reader.nextBlock().length);
+            Assert.assertEquals(0, reader.nextBlock().length);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * The FileEncryption reads a large file ahead of its segments.
+     */
+    @Test
+    public void segmentedFileEncryption() throws Exception {
+        String text = RandomStringUtils.random(50000, true, true);
+        FileUtils.writeStringToFile(new File(testFilename), text);
+        new File("/tmp/enc").mkdirs();
+        new File("/tmp/dec").mkdirs();
+        try {
+            FileEncryption fileEncryption = new FileEncryption(new AESContentTransformer());
+            fileEncryption.setAsyncFileIO(new AsyncFileIO(4, 1024));
+            fileEncryption.setSegmentThreshold(1000);
+            fileEncryption.setSegmentSize(700);
+            fileEncryption.encrypt(testFilename, "/tmp/enc", "12");
+            Assert.assertTrue(SegmentedFormat.isSegmented("/tmp/enc/async.bin.enc"));
+            fileEncryption.decrypt("/tmp/enc/async.bin.enc", "/tmp/dec", "12");
+            Assert.assertEquals(text, FileUtils.readFileToString(new File("/tmp/dec/async.bin")));
+        } finally {
+            FileUtils.deleteQuietly(new File("/tmp/enc"));
+            FileUtils.deleteQuietly(new File("/tmp/dec"));
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package org.developercookie.file.encryption;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Tests that folder jobs continue after a failure with the help of the checkpoint journal. Created by developerCookie
+ * on 19.10.26.
+ */
+public class CheckpointJournalTest extends FolderFixture {
+    /**
+     * Large files are written in the segmented format and can be decrypted again, also if their size is a multiple of
+     * the segment size.
+     */
+    @Test
+    public void segmentedFiles() throws Exception {
+        writeTestfile("large.txt", 10000);
+        writeTestfile("exact.txt", 1024);
+        writeTestfile("small.txt", 100);
+        FileEncryption fileEncryption = new FileEncryption(new AESContentTransformer());
+        fileEncryption.setSegmentThreshold(1000);
+        fileEncryption.setSegmentSize(256);
+
+        fileEncryption.encryptFolder(testFolder, encryptionFolder, "txt", "12");
+        Assert.assertTrue(SegmentedFormat.isSegmented(encryptionFolder + "/large.txt.enc"));
+        Assert.assertFalse(SegmentedFormat.isSegmented(encryptionFolder + "/small.txt.enc"));
+        fileEncryption.decryptFolder(encryptionFolder, decryptionFolder, "12");
+
+        assertSameContent("large.txt");
+        assertSameContent("exact.txt");
+        assertSameContent("small.txt");
+        Assert.assertFalse(new File(encryptionFolder, CheckpointJournal.JOURNAL_FILENAME).exists());
+    }
+
+    /**
+     * A record with a damaged encrypted length is rejected instead of allocating its length.
+     */
+    @Test
+    public void damagedRecordLength() throws Exception {
+        writeTestfile("large.txt", 10000);
+        FileEncryption fileEncryption = new FileEncryption(new AESContentTransformer());
+        fileEncryption.setSegmentThreshold(1000);
+        fileEncryption.setSegmentSize(256);
+        fileEncryption.encryptFolder(testFolder, encryptionFolder, "txt", "12");
+        for (int length : new int[]{-1, Integer.MAX_VALUE}) {
+            RandomAccessFile file = new RandomAccessFile(new File(encryptionFolder, "large.txt.enc"), "rw");
+            try {
+                file.seek(SegmentedFormat.HEADER_LENGTH + SegmentedFormat.RECORD_HEADER_LENGTH - 4);
+                file.writeInt(length);
+            } finally {
+                file.close();
+            }
+            try {
+                fileEncryption.decrypt(encryptionFolder + "/large.txt.enc", decryptionFolder, "12");
+                Assert.fail("The damaged record must be rejected");
+            } catch (IOException expected) {
+                Assert.assertTrue(expected.getMessage(), expected.getMessage().startsWith("Illegal encrypted length"));
+            }
+        }
+    }
+
+    /**
+     * The job dies after some files. The second run only encrypts the remaining files.
+     */
+    @Test
+    public void resumeAfterFailedFile() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            writeTestfile("file" + i + ".txt", 500);
+        }
+        try {
+            new FileEncryption(new CountingTransformer(5)).encryptFolder(testFolder, encryptionFolder, "txt", "12");
+            Assert.fail("The transformer must fail");
+        } catch (IllegalStateException expected) {
+            Assert.assertTrue(new File(encryptionFolder, CheckpointJournal.JOURNAL_FILENAME).exists());
+        }
+
+        CountingTransformer transformer = new CountingTransformer(Integer.MAX_VALUE);
+        new FileEncryption(transformer).encryptFolder(testFolder, encryptionFolder, "txt", "12");
+        Assert.assertEquals(5, transformer.count);
+
+        new FileEncryption(new AESContentTransformer()).decryptFolder(encryptionFolder, decryptionFolder, "12");
+        for (int i = 0; i < 10; i++) {
+            assertSameContent("file" + i + ".txt");
+        }
+    }
+
+    /**
+     * A completed file that was torn without changing its size does not match its digest and is encrypted again.
+     */
+    @Test
+    public void tornCompletedFile() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            writeTestfile("file" + i + ".txt", 500);
+        }
+        try {
+            new FileEncryption(new CountingTransformer(5)).encryptFolder(testFolder, encryptionFolder, "txt", "12");
+            Assert.fail("The transformer must fail");
+        } catch (IllegalStateException expected) {
+            // the journal is kept
+        }
+        File torn = new File(encryptionFolder).listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File folder, String name) {
+                return name.endsWith(FileEncryption.ENCRYPTION_EXTENSION);
+            }
+        })[0];
+        byte[] content = FileUtils.readFileToByteArray(torn);
+        content[content.length / 2] ^= 1;
+        FileUtils.writeByteArrayToFile(torn, content);
+
+        CountingTransformer transformer = new CountingTransformer(Integer.MAX_VALUE);
+        new FileEncryption(transformer).encryptFolder(testFolder, encryptionFolder, "txt", "12");
+        Assert.assertEquals(6, transformer.count);
+
+        new FileEncryption(new AESContentTransformer()).decryptFolder(encryptionFolder, decryptionFolder, "12");
+        for (int i = 0; i < 10; i++) {
+            assertSameContent("file" + i + ".txt");
+        }
+    }
+
+    /**
+     * The job dies in the middle of a large file. The second run continues at the last segment checkpoint.
+     */
+    @Test
+    public void resumeLargeFile() throws Exception {
+        writeTestfile("large.txt", 100 * 100);
+        try {
+            FileEncryption fileEncryption = new FileEncryption(new CountingTransformer(55));
+            configureSmallSegments(fileEncryption);
+            fileEncryption.encryptFolder(testFolder, encryptionFolder, "txt", "12");
+            Assert.fail("The transformer must fail");
+        } catch (IllegalStateException expected) {
+            Assert.assertTrue(new File(encryptionFolder, "large.txt.enc" + FileEncryption.PART_EXTENSION).exists());
+        }
+
+        CountingTransformer transformer = new CountingTransformer(Integer.MAX_VALUE);
+        FileEncryption fileEncryption = new FileEncryption(transformer);
+        configureSmallSegments(fileEncryption);
+        fileEncryption.encryptFolder(testFolder, encryptionFolder, "txt", "12", "audit");
+        Assert.assertTrue(transformer.count < 100);
+        Assert.assertTrue(fileEncryption.verifyFolder(encryptionFolder, "audit").isEmpty());
+
+        new FileEncryption(new AESContentTransformer()).decryptFolder(encryptionFolder, decryptionFolder, "12");
+        assertSameContent("large.txt");
+    }
+
+    /**
+     * Segments of 100 bytes and a checkpoint after about ten segments.
+     */
+    private void configureSmallSegments(FileEncryption fileEncryption) {
+        fileEncryption.setSegmentThreshold(1000);
+        fileEncryption.setSegmentSize(100);
+        fileEncryption.setCheckpointInterval(1000);
+    }
+
+    /**
+     * The decrypted file must have the same content as the original file.
+     */
+    private void assertSameContent(String filename) throws IOException {
+        Assert.assertTrue(FileUtils.contentEquals(new File(testFolder, filename), new File(decryptionFolder, filename)));
+    }
+
+    /**
+     * Encrypts with AES, counts the encryptions and fails with an IllegalStateException when the limit is reached.
+     */
+    private static class CountingTransformer extends AESContentTransformer {
+        private final int limit;
+        private int count;
+
+        CountingTransformer(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public byte[] encrypt(byte[] content, String key) throws IllegalStateException {
+            if (count == limit) {
+                throw new IllegalStateException("Simulated failure");
+            }
+            count++;
+            return super.encrypt(content, key);
+        }
+    }
+}
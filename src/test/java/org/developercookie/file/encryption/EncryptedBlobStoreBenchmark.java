@@ -0,0 +1,85 @@
+package org.developercookie.file.encryption;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the random reads per second of the EncryptedBlobStore with small records. It is not run as a test, start it
+ * with <code>java ... EncryptedBlobStoreBenchmark [folder] [records] [threads]</code>. Created by developerCookie on
+ * 19.10.26.
+ */
+public class EncryptedBlobStoreBenchmark {
+    /**
+     * The size of one value.
+     */
+    private static final int VALUE_SIZE = 256;
+
+    /**
+     * How long the reads are measured.
+     */
+    private static final long DURATION_MILLIS = 5000;
+
+    public static void main(String[] args) throws Exception {
+        String folder = args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir") + "/blob-store-benchmark";
+        final int records = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        int threadCount = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        FileUtils.deleteQuietly(new File(folder));
+
+        final EncryptedBlobStore store = EncryptedBlobStore.open(folder, new AESContentTransformer(), "benchmark");
+        try {
+            byte[] value = new byte[VALUE_SIZE];
+            new Random(42).nextBytes(value);
+            store.setSyncOnCommit(false);
+            long start = System.nanoTime();
+            for (int i = 0; i < records; i++) {
+                store.put("record-" + i, value);
+            }
+            report("put (one thread)", records, System.nanoTime() - start);
+
+            final AtomicLong reads = new AtomicLong();
+            final long end = System.currentTimeMillis() + DURATION_MILLIS;
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int t = 0; t < threadCount; t++) {
+                final Random random = new Random(t);
+                threads.add(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            long count = 0;
+                            while (System.currentTimeMillis() < end) {
+                                store.get("record-" + random.nextInt(records));
+                                count++;
+                            }
+                            reads.addAndGet(count);
+                        } catch (Exception ex) {
+                            throw new IllegalStateException(ex);
+                        }
+                    }
+                }));
+            }
+            start = System.nanoTime();
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            report("get (" + threadCount + " threads)", reads.get(), System.nanoTime() - start);
+        } finally {
+            store.close();
+            FileUtils.deleteQuietly(new File(folder));
+        }
+    }
+
+    /**
+     * Prints the operations per second.
+     */
+    private static void report(String operation, long count, long nanos) {
+        System.out.println(String.format("%-20s %10.0f ops/s", operation, count / (nanos / 1e9)));
+    }
+}
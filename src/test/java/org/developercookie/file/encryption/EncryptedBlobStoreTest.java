@@ -0,0 +1,218 @@
+package org.developercookie.file.encryption;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests the EncryptedBlobStore. Created by developerCookie on 19.10.26.
+ */
+public class EncryptedBlobStoreTest {
+    /**
+     * Folder of the store.
+     */
+    private static final String storeFolder = "/tmp/store";
+
+    /**
+     * Folder will be removed.
+     */
+    @After
+    public void cleanup() {
+        FileUtils.deleteQuietly(new File(storeFolder));
+    }
+
+    /**
+     * Values are stored, overwritten and deleted and are still there after the store was opened again.
+     */
+    @Test
+    public void putGetDelete() throws Exception {
+        EncryptedBlobStore store = EncryptedBlobStore.open(storeFolder, new AESContentTransformer(), "12");
+        store.put("a", "first".getBytes());
+        store.put("b", "second".getBytes());
+        store.put("a", "third".getBytes());
+        Assert.assertTrue(store.delete("b"));
+        Assert.assertFalse(store.delete("c"));
+        Assert.assertArrayEquals("third".getBytes(), store.get("a"));
+        Assert.assertNull(store.get("b"));
+        store.close();
+
+        store = EncryptedBlobStore.open(storeFolder, new AESContentTransformer(), "12");
+        Assert.assertEquals(1, store.size());
+        Assert.assertArrayEquals("third".getBytes(), store.get("a"));
+        Assert.assertNull(store.get("b"));
+        store.close();
+    }
+
+    /**
+     * The values are encrypted in the log files.
+     */
+    @Test
+    public void valuesAreEncrypted() throws Exception {
+        EncryptedBlobStore store = EncryptedBlobStore.open(storeFolder, new AESContentTransformer(), "12");
+        store.put("secret-key", "secret-value".getBytes());
+        store.close();
+        for (File logFile : new File(storeFolder).listFiles()) {
+            String content = FileUtils.readFileToString(logFile, "ISO-8859-1");
+            Assert.assertFalse(content.contains("secret"));
+        }
+    }
+
+    /**
+     * The store is opened with another key.
+     */
+    @Test(expected = IllegalKeyException.class)
+    public void wrongKey() throws Exception {
+        EncryptedBlobStore store = EncryptedBlobStore.open(storeFolder, new AESContentTransformer(), "12");
+        store.put("a", "first".getBytes());
+        store.close();
+        EncryptedBlobStore.open(storeFolder, new AESContentTransformer(), "13");
+    }
+
+    /**
+     * A torn record at the end of the log, with a length that can not be allocated, is cut off when the store is
+     * opened again. A record whose CRC does not match is cut off as well.
+     */
+    @Test
+    public void tornRecordIsCutOff() throws Exception {
+        EncryptedBlobStore store = EncryptedBlobStore.open(storeFolder, new AESContentTransformer(), "12");
+        store.put("a", "first".getBytes());
+        store.put("b", "second".getBytes());
+        store.close();
+        File logFile = new File(storeFolder, "log-0.dat");
+        long validLength = logFile.length();
+        DataOutputStream stream = new DataOutputStream(new FileOutputStream(logFile, true));
+        try {
+            stream.writeByte(1);
+            stream.writeLong(3);
+            stream.writeLong(0);
+            stream.writeInt(Integer.MAX_VALUE);
+            stream.writeInt(-1);
+        } finally {
+            stream.close();
+        }
+
+        store = EncryptedBlobStore.open(storeFolder, new AESContentTransformer(), "12");
+        Assert.assertArrayEquals("second".getBytes(), store.get("b"));
+        Assert.assertEquals(validLength, logFile.length());
+        store.close();
+
+        RandomAccessFile file = new RandomAccessFile(logFile, "rw");
+        try {
+            file.seek(validLength - 1);
+            int last = file.read();
+            file.seek(validLength - 1);
+            file.write(last ^ 1);
+        } finally {
+            file.close();
+        }
+        store = EncryptedBlobStore.open(storeFolder, new AESContentTransformer(), "12");
+        Assert.assertArrayEquals("first".getBytes(), store.get("a"));
+        Assert.assertNull(store.get("b"));
+        store.close();
+    }
+
+    /**
+     * A reader that is interrupted closes the log file; the next reads and writes open it again.
+     */
+    @Test
+    public void interruptedReader() throws Exception {
+        EncryptedBlobStore store = EncryptedBlobStore.open(storeFolder, new AESContentTransformer(), "12");
+        try {
+            store.put("a", "first".getBytes());
+            Thread.currentThread().interrupt();
+            try {
+                store.get("a");
+                Assert.fail("The interrupted read must fail");
+            } catch (InterruptedIOException expected) {
+                Assert.assertTrue(Thread.interrupted());
+            }
+            Assert.assertArrayEquals("first".getBytes(), store.get("a"));
+            store.put("b", "second".getBytes());
+            Assert.assertArrayEquals("second".getBytes(), store.get("b"));
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * A RuntimeException in the writer thread fails the write and marks the store as broken instead of leaving the
+     * next writes waiting forever.
+     */
+    @Test(timeout = 10000)
+    public void brokenWriter() throws Exception {
+        EncryptedBlobStore store = EncryptedBlobStore.open(storeFolder, new AESContentTransformer() {
+            @Override
+            public byte[] encrypt(byte[] content, String key) {
+                return new String(content).equals("poison") ? null : super.encrypt(content, key);
+            }
+        }, "12");
+        try {
+            store.put("a", "first".getBytes());
+            for (String value : new String[]{"poison", "second"}) {
+                try {
+                    store.put("b", value.getBytes());
+                    Assert.fail("The write must fail");
+                } catch (IOException expected) {
+                    Assert.assertEquals("Store is broken", expected.getMessage());
+                }
+            }
+            Assert.assertArrayEquals("first".getBytes(), store.get("a"));
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * Several threads write at the same time, the writes are committed in groups. After the compaction only the
+     * current values are left.
+     */
+    @Test
+    public void concurrentWritesAndCompaction() throws Exception {
+        final EncryptedBlobStore store = EncryptedBlobStore.open(storeFolder, new AESContentTransformer(), "12", 4096);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final int thread = t;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int round = 0; round < 3; round++) {
+                            for (int i = 0; i < 50; i++) {
+                                store.put(thread + "-" + i, (thread + "-" + i + "-" + round).getBytes());
+                            }
+                        }
+                    } catch (Exception ex) {
+                        throw new IllegalStateException(ex);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertTrue(store.getGarbageRatio() > 0.5);
+        store.compact();
+        Assert.assertTrue(store.getGarbageRatio() < 0.5);
+        Assert.assertEquals(200, store.size());
+        Assert.assertArrayEquals("3-7-2".getBytes(), store.get("3-7"));
+        store.close();
+
+        EncryptedBlobStore reopened = EncryptedBlobStore.open(storeFolder, new AESContentTransformer(), "12");
+        Assert.assertEquals(200, reopened.size());
+        Assert.assertArrayEquals("1-49-2".getBytes(), reopened.get("1-49"));
+        reopened.close();
+    }
+}
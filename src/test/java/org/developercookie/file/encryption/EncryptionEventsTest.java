@@ -0,0 +1,67 @@
+package org.developercookie.file.encryption;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tests that the encryption reports its files and stages to the Java Flight Recorder. Created by developerCookie on
+ * 19.10.26.
+ */
+public class EncryptionEventsTest extends FolderFixture {
+    /**
+     * A recording of a folder job has an event per file and the read, cipher and write stages.
+     */
+    @Test
+    public void recordsFilesAndStages() throws Exception {
+        writeTestfile("small.txt", 500);
+        writeTestfile("large.txt", 5000);
+        FileEncryption fileEncryption = new FileEncryption(new AESContentTransformer());
+        fileEncryption.setSegmentThreshold(1000);
+        fileEncryption.setSegmentSize(1024);
+        File recordingFile = new File(testFolder, "recording.jfr");
+
+        Recording recording = new Recording();
+        recording.enable(EncryptionEvents.FileEvent.class);
+        recording.enable(EncryptionEvents.StageEvent.class);
+        recording.enable(EncryptionEvents.KeyDerivationEvent.class);
+        recording.start();
+        fileEncryption.encryptFolder(testFolder, encryptionFolder, "txt", "12");
+        fileEncryption.decryptFolder(encryptionFolder, decryptionFolder, "12");
+        recording.stop();
+        recording.dump(recordingFile.toPath());
+        recording.close();
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(recordingFile.toPath());
+        Set<String> files = new HashSet<String>();
+        Set<String> stages = new HashSet<String>();
+        int keyDerivations = 0;
+        for (RecordedEvent event : events) {
+            String type = event.getEventType().getName();
+            if (type.equals("org.developercookie.file.encryption.File")) {
+                files.add(event.getString("operation") + " " + new File(event.getString("path")).getName()
+                        + " " + event.getBoolean("segmented"));
+                Assert.assertTrue(event.getLong("bytes") > 0);
+            } else if (type.equals("org.developercookie.file.encryption.Stage")) {
+                stages.add(event.getString("stage") + " " + event.getLong("segment"));
+            } else if (type.equals("org.developercookie.file.encryption.KeyDerivation")) {
+                keyDerivations++;
+            }
+        }
+        Assert.assertTrue(files.toString(), files.contains("encrypt small.txt false"));
+        Assert.assertTrue(files.toString(), files.contains("encrypt large.txt true"));
+        Assert.assertTrue(files.toString(), files.contains("decrypt small.txt.enc false"));
+        Assert.assertTrue(files.toString(), files.contains("decrypt large.txt.enc true"));
+        for (String stage : new String[]{"read -1", "cipher -1", "write -1", "read 4", "cipher 4", "write 4"}) {
+            Assert.assertTrue(stages.toString(), stages.contains(stage));
+        }
+        Assert.assertTrue(keyDerivations >= 12);
+    }
+}
@@ -0,0 +1,131 @@
+package org.developercookie.file.encryption;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * Tests the encryption of a folder for several recipients. Created by developerCookie on 19.10.26.
+ */
+public class EnvelopeTest extends FolderFixture {
+    private FileEncryption fileEncryption;
+
+    /**
+     * Test files are written and encrypted for the recipients "team-a" and "team-b".
+     */
+    @Before
+    public void init() throws IOException {
+        writeTestfile("large.txt", 10000);
+        writeTestfile("small.txt", 100);
+        fileEncryption = new FileEncryption(new AESContentTransformer());
+        fileEncryption.setSegmentSize(256);
+        fileEncryption.encryptFolderForRecipients(testFolder, encryptionFolder, "txt", Arrays.asList("team-a", "team-b"), "manifest");
+    }
+
+    /**
+     * Every recipient decrypts the folder with its own key, other keys fail.
+     */
+    @Test
+    public void decryptByEveryRecipient() throws Exception {
+        for (String key : new String[]{"team-a", "team-b"}) {
+            FileUtils.cleanDirectory(new File(decryptionFolder));
+            fileEncryption.decryptFolder(encryptionFolder, decryptionFolder, key);
+            assertSameContent("large.txt");
+            assertSameContent("small.txt");
+        }
+        try {
+            fileEncryption.decrypt(encryptionFolder + "/small.txt.enc", decryptionFolder, "team-c");
+            Assert.fail("Key of no recipient must fail");
+        } catch (IllegalKeyException ex) {
+            // expected
+        }
+    }
+
+    /**
+     * Adding and removing recipients keeps the space of the header and the manifest valid and leaves no partial or
+     * backup file.
+     */
+    @Test
+    public void addAndRemoveRecipients() throws Exception {
+        File encrypted = new File(encryptionFolder, "large.txt.enc");
+        long length = encrypted.length();
+
+        fileEncryption.addRecipientToFolder(encryptionFolder, "team-a", "team-c", "manifest");
+        Assert.assertEquals(2, fileEncryption.removeRecipientFromFolder(encryptionFolder, "team-a", "manifest"));
+
+        Assert.assertEquals(length, encrypted.length());
+        Assert.assertFalse(new File(encrypted.getPath() + FileEncryption.PART_EXTENSION).exists());
+        Assert.assertFalse(new File(encrypted.getPath() + Envelope.HEADER_BACKUP_EXTENSION).exists());
+        Assert.assertTrue(fileEncryption.verifyFolder(encryptionFolder, "manifest").isEmpty());
+        fileEncryption.decryptFolder(encryptionFolder, decryptionFolder, "team-c");
+        assertSameContent("large.txt");
+        try {
+            fileEncryption.decrypt(encrypted.getPath(), decryptionFolder, "team-a");
+            Assert.fail("Removed recipient must not decrypt");
+        } catch (IllegalKeyException ex) {
+            // expected
+        }
+    }
+
+    /**
+     * If the slots do not fit into the header any more the file gets a larger header, the content is copied.
+     */
+    @Test
+    public void growHeader() throws Exception {
+        String filename = encryptionFolder + "/small.txt.enc";
+        for (int i = 0; i < 60; i++) {
+            fileEncryption.addRecipient(filename, "team-a", "recipient-" + i);
+        }
+        Assert.assertTrue(Envelope.read(filename).getCapacity() > Envelope.DEFAULT_CAPACITY);
+        fileEncryption.decrypt(filename, decryptionFolder, "recipient-42");
+        assertSameContent("small.txt");
+    }
+
+    /**
+     * A header that was torn while it was overwritten is restored from its backup before the file is read.
+     */
+    @Test
+    public void restoreTornHeader() throws Exception {
+        File encrypted = new File(encryptionFolder, "large.txt.enc");
+        byte[] header = new byte[Envelope.DEFAULT_CAPACITY];
+        RandomAccessFile file = new RandomAccessFile(encrypted, "rw");
+        try {
+            file.readFully(header);
+            FileUtils.writeByteArrayToFile(new File(encrypted.getPath() + Envelope.HEADER_BACKUP_EXTENSION), header);
+            file.seek(Envelope.MAGIC.length + 8);
+            file.write(new byte[512]);
+        } finally {
+            file.close();
+        }
+
+        fileEncryption.decrypt(encrypted.getPath(), decryptionFolder, "team-b");
+        assertSameContent("large.txt");
+        Assert.assertFalse(new File(encrypted.getPath() + Envelope.HEADER_BACKUP_EXTENSION).exists());
+    }
+
+    /**
+     * A capacity that is larger than the file is read as a damaged header.
+     */
+    @Test(expected = IOException.class)
+    public void damagedCapacity() throws Exception {
+        File encrypted = new File(encryptionFolder, "small.txt.enc");
+        RandomAccessFile file = new RandomAccessFile(encrypted, "rw");
+        try {
+            file.seek(Envelope.MAGIC.length);
+            file.writeInt(Integer.MAX_VALUE);
+        } finally {
+            file.close();
+        }
+        Envelope.read(encrypted.getPath());
+    }
+
+    private void assertSameContent(String name) throws IOException {
+        Assert.assertTrue(FileUtils.contentEquals(new File(testFolder, name), new File(decryptionFolder, name)));
+    }
+}
@@ -0,0 +1,68 @@
+package org.developercookie.file.encryption;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * The folders tests with files work in: they are created before every test and removed after it. Created by
+ * developerCookie on 19.10.26.
+ */
+public abstract class FolderFixture {
+    /**
+     * Folder to which the test data are written.
+     */
+    protected static final String testFolder = "/tmp/test";
+
+    /**
+     * Folder to which the encrypted data are written.
+     */
+    protected static final String encryptionFolder = "/tmp/enc";
+
+    /**
+     * Folder to which the decrypted data are written.
+     */
+    protected static final String decryptionFolder = "/tmp/dec";
+
+    /**
+     * Folder will be created.
+     */
+    @Before
+    public void createFolders() {
+        new File(testFolder).mkdirs();
+        new File(encryptionFolder).mkdirs();
+        new File(decryptionFolder).mkdirs();
+    }
+
+    /**
+     * Folder will be removed.
+     */
+    @After
+    public void removeFolders() {
+        FileUtils.deleteQuietly(new File(testFolder));
+        FileUtils.deleteQuietly(new File(encryptionFolder));
+        FileUtils.deleteQuietly(new File(decryptionFolder));
+    }
+
+    /**
+     * Writes a test file with random content into the test folder. The content only depends on the <code>size</code>;
+     * it is returned.
+     */
+    protected static byte[] writeTestfile(String name, int size) throws IOException {
+        return writeTestfile(name, size, size);
+    }
+
+    /**
+     * Writes a test file with random content of the <code>seed</code> into the test folder and returns the content.
+     */
+    protected static byte[] writeTestfile(String name, int size, long seed) throws IOException {
+        byte[] content = new byte[size];
+        new Random(seed).nextBytes(content);
+        FileUtils.writeByteArrayToFile(new File(testFolder, name), content);
+        return content;
+    }
+}
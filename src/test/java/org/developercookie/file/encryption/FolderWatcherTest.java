@@ -0,0 +1,86 @@
+package org.developercookie.file.encryption;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.RandomStringUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+
+/**
+ * Tests that the FolderWatcher encrypts new files of the watched folder. Created by developerCookie on 19.10.26.
+ */
+public class FolderWatcherTest extends FolderFixture {
+    /**
+     * A file in the watched folder and a file in a new sub folder are encrypted, a file with another extension is not.
+     */
+    @Test
+    public void newFilesAreEncrypted() throws Exception {
+        FileEncryption fileEncryption = new FileEncryption(new AESContentTransformer());
+        FolderWatcher watcher = new FolderWatcher(fileEncryption, testFolder, encryptionFolder, "txt", "12");
+        watcher.setQuietPeriodMillis(50);
+        watcher.start();
+        try {
+            String text = RandomStringUtils.random(2000, true, true);
+            FileUtils.writeStringToFile(new File(testFolder, "first.txt"), text);
+            FileUtils.writeStringToFile(new File(testFolder, "ignored.log"), text);
+            new File(testFolder, "sub").mkdirs();
+            FileUtils.writeStringToFile(new File(testFolder, "sub/second.txt"), text);
+            FileUtils.writeStringToFile(new File(testFolder, "sub/first.txt"), "other");
+
+            waitForFiles(watcher, 3);
+            Assert.assertTrue(new File(encryptionFolder, "sub/first.txt.enc").exists());
+            Assert.assertTrue(new File(encryptionFolder, "first.txt.enc").exists());
+            Assert.assertTrue(new File(encryptionFolder, "sub/second.txt.enc").exists());
+            Assert.assertFalse(new File(encryptionFolder, "second.txt.enc").exists());
+            Assert.assertFalse(new File(encryptionFolder, "ignored.log.enc").exists());
+            Assert.assertTrue(watcher.getFailures().isEmpty());
+
+            fileEncryption.decrypt(encryptionFolder + "/sub/second.txt.enc", decryptionFolder, "12");
+            Assert.assertEquals(text, FileUtils.readFileToString(new File(decryptionFolder, "second.txt")));
+        } finally {
+            watcher.close();
+        }
+    }
+
+    /**
+     * Only the last failures are kept, all of them are counted.
+     */
+    @Test
+    public void failuresAreBounded() throws Exception {
+        FileEncryption fileEncryption = new FileEncryption(new AESContentTransformer() {
+            @Override
+            public byte[] encrypt(byte[] content, String key) {
+                throw new IllegalStateException("encryption fails");
+            }
+        });
+        FolderWatcher watcher = new FolderWatcher(fileEncryption, testFolder, encryptionFolder, "txt", "12");
+        watcher.setQuietPeriodMillis(50);
+        watcher.start();
+        try {
+            int files = FolderWatcher.KEPT_FAILURES + 20;
+            for (int i = 0; i < files; i++) {
+                FileUtils.writeStringToFile(new File(testFolder, "file" + i + ".txt"), "content " + i);
+            }
+            long end = System.currentTimeMillis() + 10000;
+            while (watcher.getFailureCount() < files && System.currentTimeMillis() < end) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(files, watcher.getFailureCount());
+            Assert.assertEquals(FolderWatcher.KEPT_FAILURES, watcher.getFailures().size());
+        } finally {
+            watcher.close();
+        }
+    }
+
+    /**
+     * Waits up to ten seconds until the <code>watcher</code> encrypted the given number of files.
+     */
+    private void waitForFiles(FolderWatcher watcher, int files) throws InterruptedException {
+        long end = System.currentTimeMillis() + 10000;
+        while (watcher.getEncryptedFiles() < files && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(files, watcher.getEncryptedFiles());
+    }
+}
@@ -0,0 +1,98 @@
+package org.developercookie.file.encryption;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Tests the migration of single block files into the segmented format. Created by developerCookie on 19.10.26.
+ */
+public class FormatMigrationTest extends FolderFixture {
+    /**
+     * Test files are written.
+     */
+    @Before
+    public void init() throws IOException {
+        writeTestfile("a.txt", 10000);
+        writeTestfile("b.txt", 1024);
+        writeTestfile("c.txt", 0);
+    }
+
+    /**
+     * All files are migrated and decrypt to the same content. A second migration skips them.
+     */
+    @Test
+    public void migrate() throws Exception {
+        FileEncryption fileEncryption = new FileEncryption(new AESContentTransformer());
+        fileEncryption.encryptFolder(testFolder, encryptionFolder, "txt", "12", "manifest");
+        fileEncryption.setSegmentSize(256);
+
+        MigrationReport report = fileEncryption.migrateFolder(encryptionFolder, "12", "manifest");
+        Assert.assertEquals(3, report.getMigratedFiles());
+        Assert.assertTrue(report.getBytesWritten() > report.getBytesRead());
+        Assert.assertTrue(SegmentedFormat.isSegmented(encryptionFolder + "/a.txt.enc"));
+        Assert.assertTrue(fileEncryption.verifyFolder(encryptionFolder, "manifest").isEmpty());
+
+        fileEncryption.decryptFolder(encryptionFolder, decryptionFolder, "12");
+        for (String name : new String[]{"a.txt", "b.txt", "c.txt"}) {
+            Assert.assertTrue(FileUtils.contentEquals(new File(testFolder, name), new File(decryptionFolder, name)));
+        }
+
+        report = fileEncryption.migrateFolder(encryptionFolder, "12");
+        Assert.assertEquals(0, report.getMigratedFiles());
+        Assert.assertEquals(3, report.getSkippedFiles());
+    }
+
+    /**
+     * A wrong key is found before any file is replaced.
+     */
+    @Test
+    public void wrongKey() throws Exception {
+        FileEncryption fileEncryption = new FileEncryption(new AESContentTransformer());
+        fileEncryption.encryptFolder(testFolder, encryptionFolder, "txt", "12");
+        byte[] before = FileUtils.readFileToByteArray(new File(encryptionFolder, "b.txt.enc"));
+        try {
+            fileEncryption.migrateFolder(encryptionFolder, "13");
+            Assert.fail("Wrong key must fail");
+        } catch (IllegalKeyException ex) {
+            // expected
+        }
+        Assert.assertArrayEquals(before, FileUtils.readFileToByteArray(new File(encryptionFolder, "b.txt.enc")));
+        Assert.assertFalse(SegmentedFormat.isSegmented(encryptionFolder + "/a.txt.enc"));
+        fileEncryption.decryptFolder(encryptionFolder, decryptionFolder, "12");
+        for (String name : new String[]{"a.txt", "b.txt", "c.txt"}) {
+            Assert.assertTrue(FileUtils.contentEquals(new File(testFolder, name), new File(decryptionFolder, name)));
+        }
+    }
+
+    /**
+     * A migration that died after a file replaced the old one updates the manifest for that file when it is started
+     * again.
+     */
+    @Test
+    public void resumeUpdatesManifest() throws Exception {
+        FileEncryption fileEncryption = new FileEncryption(new AESContentTransformer());
+        fileEncryption.encryptFolder(testFolder, encryptionFolder, "txt", "12", "manifest");
+        fileEncryption.setSegmentSize(256);
+        FileUtils.copyDirectory(new File(encryptionFolder), new File(decryptionFolder));
+        fileEncryption.migrateFolder(decryptionFolder, "12");
+        File migrated = new File(encryptionFolder, "a.txt.enc");
+        FileUtils.copyFile(new File(decryptionFolder, "a.txt.enc"), migrated);
+        FileUtils.cleanDirectory(new File(decryptionFolder));
+        String jobId = CheckpointJournal.jobId("migrate", new File(encryptionFolder).getAbsolutePath(), "12", "256");
+        CheckpointJournal journal = CheckpointJournal.open(encryptionFolder, jobId);
+        journal.done("a.txt.enc", migrated.length(), IntegrityManifest.digestMapped(migrated));
+        journal.close();
+
+        MigrationReport report = fileEncryption.migrateFolder(encryptionFolder, "12", "manifest");
+
+        Assert.assertEquals(2, report.getMigratedFiles());
+        Assert.assertEquals(1, report.getSkippedFiles());
+        Assert.assertTrue(fileEncryption.verifyFolder(encryptionFolder, "manifest").isEmpty());
+        Assert.assertFalse(new File(encryptionFolder, CheckpointJournal.JOURNAL_FILENAME).exists());
+    }
+}
@@ -0,0 +1,184 @@
+package org.developercookie.file.encryption;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Tests that files are encrypted in place and that an in-place encryption that died is finished. Created by
+ * developerCookie on 19.10.26.
+ */
+public class InPlaceEncryptionTest extends FolderFixture {
+    /**
+     * Folder that keeps a copy of the test data to compare with.
+     */
+    private static final String referenceFolder = "/tmp/ref";
+
+    /**
+     * Folder will be created.
+     */
+    @Before
+    public void init() {
+        new File(referenceFolder).mkdirs();
+    }
+
+    /**
+     * Folder will be removed.
+     */
+    @After
+    public void cleanup() {
+        FileUtils.deleteQuietly(new File(referenceFolder));
+    }
+
+    /**
+     * Small and large files are replaced by their encrypted files, other files are kept.
+     */
+    @Test
+    public void folderInPlace() throws Exception {
+        writeWithReference("small.txt", 300);
+        writeWithReference("exact.txt", 4096);
+        writeWithReference("large.txt", 5000);
+        writeWithReference("sub/other.txt", 2500);
+        writeWithReference("keep.bin", 100);
+        FileEncryption fileEncryption = newFileEncryption(new AESContentTransformer());
+        fileEncryption.setWorkerCount(2);
+
+        fileEncryption.encryptFolderInPlace(testFolder, "txt", "12");
+
+        Assert.assertTrue(new File(testFolder, "keep.bin").exists());
+        Assert.assertEquals(5, FileUtils.listFiles(new File(testFolder), null, true).size());
+        Assert.assertTrue(SegmentedFormat.isSegmented(testFolder + "/large.txt.enc"));
+        Assert.assertFalse(SegmentedFormat.isSegmented(testFolder + "/small.txt.enc"));
+        for (String name : new String[]{"small.txt", "exact.txt", "large.txt", "sub/other.txt"}) {
+            Assert.assertFalse(name, new File(testFolder, name).exists());
+            assertDecrypts(fileEncryption, name);
+        }
+    }
+
+    /**
+     * A large file whose encryption died after some segments is finished by the next run. The first encryption is the
+     * probe for the record length, then the segments follow from the last to the first.
+     */
+    @Test
+    public void resumesAfterCrash() throws Exception {
+        int[] crashes = {1, 3, 5};
+        long[] leftLengths = {5000, 3072, 1024};
+        for (int i = 0; i < crashes.length; i++) {
+            final int failAfter = crashes[i];
+            writeWithReference("large.txt", 5000);
+            FileEncryption crashing = newFileEncryption(new AESContentTransformer() {
+                private int calls;
+
+                @Override
+                public byte[] encrypt(byte[] content, String key) {
+                    if (++calls > failAfter) {
+                        throw new IllegalStateException("Crash");
+                    }
+                    return super.encrypt(content, key);
+                }
+            });
+            try {
+                crashing.encryptInPlace(testFolder + "/large.txt", "12");
+                Assert.fail("Encryption did not crash");
+            } catch (IllegalStateException ex) {
+                Assert.assertEquals("Crash", ex.getMessage());
+            }
+            Assert.assertTrue(new File(testFolder, "large.txt" + InPlaceEncryption.IN_PLACE_EXTENSION).exists());
+            Assert.assertEquals(leftLengths[i], new File(testFolder, "large.txt").length());
+
+            FileEncryption fileEncryption = newFileEncryption(new AESContentTransformer());
+            fileEncryption.encryptFolderInPlace(testFolder, "txt", "12");
+
+            Assert.assertFalse(new File(testFolder, "large.txt").exists());
+            Assert.assertFalse(new File(testFolder, "large.txt" + InPlaceEncryption.IN_PLACE_EXTENSION).exists());
+            assertDecrypts(fileEncryption, "large.txt");
+            FileUtils.deleteQuietly(new File(testFolder, "large.txt.enc"));
+        }
+    }
+
+    /**
+     * A job that died is not continued with another key, the written segments and the rest of the file are kept.
+     */
+    @Test
+    public void resumeWithWrongKey() throws Exception {
+        writeWithReference("large.txt", 5000);
+        FileEncryption crashing = newFileEncryption(new AESContentTransformer() {
+            private int calls;
+
+            @Override
+            public byte[] encrypt(byte[] content, String key) {
+                if (++calls > 3) {
+                    throw new IllegalStateException("Crash");
+                }
+                return super.encrypt(content, key);
+            }
+        });
+        try {
+            crashing.encryptInPlace(testFolder + "/large.txt", "12");
+            Assert.fail("Encryption did not crash");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+        File inPlaceFile = new File(testFolder, "large.txt" + InPlaceEncryption.IN_PLACE_EXTENSION);
+        long inPlaceLength = inPlaceFile.length();
+
+        FileEncryption fileEncryption = newFileEncryption(new AESContentTransformer());
+        try {
+            fileEncryption.encryptFolderInPlace(testFolder, "txt", "13");
+            Assert.fail("Wrong key must fail");
+        } catch (IllegalKeyException ex) {
+            // expected
+        }
+        Assert.assertEquals(3072, new File(testFolder, "large.txt").length());
+        Assert.assertEquals(inPlaceLength, inPlaceFile.length());
+
+        fileEncryption.encryptFolderInPlace(testFolder, "txt", "12");
+        assertDecrypts(fileEncryption, "large.txt");
+    }
+
+    /**
+     * An in-place file whose source is already deleted becomes the encrypted file.
+     */
+    @Test
+    public void finishesDeletedSource() throws Exception {
+        writeWithReference("large.txt", 5000);
+        FileEncryption fileEncryption = newFileEncryption(new AESContentTransformer());
+        fileEncryption.encryptInPlace(testFolder + "/large.txt", "12");
+        File inPlaceFile = new File(testFolder, "large.txt" + InPlaceEncryption.IN_PLACE_EXTENSION);
+        FileUtils.moveFile(new File(testFolder, "large.txt.enc"), inPlaceFile);
+
+        fileEncryption.encryptFolderInPlace(testFolder, "txt", "12");
+
+        Assert.assertFalse(inPlaceFile.exists());
+        assertDecrypts(fileEncryption, "large.txt");
+    }
+
+    private static FileEncryption newFileEncryption(ContentTransformer contentTransformer) {
+        FileEncryption fileEncryption = new FileEncryption(contentTransformer);
+        fileEncryption.setSegmentThreshold(1000);
+        fileEncryption.setSegmentSize(1024);
+        return fileEncryption;
+    }
+
+    /**
+     * Decrypts the encrypted file of <code>name</code> and compares it with the reference.
+     */
+    private static void assertDecrypts(FileEncryption fileEncryption, String name) throws Exception {
+        File decrypted = new File(decryptionFolder, new File(name).getName());
+        fileEncryption.decrypt(testFolder + "/" + name + FileEncryption.ENCRYPTION_EXTENSION, decryptionFolder, "12");
+        Assert.assertTrue(name, FileUtils.contentEquals(new File(referenceFolder, name), decrypted));
+        FileUtils.deleteQuietly(decrypted);
+    }
+
+    /**
+     * Writes a test file with random content and its reference copy.
+     */
+    private void writeWithReference(String name, int size) throws IOException {
+        FileUtils.writeByteArrayToFile(new File(referenceFolder, name), writeTestfile(name, size));
+    }
+}
@@ -0,0 +1,89 @@
+package org.developercookie.file.encryption;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.RandomStringUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests the integrity manifest that is written by FileEncryption. Created by developerCookie on 19.10.26.
+ */
+public class IntegrityManifestTest extends FolderFixture {
+    /**
+     * Some files are written to the test folder and encrypted with a manifest.
+     */
+    @Before
+    public void init() throws IOException {
+        for (int i = 0; i < 20; i++) {
+            FileUtils.writeStringToFile(new File(testFolder, "file" + i + ".txt"), RandomStringUtils.random(3000, true, true));
+        }
+        FileEncryption fileEncryption = new FileEncryption(new AESContentTransformer());
+        fileEncryption.encryptFolder(testFolder, encryptionFolder, "txt", "12", "audit");
+    }
+
+    /**
+     * An untouched folder is reported as intact.
+     */
+    @Test
+    public void intactFolder() throws Exception {
+        FileEncryption fileEncryption = new FileEncryption(new NothingTransformer());
+        Assert.assertEquals(Collections.<String>emptyList(), fileEncryption.verifyFolder(encryptionFolder, "audit"));
+    }
+
+    /**
+     * A changed, a removed and an added file are reported.
+     */
+    @Test
+    public void damagedFolder() throws Exception {
+        FileUtils.writeStringToFile(new File(encryptionFolder, "file3.txt.enc"), "broken");
+        FileUtils.deleteQuietly(new File(encryptionFolder, "file7.txt.enc"));
+        FileUtils.writeStringToFile(new File(encryptionFolder, "foreign.txt.enc"), "foreign");
+
+        FileEncryption fileEncryption = new FileEncryption(new NothingTransformer());
+        List<String> failures = fileEncryption.verifyFolder(encryptionFolder, "audit");
+        Collections.sort(failures);
+        Assert.assertEquals(Arrays.asList("file3.txt.enc", "file7.txt.enc", "foreign.txt.enc"), failures);
+    }
+
+    /**
+     * The manifest key is wrong, so the signature does not match.
+     */
+    @Test(expected = IllegalKeyException.class)
+    public void wrongManifestKey() throws Exception {
+        FileEncryption fileEncryption = new FileEncryption(new NothingTransformer());
+        fileEncryption.verifyFolder(encryptionFolder, "other");
+    }
+
+    /**
+     * Encrypting into the folder with a wrong manifest key fails and keeps the manifest.
+     */
+    @Test
+    public void wrongManifestKeyKeepsManifest() throws Exception {
+        FileUtils.writeStringToFile(new File(testFolder, "file20.txt"), "new");
+        FileEncryption fileEncryption = new FileEncryption(new AESContentTransformer());
+        try {
+            fileEncryption.encryptFolder(testFolder, encryptionFolder, "txt", "12", "other");
+            Assert.fail("A manifest signed with another key must not be replaced");
+        } catch (IOException ex) {
+            // expected
+        }
+        Assert.assertEquals(Collections.<String>emptyList(), fileEncryption.verifyFolder(encryptionFolder, "audit"));
+    }
+
+    /**
+     * The manifest itself is not decrypted by decryptFolder.
+     */
+    @Test
+    public void manifestIsNotDecrypted() throws Exception {
+        FileEncryption fileEncryption = new FileEncryption(new AESContentTransformer());
+        fileEncryption.decryptFolder(encryptionFolder, decryptionFolder, "12");
+        Assert.assertEquals(20, new File(decryptionFolder).list().length);
+    }
+}
@@ -0,0 +1,49 @@
+package org.developercookie.file.encryption;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Tests the I/O settings and the tuner. Created by developerCookie on 19.10.26.
+ */
+public class IoSettingsTest extends FolderFixture {
+    /**
+     * The read-ahead returns the content of the file unchanged, also from an offset.
+     */
+    @Test
+    public void readAhead() throws IOException {
+        byte[] content = writeTestfile("a.txt", 100000);
+        IoSettings settings = new IoSettings(1000, 1000, 3);
+        InputStream stream = settings.openInput(new File(testFolder, "a.txt"), 4321);
+        try {
+            Assert.assertArrayEquals(Arrays.copyOfRange(content, 4321, content.length), IOUtils.toByteArray(stream));
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * The tuner picks settings, the probe file is removed and files are encrypted with the settings.
+     */
+    @Test
+    public void autoTune() throws Exception {
+        writeTestfile("a.txt", 100000);
+        FileEncryption fileEncryption = new FileEncryption(new AESContentTransformer());
+        fileEncryption.setSegmentThreshold(1000);
+        fileEncryption.setSegmentSize(4096);
+
+        fileEncryption.setIoSettings(new IoTuner(256 * 1024).tune(testFolder, encryptionFolder));
+        Assert.assertEquals(0, new File(encryptionFolder).list().length);
+
+        fileEncryption.encryptFolder(testFolder, encryptionFolder, "txt", "12");
+        fileEncryption.decryptFolder(encryptionFolder, decryptionFolder, "12");
+        Assert.assertTrue(FileUtils.contentEquals(new File(testFolder, "a.txt"), new File(decryptionFolder, "a.txt")));
+    }
+}
@@ -0,0 +1,61 @@
+package org.developercookie.file.encryption;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Compares the encryption and decryption of a large file with the default I/O settings, with the settings found by the
+ * IoTuner and with large buffers and read-ahead. It is not run as a test, start it with <code>java ...
+ * IoTuningBenchmark [source folder] [target folder] [size in MB]</code>. Put the folders on the storage you want to
+ * measure. Created by developerCookie on 19.10.26.
+ */
+public class IoTuningBenchmark {
+    /**
+     * How often every variant is repeated. The best run is reported.
+     */
+    private static final int REPETITIONS = 3;
+
+    public static void main(String[] args) throws Exception {
+        String tmp = System.getProperty("java.io.tmpdir");
+        File sourceFolder = new File(args.length > 0 ? args[0] : tmp, "io-benchmark-source");
+        File targetFolder = new File(args.length > 1 ? args[1] : tmp, "io-benchmark-target");
+        int sizeInMB = args.length > 2 ? Integer.parseInt(args[2]) : 512;
+        sourceFolder.mkdirs();
+        targetFolder.mkdirs();
+        byte[] block = new byte[1024 * 1024];
+        new Random(42).nextBytes(block);
+        File source = new File(sourceFolder, "large.bin");
+        for (int i = 0; i < sizeInMB; i++) {
+            FileUtils.writeByteArrayToFile(source, block, i > 0);
+        }
+
+        try {
+            FileEncryption fileEncryption = new FileEncryption(new AESContentTransformer());
+            fileEncryption.setSegmentThreshold(0);
+            IoSettings tuned = new IoTuner().tune(sourceFolder.getPath(), targetFolder.getPath());
+            IoSettings[] variants = {IoSettings.DEFAULT, tuned, new IoSettings(1024 * 1024, 1024 * 1024, 4)};
+            String[] names = {"default", "tuned", "1 MB + read-ahead"};
+            for (int v = 0; v < variants.length; v++) {
+                fileEncryption.setIoSettings(variants[v]);
+                long bestEncrypt = Long.MAX_VALUE;
+                long bestDecrypt = Long.MAX_VALUE;
+                for (int i = 0; i < REPETITIONS; i++) {
+                    long start = System.nanoTime();
+                    fileEncryption.encrypt(source.getPath(), targetFolder.getPath(), "benchmark");
+                    bestEncrypt = Math.min(bestEncrypt, System.nanoTime() - start);
+                    start = System.nanoTime();
+                    fileEncryption.decrypt(new File(targetFolder, "large.bin.enc").getPath(), targetFolder.getPath(), "benchmark");
+                    bestDecrypt = Math.min(bestDecrypt, System.nanoTime() - start);
+                }
+                System.out.printf("%-20s encrypt %7.1f MB/s  decrypt %7.1f MB/s  (%s)%n", names[v],
+                        sizeInMB * 1e9 / bestEncrypt, sizeInMB * 1e9 / bestDecrypt, variants[v]);
+            }
+        } finally {
+            FileUtils.deleteQuietly(sourceFolder);
+            FileUtils.deleteQuietly(targetFolder);
+        }
+    }
+}
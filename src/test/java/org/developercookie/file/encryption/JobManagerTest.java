@@ -0,0 +1,117 @@
+package org.developercookie.file.encryption;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Tests the scheduling of several folder jobs on shared workers. Created by developerCookie on 19.10.26.
+ */
+public class JobManagerTest extends FolderFixture {
+    private JobManager jobManager;
+
+    /**
+     * The job manager is shut down.
+     */
+    @After
+    public void cleanup() {
+        if (jobManager != null) {
+            jobManager.shutdown();
+        }
+    }
+
+    /**
+     * An encrypt and a decrypt job run on the shared workers and report their statistics.
+     */
+    @Test
+    public void encryptAndDecrypt() throws Exception {
+        writeTestfiles("a", 5, 10000);
+        jobManager = new JobManager(new FileEncryption(new AESContentTransformer()), 3);
+
+        JobManager.Job encryptJob = jobManager.submitEncrypt(testFolder + "/a", encryptionFolder, "txt", "12", null, JobManager.PRIORITY_BULK, 1);
+        encryptJob.await();
+        Assert.assertEquals(5, encryptJob.getFiles());
+        Assert.assertEquals(50000, encryptJob.getBytes());
+
+        JobManager.Job decryptJob = jobManager.submitDecrypt(encryptionFolder, decryptionFolder, "12", JobManager.PRIORITY_INTERACTIVE, 1);
+        decryptJob.await();
+        Assert.assertTrue(decryptJob.isDone());
+        for (int i = 0; i < 5; i++) {
+            Assert.assertTrue(FileUtils.contentEquals(new File(testFolder + "/a", "file" + i + ".txt"), new File(decryptionFolder, "file" + i + ".txt")));
+        }
+    }
+
+    /**
+     * An interactive job that is submitted after a bulk job finishes before the bulk job.
+     */
+    @Test
+    public void interactiveOvertakesBulk() throws Exception {
+        writeTestfiles("bulk", 20, 1000);
+        writeTestfiles("small", 1, 1000);
+        new File(encryptionFolder, "bulk").mkdirs();
+        new File(encryptionFolder, "small").mkdirs();
+        jobManager = new JobManager(new FileEncryption(new SlowTransformer()), 1);
+
+        JobManager.Job bulk = jobManager.submitEncrypt(testFolder + "/bulk", encryptionFolder + "/bulk", "txt", "12", null, JobManager.PRIORITY_BULK, 1);
+        Thread.sleep(60);
+        JobManager.Job interactive = jobManager.submitEncrypt(testFolder + "/small", encryptionFolder + "/small", "txt", "12", null, JobManager.PRIORITY_INTERACTIVE, 1);
+        interactive.await();
+
+        Assert.assertFalse(bulk.isDone());
+        Assert.assertTrue(bulk.getFiles() < 10);
+        bulk.await();
+        Assert.assertEquals(20, bulk.getFiles());
+    }
+
+    /**
+     * Jobs of the same priority share the worker by their weight.
+     */
+    @Test
+    public void weightedShare() throws Exception {
+        writeTestfiles("heavy", 12, 1000);
+        writeTestfiles("light", 12, 1000);
+        new File(encryptionFolder, "heavy").mkdirs();
+        new File(encryptionFolder, "light").mkdirs();
+        jobManager = new JobManager(new FileEncryption(new SlowTransformer()), 1);
+
+        JobManager.Job heavy = jobManager.submitEncrypt(testFolder + "/heavy", encryptionFolder + "/heavy", "txt", "12", null, JobManager.PRIORITY_BULK, 3);
+        JobManager.Job light = jobManager.submitEncrypt(testFolder + "/light", encryptionFolder + "/light", "txt", "12", null, JobManager.PRIORITY_BULK, 1);
+        heavy.await();
+
+        Assert.assertTrue("Light job processed " + light.getFiles() + " files", light.getFiles() <= 6);
+        light.await();
+        Assert.assertEquals(12, light.getFiles());
+    }
+
+    /**
+     * Writes <code>count</code> test files with random content into the sub folder <code>name</code>.
+     */
+    private void writeTestfiles(String name, int count, int size) throws IOException {
+        Random random = new Random(count);
+        for (int i = 0; i < count; i++) {
+            byte[] content = new byte[size];
+            random.nextBytes(content);
+            FileUtils.writeByteArrayToFile(new File(testFolder + "/" + name, "file" + i + ".txt"), content);
+        }
+    }
+
+    /**
+     * Encrypts with AES and takes some time for every file.
+     */
+    private static class SlowTransformer extends AESContentTransformer {
+        @Override
+        public byte[] encrypt(byte[] content, String key) {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return super.encrypt(content, key);
+        }
+    }
+}
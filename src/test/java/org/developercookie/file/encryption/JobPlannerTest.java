@@ -0,0 +1,90 @@
+package org.developercookie.file.encryption;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Tests the planning of folder jobs. Created by developerCookie on 19.10.26.
+ */
+public class JobPlannerTest extends FolderFixture {
+    private static final int[] sizes = {100, 5000, 20000, 1024};
+
+    private FileEncryption fileEncryption;
+
+    /**
+     * Test files are written in two sub folders.
+     */
+    @Before
+    public void init() throws IOException {
+        for (int i = 0; i < sizes.length; i++) {
+            writeTestfile("sub" + i % 2 + "/file" + i + ".txt", sizes[i]);
+        }
+        fileEncryption = new FileEncryption(new AESContentTransformer());
+        fileEncryption.setSegmentThreshold(4096);
+        fileEncryption.setSegmentSize(1024);
+    }
+
+    /**
+     * The expected output size is close to the size of the encrypted files and nothing is written by the plan.
+     */
+    @Test
+    public void outputSize() throws Exception {
+        JobPlan plan = new JobPlanner(fileEncryption).planEncryptFolder(testFolder, encryptionFolder, "txt", "12", 2);
+
+        Assert.assertEquals(4, plan.getFiles());
+        Assert.assertEquals(100 + 5000 + 20000 + 1024, plan.getBytes());
+        Assert.assertEquals(0, plan.getSkippedFiles());
+        Assert.assertEquals(0, plan.getOverwrittenFiles());
+        Assert.assertEquals(2, plan.getSampledFiles());
+        Assert.assertEquals(-1, plan.getEstimatedMillis());
+        Assert.assertEquals(0, new File(encryptionFolder).list().length);
+
+        fileEncryption.encryptFolder(testFolder, encryptionFolder, "txt", "12");
+        long written = FileUtils.sizeOfDirectory(new File(encryptionFolder));
+        Assert.assertTrue(plan.getExpectedOutputBytes() >= written);
+        Assert.assertTrue(plan.getExpectedOutputBytes() - written <= 16 * (2 + 5 + 20));
+    }
+
+    /**
+     * Files completed by an interrupted run are skipped, other existing output files are overwritten.
+     */
+    @Test
+    public void skippedAndOverwritten() throws Exception {
+        fileEncryption.encryptFolder(testFolder, encryptionFolder, "txt", "12");
+        String jobId = FileEncryption.encryptJobId(testFolder, "txt", "12");
+        CheckpointJournal journal = CheckpointJournal.open(encryptionFolder, jobId);
+        journal.done("sub0/file0.txt.enc", new File(encryptionFolder, "sub0/file0.txt.enc").length(), null);
+        journal.close();
+
+        JobPlan plan = new JobPlanner(fileEncryption).planEncryptFolder(testFolder, encryptionFolder, "txt", "12", 0);
+
+        Assert.assertEquals(1, plan.getSkippedFiles());
+        Assert.assertEquals(100, plan.getSkippedBytes());
+        Assert.assertEquals(3, plan.getOverwrittenFiles());
+        Assert.assertEquals(0, plan.getSampledFiles());
+    }
+
+    /**
+     * A calibrated planner estimates a duration and leaves no probe file behind.
+     */
+    @Test
+    public void calibratedEstimate() throws Exception {
+        JobPlanner planner = new JobPlanner(fileEncryption, 1024 * 1024);
+        JobPlanner.Calibration calibration = planner.calibrate(testFolder, encryptionFolder);
+
+        JobPlan plan = planner.planEncryptFolder(testFolder, encryptionFolder, "txt", "12", 0);
+
+        Assert.assertTrue(calibration.getBytesPerSecond(2) > 0);
+        Assert.assertTrue(plan.getEstimatedMillis() >= 0);
+        Assert.assertEquals(0, new File(encryptionFolder).list().length);
+        RateLimiter rateLimiter = new RateLimiter();
+        rateLimiter.setFilesPerSecond(1);
+        fileEncryption.setRateLimiter(rateLimiter);
+        Assert.assertTrue(planner.planEncryptFolder(testFolder, encryptionFolder, "txt", "12", 0).getEstimatedMillis() >= 4000);
+    }
+}
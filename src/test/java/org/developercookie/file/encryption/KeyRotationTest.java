@@ -0,0 +1,160 @@
+package org.developercookie.file.encryption;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Tests the rotation of the key of an encrypted folder. Created by developerCookie on 19.10.26.
+ */
+public class KeyRotationTest extends FolderFixture {
+    private FileEncryption fileEncryption;
+
+    /**
+     * Folder will be created.
+     */
+    @Before
+    public void init() throws IOException {
+        writeTestfile("large.txt", 10000);
+        writeTestfile("small.txt", 100);
+        fileEncryption = new FileEncryption(new AESContentTransformer());
+        fileEncryption.setSegmentThreshold(1000);
+        fileEncryption.setSegmentSize(256);
+    }
+
+    /**
+     * Segmented and single block files are encrypted again with the new key, the manifest stays valid.
+     */
+    @Test
+    public void rotateFiles() throws Exception {
+        fileEncryption.encryptFolder(testFolder, encryptionFolder, "txt", "old", "manifest");
+
+        fileEncryption.rotateKey(encryptionFolder, "old", "new", "manifest");
+
+        Assert.assertTrue(fileEncryption.verifyFolder(encryptionFolder, "manifest").isEmpty());
+        Assert.assertFalse(new File(encryptionFolder, CheckpointJournal.JOURNAL_FILENAME).exists());
+        fileEncryption.decryptFolder(encryptionFolder, decryptionFolder, "new");
+        assertSameContent("large.txt");
+        assertSameContent("small.txt");
+        try {
+            fileEncryption.decrypt(encryptionFolder + "/large.txt.enc", decryptionFolder, "old");
+            Assert.fail("Old key must not work any more");
+        } catch (IllegalKeyException ex) {
+            // expected
+        }
+    }
+
+    /**
+     * Files encrypted for recipients keep their content, only the header changes.
+     */
+    @Test
+    public void rotateRecipient() throws Exception {
+        fileEncryption.encryptFolderForRecipients(testFolder, encryptionFolder, "txt", Arrays.asList("old", "other"), null);
+        byte[] before = FileUtils.readFileToByteArray(new File(encryptionFolder, "large.txt.enc"));
+
+        fileEncryption.rotateKey(encryptionFolder, "old", "new");
+        fileEncryption.rotateKey(encryptionFolder, "old", "new");
+
+        byte[] after = FileUtils.readFileToByteArray(new File(encryptionFolder, "large.txt.enc"));
+        int capacity = Envelope.read(encryptionFolder + "/large.txt.enc").getCapacity();
+        Assert.assertArrayEquals(Arrays.copyOfRange(before, capacity, before.length), Arrays.copyOfRange(after, capacity, after.length));
+        fileEncryption.decryptFolder(encryptionFolder, decryptionFolder, "new");
+        assertSameContent("large.txt");
+        Assert.assertEquals(2, Envelope.read(encryptionFolder + "/large.txt.enc").getRecipientCount());
+    }
+
+    /**
+     * A rotation that died after a single block file was completed and moved into place continues with the other files
+     * and does not decrypt the completed file with the old key.
+     */
+    @Test
+    public void resumeAfterMovedFile() throws Exception {
+        fileEncryption.encryptFolder(testFolder, encryptionFolder, "txt", "old", null);
+        fileEncryption.encrypt(testFolder + "/small.txt", decryptionFolder, "new");
+        File rotated = new File(encryptionFolder, "small.txt.enc");
+        FileUtils.copyFile(new File(decryptionFolder, "small.txt.enc"), rotated);
+        FileUtils.cleanDirectory(new File(decryptionFolder));
+        String jobId = CheckpointJournal.jobId("rotate", new File(encryptionFolder).getAbsolutePath(), "old", "new");
+        CheckpointJournal journal = CheckpointJournal.open(encryptionFolder, jobId);
+        journal.done("small.txt.enc", rotated.length(), IntegrityManifest.digestMapped(rotated));
+        journal.close();
+
+        fileEncryption.rotateKey(encryptionFolder, "old", "new");
+
+        fileEncryption.decryptFolder(encryptionFolder, decryptionFolder, "new");
+        assertSameContent("large.txt");
+        assertSameContent("small.txt");
+    }
+
+    /**
+     * A wrong old key is reported by a segmented file and the files stay readable with the correct key.
+     */
+    @Test
+    public void wrongOldKey() throws Exception {
+        new File(testFolder, "small.txt").delete();
+        fileEncryption.encryptFolder(testFolder, encryptionFolder, "txt", "old");
+        try {
+            fileEncryption.rotateKey(encryptionFolder, "wrong", "new");
+            Assert.fail("Wrong key must fail");
+        } catch (IllegalKeyException ex) {
+            // expected
+        }
+        fileEncryption.decrypt(encryptionFolder + "/large.txt.enc", decryptionFolder, "old");
+        assertSameContent("large.txt");
+    }
+
+    /**
+     * A wrong old key is found before any single block file is replaced.
+     */
+    @Test
+    public void wrongOldKeySingleBlock() throws Exception {
+        fileEncryption.setSegmentThreshold(Long.MAX_VALUE);
+        fileEncryption.encryptFolder(testFolder, encryptionFolder, "txt", "old");
+        byte[] before = FileUtils.readFileToByteArray(new File(encryptionFolder, "small.txt.enc"));
+        try {
+            fileEncryption.rotateKey(encryptionFolder, "wrong", "new");
+            Assert.fail("Wrong key must fail");
+        } catch (IllegalKeyException ex) {
+            // expected
+        }
+        Assert.assertArrayEquals(before, FileUtils.readFileToByteArray(new File(encryptionFolder, "small.txt.enc")));
+        fileEncryption.decryptFolder(encryptionFolder, decryptionFolder, "old");
+        assertSameContent("large.txt");
+        assertSameContent("small.txt");
+    }
+
+    /**
+     * A rotation that is started again after it finished changes nothing, the key check file guards the next rotation.
+     */
+    @Test
+    public void rotateAgainAfterFinished() throws Exception {
+        fileEncryption.setSegmentThreshold(Long.MAX_VALUE);
+        fileEncryption.encryptFolder(testFolder, encryptionFolder, "txt", "old");
+        fileEncryption.rotateKey(encryptionFolder, "old", "new");
+        byte[] rotated = FileUtils.readFileToByteArray(new File(encryptionFolder, "small.txt.enc"));
+
+        fileEncryption.rotateKey(encryptionFolder, "old", "new");
+        Assert.assertArrayEquals(rotated, FileUtils.readFileToByteArray(new File(encryptionFolder, "small.txt.enc")));
+        try {
+            fileEncryption.rotateKey(encryptionFolder, "old", "newer");
+            Assert.fail("Old key must fail");
+        } catch (IllegalKeyException ex) {
+            // expected
+        }
+
+        fileEncryption.rotateKey(encryptionFolder, "new", "newer");
+        fileEncryption.decryptFolder(encryptionFolder, decryptionFolder, "newer");
+        assertSameContent("large.txt");
+        assertSameContent("small.txt");
+        Assert.assertFalse(new File(decryptionFolder, FolderKeyCheck.KEY_CHECK_FILENAME).exists());
+    }
+
+    private void assertSameContent(String name) throws IOException {
+        Assert.assertTrue(FileUtils.contentEquals(new File(testFolder, name), new File(decryptionFolder, name)));
+    }
+}
@@ -0,0 +1,79 @@
+package org.developercookie.file.encryption;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests that folder jobs start with the largest files and that idle workers steal segments of large files. Created by
+ * developerCookie on 19.10.26.
+ */
+public class LargestFirstTest extends FolderFixture {
+    /**
+     * A single worker encrypts the files from the largest to the smallest.
+     */
+    @Test
+    public void largestFirst() throws Exception {
+        Integer[] sizes = {300, 5000, 100, 2000, 700};
+        for (int i = 0; i < sizes.length; i++) {
+            writeTestfile("file" + i + ".txt", sizes[i]);
+        }
+        final List<Integer> order = new ArrayList<Integer>();
+        FileEncryption fileEncryption = new FileEncryption(new NothingTransformer() {
+            @Override
+            public synchronized byte[] encrypt(byte[] content, String key) {
+                order.add(content.length);
+                return content;
+            }
+        });
+
+        fileEncryption.encryptFolder(testFolder, encryptionFolder, "txt", "12");
+
+        List<Integer> expected = new ArrayList<Integer>(Arrays.asList(sizes));
+        Collections.sort(expected, Collections.reverseOrder());
+        Assert.assertEquals(expected, order);
+        MakespanReport report = fileEncryption.getLastMakespanReport();
+        Assert.assertEquals(5, report.getFiles());
+        Assert.assertEquals(8100, report.getBytes());
+        Assert.assertEquals(1, report.getWorkers());
+    }
+
+    /**
+     * Idle workers encrypt segments of the large file and the file is still written in order.
+     */
+    @Test
+    public void idleWorkersStealSegments() throws Exception {
+        writeTestfile("large.txt", 200 * 1024);
+        writeTestfile("small.txt", 500);
+        FileEncryption fileEncryption = new FileEncryption(new AESContentTransformer() {
+            @Override
+            public byte[] encrypt(byte[] content, String key) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.encrypt(content, key);
+            }
+        });
+        fileEncryption.setSegmentThreshold(1000);
+        fileEncryption.setSegmentSize(1024);
+        fileEncryption.setWorkerCount(4);
+
+        fileEncryption.encryptFolder(testFolder, encryptionFolder, "txt", "12");
+
+        MakespanReport report = fileEncryption.getLastMakespanReport();
+        Assert.assertEquals(4, report.getWorkers());
+        Assert.assertTrue(report.toString(), report.getStolenSegments() > 0);
+        Assert.assertTrue(report.getEfficiency() > 0 && report.getEfficiency() <= 1);
+        fileEncryption.decryptFolder(encryptionFolder, decryptionFolder, "12");
+        Assert.assertTrue(FileUtils.contentEquals(new File(testFolder, "large.txt"), new File(decryptionFolder, "large.txt")));
+        Assert.assertTrue(FileUtils.contentEquals(new File(testFolder, "small.txt"), new File(decryptionFolder, "small.txt")));
+    }
+}
@@ -0,0 +1,101 @@
+package org.developercookie.file.encryption;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+
+/**
+ * Tests that folder jobs keep to the MemoryBudget and stream files that would take too much of it. Created by
+ * developerCookie on 19.10.26.
+ */
+public class MemoryBudgetTest extends FolderFixture {
+    /**
+     * Files that take more than a quarter of the budget are streamed and the peak stays within the budget.
+     */
+    @Test
+    public void keepsToBudget() throws Exception {
+        for (int i = 0; i < 8; i++) {
+            writeTestfile("small" + i + ".txt", 3000 + i);
+        }
+        writeTestfile("medium.txt", 20000);
+        MemoryBudget budget = new MemoryBudget(64 * 1024);
+        FileEncryption fileEncryption = new FileEncryption(new AESContentTransformer());
+        fileEncryption.setSegmentSize(4096);
+        fileEncryption.setWorkerCount(4);
+        fileEncryption.setMemoryBudget(budget);
+
+        fileEncryption.encryptFolder(testFolder, encryptionFolder, "txt", "12");
+
+        Assert.assertTrue(SegmentedFormat.isSegmented(new File(encryptionFolder, "medium.txt.enc").getPath()));
+        Assert.assertFalse(SegmentedFormat.isSegmented(new File(encryptionFolder, "small0.txt.enc").getPath()));
+        Assert.assertEquals(9, budget.getReservations());
+        Assert.assertTrue(budget.toString(), budget.getPeakReserved() <= budget.getCapacity());
+        Assert.assertEquals(0, budget.getReserved());
+
+        fileEncryption.decryptFolder(encryptionFolder, decryptionFolder, "12");
+
+        Assert.assertEquals(18, budget.getReservations());
+        Assert.assertEquals(0, budget.getReserved());
+        Assert.assertTrue(FileUtils.contentEquals(new File(testFolder, "medium.txt"), new File(decryptionFolder, "medium.txt")));
+        Assert.assertTrue(FileUtils.contentEquals(new File(testFolder, "small3.txt"), new File(decryptionFolder, "small3.txt")));
+    }
+
+    /**
+     * A single block file that takes too much of the budget is decrypted as a stream with a small reservation.
+     */
+    @Test
+    public void streamsLargeSingleBlockFile() throws Exception {
+        writeTestfile("medium.txt", 50000);
+        FileEncryption fileEncryption = new FileEncryption(new AESContentTransformer());
+        fileEncryption.setSegmentSize(4096);
+        fileEncryption.encryptFolder(testFolder, encryptionFolder, "txt", "12");
+        Assert.assertFalse(SegmentedFormat.isSegmented(new File(encryptionFolder, "medium.txt.enc").getPath()));
+        MemoryBudget budget = new MemoryBudget(64 * 1024);
+        fileEncryption.setMemoryBudget(budget);
+
+        fileEncryption.decryptFolder(encryptionFolder, decryptionFolder, "12");
+
+        Assert.assertEquals(2 * 4096, budget.getPeakReserved());
+        Assert.assertTrue(FileUtils.contentEquals(new File(testFolder, "medium.txt"), new File(decryptionFolder, "medium.txt")));
+        try {
+            fileEncryption.decrypt(encryptionFolder + "/medium.txt.enc", decryptionFolder, "13");
+            Assert.fail("Wrong key must fail");
+        } catch (IllegalKeyException ex) {
+            // expected
+        }
+        Assert.assertFalse(new File(decryptionFolder, "medium.txt" + FileEncryption.PART_EXTENSION).exists());
+    }
+
+    /**
+     * Reservations wait while the budget is used up and a reservation larger than the budget takes all of it.
+     */
+    @Test
+    public void reservationsWait() throws Exception {
+        final MemoryBudget budget = new MemoryBudget(1000);
+        Assert.assertEquals(1000, budget.reserve(5000));
+        Thread releaser = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                budget.release(1000);
+            }
+        };
+        releaser.start();
+
+        Assert.assertEquals(300, budget.reserve(300));
+
+        releaser.join();
+        Assert.assertEquals(1, budget.getWaits());
+        Assert.assertTrue(budget.getWaitMillis() >= 10);
+        Assert.assertEquals(300, budget.getReserved());
+        Assert.assertEquals(1000, budget.getPeakReserved());
+        Assert.assertTrue(budget.allowsInMemory(250));
+        Assert.assertFalse(budget.allowsInMemory(251));
+    }
+}
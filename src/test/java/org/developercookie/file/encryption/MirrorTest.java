@@ -0,0 +1,108 @@
+package org.developercookie.file.encryption;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.TrueFileFilter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Tests that a mirrored folder is encrypted into a complete copy and decrypted back. Created by developerCookie on
+ * 19.10.26.
+ */
+public class MirrorTest extends FolderFixture {
+    /**
+     * Matching files are encrypted into their shard folders, all others are copied with their modification time.
+     */
+    @Test
+    public void mirrorRoundTrip() throws Exception {
+        writeTestfile("a.txt", 700);
+        writeTestfile("photo.jpg", 3 * 1024 * 1024);
+        writeTestfile("sub/b.txt", 300);
+        writeTestfile("sub/deeper/notes.md", 1200);
+        new File(testFolder, "photo.jpg").setLastModified(1500000000000L);
+        FileEncryption fileEncryption = new FileEncryption(new AESContentTransformer());
+        fileEncryption.setMirror(true);
+        fileEncryption.setShardDepth(1);
+        fileEncryption.setWorkerCount(2);
+
+        fileEncryption.encryptFolder(testFolder, encryptionFolder, "txt", "12");
+
+        File photoCopy = new File(encryptionFolder, "photo.jpg");
+        Assert.assertTrue(FileUtils.contentEquals(new File(testFolder, "photo.jpg"), photoCopy));
+        Assert.assertEquals(1500000000000L, photoCopy.lastModified());
+        Assert.assertTrue(FileUtils.contentEquals(new File(testFolder, "sub/deeper/notes.md"), new File(encryptionFolder, "sub/deeper/notes.md")));
+        Assert.assertFalse(new File(encryptionFolder, "a.txt").exists());
+        Assert.assertEquals(4, FileUtils.listFiles(new File(encryptionFolder), FileEncryption.NO_CONTROL_FILES, TrueFileFilter.INSTANCE).size());
+
+        fileEncryption.decryptFolder(encryptionFolder, decryptionFolder, "12");
+
+        for (String name : new String[]{"a.txt", "photo.jpg", "sub/b.txt", "sub/deeper/notes.md"}) {
+            Assert.assertTrue(name, FileUtils.contentEquals(new File(testFolder, name), new File(decryptionFolder, name)));
+        }
+        Assert.assertEquals(1500000000000L, new File(decryptionFolder, "photo.jpg").lastModified());
+    }
+
+    /**
+     * A copy with the size and modification time of its source is not copied again.
+     */
+    @Test
+    public void currentCopiesAreKept() throws Exception {
+        writeTestfile("a.txt", 700);
+        writeTestfile("data.bin", 5000);
+        FileEncryption fileEncryption = new FileEncryption(new AESContentTransformer());
+        fileEncryption.setMirror(true);
+        fileEncryption.encryptFolder(testFolder, encryptionFolder, "txt", "12");
+        File copy = new File(encryptionFolder, "data.bin");
+        long lastModified = copy.lastModified();
+        FileUtils.writeByteArrayToFile(copy, new byte[5000]);
+        copy.setLastModified(lastModified);
+
+        fileEncryption.encryptFolder(testFolder, encryptionFolder, "txt", "12");
+        Assert.assertFalse(FileUtils.contentEquals(new File(testFolder, "data.bin"), copy));
+
+        new File(testFolder, "data.bin").setLastModified(lastModified - 10000);
+        fileEncryption.encryptFolder(testFolder, encryptionFolder, "txt", "12");
+        Assert.assertTrue(FileUtils.contentEquals(new File(testFolder, "data.bin"), copy));
+    }
+
+    /**
+     * The key rotation and the migration change only the encrypted files, the copies stay as they are.
+     */
+    @Test
+    public void rotateAndMigrate() throws Exception {
+        writeTestfile("a.txt", 700);
+        writeTestfile("sub/b.txt", 300);
+        writeTestfile("data.bin", 5000);
+        writeTestfile("sub/notes.md", 1200);
+        FileEncryption fileEncryption = new FileEncryption(new AESContentTransformer());
+        fileEncryption.setMirror(true);
+        fileEncryption.encryptFolder(testFolder, encryptionFolder, "txt", "12");
+
+        fileEncryption.rotateKey(encryptionFolder, "12", "13");
+        fileEncryption.setSegmentSize(256);
+        MigrationReport report = fileEncryption.migrateFolder(encryptionFolder, "13");
+
+        Assert.assertEquals(2, report.getMigratedFiles());
+        Assert.assertTrue(FileUtils.contentEquals(new File(testFolder, "data.bin"), new File(encryptionFolder, "data.bin")));
+        Assert.assertTrue(FileUtils.contentEquals(new File(testFolder, "sub/notes.md"), new File(encryptionFolder, "sub/notes.md")));
+        fileEncryption.decryptFolder(encryptionFolder, decryptionFolder, "13");
+        for (String name : new String[]{"a.txt", "sub/b.txt", "data.bin", "sub/notes.md"}) {
+            Assert.assertTrue(name, FileUtils.contentEquals(new File(testFolder, name), new File(decryptionFolder, name)));
+        }
+    }
+
+    /**
+     * A file that would be taken for an encrypted file when the folder is decrypted is not mirrored.
+     */
+    @Test(expected = IOException.class)
+    public void encryptedLookingFileIsRejected() throws Exception {
+        writeTestfile("a.txt", 700);
+        writeTestfile("old.enc", 100);
+        FileEncryption fileEncryption = new FileEncryption(new AESContentTransformer());
+        fileEncryption.setMirror(true);
+        fileEncryption.encryptFolder(testFolder, encryptionFolder, "txt", "12");
+    }
+}
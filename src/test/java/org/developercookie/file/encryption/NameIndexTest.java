@@ -0,0 +1,94 @@
+package org.developercookie.file.encryption;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.TrueFileFilter;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Tests the encryption of file names with the name index. Created by developerCookie on 19.10.26.
+ */
+public class NameIndexTest extends FolderFixture {
+    private static final String[] names = {"a.txt", "photos/b.txt", "photos/2019/c.txt"};
+
+    private FileEncryption fileEncryption;
+
+    /**
+     * Test files are written in sub folders.
+     */
+    @Before
+    public void init() throws IOException {
+        for (int i = 0; i < names.length; i++) {
+            writeTestfile(names[i], 1000 * (i + 1));
+        }
+        fileEncryption = new FileEncryption(new AESContentTransformer());
+        fileEncryption.setEncryptNames(true);
+        fileEncryption.setShardDepth(1);
+    }
+
+    /**
+     * No plain name is left in the output folder and the decryption restores the structure.
+     */
+    @Test
+    public void roundTrip() throws Exception {
+        fileEncryption.encryptFolder(testFolder, encryptionFolder, "txt", "12");
+
+        for (File file : FileUtils.listFiles(new File(encryptionFolder), TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE)) {
+            String path = file.getPath();
+            Assert.assertFalse(path, path.contains("photos") || path.contains(".txt"));
+        }
+        fileEncryption.decryptFolder(encryptionFolder, decryptionFolder, "12");
+        for (String name : names) {
+            Assert.assertTrue(FileUtils.contentEquals(new File(testFolder, name), new File(decryptionFolder, name)));
+        }
+    }
+
+    /**
+     * Single files are decrypted and folders are listed by their plain names.
+     */
+    @Test
+    public void lookupAndListing() throws Exception {
+        fileEncryption.encryptFolder(testFolder, encryptionFolder, "txt", "12");
+
+        fileEncryption.decryptNamed(encryptionFolder, "photos/2019/c.txt", decryptionFolder, "12");
+        Assert.assertTrue(FileUtils.contentEquals(new File(testFolder, "photos/2019/c.txt"), new File(decryptionFolder, "c.txt")));
+        Assert.assertEquals(Arrays.asList("a.txt", "photos/"), fileEncryption.listNamedFolder(encryptionFolder, "", "12"));
+        Assert.assertEquals(Arrays.asList("2019/", "b.txt"), fileEncryption.listNamedFolder(encryptionFolder, "photos", "12"));
+        Assert.assertTrue(fileEncryption.listNamedFolder(encryptionFolder, "videos", "12").isEmpty());
+        try {
+            fileEncryption.decryptNamed(encryptionFolder, "photos/d.txt", decryptionFolder, "12");
+            Assert.fail("Missing file was found");
+        } catch (FileNotFoundException ex) {
+            // expected
+        }
+        try {
+            fileEncryption.listNamedFolder(encryptionFolder, "", "13");
+            Assert.fail("Index was read with a wrong key");
+        } catch (IllegalKeyException ex) {
+            // expected
+        }
+    }
+
+    /**
+     * A second encryption adds its files to the index and a new key keeps the index readable.
+     */
+    @Test
+    public void extendAndRotate() throws Exception {
+        fileEncryption.encryptFolder(testFolder, encryptionFolder, "txt", "12");
+        writeTestfile("photos/d.txt", 500);
+        fileEncryption.encryptFolder(testFolder, encryptionFolder, "txt", "12");
+
+        fileEncryption.rotateKey(encryptionFolder, "12", "34");
+
+        Assert.assertEquals(Arrays.asList("2019/", "b.txt", "d.txt"), fileEncryption.listNamedFolder(encryptionFolder, "photos", "34"));
+        fileEncryption.decryptFolder(encryptionFolder, decryptionFolder, "34");
+        Assert.assertTrue(FileUtils.contentEquals(new File(testFolder, "photos/d.txt"), new File(decryptionFolder, "photos/d.txt")));
+        Assert.assertTrue(FileUtils.contentEquals(new File(testFolder, "a.txt"), new File(decryptionFolder, "a.txt")));
+    }
+}
@@ -0,0 +1,88 @@
+package org.developercookie.file.encryption;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.TrueFileFilter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Tests the mapping of source files to target files. Created by developerCookie on 19.10.26.
+ */
+public class PathMapperTest extends FolderFixture {
+    /**
+     * Only the last extension is removed, also if the name contains it earlier.
+     */
+    @Test
+    public void names() {
+        PathMapper pathMapper = new PathMapper(encryptionFolder, decryptionFolder, 0);
+        Assert.assertEquals(new File(decryptionFolder, "a.enc.txt"), pathMapper.toDecrypted(new File(encryptionFolder, "a.enc.txt.enc")));
+        Assert.assertEquals(new File(decryptionFolder, "sub/b.txt"), pathMapper.toDecrypted(new File(encryptionFolder, "sub/b.txt.enc")));
+        pathMapper = new PathMapper(testFolder, encryptionFolder, 0);
+        Assert.assertEquals(new File(encryptionFolder, "a.enc.txt.enc"), pathMapper.toEncrypted(new File(testFolder, "a.enc.txt")));
+    }
+
+    /**
+     * A plain path from a name index that would leave the target folder is rejected.
+     */
+    @Test
+    public void plainPathLeavingFolder() throws Exception {
+        PathMapper pathMapper = new PathMapper(encryptionFolder, decryptionFolder, 0);
+        Assert.assertEquals(new File(decryptionFolder, "sub/b.txt"), pathMapper.toPlain("sub/../sub/b.txt"));
+        for (String path : new String[]{"../b.txt", "sub/../../b.txt", ".."}) {
+            try {
+                pathMapper.toPlain(path);
+                Assert.fail(path + " must be rejected");
+            } catch (IOException ex) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * Sub folders are kept, the files are spread over shard folders and the round trip restores the structure.
+     */
+    @Test
+    public void shardedRoundTrip() throws Exception {
+        writeTestfile("a.enc.txt", 1000);
+        writeTestfile("photos/b.txt", 2000);
+        writeTestfile("photos/2019/c.txt", 3000);
+        FileEncryption fileEncryption = new FileEncryption(new AESContentTransformer());
+        fileEncryption.setShardDepth(2);
+
+        fileEncryption.encryptFolder(testFolder, encryptionFolder, "txt", "12");
+        Collection<File> encrypted = FileUtils.listFiles(new File(encryptionFolder), TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE);
+        Assert.assertEquals(3, encrypted.size());
+        for (File file : encrypted) {
+            Assert.assertTrue(file.getParentFile().getName().matches("[0-9a-f]{2}"));
+            Assert.assertTrue(file.getParentFile().getParentFile().getName().matches("[0-9a-f]{2}"));
+        }
+        Assert.assertTrue(new PathMapper(testFolder, encryptionFolder, 2).toEncrypted(new File(testFolder, "photos/2019/c.txt")).isFile());
+
+        fileEncryption.decryptFolder(encryptionFolder, decryptionFolder, "12");
+        for (String name : new String[]{"a.enc.txt", "photos/b.txt", "photos/2019/c.txt"}) {
+            Assert.assertTrue(FileUtils.contentEquals(new File(testFolder, name), new File(decryptionFolder, name)));
+        }
+    }
+
+    /**
+     * A target folder inside the source folder is not listed as source.
+     */
+    @Test
+    public void targetInsideSource() throws Exception {
+        writeTestfile("a.txt", 1000);
+        FileEncryption fileEncryption = new FileEncryption(new AESContentTransformer());
+        fileEncryption.encryptFolder(testFolder, encryptionFolder, "txt", "12");
+        String nestedFolder = encryptionFolder + "/plain";
+        new File(nestedFolder).mkdirs();
+
+        fileEncryption.decryptFolder(encryptionFolder, nestedFolder, "12");
+        fileEncryption.decryptFolder(encryptionFolder, nestedFolder, "12");
+
+        Assert.assertEquals(1, new File(nestedFolder).list().length);
+        Assert.assertTrue(FileUtils.contentEquals(new File(testFolder, "a.txt"), new File(nestedFolder, "a.txt")));
+    }
+}
@@ -0,0 +1,136 @@
+package org.developercookie.file.encryption;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the rate limits of folder jobs. Created by developerCookie on 19.10.26.
+ */
+public class RateLimiterTest extends FolderFixture {
+    /**
+     * A folder job with several workers reads no faster than the byte limit and the files are still correct.
+     */
+    @Test
+    public void bytesPerSecond() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            writeTestfile("file" + i + ".txt", 128 * 1024);
+        }
+        RateLimiter rateLimiter = new RateLimiter();
+        rateLimiter.setBytesPerSecond(1024 * 1024);
+        FileEncryption fileEncryption = new FileEncryption(new AESContentTransformer());
+        fileEncryption.setWorkerCount(4);
+        fileEncryption.setRateLimiter(rateLimiter);
+
+        long start = System.nanoTime();
+        fileEncryption.encryptFolder(testFolder, encryptionFolder, "txt", "12");
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Assert.assertTrue("Took only " + millis + " ms", millis >= 400);
+
+        rateLimiter.setBytesPerSecond(0);
+        fileEncryption.decryptFolder(encryptionFolder, decryptionFolder, "12");
+        for (int i = 0; i < 4; i++) {
+            Assert.assertTrue(FileUtils.contentEquals(new File(testFolder, "file" + i + ".txt"), new File(decryptionFolder, "file" + i + ".txt")));
+        }
+    }
+
+    /**
+     * A raised byte limit takes effect, in the adaptive mode the rate grows up to it.
+     */
+    @Test
+    public void bytesPerSecondRaised() throws Exception {
+        RateLimiter rateLimiter = new RateLimiter();
+        rateLimiter.setBytesPerSecond(1024 * 1024);
+        rateLimiter.setBytesPerSecond(10L * 1024 * 1024);
+        Assert.assertEquals(10L * 1024 * 1024, rateLimiter.getEffectiveBytesPerSecond());
+
+        rateLimiter.setTargetLatencyMillis(5);
+        rateLimiter.setBytesPerSecond(1024 * 1024);
+        rateLimiter.setBytesPerSecond(10L * 1024 * 1024);
+        Assert.assertEquals(1024 * 1024, rateLimiter.getEffectiveBytesPerSecond());
+        Thread.sleep(120);
+        rateLimiter.recordRead(1024 * 1024, 0);
+        Assert.assertTrue(rateLimiter.getEffectiveBytesPerSecond() > 1024 * 1024);
+    }
+
+    /**
+     * The file limit holds back new files and can be lifted while files wait.
+     */
+    @Test
+    public void filesPerSecondChangedAtRuntime() throws Exception {
+        RateLimiter rateLimiter = new RateLimiter();
+        rateLimiter.setFilesPerSecond(20);
+        long start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            rateLimiter.acquireFile();
+        }
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 400);
+
+        rateLimiter.setFilesPerSecond(0);
+        start = System.nanoTime();
+        for (int i = 0; i < 1000; i++) {
+            rateLimiter.acquireFile();
+        }
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 100);
+    }
+
+    /**
+     * A worker waits while the maximum number of workers runs and starts when the maximum is raised.
+     */
+    @Test
+    public void maxWorkers() throws Exception {
+        final RateLimiter rateLimiter = new RateLimiter();
+        rateLimiter.setMaxWorkers(1);
+        rateLimiter.acquireWorker();
+        final CountDownLatch started = new CountDownLatch(1);
+        Thread second = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    rateLimiter.acquireWorker();
+                    started.countDown();
+                    rateLimiter.releaseWorker();
+                } catch (IOException ex) {
+                    // the latch is not counted down
+                }
+            }
+        });
+        second.start();
+        Assert.assertFalse(started.await(200, TimeUnit.MILLISECONDS));
+
+        rateLimiter.setMaxWorkers(2);
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        rateLimiter.releaseWorker();
+    }
+
+    /**
+     * The adaptive mode halves the rate when the latency is above the target and raises it again when it is below.
+     */
+    @Test
+    public void adaptiveBackOff() throws Exception {
+        RateLimiter rateLimiter = new RateLimiter();
+        rateLimiter.setBytesPerSecond(100L * 1024 * 1024);
+        rateLimiter.setTargetLatencyMillis(5);
+        Assert.assertEquals(100L * 1024 * 1024, rateLimiter.getEffectiveBytesPerSecond());
+
+        Thread.sleep(120);
+        rateLimiter.recordRead(1024 * 1024, TimeUnit.MILLISECONDS.toNanos(50));
+        long reduced = rateLimiter.getEffectiveBytesPerSecond();
+        Assert.assertEquals(50L * 1024 * 1024, reduced);
+
+        for (int i = 0; i < 20; i++) {
+            rateLimiter.recordRead(1024 * 1024, 0);
+        }
+        Thread.sleep(120);
+        rateLimiter.recordRead(1024 * 1024, 0);
+        Assert.assertTrue(rateLimiter.getEffectiveBytesPerSecond() > reduced);
+
+        rateLimiter.setTargetLatencyMillis(0);
+        Assert.assertEquals(100L * 1024 * 1024, rateLimiter.getEffectiveBytesPerSecond());
+    }
+}
@@ -0,0 +1,97 @@
+package org.developercookie.file.encryption;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Tests the restore of a folder with damaged and foreign files. Created by developerCookie on 19.10.26.
+ */
+public class RestoreTest extends FolderFixture {
+    private FileEncryption fileEncryption;
+
+    /**
+     * Test files are written and encrypted.
+     */
+    @Before
+    public void init() throws IOException {
+        for (int i = 0; i < 4; i++) {
+            writeTestfile("file" + i + ".txt", 5000, i);
+        }
+        fileEncryption = new FileEncryption(new AESContentTransformer());
+        fileEncryption.setSegmentThreshold(1000);
+        fileEncryption.setSegmentSize(1024);
+        fileEncryption.encryptFolder(testFolder, encryptionFolder, "txt", "12");
+    }
+
+    /**
+     * A damaged and a foreign file are reported, the other files are restored and no partial file is left.
+     */
+    @Test
+    public void carriesOnPastFailures() throws Exception {
+        long damagedOffset = damageThirdSegment(new File(encryptionFolder, "file1.txt.enc"));
+        writeTestfile("foreign.txt", 3000);
+        fileEncryption.encrypt(testFolder + "/foreign.txt", encryptionFolder, "other");
+
+        RestoreReport report = fileEncryption.restoreFolder(encryptionFolder, decryptionFolder, "12");
+
+        Assert.assertEquals(3, report.getRestoredFiles());
+        Assert.assertEquals(2, report.getFailures().size());
+        for (RestoreReport.Failure failure : report.getFailures()) {
+            if (failure.getFile().endsWith("file1.txt.enc")) {
+                Assert.assertEquals("IOException", failure.getErrorClass());
+                Assert.assertEquals(damagedOffset, failure.getOffset());
+            } else {
+                Assert.assertTrue(failure.getFile().endsWith("foreign.txt.enc"));
+                Assert.assertEquals("IllegalKeyException", failure.getErrorClass());
+            }
+        }
+        for (String name : new String[]{"file0.txt", "file2.txt", "file3.txt"}) {
+            Assert.assertTrue(FileUtils.contentEquals(new File(testFolder, name), new File(decryptionFolder, name)));
+        }
+        Assert.assertFalse(new File(decryptionFolder, "file1.txt" + FileEncryption.PART_EXTENSION).exists());
+        Assert.assertFalse(new File(decryptionFolder, "foreign.txt" + FileEncryption.PART_EXTENSION).exists());
+        Assert.assertTrue(new File(decryptionFolder, CheckpointJournal.JOURNAL_FILENAME).exists());
+    }
+
+    /**
+     * A second run after the failed files were removed only skips the restored files and completes the journal.
+     */
+    @Test
+    public void retryCompletes() throws Exception {
+        damageThirdSegment(new File(encryptionFolder, "file1.txt.enc"));
+        Assert.assertFalse(fileEncryption.restoreFolder(encryptionFolder, decryptionFolder, "12").isComplete());
+
+        new File(encryptionFolder, "file1.txt.enc").delete();
+        RestoreReport report = fileEncryption.restoreFolder(encryptionFolder, decryptionFolder, "12");
+
+        Assert.assertTrue(report.isComplete());
+        Assert.assertEquals(3, report.getSkippedFiles());
+        Assert.assertEquals(0, report.getRestoredFiles());
+        Assert.assertFalse(new File(decryptionFolder, CheckpointJournal.JOURNAL_FILENAME).exists());
+    }
+
+    /**
+     * Changes the index in the record header of the third segment and returns the offset of the record.
+     */
+    private long damageThirdSegment(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            long offset = SegmentedFormat.HEADER_LENGTH;
+            for (int i = 0; i < 2; i++) {
+                randomAccessFile.seek(offset + 1 + 8 + 4);
+                offset += SegmentedFormat.RECORD_HEADER_LENGTH + randomAccessFile.readInt();
+            }
+            randomAccessFile.seek(offset + 1);
+            randomAccessFile.writeLong(99);
+            return offset;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package org.developercookie.file.encryption;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Tests the cache of decrypted segments. Created by developerCookie on 19.10.26.
+ */
+public class SegmentCacheTest {
+    /**
+     * Cached segments are returned and counted as hits, other lookups as misses.
+     */
+    @Test
+    public void hitsAndMisses() {
+        SegmentCache cache = new SegmentCache(1024, 100);
+        byte[] segment = segment(250, 1);
+        cache.put(key("a", 0), segment);
+
+        Assert.assertArrayEquals(segment, cache.get(key("a", 0)));
+        Assert.assertNull(cache.get(key("a", 1)));
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+        Assert.assertEquals(0.5, cache.getHitRatio(), 0.0001);
+        Assert.assertEquals(250, cache.getCurrentBytes());
+    }
+
+    /**
+     * A part of a segment is copied across the page borders.
+     */
+    @Test
+    public void readAtOffset() {
+        SegmentCache cache = new SegmentCache(1024, 100);
+        byte[] segment = segment(250, 2);
+        cache.put(key("a", 0), segment);
+
+        ByteBuffer destination = ByteBuffer.allocate(120);
+        Assert.assertEquals(120, cache.read(key("a", 0), 90, destination));
+        Assert.assertArrayEquals(Arrays.copyOfRange(segment, 90, 210), destination.array());
+        destination.clear();
+        Assert.assertEquals(40, cache.read(key("a", 0), 210, destination));
+        Assert.assertEquals(-1, cache.read(key("b", 0), 0, destination));
+    }
+
+    /**
+     * The least recently used segments are evicted when the pages are used up.
+     */
+    @Test
+    public void eviction() {
+        SegmentCache cache = new SegmentCache(400, 100);
+        cache.put(key("a", 0), segment(200, 1));
+        cache.put(key("a", 1), segment(200, 2));
+        Assert.assertNotNull(cache.get(key("a", 0)));
+        cache.put(key("a", 2), segment(150, 3));
+
+        Assert.assertNull(cache.get(key("a", 1)));
+        Assert.assertArrayEquals(segment(200, 1), cache.get(key("a", 0)));
+        Assert.assertArrayEquals(segment(150, 3), cache.get(key("a", 2)));
+        Assert.assertEquals(1, cache.getEvictions());
+        Assert.assertEquals(400, cache.getAllocatedBytes());
+
+        cache.put(key("b", 0), segment(500, 4));
+        Assert.assertNull(cache.get(key("b", 0)));
+    }
+
+    /**
+     * Segments of a changed file are removed, also explicitly.
+     */
+    @Test
+    public void invalidation() {
+        SegmentCache cache = new SegmentCache(1024, 100);
+        cache.put(key("a", 0), segment(100, 1));
+        cache.put(key("a", 1), segment(100, 2));
+        cache.put(key("b", 0), segment(100, 3));
+
+        cache.put(new SegmentCache.Key("a", 2, 1000, 0), segment(100, 4));
+        Assert.assertNull(cache.get(key("a", 1)));
+        Assert.assertEquals(2, cache.getSegmentCount());
+
+        cache.invalidate("b");
+        Assert.assertNull(cache.get(key("b", 0)));
+        Assert.assertEquals(1, cache.getSegmentCount());
+        Assert.assertEquals(3, cache.getInvalidations());
+    }
+
+    private static SegmentCache.Key key(String path, int segment) {
+        return new SegmentCache.Key(path, 1, 1000, segment);
+    }
+
+    private static byte[] segment(int length, int seed) {
+        byte[] segment = new byte[length];
+        for (int i = 0; i < length; i++) {
+            segment[i] = (byte) (i * seed);
+        }
+        return segment;
+    }
+}
@@ -0,0 +1,104 @@
+package org.developercookie.file.encryption;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.TrueFileFilter;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Tests the restore of the files that match a pattern or a list of paths. Created by developerCookie on 19.10.26.
+ */
+public class SelectiveRestoreTest extends FolderFixture {
+    private static final String[] names = {"a.txt", "notes.txt", "photos/b.txt", "photos/2019/c.txt", "photos/2019/d.txt"};
+
+    private FileEncryption fileEncryption;
+
+    /**
+     * Folder will be created.
+     */
+    @Before
+    public void init() throws IOException {
+        for (int i = 0; i < names.length; i++) {
+            writeTestfile(names[i], 1000 * (i + 1));
+        }
+        fileEncryption = new FileEncryption(new AESContentTransformer());
+        fileEncryption.setShardDepth(1);
+    }
+
+    /**
+     * Only the files that match the glob are restored.
+     */
+    @Test
+    public void glob() throws Exception {
+        fileEncryption.encryptFolder(testFolder, encryptionFolder, "txt", "12");
+
+        RestoreReport report = fileEncryption.restoreSelected(encryptionFolder, decryptionFolder, "12", PathSelector.glob("photos/**"));
+
+        Assert.assertTrue(report.isComplete());
+        assertRestored("photos/b.txt", "photos/2019/c.txt", "photos/2019/d.txt");
+    }
+
+    /**
+     * Only the files that match the regular expression are restored, also with encrypted names.
+     */
+    @Test
+    public void regexWithEncryptedNames() throws Exception {
+        fileEncryption.setEncryptNames(true);
+        fileEncryption.encryptFolder(testFolder, encryptionFolder, "txt", "12");
+
+        RestoreReport report = fileEncryption.restoreSelected(encryptionFolder, decryptionFolder, "12", PathSelector.regex(".*/[cd]\\.txt"));
+
+        Assert.assertEquals(2, report.getRestoredFiles());
+        assertRestored("photos/2019/c.txt", "photos/2019/d.txt");
+    }
+
+    /**
+     * The files of a path list are restored and a missing path is reported.
+     */
+    @Test
+    public void paths() throws Exception {
+        for (boolean encryptNames : new boolean[]{false, true}) {
+            fileEncryption.setEncryptNames(encryptNames);
+            fileEncryption.encryptFolder(testFolder, encryptionFolder, "txt", "12");
+
+            RestoreReport report = fileEncryption.restoreSelected(encryptionFolder, decryptionFolder, "12",
+                    PathSelector.paths(Arrays.asList("notes.txt", "/photos/b.txt", "photos/e.txt")));
+
+            Assert.assertEquals(2, report.getRestoredFiles());
+            Assert.assertEquals(1, report.getFailures().size());
+            Assert.assertEquals("photos/e.txt", report.getFailures().get(0).getFile());
+            Assert.assertTrue(report.getFailures().get(0).getError() instanceof FileNotFoundException);
+            assertRestored("notes.txt", "photos/b.txt");
+            removeFolders();
+            createFolders();
+            init();
+        }
+    }
+
+    /**
+     * A path of a path list must not leave the folder.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void pathLeavingFolder() {
+        PathSelector.paths(Arrays.asList("notes.txt", "photos/../../secret.txt"));
+    }
+
+    /**
+     * Asserts that exactly the files with the given <code>expectedNames</code> are restored.
+     */
+    private void assertRestored(String... expectedNames) throws IOException {
+        Collection<File> restored = FileUtils.listFiles(new File(decryptionFolder), TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE);
+        restored.remove(new File(decryptionFolder, CheckpointJournal.JOURNAL_FILENAME));
+        Assert.assertEquals(expectedNames.length, restored.size());
+        for (String name : expectedNames) {
+            Assert.assertTrue(FileUtils.contentEquals(new File(testFolder, name), new File(decryptionFolder, name)));
+        }
+    }
+}
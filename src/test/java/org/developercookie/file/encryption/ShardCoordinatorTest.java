@@ -0,0 +1,136 @@
+package org.developercookie.file.encryption;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.SuffixFileFilter;
+import org.apache.commons.io.filefilter.TrueFileFilter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Tests that several processes encrypt one folder together and that shards of dead workers are taken over. Created by
+ * developerCookie on 19.10.26.
+ */
+public class ShardCoordinatorTest extends FolderFixture {
+    /**
+     * The key of the workers.
+     */
+    static final String KEY = "12";
+
+    /**
+     * Three processes encrypt the folder, one of them dies in its first shard. The other two share all shards.
+     */
+    @Test
+    public void threeProcesses() throws Exception {
+        writeTestfiles(48);
+        Process dying = ShardWorker.start(testFolder, encryptionFolder, "dying", 3);
+        Process first = ShardWorker.start(testFolder, encryptionFolder, "first", 0);
+        Process second = ShardWorker.start(testFolder, encryptionFolder, "second", 0);
+
+        Assert.assertEquals(ShardWorker.DIED, dying.waitFor());
+        int firstShards = first.waitFor();
+        int secondShards = second.waitFor();
+
+        Assert.assertEquals(12, firstShards + secondShards);
+        Assert.assertTrue(firstShards > 0 && secondShards > 0);
+        File coordinationFolder = new File(encryptionFolder, ShardCoordinator.COORDINATION_FOLDER);
+        Assert.assertEquals(12, coordinationFolder.list(new SuffixFileFilter(".done")).length);
+        Assert.assertEquals(0, coordinationFolder.list(new SuffixFileFilter(".lease")).length);
+        Assert.assertEquals(48, FileUtils.listFiles(new File(encryptionFolder), FileEncryption.NO_CONTROL_FILES, TrueFileFilter.INSTANCE).size());
+        assertDecrypted(48);
+    }
+
+    /**
+     * Expired leases are taken over, a lease that is held waits until it expires.
+     */
+    @Test
+    public void leasesAreTakenOver() throws Exception {
+        writeTestfiles(10);
+        File coordinationFolder = new File(encryptionFolder, ShardCoordinator.COORDINATION_FOLDER);
+        File expired = new File(coordinationFolder, "shard-000000.lease");
+        FileUtils.writeStringToFile(expired, "dead-0", "UTF-8");
+        expired.setLastModified(System.currentTimeMillis() - 10000);
+        FileUtils.writeStringToFile(new File(coordinationFolder, "shard-000001.lease"), "slow-0", "UTF-8");
+        ShardCoordinator coordinator = new ShardCoordinator(new FileEncryption(new AESContentTransformer()), "test");
+        coordinator.setLeaseMillis(1000);
+        coordinator.setShardSize(4, Long.MAX_VALUE);
+
+        long start = System.currentTimeMillis();
+        Assert.assertEquals(3, coordinator.encryptFolder(testFolder, encryptionFolder, "txt", KEY));
+
+        Assert.assertTrue(System.currentTimeMillis() - start >= 1000);
+        Assert.assertEquals(0, coordinationFolder.list(new SuffixFileFilter(".lease")).length);
+        Assert.assertEquals(0, coordinator.encryptFolder(testFolder, encryptionFolder, "txt", KEY));
+        assertDecrypted(10);
+        try {
+            coordinator.encryptFolder(testFolder, encryptionFolder, "txt", "13");
+            Assert.fail("The plan of another job must not be used");
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+
+    /**
+     * File names with tabs, line breaks and backslashes survive the shard plan.
+     */
+    @Test
+    public void namesWithSeparators() throws Exception {
+        String[] names = {"tab\tname.txt", "line\nbreak.txt", "back\\slash\\t.txt"};
+        for (String name : names) {
+            FileUtils.writeStringToFile(new File(testFolder, name), name, "UTF-8");
+        }
+        ShardCoordinator coordinator = new ShardCoordinator(new FileEncryption(new AESContentTransformer()), "test");
+        coordinator.setShardSize(2, Long.MAX_VALUE);
+
+        Assert.assertEquals(2, coordinator.encryptFolder(testFolder, encryptionFolder, "txt", KEY));
+
+        new FileEncryption(new AESContentTransformer()).decryptFolder(encryptionFolder, decryptionFolder, KEY);
+        for (String name : names) {
+            Assert.assertEquals(name, FileUtils.readFileToString(new File(decryptionFolder, name), "UTF-8"));
+        }
+    }
+
+    /**
+     * A lease time that can not be renewed three times is rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void leaseTooShort() {
+        new ShardCoordinator(new FileEncryption(new AESContentTransformer()), "test").setLeaseMillis(2);
+    }
+
+    /**
+     * A mirrored decryption is rejected before anything is written.
+     */
+    @Test(expected = IllegalStateException.class)
+    public void mirrorDecryptionRejected() throws Exception {
+        FileEncryption fileEncryption = new FileEncryption(new AESContentTransformer());
+        fileEncryption.setMirror(true);
+        new ShardCoordinator(fileEncryption, "test").decryptFolder(encryptionFolder, decryptionFolder, KEY);
+    }
+
+    /**
+     * Decrypts the encrypted folder and compares it with the test folder.
+     */
+    private void assertDecrypted(int count) throws Exception {
+        new FileEncryption(new AESContentTransformer()).decryptFolder(encryptionFolder, decryptionFolder, KEY);
+        for (int i = 0; i < count; i++) {
+            String name = "sub" + (i % 3) + "/file" + i + ".txt";
+            Assert.assertTrue(name, FileUtils.contentEquals(new File(testFolder, name), new File(decryptionFolder, name)));
+        }
+    }
+
+    /**
+     * Writes test files with random content into sub folders.
+     */
+    private void writeTestfiles(int count) throws IOException {
+        Random random = new Random(count);
+        for (int i = 0; i < count; i++) {
+            byte[] content = new byte[100 + random.nextInt(2000)];
+            random.nextBytes(content);
+            FileUtils.writeByteArrayToFile(new File(testFolder, "sub" + (i % 3) + "/file" + i + ".txt"), content);
+        }
+    }
+}
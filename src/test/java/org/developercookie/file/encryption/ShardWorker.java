@@ -0,0 +1,51 @@
+package org.developercookie.file.encryption;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A worker process of the ShardCoordinatorTest. It encrypts slowly and dies without cleaning up after a given number
+ * of files, if that number is positive. The exit code is the number of shards the worker completed. Created by
+ * developerCookie on 19.10.26.
+ */
+public class ShardWorker {
+    /**
+     * The exit code of a worker that died on purpose.
+     */
+    static final int DIED = 99;
+
+    /**
+     * Arguments: folder, output folder, worker id, files until the worker dies.
+     */
+    public static void main(String[] args) throws Exception {
+        final int dieAfter = Integer.parseInt(args[3]);
+        final AtomicInteger files = new AtomicInteger();
+        FileEncryption fileEncryption = new FileEncryption(new AESContentTransformer() {
+            @Override
+            public byte[] encrypt(byte[] content, String key) {
+                if (files.incrementAndGet() == dieAfter + 1 && dieAfter > 0) {
+                    Runtime.getRuntime().halt(DIED);
+                }
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.encrypt(content, key);
+            }
+        });
+        ShardCoordinator coordinator = new ShardCoordinator(fileEncryption, args[2]);
+        coordinator.setLeaseMillis(1000);
+        coordinator.setShardSize(4, Long.MAX_VALUE);
+        System.exit(coordinator.encryptFolder(args[0], args[1], "txt", ShardCoordinatorTest.KEY));
+    }
+
+    /**
+     * Starts a worker process.
+     */
+    static Process start(String folder, String outputFolder, String workerId, int dieAfter) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        return new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), ShardWorker.class.getName(),
+                folder, outputFolder, workerId, String.valueOf(dieAfter)).inheritIO().start();
+    }
+}
@@ -0,0 +1,111 @@
+package org.developercookie.file.encryption;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests the encryption of streams and of folders into one stream. Created by developerCookie on 19.10.26.
+ */
+public class StreamEncryptionTest extends FolderFixture {
+    private FileEncryption fileEncryption;
+
+    /**
+     * The FileEncryption is created.
+     */
+    @Before
+    public void init() {
+        fileEncryption = new FileEncryption(new AESContentTransformer());
+        fileEncryption.setSegmentSize(256);
+    }
+
+    /**
+     * A stream is encrypted and decrypted again, also if its length is a multiple of the segment size.
+     */
+    @Test
+    public void stream() throws Exception {
+        for (int length : new int[]{0, 100, 512, 10000}) {
+            byte[] content = content(length);
+            byte[] decrypted = decrypt(encrypt(content), "12");
+            Assert.assertArrayEquals(content, decrypted);
+        }
+    }
+
+    /**
+     * A truncated stream and a wrong key are detected.
+     */
+    @Test
+    public void truncatedStream() throws Exception {
+        byte[] encrypted = encrypt(content(1000));
+        try {
+            decrypt(Arrays.copyOf(encrypted, encrypted.length - 300), "12");
+            Assert.fail("Truncated stream must fail");
+        } catch (EOFException ex) {
+            // expected
+        }
+        try {
+            decrypt(encrypted, "13");
+            Assert.fail("Wrong key must fail");
+        } catch (IllegalKeyException ex) {
+            // expected
+        }
+    }
+
+    /**
+     * A folder tree is written into one stream and restored.
+     */
+    @Test
+    public void folderStream() throws Exception {
+        FileUtils.writeByteArrayToFile(new File(testFolder, "a.txt"), content(1000));
+        FileUtils.writeByteArrayToFile(new File(testFolder, "sub/b.bin"), content(3));
+        new File(testFolder, "empty").mkdirs();
+
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        fileEncryption.encryptFolderToStream(testFolder, encrypted, "12");
+        fileEncryption.decryptStreamToFolder(new ByteArrayInputStream(encrypted.toByteArray()), decryptionFolder, "12");
+
+        Assert.assertTrue(FileUtils.contentEquals(new File(testFolder, "a.txt"), new File(decryptionFolder, "a.txt")));
+        Assert.assertTrue(FileUtils.contentEquals(new File(testFolder, "sub/b.bin"), new File(decryptionFolder, "sub/b.bin")));
+        Assert.assertTrue(new File(decryptionFolder, "empty").isDirectory());
+    }
+
+    /**
+     * A symbolic link to a parent folder is skipped instead of being followed endlessly.
+     */
+    @Test
+    public void folderStreamSkipsLinks() throws Exception {
+        FileUtils.writeByteArrayToFile(new File(testFolder, "sub/b.bin"), content(3));
+        Files.createSymbolicLink(new File(testFolder, "sub/loop").toPath(), new File(testFolder).toPath());
+
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        fileEncryption.encryptFolderToStream(testFolder, encrypted, "12");
+        fileEncryption.decryptStreamToFolder(new ByteArrayInputStream(encrypted.toByteArray()), decryptionFolder, "12");
+
+        Assert.assertTrue(FileUtils.contentEquals(new File(testFolder, "sub/b.bin"), new File(decryptionFolder, "sub/b.bin")));
+        Assert.assertFalse(new File(decryptionFolder, "sub/loop").exists());
+    }
+
+    private byte[] encrypt(byte[] content) throws IOException {
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        fileEncryption.encryptStream(new ByteArrayInputStream(content), encrypted, "12");
+        return encrypted.toByteArray();
+    }
+
+    private byte[] decrypt(byte[] encrypted, String key) throws IOException, IllegalKeyException {
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        fileEncryption.decryptStream(new ByteArrayInputStream(encrypted), decrypted, key);
+        return decrypted.toByteArray();
+    }
+
+    private static byte[] content(int length) {
+        byte[] content = new byte[length];
+        new Random(length).nextBytes(content);
+        return content;
+    }
+}
@@ -0,0 +1,204 @@
+package org.developercookie.file.encryption.fs;
+
+import org.apache.commons.io.FileUtils;
+import org.developercookie.file.encryption.AESContentTransformer;
+import org.developercookie.file.encryption.ContentTransformer;
+import org.developercookie.file.encryption.FileEncryption;
+import org.developercookie.file.encryption.IllegalKeyException;
+import org.developercookie.file.encryption.SegmentCache;
+import org.developercookie.file.encryption.FolderFixture;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests that encrypted files can be read through the EncryptedFileSystem. Created by developerCookie on 19.10.26.
+ */
+public class EncryptedFileSystemTest extends FolderFixture {
+    private FileSystem fileSystem;
+
+    /**
+     * Test files are written and encrypted, the large one in the segmented format.
+     */
+    @Before
+    public void init() throws IOException {
+        writeTestfile("large.txt", 10000);
+        writeTestfile("small.txt", 100);
+        FileEncryption fileEncryption = new FileEncryption(new AESContentTransformer());
+        fileEncryption.setSegmentThreshold(1000);
+        fileEncryption.setSegmentSize(256);
+        fileEncryption.encryptFolder(testFolder, encryptionFolder, "txt", "12");
+        new File(encryptionFolder, "sub").mkdirs();
+
+        Map<String, Object> env = new HashMap<String, Object>();
+        env.put(EncryptedFileSystemProvider.KEY, "12");
+        fileSystem = FileSystems.newFileSystem(URI.create("encfs:" + encryptionFolder), env);
+    }
+
+    /**
+     * The file system is closed.
+     */
+    @After
+    public void cleanup() throws IOException {
+        fileSystem.close();
+    }
+
+    /**
+     * Files are read completely and have their plain size.
+     */
+    @Test
+    public void readFiles() throws IOException {
+        for (String name : new String[]{"large.txt", "small.txt"}) {
+            byte[] expected = FileUtils.readFileToByteArray(new File(testFolder, name));
+            Path path = fileSystem.getPath("/" + name);
+            Assert.assertArrayEquals(expected, Files.readAllBytes(path));
+            Assert.assertEquals(expected.length, Files.size(path));
+        }
+    }
+
+    /**
+     * Reading at a position returns the plain bytes of that position, also across segment borders.
+     */
+    @Test
+    public void seek() throws IOException {
+        byte[] expected = FileUtils.readFileToByteArray(new File(testFolder, "large.txt"));
+        SeekableByteChannel channel = Files.newByteChannel(fileSystem.getPath("/large.txt"));
+        try {
+            Assert.assertEquals(expected.length, channel.size());
+            for (long position : new long[]{9000, 250, 0, 9999}) {
+                ByteBuffer buffer = ByteBuffer.allocate(20);
+                channel.position(position);
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                    // reads until the buffer is full or the end is reached
+                }
+                byte[] read = Arrays.copyOf(buffer.array(), buffer.position());
+                Assert.assertArrayEquals(Arrays.copyOfRange(expected, (int) position, (int) Math.min(position + 20, expected.length)), read);
+            }
+            Assert.assertEquals(-1, channel.read(ByteBuffer.allocate(1)));
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * The listing shows the plain names and the folders, but not the manifest.
+     */
+    @Test
+    public void listFolder() throws IOException {
+        Set<String> names = new TreeSet<String>();
+        DirectoryStream<Path> stream = Files.newDirectoryStream(fileSystem.getPath("/"));
+        try {
+            for (Path path : stream) {
+                names.add(path.getFileName().toString());
+            }
+        } finally {
+            stream.close();
+        }
+        Assert.assertEquals(new TreeSet<String>(Arrays.asList("large.txt", "small.txt", "sub")), names);
+        Assert.assertTrue(Files.isDirectory(fileSystem.getPath("/sub")));
+        Assert.assertFalse(Files.exists(fileSystem.getPath("/missing.txt")));
+    }
+
+    /**
+     * The file system is read-only.
+     */
+    @Test(expected = ReadOnlyFileSystemException.class)
+    public void writeFails() throws IOException {
+        Files.write(fileSystem.getPath("/small.txt"), new byte[]{1});
+    }
+
+    /**
+     * A file that is not in the segmented format and does not fit into the cache is decrypted once per channel, not
+     * once per read.
+     */
+    @Test
+    public void smallReadsOfUncachedFile() throws IOException {
+        final AtomicInteger decryptions = new AtomicInteger();
+        reopenFileSystem(new AESContentTransformer() {
+            @Override
+            public byte[] decrypt(byte[] content, String key) throws IllegalKeyException {
+                decryptions.incrementAndGet();
+                return super.decrypt(content, key);
+            }
+        }, new SegmentCache(64, 16));
+        byte[] expected = FileUtils.readFileToByteArray(new File(testFolder, "small.txt"));
+        SeekableByteChannel channel = Files.newByteChannel(fileSystem.getPath("/small.txt"));
+        try {
+            ByteArrayOutputStream read = new ByteArrayOutputStream();
+            ByteBuffer buffer = ByteBuffer.allocate(10);
+            while (channel.read(buffer) >= 0) {
+                read.write(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+            Assert.assertArrayEquals(expected, read.toByteArray());
+        } finally {
+            channel.close();
+        }
+        Assert.assertEquals(1, decryptions.get());
+    }
+
+    /**
+     * The size of a file that is not in the segmented format is taken from its padding without decrypting it.
+     */
+    @Test
+    public void sizeWithoutDecryption() throws IOException {
+        final AtomicInteger decryptions = new AtomicInteger();
+        reopenFileSystem(new AESContentTransformer() {
+            @Override
+            public byte[] decrypt(byte[] content, String key) throws IllegalKeyException {
+                decryptions.incrementAndGet();
+                return super.decrypt(content, key);
+            }
+        }, new SegmentCache(64, 16));
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(100, Files.size(fileSystem.getPath("/small.txt")));
+            Assert.assertTrue(Files.exists(fileSystem.getPath("/small.txt")));
+        }
+        Assert.assertEquals(0, decryptions.get());
+    }
+
+    /**
+     * A segment that is read twice through the file system counts one miss and one hit.
+     */
+    @Test
+    public void hitRatio() throws IOException {
+        SegmentCache segmentCache = new SegmentCache(SegmentCache.DEFAULT_MAX_BYTES);
+        reopenFileSystem(new AESContentTransformer(), segmentCache);
+        SeekableByteChannel channel = Files.newByteChannel(fileSystem.getPath("/large.txt"));
+        try {
+            for (int i = 0; i < 2; i++) {
+                channel.position(0);
+                Assert.assertEquals(20, channel.read(ByteBuffer.allocate(20)));
+            }
+        } finally {
+            channel.close();
+        }
+        Assert.assertEquals(1, segmentCache.getMisses());
+        Assert.assertEquals(1, segmentCache.getHits());
+        Assert.assertEquals(0.5, segmentCache.getHitRatio(), 0.0);
+    }
+
+    /**
+     * Replaces the file system of the test by one with the <code>contentTransformer</code> and the
+     * <code>segmentCache</code>.
+     */
+    private void reopenFileSystem(ContentTransformer contentTransformer, SegmentCache segmentCache) throws IOException {
+        fileSystem.close();
+        Map<String, Object> env = new HashMap<String, Object>();
+        env.put(EncryptedFileSystemProvider.KEY, "12");
+        env.put(EncryptedFileSystemProvider.TRANSFORMER, contentTransformer);
+        env.put(EncryptedFileSystemProvider.SEGMENT_CACHE, segmentCache);
+        fileSystem = FileSystems.newFileSystem(URI.create("encfs:" + encryptionFolder), env);
+    }
+}